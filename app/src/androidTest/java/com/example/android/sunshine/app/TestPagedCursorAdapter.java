@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.utils.PollingCheck;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Scrolls a PagedCursorAdapter through a long list of keys, served a page at a time from
+    MatrixCursors, and checks every row is shown with its own key, that only a few pages are
+    ever open, and that a new first page keeps or cuts back the pages after it.  Also scrolls
+    past the end of the first page of a forecast read from the provider the way
+    ForecastFragment reads it.
+ */
+public class TestPagedCursorAdapter extends AndroidTestCase {
+
+    private static final int ROWS = 1000;
+    private static final int PAGE_SIZE = 50;
+    private static final int MAX_OPEN_PAGES = 3;
+    private static final int KEY_COLUMN = 1;
+    private static final String[] COLUMNS = {"_id", "date"};
+    private static final String PAGING_LOCATION = "paging-test";
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Every row's key: the list starts at 1000 and goes up in tens.
+    private static long key(int row) {
+        return 1000 + row * 10;
+    }
+
+    /**
+     * Serves the rows after a key, and counts the cursors it has handed out and not had back.
+     */
+    private static class FakePageLoader implements PagedCursorAdapter.PageLoader {
+        final List<MatrixCursor> mCursors = new ArrayList<MatrixCursor>();
+        volatile int mRows = ROWS;
+
+        static MatrixCursor page(int firstRow, int rows, int pageSize) {
+            MatrixCursor cursor = new MatrixCursor(COLUMNS);
+            for (int row = firstRow; row < rows && row < firstRow + pageSize; row++) {
+                cursor.addRow(new Object[]{row, key(row)});
+            }
+            return cursor;
+        }
+
+        @Override
+        public synchronized Cursor loadPageAfter(long lastKey, int pageSize) {
+            int firstRow = (int) ((lastKey - key(0)) / 10) + 1;
+            MatrixCursor cursor = page(firstRow, mRows, pageSize);
+            mCursors.add(cursor);
+            return cursor;
+        }
+
+        synchronized int loads() {
+            return mCursors.size();
+        }
+
+        synchronized int openCursors() {
+            int open = 0;
+            for (Cursor cursor : mCursors) {
+                if (!cursor.isClosed()) {
+                    open++;
+                }
+            }
+            return open;
+        }
+    }
+
+    /**
+     * Binds each row's key into the view's tag, or -1 for a placeholder.
+     */
+    private static class KeyAdapter extends PagedCursorAdapter {
+        KeyAdapter(Context context) {
+            this(context, PAGE_SIZE);
+        }
+
+        KeyAdapter(Context context, int pageSize) {
+            super(context, pageSize, KEY_COLUMN, MAX_OPEN_PAGES);
+        }
+
+        @Override
+        public View newView(Context context, int position, ViewGroup parent) {
+            return new View(context);
+        }
+
+        @Override
+        public void bindView(View view, Context context, Cursor cursor, int position) {
+            view.setTag(cursor.getLong(KEY_COLUMN));
+        }
+
+        @Override
+        public void bindPlaceholder(View view, Context context, int position) {
+            view.setTag(-1L);
+        }
+    }
+
+    // The adapter, and the AsyncTasks it starts, belong to the main thread.
+    private <T> T onMainThread(Callable<T> callable) throws Exception {
+        FutureTask<T> task = new FutureTask<T>(callable);
+        mMainHandler.post(task);
+        return task.get(5, TimeUnit.SECONDS);
+    }
+
+    private long keyShownAt(final KeyAdapter adapter, final int position) throws Exception {
+        return onMainThread(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return (Long) adapter.getView(position, null, null).getTag();
+            }
+        });
+    }
+
+    private int count(final KeyAdapter adapter) throws Exception {
+        return onMainThread(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return adapter.getCount();
+            }
+        });
+    }
+
+    private KeyAdapter newAdapter(final FakePageLoader loader, final Cursor firstPage)
+            throws Exception {
+        return onMainThread(new Callable<KeyAdapter>() {
+            @Override
+            public KeyAdapter call() {
+                KeyAdapter adapter = new KeyAdapter(mContext);
+                adapter.setPageLoader(loader);
+                adapter.swapCursor(firstPage);
+                return adapter;
+            }
+        });
+    }
+
+    /**
+     * Show the row, polling until its page is read.
+     */
+    private void assertShowsKey(KeyAdapter adapter, int position) throws Exception {
+        assertShowsKey(adapter, position, key(position));
+    }
+
+    private void assertShowsKey(final KeyAdapter adapter, final int position, final long key)
+            throws Exception {
+        PollingCheck.check("Error: row " + position + " was never shown", 5000,
+                new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        return position < count(adapter)
+                                && keyShownAt(adapter, position) == key;
+                    }
+                });
+    }
+
+    /**
+     * Wait for the adapter to close every page it read, including any still being read.
+     */
+    private static void assertAllClosed(final FakePageLoader loader) throws Exception {
+        PollingCheck.check("Error: pages were left open", 5000, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return loader.openCursors() == 0;
+            }
+        });
+    }
+
+    public void testScrollsThroughEveryRow() throws Exception {
+        FakePageLoader loader = new FakePageLoader();
+        final KeyAdapter adapter = newAdapter(loader, FakePageLoader.page(0, ROWS, PAGE_SIZE));
+        assertEquals(PAGE_SIZE, count(adapter));
+
+        for (int position = 0; position < ROWS; position++) {
+            assertShowsKey(adapter, position);
+            // A page just read may not have been handed to the adapter yet.
+            assertTrue("Error: too many pages open at row " + position,
+                    loader.openCursors() <= MAX_OPEN_PAGES + 1);
+        }
+        // Reading past the end finds nothing more.
+        Thread.sleep(200);
+        assertEquals(ROWS, count(adapter));
+
+        // Scroll back to the top: the pages closed on the way down are read again.
+        for (int position = ROWS - 1; position >= 0; position -= 7) {
+            assertShowsKey(adapter, position);
+            assertTrue(loader.openCursors() <= MAX_OPEN_PAGES + 1);
+        }
+
+        onMainThread(new Callable<Void>() {
+            @Override
+            public Void call() {
+                adapter.swapCursor(null);
+                return null;
+            }
+        });
+        assertAllClosed(loader);
+    }
+
+    public void testNewFirstPage() throws Exception {
+        FakePageLoader loader = new FakePageLoader();
+        final KeyAdapter adapter = newAdapter(loader, FakePageLoader.page(0, ROWS, PAGE_SIZE));
+        for (int position = 0; position < 4 * PAGE_SIZE; position++) {
+            assertShowsKey(adapter, position);
+        }
+        final int shown = count(adapter);
+        assertTrue(shown >= 4 * PAGE_SIZE);
+
+        // A first page ending where the old one did keeps the list as long as it was.
+        onMainThread(new Callable<Void>() {
+            @Override
+            public Void call() {
+                adapter.swapCursor(FakePageLoader.page(0, ROWS, PAGE_SIZE));
+                return null;
+            }
+        });
+        assertEquals(shown, count(adapter));
+        assertShowsKey(adapter, 3 * PAGE_SIZE);
+
+        // One that starts a day later cuts the list back to it.
+        onMainThread(new Callable<Void>() {
+            @Override
+            public Void call() {
+                MatrixCursor firstPage = new MatrixCursor(COLUMNS);
+                for (int row = 1; row <= PAGE_SIZE; row++) {
+                    firstPage.addRow(new Object[]{row, key(row)});
+                }
+                adapter.swapCursor(firstPage);
+                return null;
+            }
+        });
+        assertEquals(PAGE_SIZE, count(adapter));
+        assertAllClosed(loader);
+    }
+
+    public void testShortList() throws Exception {
+        FakePageLoader loader = new FakePageLoader();
+        loader.mRows = PAGE_SIZE / 2;
+        KeyAdapter adapter = newAdapter(loader, FakePageLoader.page(0, loader.mRows, PAGE_SIZE));
+        assertEquals(PAGE_SIZE / 2, count(adapter));
+        for (int position = 0; position < PAGE_SIZE / 2; position++) {
+            assertShowsKey(adapter, position);
+        }
+        // A page shorter than the page size is the last: nothing after it is read.
+        assertEquals(0, loader.loads());
+    }
+
+    public void testPagesFromProvider() throws Exception {
+        final ContentResolver resolver = mContext.getContentResolver();
+        ContentValues location = new ContentValues();
+        location.put(LocationEntry.COLUMN_LOCATION_SETTING, PAGING_LOCATION);
+        location.put(LocationEntry.COLUMN_CITY_NAME, "Paging");
+        location.put(LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        location.put(LocationEntry.COLUMN_COORD_LONG, -147.353);
+        String[] locationId = {Long.toString(ContentUris.parseId(
+                resolver.insert(LocationEntry.CONTENT_URI, location)))};
+        try {
+            // Two full pages after the first, and part of a third.
+            int days = 2 * ForecastFragment.PAGE_SIZE + ForecastFragment.PAGE_SIZE / 2;
+            long now = System.currentTimeMillis();
+            long[] dates = new long[days];
+            ContentValues[] values = new ContentValues[days];
+            for (int day = 0; day < days; day++) {
+                dates[day] = WeatherContract.normalizeDate(now + day * DateUtils.DAY_IN_MILLIS);
+                values[day] = new ContentValues();
+                values[day].put(WeatherEntry.COLUMN_LOC_KEY, Long.parseLong(locationId[0]));
+                values[day].put(WeatherEntry.COLUMN_DATE, dates[day]);
+                values[day].put(WeatherEntry.COLUMN_DEGREES, 1.1);
+                values[day].put(WeatherEntry.COLUMN_HUMIDITY, 1.2);
+                values[day].put(WeatherEntry.COLUMN_PRESSURE, 1.3);
+                values[day].put(WeatherEntry.COLUMN_MAX_TEMP, 75);
+                values[day].put(WeatherEntry.COLUMN_MIN_TEMP, 65);
+                values[day].put(WeatherEntry.COLUMN_SHORT_DESC, "Clear");
+                values[day].put(WeatherEntry.COLUMN_WIND_SPEED, 5.5);
+                values[day].put(WeatherEntry.COLUMN_WEATHER_ID, 800);
+            }
+            assertEquals(days, resolver.bulkInsert(WeatherEntry.CONTENT_URI, values));
+
+            final Cursor firstPage = resolver.query(
+                    WeatherEntry.buildWeatherLocationFirstPage(
+                            PAGING_LOCATION, now, ForecastFragment.PAGE_SIZE),
+                    ForecastFragment.FORECAST_COLUMNS, null, null,
+                    WeatherEntry.COLUMN_DATE + " ASC");
+            assertEquals(ForecastFragment.COL_WEATHER_DATE, KEY_COLUMN);
+            final PagedCursorAdapter.PageLoader forecastPages =
+                    ForecastFragment.newPageLoader(resolver, PAGING_LOCATION);
+            final List<Cursor> pages = new ArrayList<Cursor>();
+            final KeyAdapter adapter = onMainThread(new Callable<KeyAdapter>() {
+                @Override
+                public KeyAdapter call() {
+                    KeyAdapter adapter = new KeyAdapter(mContext, ForecastFragment.PAGE_SIZE);
+                    adapter.setPageLoader(new PagedCursorAdapter.PageLoader() {
+                        @Override
+                        public Cursor loadPageAfter(long lastKey, int pageSize) {
+                            Cursor page = forecastPages.loadPageAfter(lastKey, pageSize);
+                            synchronized (pages) {
+                                pages.add(page);
+                            }
+                            return page;
+                        }
+                    });
+                    adapter.swapCursor(firstPage);
+                    return adapter;
+                }
+            });
+            assertEquals(ForecastFragment.PAGE_SIZE, count(adapter));
+
+            for (int position = 0; position < days; position++) {
+                assertShowsKey(adapter, position, dates[position]);
+            }
+            // Reading past the end finds nothing more.
+            Thread.sleep(200);
+            assertEquals(days, count(adapter));
+
+            onMainThread(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    adapter.swapCursor(null);
+                    return null;
+                }
+            });
+            firstPage.close();
+            PollingCheck.check("Error: pages read from the provider were left open", 5000,
+                    new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() {
+                            synchronized (pages) {
+                                for (Cursor page : pages) {
+                                    if (!page.isClosed()) {
+                                        return false;
+                                    }
+                                }
+                                return pages.size() >= 2;
+                            }
+                        }
+                    });
+        } finally {
+            resolver.delete(WeatherEntry.CONTENT_URI, WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                    locationId);
+            resolver.delete(LocationEntry.CONTENT_URI, LocationEntry._ID + " = ?", locationId);
+        }
+    }
+}
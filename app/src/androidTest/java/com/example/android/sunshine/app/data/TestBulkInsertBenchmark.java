@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Compares the compiled-statement insert path with the SQLiteDatabase.insert loop it replaced,
+    in rows per second, for a single forecast, a large import and a very large one.
+ */
+public class TestBulkInsertBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestBulkInsertBenchmark.class.getSimpleName();
+
+    // Rows are spread over locations so every (location, date) pair stays within a few years.
+    private static final int DAYS_PER_LOCATION = 1000;
+
+    private WeatherDbHelper mDbHelper;
+
+    public void setUp() {
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        mDbHelper = new WeatherDbHelper(mContext);
+    }
+
+    public void tearDown() {
+        mDbHelper.close();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+    }
+
+    public void testForecastSizedInsert() {
+        compare(14);
+    }
+
+    public void testLargeInsert() {
+        compare(10000);
+    }
+
+    public void testVeryLargeInsert() {
+        compare(1000000);
+    }
+
+    public void testCompiledPathAllocatesLess() {
+        int rows = 10000;
+        long[] legacy = allocations(rows, false);
+        long[] compiled = allocations(rows, true);
+        Log.d(LOG_TAG, rows + " rows: db.insert allocated " + legacy[0] + " objects/" + legacy[1]
+                + "B, compiled statement " + compiled[0] + " objects/" + compiled[1] + "B");
+        assertTrue("Error: the compiled path should allocate less", compiled[1] < legacy[1]);
+    }
+
+    private void compare(int rows) {
+        // Warm up both paths, so the first one measured isn't charged for class loading.
+        ingest(14, false);
+        ingest(14, true);
+
+        long legacyNanos = ingest(rows, false);
+        long compiledNanos = ingest(rows, true);
+        Log.d(LOG_TAG, rows + " rows: db.insert " + rowsPerSecond(rows, legacyNanos)
+                + " rows/s, compiled statement " + rowsPerSecond(rows, compiledNanos) + " rows/s");
+    }
+
+    @SuppressWarnings("deprecation")
+    private long[] allocations(int rows, boolean compiled) {
+        ingest(14, compiled);
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        ingest(rows, compiled);
+        Debug.stopAllocCounting();
+        return new long[] {Debug.getThreadAllocCount(), Debug.getThreadAllocSize()};
+    }
+
+    /**
+     * Write the rows in one transaction into an empty table, the way bulkInsert does.
+     *
+     * @return how long the transaction took
+     */
+    private long ingest(int rows, boolean compiled) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.delete(WeatherEntry.TABLE_NAME, null, null);
+
+        // One set of values, refilled for each row, so the benchmark measures the insert and not
+        // building its input.
+        ContentValues values = TestUtilities.createWeatherValues(0);
+
+        long start = System.nanoTime();
+        db.beginTransaction();
+        WeatherInserter inserter = compiled ? new WeatherInserter(db) : null;
+        try {
+            for (int i = 0; i < rows; i++) {
+                values.put(WeatherEntry.COLUMN_LOC_KEY, 1 + i / DAYS_PER_LOCATION);
+                values.put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE
+                        + (i % DAYS_PER_LOCATION) * DateUtils.DAY_IN_MILLIS);
+                long _id;
+                if (compiled) {
+                    _id = inserter.insert(values);
+                } else {
+                    // What bulkInsert did before.
+                    values.put(WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(
+                            values.getAsLong(WeatherEntry.COLUMN_DATE)));
+                    _id = db.insert(WeatherEntry.TABLE_NAME, null, values);
+                }
+                assertTrue(_id != -1);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            if (inserter != null) {
+                inserter.close();
+            }
+            db.endTransaction();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(rows, DatabaseUtils.longForQuery(db,
+                "SELECT COUNT(*) FROM " + WeatherEntry.TABLE_NAME, null));
+        return elapsed;
+    }
+
+    private static long rowsPerSecond(int rows, long nanos) {
+        return rows * 1000000000L / Math.max(1, nanos);
+    }
+}
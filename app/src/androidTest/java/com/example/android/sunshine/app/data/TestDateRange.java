@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Queries weather/{location}/{start}/{end} on a location with years of stored days: the
+    range's ends are included, a limit keeps the first (or, sorted descending, the last) days,
+    writes inside the range are seen, and the range is compared for latency with reading
+    everything from the start date and dropping the days after the end.  Also walks the same
+    history a page at a time, the way the forecast list reads it.
+ */
+public class TestDateRange extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestDateRange.class.getSimpleName();
+
+    private static final int DAYS = 3 * 365;
+    private static final int WINDOW_DAYS = 7;
+    private static final int BENCHMARK_QUERIES = 200;
+
+    private static final String[] DATE_PROJECTION = {
+            WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP};
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        long locationId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues[] days = new ContentValues[DAYS];
+        for (int day = 0; day < DAYS; day++) {
+            days[day] = TestUtilities.createWeatherValues(locationId);
+            days[day].put(WeatherEntry.COLUMN_DATE, day(day));
+        }
+        assertEquals(DAYS, mContext.getContentResolver().bulkInsert(
+                WeatherEntry.CONTENT_URI, days));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private static long day(int day) {
+        return WeatherContract.normalizeDate(TestUtilities.TEST_DATE
+                + day * DateUtils.DAY_IN_MILLIS);
+    }
+
+    private long[] queryDates(Uri uri, String sortOrder) {
+        Cursor cursor = mContext.getContentResolver().query(uri, DATE_PROJECTION, null, null,
+                sortOrder);
+        try {
+            long[] dates = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                dates[i] = cursor.getLong(0);
+            }
+            return dates;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testRangeIncludesBothEnds() {
+        long[] dates = queryDates(WeatherEntry.buildWeatherLocationWithDateRange(
+                TestUtilities.TEST_LOCATION, day(100), day(100 + WINDOW_DAYS - 1)), null);
+        assertEquals(WINDOW_DAYS, dates.length);
+        for (int i = 0; i < WINDOW_DAYS; i++) {
+            assertEquals("Error: the days should be in date order", day(100 + i), dates[i]);
+        }
+
+        assertEquals(1, queryDates(WeatherEntry.buildWeatherLocationWithDateRange(
+                TestUtilities.TEST_LOCATION, day(5), day(5)), null).length);
+        assertEquals("Error: a range that ends before it starts has no days",
+                0, queryDates(WeatherEntry.buildWeatherLocationWithDateRange(
+                        TestUtilities.TEST_LOCATION, day(6), day(5)), null).length);
+        assertEquals(0, queryDates(WeatherEntry.buildWeatherLocationWithDateRange(
+                "nowhere", day(0), day(DAYS)), null).length);
+    }
+
+    public void testLimit() {
+        Uri uri = WeatherEntry.buildWeatherLocationWithDateRange(
+                TestUtilities.TEST_LOCATION, day(100), day(199), 3);
+        long[] first = queryDates(uri, null);
+        assertEquals(3, first.length);
+        assertEquals(day(100), first[0]);
+        assertEquals(day(102), first[2]);
+
+        long[] last = queryDates(uri, WeatherEntry.COLUMN_DATE + " DESC");
+        assertEquals(3, last.length);
+        assertEquals(day(199), last[0]);
+        assertEquals(day(197), last[2]);
+
+        assertEquals("Error: a limit past the range's end should return the whole range",
+                WINDOW_DAYS, queryDates(WeatherEntry.buildWeatherLocationWithDateRange(
+                        TestUtilities.TEST_LOCATION, day(0), day(WINDOW_DAYS - 1), 100), null)
+                        .length);
+    }
+
+    public void testRangeSeesWritesInsideIt() {
+        Uri uri = WeatherEntry.buildWeatherLocationWithDateRange(
+                TestUtilities.TEST_LOCATION, day(100), day(100 + WINDOW_DAYS - 1));
+        // Read it twice, so a second read could come from the query cache.
+        queryDates(uri, null);
+        queryDates(uri, null);
+
+        ContentValues changed = new ContentValues();
+        changed.put(WeatherEntry.COLUMN_MAX_TEMP, 99);
+        assertEquals(1, mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, changed,
+                WeatherEntry.COLUMN_DATE + " = ?", new String[]{Long.toString(day(103))}));
+
+        Cursor cursor = mContext.getContentResolver().query(uri, DATE_PROJECTION, null, null,
+                null);
+        try {
+            assertTrue(cursor.moveToPosition(3));
+            assertEquals(day(103), cursor.getLong(0));
+            assertEquals("Error: the range didn't see the update", 99.0, cursor.getDouble(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testKeysetPages() {
+        final int pageSize = 50;
+        long[] all = queryDates(WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, day(0)), WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(DAYS, all.length);
+
+        long[] page = queryDates(WeatherEntry.buildWeatherLocationFirstPage(
+                TestUtilities.TEST_LOCATION, day(0), pageSize), null);
+        int read = 0;
+        int pages = 0;
+        while (page.length > 0) {
+            assertTrue("Error: a page has more than the page size", page.length <= pageSize);
+            for (long date : page) {
+                assertEquals("Error: the pages should follow on from each other",
+                        all[read++], date);
+            }
+            pages++;
+            // The page after it, whichever order the caller asks for.
+            page = queryDates(WeatherEntry.buildWeatherLocationPageAfter(
+                    TestUtilities.TEST_LOCATION, page[page.length - 1], pageSize),
+                    WeatherEntry.COLUMN_DATE + " DESC");
+        }
+        assertEquals(DAYS, read);
+        assertEquals((DAYS + pageSize - 1) / pageSize, pages);
+
+        // Deleting days before a page doesn't move it.
+        assertEquals(10, mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_DATE + " < ?", new String[]{Long.toString(day(10))}));
+        page = queryDates(WeatherEntry.buildWeatherLocationPageAfter(
+                TestUtilities.TEST_LOCATION, day(99), pageSize), null);
+        assertEquals(pageSize, page.length);
+        assertEquals(day(100), page[0]);
+
+        try {
+            queryDates(WeatherEntry.buildWeatherLocationPageAfter(
+                    TestUtilities.TEST_LOCATION, day(99), -1), null);
+            fail("Error: a negative page size should be refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testLatency() {
+        // Warm up both, and check they agree.
+        for (int q = 0; q < 10; q++) {
+            int first = windowStart(q);
+            assertEquals(WINDOW_DAYS, countRange(first));
+            assertEquals(WINDOW_DAYS, countFromStartDate(first));
+        }
+
+        long start = System.nanoTime();
+        for (int q = 0; q < BENCHMARK_QUERIES; q++) {
+            countFromStartDate(windowStart(q));
+        }
+        long fromStartDate = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int q = 0; q < BENCHMARK_QUERIES; q++) {
+            countRange(windowStart(q));
+        }
+        long range = System.nanoTime() - start;
+
+        Log.d(LOG_TAG, BENCHMARK_QUERIES + " " + WINDOW_DAYS + "-day windows over " + DAYS
+                + " stored days: from the start date, filtered in memory, "
+                + fromStartDate / 1000 / BENCHMARK_QUERIES + "us each; date range "
+                + range / 1000 / BENCHMARK_QUERIES + "us each");
+    }
+
+    // Spread over the history, so most windows read a different part of it.
+    private static int windowStart(int query) {
+        return (query * 37) % (DAYS - WINDOW_DAYS);
+    }
+
+    private int countRange(int firstDay) {
+        return queryDates(WeatherEntry.buildWeatherLocationWithDateRange(
+                TestUtilities.TEST_LOCATION, day(firstDay), day(firstDay + WINDOW_DAYS - 1)),
+                null).length;
+    }
+
+    // What a consumer had to do before: read from the start date on and stop after the window.
+    private int countFromStartDate(int firstDay) {
+        long lastDate = day(firstDay + WINDOW_DAYS - 1);
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                        day(firstDay)), DATE_PROJECTION, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        try {
+            int count = 0;
+            while (cursor.moveToNext() && cursor.getLong(0) <= lastDate) {
+                count++;
+            }
+            return count;
+        } finally {
+            cursor.close();
+        }
+    }
+}
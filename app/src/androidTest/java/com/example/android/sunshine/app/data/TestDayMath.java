@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.text.format.Time;
+import android.util.Log;
+
+import java.util.Random;
+import java.util.TimeZone;
+
+/*
+    Checks DayMath against the android.text.format.Time calls it replaced, for random instants
+    and for every quarter hour around daylight saving changes and new years, in zones with
+    the changes at different times of night, and compares their speed and allocations.
+ */
+public class TestDayMath extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestDayMath.class.getSimpleName();
+
+    // Zones whose daylight saving changes are away from midnight, where Time.setJulianDay
+    // gives local midnight and DayMath must give the same.  Lord Howe moves by half an hour,
+    // Kathmandu is 5:45 ahead of UTC, and Apia skipped December 30, 2011.
+    private static final String[] ZONES = {
+            "UTC", "America/Los_Angeles", "America/New_York", "Europe/London", "Europe/Berlin",
+            "Australia/Sydney", "Australia/Lord_Howe", "Asia/Kathmandu", "Pacific/Apia"
+    };
+
+    // Zones that have moved their clocks at midnight, so some days had no midnight or had
+    // two.  Time's answer there depends on the platform version; DayMath gives the first
+    // instant of the day.
+    private static final String[] MIDNIGHT_CHANGE_ZONES = {
+            "America/Sao_Paulo", "Asia/Gaza", "America/Havana", "Asia/Beirut"
+    };
+
+    // 2000 to 2037, after which Time on 32-bit platforms can't count.
+    private static final long FIRST_MILLIS = 946684800000L;
+    private static final long LAST_MILLIS = 2114380800000L;
+
+    private static final long STEP_MILLIS = 15 * DateUtils.MINUTE_IN_MILLIS;
+    private static final int RANDOM_INSTANTS = 20000;
+    private static final int BENCHMARK_CALLS = 100000;
+
+    private static void assertMatchesTime(String zone, DayMath dayMath, Time time, long millis) {
+        time.set(millis);
+        int julianDay = Time.getJulianDay(millis, time.gmtoff);
+        assertEquals("Error: Julian day in " + zone + " at " + millis,
+                julianDay, dayMath.getJulianDay(millis));
+        assertEquals("Error: day of the week in " + zone + " at " + millis,
+                time.weekDay, dayMath.getDayOfWeek(millis));
+        assertEquals("Error: start of day " + julianDay + " in " + zone,
+                time.setJulianDay(julianDay), dayMath.getStartOfDay(julianDay));
+    }
+
+    /**
+     * Check every quarter hour of the day around each instant the zone's offset changes.
+     */
+    private static void checkTransitions(String zone, DayMath dayMath, Time time) {
+        TimeZone timeZone = dayMath.getTimeZone();
+        int lastOffset = timeZone.getOffset(FIRST_MILLIS);
+        for (long millis = FIRST_MILLIS; millis < LAST_MILLIS;
+             millis += DateUtils.HOUR_IN_MILLIS) {
+            int offset = timeZone.getOffset(millis);
+            if (offset != lastOffset) {
+                for (long around = millis - DateUtils.DAY_IN_MILLIS;
+                     around < millis + DateUtils.DAY_IN_MILLIS; around += STEP_MILLIS) {
+                    if (time != null) {
+                        assertMatchesTime(zone, dayMath, time, around);
+                    } else {
+                        assertFirstInstant(zone, dayMath, around);
+                    }
+                }
+                lastOffset = offset;
+            }
+        }
+    }
+
+    private static void assertFirstInstant(String zone, DayMath dayMath, long millis) {
+        int julianDay = dayMath.getJulianDay(millis);
+        long start = dayMath.getStartOfDay(julianDay);
+        assertTrue("Error: day " + julianDay + " in " + zone + " starts after " + millis,
+                start <= millis);
+        assertEquals("Error: day " + julianDay + " in " + zone + " starts on another day",
+                julianDay, dayMath.getJulianDay(start));
+        assertEquals("Error: day " + julianDay + " in " + zone + " starts late",
+                julianDay - 1, dayMath.getJulianDay(start - 1));
+    }
+
+    public void testMatchesTimeAroundOffsetChanges() {
+        for (String zone : ZONES) {
+            checkTransitions(zone, DayMath.forTimeZone(TimeZone.getTimeZone(zone)),
+                    new Time(zone));
+        }
+    }
+
+    public void testMatchesTimeAroundNewYear() {
+        Time utc = new Time(Time.TIMEZONE_UTC);
+        for (String zone : ZONES) {
+            DayMath dayMath = DayMath.forTimeZone(TimeZone.getTimeZone(zone));
+            Time time = new Time(zone);
+            for (int year = 2000; year <= 2037; year++) {
+                utc.set(1, 0, year);
+                long newYear = utc.toMillis(false);
+                for (long millis = newYear - DateUtils.DAY_IN_MILLIS;
+                     millis < newYear + DateUtils.DAY_IN_MILLIS; millis += STEP_MILLIS) {
+                    assertMatchesTime(zone, dayMath, time, millis);
+                }
+            }
+        }
+    }
+
+    public void testMatchesTimeAtRandom() {
+        Random random = new Random(20141220);
+        for (String zone : ZONES) {
+            DayMath dayMath = DayMath.forTimeZone(TimeZone.getTimeZone(zone));
+            Time time = new Time(zone);
+            for (int i = 0; i < RANDOM_INSTANTS; i++) {
+                long millis = FIRST_MILLIS
+                        + (long) (random.nextDouble() * (LAST_MILLIS - FIRST_MILLIS));
+                assertMatchesTime(zone, dayMath, time, millis);
+            }
+        }
+    }
+
+    public void testDaysStartAtTheirFirstInstant() {
+        for (String zone : MIDNIGHT_CHANGE_ZONES) {
+            DayMath dayMath = DayMath.forTimeZone(TimeZone.getTimeZone(zone));
+            checkTransitions(zone, dayMath, null);
+            // The Julian day itself never depends on how midnight went.
+            Time time = new Time(zone);
+            for (long millis = FIRST_MILLIS; millis < LAST_MILLIS;
+                 millis += DateUtils.DAY_IN_MILLIS + STEP_MILLIS) {
+                time.set(millis);
+                assertEquals(Time.getJulianDay(millis, time.gmtoff), dayMath.getJulianDay(millis));
+            }
+        }
+    }
+
+    public void testDaysFromToday() {
+        DayMath dayMath = DayMath.forTimeZone(TimeZone.getTimeZone("America/Los_Angeles"));
+        // 11pm on December 20, 2014 in Los Angeles
+        long now = 1419145200000L;
+        assertEquals(0, dayMath.getDaysFromToday(now - 20 * DateUtils.HOUR_IN_MILLIS, now));
+        assertEquals(1, dayMath.getDaysFromToday(now + 2 * DateUtils.HOUR_IN_MILLIS, now));
+        assertEquals(-1, dayMath.getDaysFromToday(now - 24 * DateUtils.HOUR_IN_MILLIS, now));
+        assertEquals(7, dayMath.getDaysFromToday(now + 7 * DateUtils.DAY_IN_MILLIS, now));
+        assertEquals(Time.SUNDAY, dayMath.getDayOfWeek(now + 2 * DateUtils.HOUR_IN_MILLIS));
+    }
+
+    public void testFirstDaysOfWeekAndMonth() {
+        Time time = new Time(Time.TIMEZONE_UTC);
+        int firstDay = Time.getJulianDay(FIRST_MILLIS, 0);
+        int lastDay = Time.getJulianDay(LAST_MILLIS, 0);
+        for (int julianDay = firstDay; julianDay <= lastDay; julianDay++) {
+            time.setJulianDay(julianDay);
+            assertEquals("Error: first day of the week of " + julianDay,
+                    julianDay - time.weekDay, DayMath.getFirstDayOfWeek(julianDay));
+            int firstOfMonth = julianDay - (time.monthDay - 1);
+            assertEquals("Error: first day of the month of " + julianDay,
+                    firstOfMonth, DayMath.getFirstDayOfMonth(julianDay));
+            if (time.monthDay == 1 && julianDay > firstDay) {
+                assertEquals("Error: first day of the month after " + (julianDay - 1),
+                        julianDay, DayMath.getFirstDayOfNextMonth(julianDay - 1));
+            }
+        }
+    }
+
+    public void testDefaultFollowsTimeZoneChange() {
+        TimeZone original = TimeZone.getDefault();
+        try {
+            TimeZone.setDefault(TimeZone.getTimeZone("Asia/Kathmandu"));
+            DayMath.resetDefault();
+            assertEquals("Asia/Kathmandu", DayMath.getDefault().getTimeZone().getID());
+            TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+            DayMath.resetDefault();
+            assertEquals("America/New_York", DayMath.getDefault().getTimeZone().getID());
+        } finally {
+            TimeZone.setDefault(original);
+            DayMath.resetDefault();
+        }
+    }
+
+    /**
+     * Normalize a day's worth of quarter hours, the way the sync and the adapter did, with Time
+     * and with DayMath.
+     */
+    public void testBenchmark() {
+        // Warm up both.
+        normalizeWithTime(BENCHMARK_CALLS / 10);
+        normalizeWithDayMath(BENCHMARK_CALLS / 10);
+
+        long start = System.nanoTime();
+        long timeSum = normalizeWithTime(BENCHMARK_CALLS);
+        long timeNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        long dayMathSum = normalizeWithDayMath(BENCHMARK_CALLS);
+        long dayMathNanos = System.nanoTime() - start;
+        assertEquals(timeSum, dayMathSum);
+
+        long[] timeAllocations = allocations(false);
+        long[] dayMathAllocations = allocations(true);
+        Log.d(LOG_TAG, BENCHMARK_CALLS + " normalizations: Time " + timeNanos / BENCHMARK_CALLS
+                + "ns each, " + timeAllocations[0] + " objects/" + timeAllocations[1]
+                + "B; DayMath " + dayMathNanos / BENCHMARK_CALLS + "ns each, "
+                + dayMathAllocations[0] + " objects/" + dayMathAllocations[1] + "B");
+        assertTrue("Error: DayMath should not allocate for each date",
+                dayMathAllocations[0] < BENCHMARK_CALLS / 100);
+    }
+
+    // What WeatherContract.normalizeDate did
+    private static long normalizeWithTime(int calls) {
+        long sum = 0;
+        for (int i = 0; i < calls; i++) {
+            long millis = TestUtilities.TEST_DATE + i * STEP_MILLIS;
+            Time time = new Time();
+            time.set(millis);
+            sum += time.setJulianDay(Time.getJulianDay(millis, time.gmtoff));
+        }
+        return sum;
+    }
+
+    private static long normalizeWithDayMath(int calls) {
+        DayMath dayMath = DayMath.getDefault();
+        long sum = 0;
+        for (int i = 0; i < calls; i++) {
+            sum += dayMath.normalize(TestUtilities.TEST_DATE + i * STEP_MILLIS);
+        }
+        return sum;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long[] allocations(boolean dayMath) {
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        if (dayMath) {
+            normalizeWithDayMath(BENCHMARK_CALLS);
+        } else {
+            normalizeWithTime(BENCHMARK_CALLS);
+        }
+        Debug.stopAllocCounting();
+        return new long[] {Debug.getThreadAllocCount(), Debug.getThreadAllocSize()};
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    Runs the forecast and detail screens' queries while a large ingest is being written, to check
+    that readers aren't held up for the length of the write transaction.
+ */
+public class TestDbConcurrency extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestDbConcurrency.class.getSimpleName();
+
+    private static final int INGEST_ROWS = 20000;
+    private static final int READERS = 3;
+
+    public void setUp() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    public void tearDown() {
+        setUp();
+    }
+
+    public void testWriteAheadLoggingIsEnabled() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        assertEquals("wal", pragma(db, "PRAGMA journal_mode").toLowerCase());
+        assertEquals(String.valueOf(WeatherDbHelper.WAL_AUTOCHECKPOINT_PAGES),
+                pragma(db, "PRAGMA wal_autocheckpoint"));
+        dbHelper.close();
+    }
+
+    public void testReadersDuringIngest() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+
+        // A week the screens can show, then a large ingest of later days.
+        ContentValues[] week = new ContentValues[7];
+        for (int i = 0; i < week.length; i++) {
+            week[i] = weatherValues(locationRowId, i);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, week);
+        final ContentValues[] ingest = new ContentValues[INGEST_ROWS];
+        for (int i = 0; i < ingest.length; i++) {
+            ingest[i] = weatherValues(locationRowId, week.length + i);
+        }
+
+        final Uri forecastUri = WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+        final Uri detailUri = WeatherEntry.buildWeatherLocationWithDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+
+        final AtomicBoolean ingesting = new AtomicBoolean(true);
+        final CountDownLatch readersStarted = new CountDownLatch(READERS);
+        final List<Long> latencies = new ArrayList<Long>();
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int r = 0; r < READERS; r++) {
+            final boolean detail = r % 2 == 1;
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    readersStarted.countDown();
+                    while (ingesting.get()) {
+                        long start = System.nanoTime();
+                        Cursor cursor = mContext.getContentResolver().query(
+                                detail ? detailUri : forecastUri, null, null, null, null);
+                        cursor.moveToLast();
+                        cursor.close();
+                        long elapsed = System.nanoTime() - start;
+                        // Only queries that ran start to finish inside the ingest count.
+                        if (ingesting.get()) {
+                            synchronized (latencies) {
+                                latencies.add(elapsed);
+                            }
+                        }
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+        readersStarted.await();
+
+        long ingestStart = System.nanoTime();
+        int inserted = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, ingest);
+        long ingestNanos = System.nanoTime() - ingestStart;
+        ingesting.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertEquals(INGEST_ROWS, inserted);
+
+        long[] sorted = new long[latencies.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = latencies.get(i);
+        }
+        Arrays.sort(sorted);
+        Log.d(LOG_TAG, "Ingest of " + INGEST_ROWS + " rows took " + ingestNanos / 1000000
+                + "ms; " + sorted.length + " queries ran alongside it, p50 "
+                + WeatherProvider.percentile(sorted, 0.50) / 1000 + "us, p99 "
+                + WeatherProvider.percentile(sorted, 0.99) / 1000 + "us");
+
+        // With the rollback journal the readers would wait for the whole transaction, and none
+        // would finish while it was open.
+        assertTrue("Error: no query finished while the ingest was being written",
+                sorted.length > 0);
+        assertTrue("Error: a query waited as long as the ingest took",
+                WeatherProvider.percentile(sorted, 0.99) < ingestNanos);
+    }
+
+    private static ContentValues weatherValues(long locationRowId, int day) {
+        ContentValues values = TestUtilities.createWeatherValues(locationRowId);
+        values.put(WeatherEntry.COLUMN_DATE,
+                TestUtilities.TEST_DATE + day * DateUtils.DAY_IN_MILLIS);
+        return values;
+    }
+
+    private static String pragma(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
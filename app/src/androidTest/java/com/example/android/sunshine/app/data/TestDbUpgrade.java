@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.RollupEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncRunEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Builds the database as each released version left it, with a location, a day of weather
+    and, where there was one, a sync run, then opens it with WeatherDbHelper.  The upgrade has
+    to keep the rows and end up with the same schema a new install gets.
+
+    The old schemas are written out here as they were shipped, and are never changed.
+ */
+public class TestDbUpgrade extends AndroidTestCase {
+
+    private static final String V2_LOCATION = "CREATE TABLE location (" +
+            "_id INTEGER PRIMARY KEY," +
+            "location_setting TEXT UNIQUE NOT NULL, " +
+            "city_name TEXT NOT NULL, " +
+            "coord_lat REAL NOT NULL, " +
+            "coord_long REAL NOT NULL  );";
+
+    private static final String V3_LOCATION = "CREATE TABLE location (" +
+            "_id INTEGER PRIMARY KEY," +
+            "location_setting TEXT UNIQUE NOT NULL, " +
+            "city_name TEXT NOT NULL, " +
+            "coord_lat REAL NOT NULL, " +
+            "coord_long REAL NOT NULL, " +
+            "city_id INTEGER  );";
+
+    // Unchanged since version 2
+    private static final String V2_WEATHER = "CREATE TABLE weather (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "location_id INTEGER NOT NULL, " +
+            "date INTEGER NOT NULL, " +
+            "short_desc TEXT NOT NULL, " +
+            "weather_id INTEGER NOT NULL," +
+            "min REAL NOT NULL, " +
+            "max REAL NOT NULL, " +
+            "humidity REAL NOT NULL, " +
+            "pressure REAL NOT NULL, " +
+            "wind REAL NOT NULL, " +
+            "degrees REAL NOT NULL, " +
+            " FOREIGN KEY (location_id) REFERENCES location (_id),  " +
+            "UNIQUE (date, location_id) ON CONFLICT REPLACE);";
+
+    // Package-private for TestQueryPlans
+    static final String V4_SYNC_RUNS = "CREATE TABLE sync_runs (" +
+            "_id INTEGER PRIMARY KEY," +
+            "start_time INTEGER NOT NULL, " +
+            "status INTEGER NOT NULL, " +
+            "requests INTEGER NOT NULL DEFAULT 0, " +
+            "errors INTEGER NOT NULL DEFAULT 0, " +
+            "rows_written INTEGER NOT NULL DEFAULT 0, " +
+            "total_us INTEGER NOT NULL DEFAULT 0, " +
+            "connect_us INTEGER NOT NULL DEFAULT 0, " +
+            "first_byte_us INTEGER NOT NULL DEFAULT 0, " +
+            "download_us INTEGER NOT NULL DEFAULT 0, " +
+            "download_bytes INTEGER NOT NULL DEFAULT 0, " +
+            "parse_us INTEGER NOT NULL DEFAULT 0, " +
+            "insert_us INTEGER NOT NULL DEFAULT 0, " +
+            "retention_us INTEGER NOT NULL DEFAULT 0, " +
+            "notify_us INTEGER NOT NULL DEFAULT 0 );";
+
+    private static final String V5_INDEX = "CREATE INDEX weather_location_date"
+            + " ON weather (location_id, date);";
+
+    private static final String[] V6_SYNC_RUNS = {
+            "ALTER TABLE sync_runs ADD COLUMN database_bytes INTEGER NOT NULL DEFAULT 0",
+            "ALTER TABLE sync_runs ADD COLUMN free_bytes INTEGER NOT NULL DEFAULT 0"};
+
+    private static final String[] TABLES = {
+            LocationEntry.TABLE_NAME, WeatherEntry.TABLE_NAME, SyncRunEntry.TABLE_NAME,
+            RollupEntry.TABLE_NAME};
+
+    private static final String TEST_LOCATION_SETTING = "99705";
+    private static final long TEST_DATE = 1419033600000L;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    /**
+     * Create the database file as the given version made it, with one row in each table.
+     */
+    private void createVersion(int version) {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(
+                mContext.getDatabasePath(WeatherDbHelper.DATABASE_NAME), null);
+        try {
+            db.execSQL(version >= 3 ? V3_LOCATION : V2_LOCATION);
+            db.execSQL(V2_WEATHER);
+            if (version >= 5) {
+                db.execSQL(V5_INDEX);
+            }
+            if (version >= 4) {
+                db.execSQL(V4_SYNC_RUNS);
+                if (version >= 6) {
+                    for (String sql : V6_SYNC_RUNS) {
+                        db.execSQL(sql);
+                    }
+                }
+                db.execSQL("INSERT INTO sync_runs (start_time, status, rows_written)"
+                        + " VALUES (1419033600000, 1, 14)");
+            }
+            db.execSQL("INSERT INTO location (location_setting, city_name, coord_lat, coord_long)"
+                    + " VALUES ('" + TEST_LOCATION_SETTING + "', 'North Pole', 64.7488, -147.353)");
+            db.execSQL("INSERT INTO weather (location_id, date, short_desc, weather_id, min, max,"
+                    + " humidity, pressure, wind, degrees) VALUES (1, " + TEST_DATE
+                    + ", 'Asteroids', 321, 65, 75, 1.2, 1.3, 5.5, 1.1)");
+            db.setVersion(version);
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Describe each table's columns and indexes, to compare two databases' schemas.
+     */
+    private static String describeSchema(SQLiteDatabase db) {
+        StringBuilder schema = new StringBuilder();
+        for (String table : TABLES) {
+            schema.append(table).append(":");
+            Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+            try {
+                while (cursor.moveToNext()) {
+                    schema.append(" ").append(cursor.getString(cursor.getColumnIndex("name")))
+                            .append(" ").append(cursor.getString(cursor.getColumnIndex("type")))
+                            .append(cursor.getInt(cursor.getColumnIndex("notnull")) != 0
+                                    ? " NOT NULL" : "")
+                            .append(" DEFAULT ")
+                            .append(cursor.getString(cursor.getColumnIndex("dflt_value")))
+                            .append(cursor.getInt(cursor.getColumnIndex("pk")) != 0 ? " PK" : "")
+                            .append(",");
+                }
+            } finally {
+                cursor.close();
+            }
+            cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index'"
+                    + " AND tbl_name = ? ORDER BY name", new String[]{table});
+            try {
+                while (cursor.moveToNext()) {
+                    schema.append(" index ").append(cursor.getString(0)).append(",");
+                }
+            } finally {
+                cursor.close();
+            }
+            schema.append("\n");
+        }
+        return schema.toString();
+    }
+
+    private String describeNewInstall() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            new WeatherDbHelper(mContext).onCreate(db);
+            return describeSchema(db);
+        } finally {
+            db.close();
+        }
+    }
+
+    private void assertUpgradeKeepsData(int version) {
+        createVersion(version);
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        try {
+            assertEquals("Error: version " + version + " upgraded to a different schema",
+                    describeNewInstall(), describeSchema(db));
+
+            Cursor cursor = db.query(WeatherProvider.sWeatherByLocationSettingQueryBuilder
+                            .getTables(), null,
+                    LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                    new String[]{TEST_LOCATION_SETTING}, null, null, null);
+            try {
+                assertEquals("Error: version " + version + " lost its weather",
+                        1, cursor.getCount());
+                cursor.moveToFirst();
+                assertEquals(TEST_DATE,
+                        cursor.getLong(cursor.getColumnIndex(WeatherEntry.COLUMN_DATE)));
+                assertEquals(75.0,
+                        cursor.getDouble(cursor.getColumnIndex(WeatherEntry.COLUMN_MAX_TEMP)));
+                assertTrue(cursor.isNull(cursor.getColumnIndex(LocationEntry.COLUMN_CITY_ID)));
+            } finally {
+                cursor.close();
+            }
+            assertEquals(version >= 4 ? 1 : 0, DatabaseUtils.longForQuery(db,
+                    "SELECT COUNT(*) FROM " + SyncRunEntry.TABLE_NAME, null));
+            // The stored day's week and month
+            assertEquals("Error: version " + version + " didn't roll up its weather",
+                    2, DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM "
+                            + RollupEntry.TABLE_NAME + " WHERE " + RollupEntry.COLUMN_DAYS
+                            + " = 1", null));
+            assertEquals("Error: version " + version + " wasn't converted to incremental vacuum",
+                    WeatherDbHelper.AUTO_VACUUM_INCREMENTAL,
+                    DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null));
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    public void testUpgradeFromVersion2() {
+        assertUpgradeKeepsData(2);
+    }
+
+    public void testUpgradeFromVersion3() {
+        assertUpgradeKeepsData(3);
+    }
+
+    public void testUpgradeFromVersion4() {
+        assertUpgradeKeepsData(4);
+    }
+
+    public void testUpgradeFromVersion5() {
+        assertUpgradeKeepsData(5);
+    }
+
+    public void testUpgradeFromVersion6() {
+        assertUpgradeKeepsData(6);
+    }
+
+    public void testVersion1IsRebuilt() {
+        assertTrue(WeatherDbHelper.OLDEST_MIGRATED_VERSION > 1);
+        createVersion(1);
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        try {
+            assertEquals(describeNewInstall(), describeSchema(db));
+            assertEquals(0, DatabaseUtils.longForQuery(db,
+                    "SELECT COUNT(*) FROM " + WeatherEntry.TABLE_NAME, null));
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    public void testDowngradeIsRebuilt() {
+        // SQLiteOpenHelper only lets a helper handle a downgrade from Honeycomb on.
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        int version = db.getVersion();
+        db.execSQL("DROP INDEX " + WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE);
+        db.setVersion(version + 1);
+        dbHelper.close();
+
+        dbHelper = new WeatherDbHelper(mContext);
+        db = dbHelper.getWritableDatabase();
+        try {
+            assertEquals(version, db.getVersion());
+            assertEquals(describeNewInstall(), describeSchema(db));
+        } finally {
+            dbHelper.close();
+        }
+    }
+}
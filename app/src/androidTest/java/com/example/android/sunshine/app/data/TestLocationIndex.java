@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+
+/*
+    Checks that weather queries find a location's rows by its id, that the ids stay right as
+    locations are inserted, renamed and deleted, and compares the query plan and latency with
+    the location_setting join used before.
+ */
+public class TestLocationIndex extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestLocationIndex.class.getSimpleName();
+
+    private static final String RENAMED_LOCATION = "94043";
+
+    private static final String JOIN = "SELECT * FROM " + WeatherEntry.TABLE_NAME
+            + " INNER JOIN " + LocationEntry.TABLE_NAME
+            + " ON " + WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_LOC_KEY
+            + " = " + LocationEntry.TABLE_NAME + "." + LocationEntry._ID;
+    private static final String BY_LOCATION_SETTING = JOIN + " WHERE "
+            + LocationEntry.TABLE_NAME + "." + LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND "
+            + WeatherEntry.COLUMN_DATE + " >= ? ORDER BY " + WeatherEntry.COLUMN_DATE + " ASC";
+    private static final String BY_LOCATION_ID = JOIN + " WHERE "
+            + WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_LOC_KEY + " = ? AND "
+            + WeatherEntry.COLUMN_DATE + " >= ? ORDER BY " + WeatherEntry.COLUMN_DATE + " ASC";
+
+    private static final int BENCHMARK_LOCATIONS = 20;
+    private static final int BENCHMARK_DAYS = 365;
+    private static final int BENCHMARK_QUERIES = 500;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private int countWeather(String locationSetting) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(locationSetting), null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testIndexFollowsLocationWrites() {
+        long locationId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues[] forecast = TestProvider.createBulkInsertWeatherValues(locationId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, forecast);
+        assertEquals(forecast.length, countWeather(TestUtilities.TEST_LOCATION));
+        assertEquals(0, countWeather(RENAMED_LOCATION));
+
+        ContentValues renamed = new ContentValues();
+        renamed.put(LocationEntry.COLUMN_LOCATION_SETTING, RENAMED_LOCATION);
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, renamed,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(locationId)});
+        assertEquals(0, countWeather(TestUtilities.TEST_LOCATION));
+        assertEquals(forecast.length, countWeather(RENAMED_LOCATION));
+
+        // The location's upsert finds it by its new setting.
+        ContentValues upsert = TestUtilities.createNorthPoleLocationValues();
+        upsert.put(LocationEntry.COLUMN_LOCATION_SETTING, RENAMED_LOCATION);
+        assertEquals(locationId, ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.buildLocationUpsertUri(), upsert)));
+
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        assertEquals(0, countWeather(RENAMED_LOCATION));
+    }
+
+    public void testRolledBackBatchForgetsLocation() throws Exception {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.buildLocationUpsertUri())
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        // Not a uri the provider knows, so the batch fails after the location went in.
+        operations.add(ContentProviderOperation.newInsert(
+                WeatherContract.BASE_CONTENT_URI.buildUpon().appendPath("nowhere").build())
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+            fail("Error: the batch should have failed");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        // Stored again, the location gets a real id, and its weather is found by it.
+        Uri locationUri = mContext.getContentResolver().insert(
+                LocationEntry.buildLocationUpsertUri(),
+                TestUtilities.createNorthPoleLocationValues());
+        long locationId = ContentUris.parseId(locationUri);
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI, null,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(locationId)}, null);
+        try {
+            assertEquals(1, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+        ContentValues[] forecast = TestProvider.createBulkInsertWeatherValues(locationId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, forecast);
+        assertEquals(forecast.length, countWeather(TestUtilities.TEST_LOCATION));
+    }
+
+    public void testQueryPlanSkipsLocationLookup() {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        try {
+            String before = queryPlan(db, BY_LOCATION_SETTING);
+            String after = queryPlan(db, BY_LOCATION_ID);
+            Log.d(LOG_TAG, "Plan by location_setting: " + before);
+            Log.d(LOG_TAG, "Plan by location_id: " + after);
+            assertFalse("Error: the location is still looked up by its setting: " + after,
+                    after.contains(LocationEntry.COLUMN_LOCATION_SETTING));
+            assertTrue("Error: the location should be found by its id: " + after,
+                    after.contains("INTEGER PRIMARY KEY"));
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    private static String queryPlan(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, new String[]{"1", "0"});
+        StringBuilder plan = new StringBuilder();
+        try {
+            while (cursor.moveToNext()) {
+                plan.append(plan.length() == 0 ? "" : "; ")
+                        .append(cursor.getString(cursor.getColumnCount() - 1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan.toString();
+    }
+
+    public void testLookupLatency() {
+        long[] locationIds = new long[BENCHMARK_LOCATIONS];
+        for (int i = 0; i < BENCHMARK_LOCATIONS; i++) {
+            ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+            locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting(i));
+            locationIds[i] = ContentUris.parseId(mContext.getContentResolver().insert(
+                    LocationEntry.CONTENT_URI, locationValues));
+            ContentValues[] days = new ContentValues[BENCHMARK_DAYS];
+            for (int day = 0; day < BENCHMARK_DAYS; day++) {
+                days[day] = TestUtilities.createWeatherValues(locationIds[i]);
+                days[day].put(WeatherEntry.COLUMN_DATE,
+                        TestUtilities.TEST_DATE + day * DateUtils.DAY_IN_MILLIS);
+            }
+            mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, days);
+        }
+        String startDate = Long.toString(WeatherContract.normalizeDate(
+                TestUtilities.TEST_DATE + (BENCHMARK_DAYS - 14) * DateUtils.DAY_IN_MILLIS));
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        LocationIndex index = new LocationIndex();
+        try {
+            // Warm up both, and check they agree.
+            for (int i = 0; i < BENCHMARK_LOCATIONS; i++) {
+                assertEquals(14, count(db, BY_LOCATION_SETTING, locationSetting(i), startDate));
+                assertEquals(14, count(db, BY_LOCATION_ID,
+                        Long.toString(index.getId(db, locationSetting(i))), startDate));
+            }
+
+            long start = System.nanoTime();
+            for (int q = 0; q < BENCHMARK_QUERIES; q++) {
+                count(db, BY_LOCATION_SETTING, locationSetting(q % BENCHMARK_LOCATIONS), startDate);
+            }
+            long bySetting = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int q = 0; q < BENCHMARK_QUERIES; q++) {
+                long _id = index.getId(db, locationSetting(q % BENCHMARK_LOCATIONS));
+                count(db, BY_LOCATION_ID, Long.toString(_id), startDate);
+            }
+            long byId = System.nanoTime() - start;
+
+            Log.d(LOG_TAG, BENCHMARK_QUERIES + " forecast queries over "
+                    + BENCHMARK_LOCATIONS * BENCHMARK_DAYS + " rows: by location_setting "
+                    + bySetting / 1000 / BENCHMARK_QUERIES + "us each, by location_id "
+                    + byId / 1000 / BENCHMARK_QUERIES + "us each");
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    private static String locationSetting(int i) {
+        return TestUtilities.TEST_LOCATION + "-" + i;
+    }
+
+    private static int count(SQLiteDatabase db, String sql, String location, String startDate) {
+        Cursor cursor = db.rawQuery(sql, new String[]{location, startDate});
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -16,19 +16,32 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.utils.PollingCheck;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
@@ -155,11 +168,25 @@ public class TestProvider extends AndroidTestCase {
         assertEquals("Error: the WeatherEntry CONTENT_URI with location and date should return WeatherEntry.CONTENT_ITEM_TYPE",
                 WeatherEntry.CONTENT_ITEM_TYPE, type);
 
+        // content://com.example.android.sunshine.app/weather/94074/1419120000/1419638400
+        type = mContext.getContentResolver().getType(
+                WeatherEntry.buildWeatherLocationWithDateRange(testLocation, testDate,
+                        testDate + 6 * 24 * 60 * 60 * 1000L));
+        assertEquals("Error: the WeatherEntry CONTENT_URI with a date range should return "
+                + "WeatherEntry.CONTENT_TYPE", WeatherEntry.CONTENT_TYPE, type);
+
         // content://com.example.android.sunshine.app/location/
         type = mContext.getContentResolver().getType(LocationEntry.CONTENT_URI);
         // vnd.android.cursor.dir/com.example.android.sunshine.app/location
         assertEquals("Error: the LocationEntry CONTENT_URI should return LocationEntry.CONTENT_TYPE",
                 LocationEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/rollup/94074/month
+        type = mContext.getContentResolver().getType(
+                WeatherContract.RollupEntry.buildRollupLocationWithPeriod(testLocation,
+                        WeatherContract.RollupEntry.PERIOD_MONTH));
+        assertEquals("Error: the RollupEntry CONTENT_URI with location and period should return "
+                + "RollupEntry.CONTENT_TYPE", WeatherContract.RollupEntry.CONTENT_TYPE, type);
     }
 
 
@@ -512,4 +539,458 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    // A canceled sync interrupts its thread.  A bulk insert, upsert or batch it was in the
+    // middle of should say so, and be rolled back rather than leave part of the forecast
+    // behind.
+    public void testWritesThrowAndRollBackWhenInterrupted() throws Exception {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+        ContentValues[] bulkInsertContentValues = createBulkInsertWeatherValues(locationRowId);
+
+        ArrayList<ContentProviderOperation> batch = new ArrayList<ContentProviderOperation>();
+        batch.add(ContentProviderOperation.newUpdate(WeatherEntry.buildWeatherUpsertUri())
+                .withValues(bulkInsertContentValues[0]).build());
+        for (int write = 0; write < 3; write++) {
+            Thread.currentThread().interrupt();
+            try {
+                if (write == 0) {
+                    mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                            bulkInsertContentValues);
+                } else if (write == 1) {
+                    mContext.getContentResolver().bulkInsert(
+                            WeatherEntry.buildWeatherUpsertUri(), bulkInsertContentValues);
+                } else {
+                    mContext.getContentResolver().applyBatch(
+                            WeatherContract.CONTENT_AUTHORITY, batch);
+                }
+                fail("Error: an interrupted write should throw, not return as if nothing "
+                        + "needed writing");
+            } catch (CancellationException expected) {
+            } finally {
+                // Clear the interrupt so it doesn't leak into the other tests.
+                Thread.interrupted();
+            }
+
+            Cursor cursor = mContext.getContentResolver().query(
+                    WeatherEntry.CONTENT_URI, null, null, null, null);
+            assertEquals("Error: an interrupted write should not keep any rows",
+                    0, cursor.getCount());
+            cursor.close();
+        }
+    }
+
+    /**
+     * A sync's writes, the way the sync adapter batches them: the location, a forecast that
+     * refers back to it, and the retention delete.
+     */
+    private static ArrayList<ContentProviderOperation> createSyncBatch() {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.buildLocationUpsertUri())
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        for (ContentValues weatherValues : createBulkInsertWeatherValues(0)) {
+            weatherValues.remove(WeatherEntry.COLUMN_LOC_KEY);
+            operations.add(ContentProviderOperation.newUpdate(WeatherEntry.buildWeatherUpsertUri())
+                    .withValues(weatherValues)
+                    .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                    .build());
+        }
+        operations.add(ContentProviderOperation.newDelete(WeatherEntry.CONTENT_URI)
+                .withSelection(WeatherEntry.COLUMN_DATE + " < ?",
+                        new String[]{Long.toString(TestUtilities.TEST_DATE - 1)})
+                .build());
+        return operations;
+    }
+
+    // A whole sync committed as a batch reloads a loader once, however many operations it has.
+    public void testApplyBatchNotifiesOnce() throws Exception {
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), true,
+                weatherObserver);
+        ContentProviderResult[] results = mContext.getContentResolver().applyBatch(
+                WeatherContract.CONTENT_AUTHORITY, createSyncBatch());
+        weatherObserver.waitForChangeCountOrFail(1);
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        long locationRowId = ContentUris.parseId(results[0].uri);
+        for (int i = 1; i <= BULK_INSERT_RECORDS_TO_INSERT; i++) {
+            assertEquals(Integer.valueOf(1), results[i].count);
+        }
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(locationRowId)}, null);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.close();
+
+        // The same sync again finds its location and has nothing to write, so nobody reloads.
+        long[] ids = getWeatherIds();
+        weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), true,
+                weatherObserver);
+        results = mContext.getContentResolver().applyBatch(
+                WeatherContract.CONTENT_AUTHORITY, createSyncBatch());
+        weatherObserver.waitForChangeCountOrFail(0);
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        assertEquals(locationRowId, ContentUris.parseId(results[0].uri));
+        assertTrue(Arrays.equals(ids, getWeatherIds()));
+    }
+
+    // If any operation fails, none of the batch is kept and nobody is notified.
+    public void testApplyBatchIsAtomic() throws Exception {
+        ArrayList<ContentProviderOperation> operations = createSyncBatch();
+        // Missing every NOT NULL column but the key
+        operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                .build());
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherContract.BASE_CONTENT_URI, true, weatherObserver);
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+            fail("Error: the batch should have failed");
+        } catch (android.database.SQLException expected) {
+        } catch (OperationApplicationException expected) {
+        }
+        weatherObserver.waitForChangeCountOrFail(0);
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                LocationEntry.CONTENT_URI, null, null, null, null);
+        assertEquals("Error: a failed batch should not keep its location", 0, cursor.getCount());
+        cursor.close();
+        assertEquals("Error: a failed batch should not keep its weather",
+                0, getWeatherIds().length);
+    }
+
+    private static final int OBSERVED_LOCATIONS = 10;
+
+    // Each location's forecast list and first-day detail screen are watched.  A write should
+    // only reload the screens of the location, and where it can tell, the day, it touched.
+    public void testNotificationsAreScopedToLocation() {
+        long[] locationIds = new long[OBSERVED_LOCATIONS];
+        String[] locationSettings = new String[OBSERVED_LOCATIONS];
+        for (int i = 0; i < OBSERVED_LOCATIONS; i++) {
+            ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+            locationSettings[i] = TestUtilities.TEST_LOCATION + "-" + i;
+            locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSettings[i]);
+            locationIds[i] = ContentUris.parseId(mContext.getContentResolver().insert(
+                    LocationEntry.CONTENT_URI, locationValues));
+            mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                    createBulkInsertWeatherValues(locationIds[i]));
+        }
+
+        long firstDay = WeatherContract.normalizeDate(TestUtilities.TEST_DATE);
+        TestUtilities.TestContentObserver[] listObservers =
+                new TestUtilities.TestContentObserver[OBSERVED_LOCATIONS];
+        TestUtilities.TestContentObserver[] detailObservers =
+                new TestUtilities.TestContentObserver[OBSERVED_LOCATIONS];
+        for (int i = 0; i < OBSERVED_LOCATIONS; i++) {
+            listObservers[i] = TestUtilities.getTestContentObserver();
+            mContext.getContentResolver().registerContentObserver(
+                    WeatherEntry.buildWeatherLocationWithStartDate(locationSettings[i], firstDay),
+                    true, listObservers[i]);
+            detailObservers[i] = TestUtilities.getTestContentObserver();
+            mContext.getContentResolver().registerContentObserver(
+                    WeatherEntry.buildWeatherLocationWithDate(locationSettings[i], firstDay),
+                    true, detailObservers[i]);
+        }
+
+        // A new forecast for location 0: every day changes.
+        ContentValues[] forecast = createBulkInsertWeatherValues(locationIds[0]);
+        for (ContentValues weatherValues : forecast) {
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 10);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.buildWeatherUpsertUri(), forecast);
+
+        // One changed day, not the first, for location 1.
+        ContentValues[] oneDay = createBulkInsertWeatherValues(locationIds[1]);
+        oneDay[1].put(WeatherEntry.COLUMN_MAX_TEMP, 10);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.buildWeatherUpsertUri(), oneDay);
+
+        // Deleting location 2's first day.
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(locationIds[2]), Long.toString(firstDay)});
+
+        final int[] expectedList = new int[OBSERVED_LOCATIONS];
+        final int[] expectedDetail = new int[OBSERVED_LOCATIONS];
+        expectedList[0] = expectedDetail[0] = 1;
+        expectedList[1] = 1;
+        expectedList[2] = expectedDetail[2] = 1;
+        final TestUtilities.TestContentObserver[] lists = listObservers;
+        final TestUtilities.TestContentObserver[] details = detailObservers;
+        new PollingCheck(5000) {
+            @Override
+            protected boolean check() {
+                for (int i = 0; i < OBSERVED_LOCATIONS; i++) {
+                    if (lists[i].mChangeCount.get() < expectedList[i]
+                            || details[i].mChangeCount.get() < expectedDetail[i]) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }.run();
+        // Give any extra notifications time to arrive.
+        SystemClock.sleep(500);
+
+        int reloads = 0;
+        for (int i = 0; i < OBSERVED_LOCATIONS; i++) {
+            mContext.getContentResolver().unregisterContentObserver(listObservers[i]);
+            mContext.getContentResolver().unregisterContentObserver(detailObservers[i]);
+            listObservers[i].mHT.quit();
+            detailObservers[i].mHT.quit();
+            assertEquals("Error: wrong number of reloads for the list of location " + i,
+                    expectedList[i], listObservers[i].mChangeCount.get());
+            assertEquals("Error: wrong number of reloads for the detail of location " + i,
+                    expectedDetail[i], detailObservers[i].mChangeCount.get());
+            reloads += listObservers[i].mChangeCount.get() + detailObservers[i].mChangeCount.get();
+        }
+        Log.d(LOG_TAG, "Three writes reloaded " + reloads + " of " + 2 * OBSERVED_LOCATIONS
+                + " observers");
+    }
+
+    public void testCollapseNotifications() {
+        Set<Uri> uris = new LinkedHashSet<Uri>();
+        uris.add(WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION));
+        uris.add(WeatherEntry.CONTENT_URI);
+        uris.add(LocationEntry.CONTENT_URI);
+        uris.add(WeatherEntry.buildWeatherLocation("94043"));
+
+        List<Uri> collapsed = WeatherProvider.collapseNotifications(uris);
+        assertEquals(Arrays.asList(WeatherEntry.CONTENT_URI, LocationEntry.CONTENT_URI),
+                collapsed);
+
+        // Two days of one location become the location; a single day stays as it is.
+        uris.clear();
+        uris.add(WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION, 0));
+        uris.add(WeatherEntry.buildWeatherLocationWithDate("94043", 0));
+        uris.add(WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                2 * 24 * 60 * 60 * 1000L));
+        collapsed = WeatherProvider.collapseNotifications(uris);
+        assertEquals(2, collapsed.size());
+        assertTrue(collapsed.contains(WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION)));
+        assertTrue(collapsed.contains(WeatherEntry.buildWeatherLocationWithDate("94043", 0)));
+    }
+
+    private long getWeatherSequence() {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        Cursor cursor = db.rawQuery("SELECT seq FROM sqlite_sequence WHERE name = ?",
+                new String[]{WeatherEntry.TABLE_NAME});
+        long seq = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        cursor.close();
+        db.close();
+        return seq;
+    }
+
+    private long[] getWeatherIds() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        long[] ids = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        return ids;
+    }
+
+    // Re-storing a forecast that hasn't changed should write nothing: no new row ids, and no
+    // change notification.  A plain bulkInsert rewrites every row through ON CONFLICT REPLACE.
+    public void testUpsertSkipsUnchangedRows() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        // Before: the same forecast stored twice the old way.
+        long startSeq = getWeatherSequence();
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        long replaceWrites = getWeatherSequence() - startSeq;
+        assertEquals(2 * BULK_INSERT_RECORDS_TO_INSERT, replaceWrites);
+
+        // After: the same forecast again, as an upsert.
+        long[] idsBefore = getWeatherIds();
+        long seqBefore = getWeatherSequence();
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+
+        int written = mContext.getContentResolver().bulkInsert(
+                WeatherEntry.buildWeatherUpsertUri(), createBulkInsertWeatherValues(locationRowId));
+
+        assertEquals(0, written);
+        assertEquals(seqBefore, getWeatherSequence());
+        assertTrue(Arrays.equals(idsBefore, getWeatherIds()));
+        try {
+            Thread.sleep(500);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        assertFalse("Error: an upsert that changed nothing should not notify",
+                weatherObserver.mContentChanged);
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+        weatherObserver.mHT.quit();
+
+        Log.d(LOG_TAG, "Storing an unchanged forecast of " + BULK_INSERT_RECORDS_TO_INSERT
+                + " days: " + replaceWrites / 2 + " rows written with REPLACE, " + written
+                + " with upsert");
+    }
+
+    public void testUpsertWritesOnlyChangedRows() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        // Start with all but the last day, so the new forecast adds one.
+        ContentValues[] stored = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.buildWeatherUpsertUri(),
+                Arrays.copyOfRange(stored, 0, stored.length - 1));
+        long[] idsBefore = getWeatherIds();
+
+        ContentValues[] incoming = createBulkInsertWeatherValues(locationRowId);
+        incoming[3].put(WeatherEntry.COLUMN_MAX_TEMP, 99);
+        incoming[5].put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.KEY_VALUES, incoming);
+        Bundle summary = mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_UPSERT_WEATHER, null, extras);
+
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        assertEquals(1, summary.getInt(WeatherContract.KEY_INSERTED));
+        assertEquals(2, summary.getInt(WeatherContract.KEY_UPDATED));
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT - 3, summary.getInt(WeatherContract.KEY_UNCHANGED));
+
+        // Updated rows keep their ids.
+        long[] idsAfter = getWeatherIds();
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, idsAfter.length);
+        for (int i = 0; i < idsBefore.length; i++) {
+            assertEquals(idsBefore[i], idsAfter[i]);
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null, null,
+                null, WeatherEntry.COLUMN_DATE + " ASC");
+        cursor.moveToFirst();
+        for (int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord("testUpsertWritesOnlyChangedRows.  Error validating "
+                    + "WeatherEntry " + i, cursor, incoming[i]);
+        }
+        cursor.close();
+    }
+
+    public void testApplyRetention() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+        ContentValues[] stored = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, stored);
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), true,
+                weatherObserver);
+
+        // Everything up to the fourth day goes.
+        long lastDateToDelete = WeatherContract.normalizeDate(
+                stored[3].getAsLong(WeatherEntry.COLUMN_DATE));
+        Bundle result = mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_APPLY_RETENTION, Long.toString(lastDateToDelete), null);
+
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        assertEquals(4, result.getInt(WeatherContract.KEY_DELETED));
+        assertTrue(result.getLong(WeatherContract.KEY_DATABASE_BYTES) > 0);
+        assertTrue(result.getLong(WeatherContract.KEY_FREE_BYTES)
+                < result.getLong(WeatherContract.KEY_DATABASE_BYTES));
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null, null,
+                null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT - 4, cursor.getCount());
+        cursor.moveToFirst();
+        TestUtilities.validateCurrentRecord("testApplyRetention.  Error validating the first "
+                + "day kept", cursor, stored[4]);
+        cursor.close();
+    }
+
+    private static ContentValues createSyncRunValues(long totalMicros) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.SyncRunEntry.COLUMN_START_TIME, TestUtilities.TEST_DATE);
+        values.put(WeatherContract.SyncRunEntry.COLUMN_STATUS,
+                WeatherContract.SyncRunEntry.STATUS_COMPLETE);
+        values.put(WeatherContract.SyncRunEntry.COLUMN_TOTAL_TIME, totalMicros);
+        values.put(WeatherContract.SyncRunEntry.COLUMN_PARSE_TIME, totalMicros / 10);
+        return values;
+    }
+
+    // sync_runs keeps only the newest MAX_SYNC_RUNS runs.
+    public void testSyncRunsRingBuffer() {
+        mContext.getContentResolver().delete(WeatherContract.SyncRunEntry.CONTENT_URI, null, null);
+        int runs = WeatherProvider.MAX_SYNC_RUNS + 10;
+        for (int i = 1; i <= runs; i++) {
+            mContext.getContentResolver().insert(WeatherContract.SyncRunEntry.CONTENT_URI,
+                    createSyncRunValues(i));
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.SyncRunEntry.CONTENT_URI,
+                new String[]{WeatherContract.SyncRunEntry.COLUMN_TOTAL_TIME}, null, null,
+                WeatherContract.SyncRunEntry._ID + " ASC");
+        assertEquals(WeatherProvider.MAX_SYNC_RUNS, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: the oldest runs should have been dropped", 11, cursor.getLong(0));
+        cursor.close();
+    }
+
+    public void testSyncRunSummary() {
+        mContext.getContentResolver().delete(WeatherContract.SyncRunEntry.CONTENT_URI, null, null);
+        for (int i = 1; i <= 100; i++) {
+            mContext.getContentResolver().insert(WeatherContract.SyncRunEntry.CONTENT_URI,
+                    createSyncRunValues(i * 1000));
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.SyncRunEntry.SUMMARY_URI, null, null, null, null);
+        assertEquals(WeatherContract.SyncRunEntry.PHASE_COLUMNS.length, cursor.getCount());
+        int phaseIndex = cursor.getColumnIndex(WeatherContract.SyncRunEntry.COLUMN_PHASE);
+        boolean sawTotal = false;
+        boolean sawParse = false;
+        while (cursor.moveToNext()) {
+            String phase = cursor.getString(phaseIndex);
+            assertEquals(100, cursor.getInt(
+                    cursor.getColumnIndex(WeatherContract.SyncRunEntry.COLUMN_COUNT)));
+            long p50 = cursor.getLong(cursor.getColumnIndex(WeatherContract.SyncRunEntry.COLUMN_P50));
+            long p95 = cursor.getLong(cursor.getColumnIndex(WeatherContract.SyncRunEntry.COLUMN_P95));
+            long p99 = cursor.getLong(cursor.getColumnIndex(WeatherContract.SyncRunEntry.COLUMN_P99));
+            if (phase.equals(WeatherContract.SyncRunEntry.COLUMN_TOTAL_TIME)) {
+                sawTotal = true;
+                assertEquals(50000, p50);
+                assertEquals(95000, p95);
+                assertEquals(99000, p99);
+            } else if (phase.equals(WeatherContract.SyncRunEntry.COLUMN_PARSE_TIME)) {
+                sawParse = true;
+                assertEquals(5000, p50);
+                assertEquals(9900, p99);
+            }
+        }
+        cursor.close();
+        assertTrue(sawTotal && sawParse);
+
+        assertEquals(0, WeatherProvider.percentile(new long[0], 0.5));
+        assertEquals(7, WeatherProvider.percentile(new long[]{7}, 0.99));
+        assertEquals(1, WeatherProvider.percentile(new long[]{1, 2, 3, 4}, 0.25));
+        assertEquals(4, WeatherProvider.percentile(new long[]{1, 2, 3, 4}, 0.99));
+    }
 }
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.AbstractWindowedCursor;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks LatencyHistogram's buckets and percentiles, that calls recorded from many threads at
+    once are all counted, that a database query is recorded when its cursor is first read, that
+    the provider reports each operation on each uri pattern through call() and starts again on
+    a reset, and times recording a call to show what measuring every provider call costs.
+ */
+public class TestProviderMetrics extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestProviderMetrics.class.getSimpleName();
+
+    private static final int THREADS = 4;
+    private static final int CALLS_PER_THREAD = 100000;
+    private static final int BENCHMARK_CALLS = 1000000;
+    private static final long MAX_OVERHEAD_NANOS = 1000;
+
+    private static final int[] MATCH_CODES = {
+            WeatherProvider.WEATHER, WeatherProvider.WEATHER_WITH_LOCATION};
+    private static final String[] PATTERNS = {"weather", "weather/*"};
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        call(WeatherContract.METHOD_RESET_PROVIDER_METRICS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private Bundle call(String method) {
+        return mContext.getContentResolver().call(WeatherEntry.CONTENT_URI, method, null, null);
+    }
+
+    public void testBuckets() {
+        int lastBucket = -1;
+        long lastMax = -1;
+        for (long nanos = 0; nanos < 1000000; nanos += 1 + nanos / 100) {
+            int bucket = LatencyHistogram.getBucket(nanos);
+            long max = LatencyHistogram.getBucketMaxNanos(bucket);
+            assertTrue("Error: " + nanos + "ns is past its bucket's top", nanos <= max);
+            if (bucket != lastBucket) {
+                assertEquals("Error: the buckets should follow on from each other",
+                        lastBucket + 1, bucket);
+                assertTrue(nanos > lastMax);
+                lastBucket = bucket;
+                lastMax = max;
+            }
+            // Exact to 16ns, and within 12.5% after that
+            assertTrue("Error: " + nanos + "ns is counted as up to " + max + "ns",
+                    max - nanos <= Math.max(0, nanos / 8));
+        }
+        assertEquals("Error: a day should go in the last bucket", LatencyHistogram.BUCKETS - 1,
+                LatencyHistogram.getBucket(DateUtils.DAY_IN_MILLIS * 1000000));
+    }
+
+    public void testPercentiles() {
+        ProviderMetrics metrics = new ProviderMetrics(MATCH_CODES, PATTERNS);
+        // 1us to 1000us, one call each
+        for (int micros = 1000; micros >= 1; micros--) {
+            metrics.record(ProviderMetrics.QUERY, WeatherProvider.WEATHER_WITH_LOCATION,
+                    micros * 1000L, 2);
+        }
+        metrics.record(ProviderMetrics.DELETE, WeatherProvider.WEATHER, 5000, 7);
+        // No pattern, so not counted
+        metrics.record(ProviderMetrics.QUERY, WeatherProvider.LOCATION, 5000, 1);
+
+        Bundle snapshot = metrics.getSnapshot();
+        assertEquals(2, snapshot.size());
+        Bundle query = snapshot.getBundle("query weather/*");
+        assertEquals(1000, query.getLong(WeatherContract.KEY_CALLS));
+        assertEquals(2000, query.getLong(WeatherContract.KEY_ROWS));
+        assertEquals(500500000L, query.getLong(WeatherContract.KEY_TOTAL_NANOS));
+        assertEquals(1000000, query.getLong(WeatherContract.KEY_MAX_NANOS));
+        assertPercentile(500000, query.getLong(WeatherContract.KEY_P50_NANOS));
+        assertPercentile(900000, query.getLong(WeatherContract.KEY_P90_NANOS));
+        assertPercentile(990000, query.getLong(WeatherContract.KEY_P99_NANOS));
+
+        long[] bucketCalls = query.getLongArray(WeatherContract.KEY_BUCKET_CALLS);
+        long[] bucketMaxNanos = query.getLongArray(WeatherContract.KEY_BUCKET_MAX_NANOS);
+        assertEquals(bucketCalls.length, bucketMaxNanos.length);
+        long calls = 0;
+        for (int i = 0; i < bucketCalls.length; i++) {
+            assertTrue("Error: empty buckets should be left out", bucketCalls[i] > 0);
+            assertTrue(i == 0 || bucketMaxNanos[i] > bucketMaxNanos[i - 1]);
+            calls += bucketCalls[i];
+        }
+        assertEquals(1000, calls);
+
+        Bundle delete = snapshot.getBundle("delete weather");
+        assertEquals(1, delete.getLong(WeatherContract.KEY_CALLS));
+        assertEquals(7, delete.getLong(WeatherContract.KEY_ROWS));
+        assertEquals(5000, delete.getLong(WeatherContract.KEY_P99_NANOS));
+
+        metrics.reset();
+        assertTrue(metrics.getSnapshot().isEmpty());
+    }
+
+    // A percentile is its bucket's top, so at most 12.5% over the exact value.
+    private static void assertPercentile(long exact, long reported) {
+        assertTrue("Error: expected about " + exact + "ns, got " + reported + "ns",
+                reported >= exact && reported <= exact + exact / 8);
+    }
+
+    public void testConcurrentRecording() throws Exception {
+        final ProviderMetrics metrics = new ProviderMetrics(MATCH_CODES, PATTERNS);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < CALLS_PER_THREAD; i++) {
+                        metrics.record(ProviderMetrics.UPDATE, WeatherProvider.WEATHER,
+                                1000 * (thread + 1) + i % 100, 1);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Bundle update = metrics.getSnapshot().getBundle("update weather");
+        assertEquals("Error: calls recorded at the same time were lost",
+                THREADS * CALLS_PER_THREAD, update.getLong(WeatherContract.KEY_CALLS));
+        assertEquals(THREADS * CALLS_PER_THREAD, update.getLong(WeatherContract.KEY_ROWS));
+        assertEquals(1000 * THREADS + 99, update.getLong(WeatherContract.KEY_MAX_NANOS));
+    }
+
+    public void testDatabaseQueryRecordedWhenRead() {
+        ProviderMetrics metrics = new ProviderMetrics(MATCH_CODES, PATTERNS);
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            Cursor cursor = new MeasuredCursor((AbstractWindowedCursor) db.rawQuery(
+                    "SELECT 1 UNION ALL SELECT 2 UNION ALL SELECT 3", null),
+                    metrics, WeatherProvider.WEATHER, System.nanoTime());
+            assertTrue("Error: the query was recorded before it ran",
+                    metrics.getSnapshot().isEmpty());
+            int read = 0;
+            while (cursor.moveToNext()) {
+                read++;
+            }
+            cursor.close();
+            assertEquals(3, read);
+
+            Cursor unread = new MeasuredCursor((AbstractWindowedCursor) db.rawQuery(
+                    "SELECT 1", null), metrics, WeatherProvider.WEATHER_WITH_LOCATION,
+                    System.nanoTime());
+            unread.close();
+        } finally {
+            db.close();
+        }
+
+        Bundle snapshot = metrics.getSnapshot();
+        assertCalls(snapshot, "query weather", 1, 3);
+        assertCalls(snapshot, "query weather/*", 1, 0);
+    }
+
+    public void testProviderReportsEachOperation() {
+        long locationId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues[] days = new ContentValues[3];
+        for (int day = 0; day < days.length; day++) {
+            days[day] = TestUtilities.createWeatherValues(locationId);
+            days[day].put(WeatherEntry.COLUMN_DATE,
+                    TestUtilities.TEST_DATE + day * DateUtils.DAY_IN_MILLIS);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, days);
+        for (int i = 0; i < 2; i++) {
+            Cursor cursor = mContext.getContentResolver().query(
+                    WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                    null, null, null, null);
+            assertEquals(3, cursor.getCount());
+            cursor.close();
+        }
+        // A database cursor is recorded once it's read, with the rows the query returned.
+        Cursor all = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI, null, null, null, null);
+        assertEquals(3, all.getCount());
+        all.close();
+        ContentValues warmer = new ContentValues();
+        warmer.put(WeatherEntry.COLUMN_MAX_TEMP, 30);
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, warmer, null, null);
+
+        Bundle snapshot = call(WeatherContract.METHOD_PROVIDER_METRICS);
+        assertCalls(snapshot, "insert location", 1, 1);
+        assertCalls(snapshot, "bulkInsert weather", 1, 3);
+        // The first query's rows are copied into the cache and the second is answered from
+        // it, or without the cache both are read from the database; either way both count.
+        assertCalls(snapshot, "query weather/*", 2, 6);
+        assertCalls(snapshot, "query weather", 1, 3);
+        assertCalls(snapshot, "update weather", 1, 3);
+        assertNull(snapshot.getBundle("query weather/*/#"));
+
+        call(WeatherContract.METHOD_RESET_PROVIDER_METRICS);
+        assertTrue("Error: a reset should drop every histogram",
+                call(WeatherContract.METHOD_PROVIDER_METRICS).isEmpty());
+    }
+
+    private static void assertCalls(Bundle snapshot, String key, long calls, long rows) {
+        Bundle metrics = snapshot.getBundle(key);
+        assertNotNull("Error: no metrics for " + key, metrics);
+        assertEquals(key, calls, metrics.getLong(WeatherContract.KEY_CALLS));
+        assertEquals(key, rows, metrics.getLong(WeatherContract.KEY_ROWS));
+        assertTrue(key, metrics.getLong(WeatherContract.KEY_TOTAL_NANOS) > 0);
+    }
+
+    /**
+     * Time what the provider adds to each call: reading the clock twice and recording the
+     * result, against the same loop without the recording.
+     */
+    public void testOverhead() {
+        ProviderMetrics metrics = new ProviderMetrics(MATCH_CODES, PATTERNS);
+        long sink = 0;
+        // Warm up, so the time isn't spent making the histogram or compiling the loop.
+        for (int i = 0; i < BENCHMARK_CALLS / 10; i++) {
+            long start = System.nanoTime();
+            metrics.record(ProviderMetrics.QUERY, WeatherProvider.WEATHER_WITH_LOCATION,
+                    System.nanoTime() - start, 1);
+        }
+
+        long loopStart = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_CALLS; i++) {
+            long start = System.nanoTime();
+            sink += System.nanoTime() - start;
+        }
+        long clockNanos = System.nanoTime() - loopStart;
+
+        loopStart = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_CALLS; i++) {
+            long start = System.nanoTime();
+            metrics.record(ProviderMetrics.QUERY, WeatherProvider.WEATHER_WITH_LOCATION,
+                    System.nanoTime() - start, 1);
+        }
+        long recordNanos = System.nanoTime() - loopStart;
+
+        long perCall = recordNanos / BENCHMARK_CALLS;
+        Log.d(LOG_TAG, BENCHMARK_CALLS + " calls: reading the clock twice "
+                + clockNanos / BENCHMARK_CALLS + "ns each; and recording them "
+                + perCall + "ns each (" + sink + ")");
+        assertTrue("Error: measuring a call took " + perCall + "ns",
+                perCall < MAX_OVERHEAD_NANOS);
+    }
+}
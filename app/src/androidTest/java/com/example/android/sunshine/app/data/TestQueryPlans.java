@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncRunEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Runs EXPLAIN QUERY PLAN on the statements WeatherProvider issues for each of its URIs and
+    fails if any of them reads a whole table instead of going through an index, so a schema or
+    selection change can't quietly turn a lookup into a scan.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestQueryPlans.class.getSimpleName();
+
+    private static final String ORDER_BY_DATE = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        mDbHelper = new WeatherDbHelper(mContext);
+        mDb = mDbHelper.getWritableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDbHelper.close();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    /**
+     * Fail if the statement's plan has a step that scans a table or a whole index.
+     *
+     * @return the plan
+     */
+    private String assertNoScan(String uri, String sql) {
+        int args = sql.length() - sql.replace("?", "").length();
+        String[] selectionArgs = new String[args];
+        for (int i = 0; i < args; i++) {
+            selectionArgs[i] = "1";
+        }
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+        StringBuilder plan = new StringBuilder();
+        try {
+            while (cursor.moveToNext()) {
+                String detail = cursor.getString(cursor.getColumnCount() - 1);
+                plan.append(plan.length() == 0 ? "" : "; ").append(detail);
+                // "SCAN TABLE weather", or "SCAN weather" from newer SQLite
+                assertFalse("Error: " + uri + " scans for " + sql + ": " + detail,
+                        detail.startsWith("SCAN"));
+            }
+        } finally {
+            cursor.close();
+        }
+        Log.d(LOG_TAG, uri + ": " + plan);
+        return plan.toString();
+    }
+
+    private static String select(String tables, String[] projection, String selection,
+                                 String groupBy, String sortOrder) {
+        return SQLiteQueryBuilder.buildQueryString(false, tables, projection, selection,
+                groupBy, null, sortOrder, null);
+    }
+
+    private static String byLocation(String selection) {
+        return select(WeatherProvider.sWeatherByLocationSettingQueryBuilder.getTables(), null,
+                selection, null, ORDER_BY_DATE);
+    }
+
+    // weather/*
+    public void testWeatherWithLocation() {
+        String plan = assertNoScan("weather/*",
+                byLocation(WeatherProvider.sLocationSettingSelection));
+        assertTrue(plan, plan.contains(WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE));
+        plan = assertNoScan("weather/*?date=",
+                byLocation(WeatherProvider.sLocationSettingWithStartDateSelection));
+        assertTrue(plan, plan.contains(WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE));
+    }
+
+    // weather/*/#/#, with and without a limit
+    public void testWeatherWithLocationAndDateRange() {
+        String range = select(WeatherProvider.sWeatherByLocationSettingQueryBuilder.getTables(),
+                null, WeatherProvider.sLocationSettingAndDateRangeSelection, null,
+                ORDER_BY_DATE);
+        for (String sql : new String[]{range, range + " LIMIT 3",
+                range.replace(" ASC", " DESC") + " LIMIT 3"}) {
+            String plan = assertNoScan("weather/*/#/#", sql);
+            assertTrue(plan, plan.contains(WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE));
+            // The index gives the days in order, so a limit stops the scan early.
+            assertFalse(plan, plan.contains("TEMP B-TREE"));
+        }
+    }
+
+    // weather/*?date=&limit= and weather/*?after=&limit=, the first and later forecast pages
+    public void testWeatherWithLocationPages() {
+        for (String selection : new String[]{
+                WeatherProvider.sLocationSettingWithStartDateSelection,
+                WeatherProvider.sLocationSettingAfterDateSelection}) {
+            String plan = assertNoScan("weather/* page", byLocation(selection) + " LIMIT 50");
+            assertTrue(plan, plan.contains(WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE));
+            // A page deep in the history is found by its date, not by sorting what's before it.
+            assertFalse(plan, plan.contains("TEMP B-TREE"));
+        }
+    }
+
+    // weather/*/#
+    public void testWeatherWithLocationAndDate() {
+        assertNoScan("weather/*/#", byLocation(WeatherProvider.sLocationSettingAndDaySelection));
+    }
+
+    // weather
+    public void testWeather() {
+        String byLocation = WeatherEntry.COLUMN_LOC_KEY + " = ?";
+        String retention = WeatherEntry.COLUMN_DATE + " <= ?";
+
+        assertNoScan("weather, by location",
+                select(WeatherEntry.TABLE_NAME, null, byLocation, null, null));
+        assertNoScan("weather, upsert lookup", select(WeatherEntry.TABLE_NAME, null,
+                WeatherProvider.sLocationAndDateRangeSelection, null, null));
+        assertNoScan("weather, upsert update", "UPDATE " + WeatherEntry.TABLE_NAME
+                + " SET " + WeatherEntry.COLUMN_MAX_TEMP + " = ? WHERE " + WeatherEntry._ID
+                + " = ?");
+
+        // The retention delete, and finding the locations it changes first.
+        assertNoScan("weather, retention", "DELETE FROM " + WeatherEntry.TABLE_NAME
+                + " WHERE " + retention);
+        assertNoScan("weather, retention changes", select(WeatherEntry.TABLE_NAME,
+                WeatherChanges.MATCHING_PROJECTION, retention,
+                WeatherChanges.MATCHING_GROUP_BY, null));
+        assertNoScan("weather, changes by location", select(WeatherEntry.TABLE_NAME,
+                WeatherChanges.MATCHING_PROJECTION, byLocation,
+                WeatherChanges.MATCHING_GROUP_BY, null));
+
+        // WeatherRetention's batched delete, and the locations it goes through.
+        assertNoScan("weather, retention batch", "DELETE FROM " + WeatherEntry.TABLE_NAME
+                + " WHERE " + WeatherRetention.BATCH_SELECTION);
+        assertNoScan("weather, expired locations", WeatherRetention.SQL_EXPIRED_LOCATIONS);
+    }
+
+    // rollup/*, rollup/*/* and rollup/*/*/#/#, and keeping weather_rollup up to date
+    public void testRollups() {
+        String byPeriod = WeatherContract.RollupEntry.COLUMN_PERIOD + " ASC, "
+                + WeatherContract.RollupEntry.COLUMN_START_DATE + " ASC";
+        for (String selection : new String[]{WeatherProvider.sRollupLocationSelection,
+                WeatherProvider.sRollupLocationAndPeriodSelection,
+                WeatherProvider.sRollupLocationAndDateRangeSelection}) {
+            String plan = assertNoScan("rollup/*", select(
+                    WeatherContract.RollupEntry.TABLE_NAME, null, selection, null, byPeriod));
+            assertFalse(plan, plan.contains("TEMP B-TREE"));
+        }
+
+        // Working out one week or month reads just its days.
+        String plan = assertNoScan("rollup, insert", WeatherRollups.SQL_INSERT_BUCKET);
+        assertTrue(plan, plan.contains(WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE));
+        assertNoScan("rollup, delete", WeatherRollups.SQL_DELETE_BUCKET);
+        assertNoScan("rollup, expire", "DELETE FROM " + WeatherContract.RollupEntry.TABLE_NAME
+                + " WHERE " + WeatherRollups.EXPIRED_SELECTION);
+    }
+
+    // location
+    public void testLocation() {
+        // The location upsert's lookup, and filling in a city id.  LocationIndex reads the
+        // whole table on purpose.
+        assertNoScan("location, by setting", select(LocationEntry.TABLE_NAME, null,
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", null, null));
+        assertNoScan("location, city id", "UPDATE " + LocationEntry.TABLE_NAME
+                + " SET " + LocationEntry.COLUMN_CITY_ID + " = ? WHERE " + LocationEntry._ID
+                + " = ? AND " + LocationEntry.COLUMN_CITY_ID + " IS NULL");
+    }
+
+    // sync_runs and sync_runs/summary
+    public void testSyncRuns() {
+        // The summary reads every run in the buffer, which is never more than MAX_SYNC_RUNS.
+        // Trimming the buffer after an insert only goes by id.
+        assertNoScan("sync_runs, trim", "DELETE FROM " + SyncRunEntry.TABLE_NAME
+                + " WHERE " + SyncRunEntry._ID + " <= ?");
+    }
+
+    public void testUpgradeFromVersion4AddsIndex() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+        assertTrue(mDb.insert(WeatherEntry.TABLE_NAME, null, weatherValues) != -1);
+
+        // Make it a version 4 database again, undoing the steps after it.
+        mDb.execSQL("DROP INDEX " + WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE);
+        mDb.execSQL("DROP TABLE " + SyncRunEntry.TABLE_NAME);
+        mDb.execSQL(TestDbUpgrade.V4_SYNC_RUNS);
+        mDb.execSQL("DROP TABLE " + WeatherContract.RollupEntry.TABLE_NAME);
+        mDb.setVersion(4);
+        mDbHelper.close();
+
+        mDbHelper = new WeatherDbHelper(mContext);
+        mDb = mDbHelper.getWritableDatabase();
+        assertEquals(1, DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM sqlite_master"
+                + " WHERE type = 'index' AND name = ?",
+                new String[]{WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE}));
+        assertEquals("Error: the upgrade should keep the weather", 1,
+                DatabaseUtils.longForQuery(mDb,
+                        "SELECT COUNT(*) FROM " + WeatherEntry.TABLE_NAME, null));
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Fills the database with years of daily history for many locations, then checks that
+    WeatherRetention deletes the same rows the single retention delete did, in batches that
+    each hold the write lock for much less time, and that the freed pages go back to the file
+    system over the following runs.
+ */
+public class TestRetention extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestRetention.class.getSimpleName();
+
+    private static final int LOCATIONS = 20;
+    private static final int DAYS = 3 * 365;
+    // Keep the last two weeks.
+    private static final long LAST_DATE_TO_DELETE = WeatherContract.normalizeDate(
+            TestUtilities.TEST_DATE + (DAYS - 15) * DateUtils.DAY_IN_MILLIS);
+
+    private static final int RUNS = 10;
+
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        mDbHelper = new WeatherDbHelper(mContext);
+        mDb = mDbHelper.getWritableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDbHelper.close();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    /**
+     * Write DAYS of weather for each of LOCATIONS locations.
+     */
+    private void fillHistory() {
+        ContentValues values = TestUtilities.createWeatherValues(0);
+        mDb.beginTransaction();
+        WeatherInserter inserter = new WeatherInserter(mDb);
+        try {
+            for (int location = 0; location < LOCATIONS; location++) {
+                ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+                locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING,
+                        TestUtilities.TEST_LOCATION + "-" + location);
+                long locationId = mDb.insert(LocationEntry.TABLE_NAME, null, locationValues);
+                assertTrue(locationId != -1);
+                values.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+                for (int day = 0; day < DAYS; day++) {
+                    values.put(WeatherEntry.COLUMN_DATE,
+                            TestUtilities.TEST_DATE + day * DateUtils.DAY_IN_MILLIS);
+                    assertTrue(inserter.insert(values) != -1);
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            inserter.close();
+            mDb.endTransaction();
+        }
+    }
+
+    private long count(String selection) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM " + WeatherEntry.TABLE_NAME
+                + (selection == null ? "" : " WHERE " + selection), null);
+    }
+
+    private long pragma(String name) {
+        return DatabaseUtils.longForQuery(mDb, "PRAGMA " + name, null);
+    }
+
+    public void testDeletesWhatTheSingleDeleteDid() {
+        fillHistory();
+        String expired = WeatherEntry.COLUMN_DATE + " <= " + LAST_DATE_TO_DELETE;
+        long expiredRows = count(expired);
+        long keptRows = count(null) - expiredRows;
+        assertTrue(expiredRows > 0 && keptRows > 0);
+
+        // The single delete the sync batch used to run, rolled back so the engine has the
+        // same rows to work on.
+        mDb.beginTransaction();
+        long start = System.nanoTime();
+        int singleDeleted;
+        try {
+            singleDeleted = mDb.delete(WeatherEntry.TABLE_NAME, expired, null);
+        } finally {
+            mDb.endTransaction();
+        }
+        long singleNanos = System.nanoTime() - start;
+        assertEquals(expiredRows, singleDeleted);
+        assertEquals(expiredRows + keptRows, count(null));
+
+        start = System.nanoTime();
+        WeatherRetention.Result result = new WeatherRetention(mDb,
+                WeatherRetention.DEFAULT_BATCH_ROWS, WeatherRetention.DEFAULT_VACUUM_PAGES)
+                .run(LAST_DATE_TO_DELETE);
+        long batchedNanos = System.nanoTime() - start;
+
+        assertEquals(expiredRows, result.deletedRows);
+        assertEquals(0, count(expired));
+        assertEquals(keptRows, count(null));
+        assertTrue("Error: every location should have lost rows", !result.changes.isEmpty());
+
+        Log.d(LOG_TAG, "Deleting " + expiredRows + " rows: single delete held the lock for "
+                + singleNanos / 1000 + "us; " + result.batches + " batches took "
+                + batchedNanos / 1000 + "us in all, the longest " + result.maxBatchNanos / 1000
+                + "us");
+        assertTrue("Error: a batch held the lock as long as the single delete",
+                result.maxBatchNanos < singleNanos);
+    }
+
+    public void testNothingExpired() {
+        fillHistory();
+        long rows = count(null);
+        WeatherRetention.Result result = new WeatherRetention(mDb,
+                WeatherRetention.DEFAULT_BATCH_ROWS, WeatherRetention.DEFAULT_VACUUM_PAGES)
+                .run(TestUtilities.TEST_DATE - DateUtils.DAY_IN_MILLIS);
+        assertEquals(0, result.deletedRows);
+        assertTrue(result.changes.isEmpty());
+        assertEquals(rows, count(null));
+    }
+
+    public void testReclaimsSpaceOverRuns() {
+        fillHistory();
+        assertEquals("Error: a new database should vacuum incrementally",
+                WeatherDbHelper.AUTO_VACUUM_INCREMENTAL, pragma("auto_vacuum"));
+
+        // Nothing to delete, and nothing to give back.
+        WeatherRetention retention = new WeatherRetention(mDb,
+                WeatherRetention.DEFAULT_BATCH_ROWS, WeatherRetention.DEFAULT_VACUUM_PAGES);
+        WeatherRetention.Result result =
+                retention.run(TestUtilities.TEST_DATE - DateUtils.DAY_IN_MILLIS);
+        assertEquals(0, result.reclaimedPages);
+
+        // Deleting most of the history frees more pages than one run gives back.
+        result = retention.run(LAST_DATE_TO_DELETE);
+        Log.d(LOG_TAG, "Run 0: " + result.deletedRows + " rows deleted, "
+                + result.reclaimedPages + " pages reclaimed, " + result.databaseBytes
+                + " bytes, " + result.freeBytes + " free");
+        assertTrue(result.deletedRows > 0);
+        assertTrue(result.reclaimedPages > 0);
+        assertTrue(result.reclaimedPages <= WeatherRetention.DEFAULT_VACUUM_PAGES);
+        assertTrue(result.freeBytes > 0);
+        long freePages = pragma("freelist_count");
+        long freeBytes = result.freeBytes;
+        long databaseBytes = result.databaseBytes;
+
+        // Each later run gives back up to DEFAULT_VACUUM_PAGES more, until none are left.
+        for (int run = 1; run <= RUNS && freeBytes > 0; run++) {
+            result = retention.run(LAST_DATE_TO_DELETE);
+            Log.d(LOG_TAG, "Run " + run + ": " + result.reclaimedPages + " pages reclaimed, "
+                    + result.databaseBytes + " bytes, " + result.freeBytes + " free");
+            assertEquals(0, result.deletedRows);
+            assertTrue(result.reclaimedPages > 0);
+            assertTrue(result.reclaimedPages <= WeatherRetention.DEFAULT_VACUUM_PAGES);
+            assertEquals("Error: the free list should shrink by the pages reclaimed",
+                    freePages - result.reclaimedPages, pragma("freelist_count"));
+            assertTrue(result.freeBytes < freeBytes);
+            assertTrue(result.databaseBytes < databaseBytes);
+            freePages = pragma("freelist_count");
+            freeBytes = result.freeBytes;
+            databaseBytes = result.databaseBytes;
+        }
+        assertEquals(pragma("page_count") * pragma("page_size"), result.databaseBytes);
+        assertEquals(pragma("freelist_count") * pragma("page_size"), result.freeBytes);
+    }
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.RollupEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+/*
+    Writes daily weather through the provider and checks weather_rollup against the weeks and
+    months worked out here from the same days, after inserts, upserts, updates, deletes,
+    retention and a change of time zone.  Also checks a write only replaces the rollups of its
+    own weeks and months, and compares reading a location's months from weather_rollup with
+    grouping 1, 5 and 20 years of days on the fly.
+ */
+public class TestRollups extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestRollups.class.getSimpleName();
+
+    private static final int DAYS = 400;
+    private static final int[] BENCHMARK_YEARS = {1, 5, 20};
+    private static final int BENCHMARK_QUERIES = 20;
+
+    private static final String[] ROLLUP_PROJECTION = {
+            RollupEntry._ID,
+            RollupEntry.COLUMN_PERIOD,
+            RollupEntry.COLUMN_START_DATE,
+            RollupEntry.COLUMN_END_DATE,
+            RollupEntry.COLUMN_DAYS,
+            RollupEntry.COLUMN_MIN_TEMP,
+            RollupEntry.COLUMN_MAX_TEMP,
+            RollupEntry.COLUMN_MEAN_MIN_TEMP,
+            RollupEntry.COLUMN_MEAN_MAX_TEMP,
+            RollupEntry.COLUMN_WET_DAYS
+    };
+
+    private static final String[] WEATHER_PROJECTION = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_WEATHER_ID
+    };
+
+    // A location's months worked out from its days on every read
+    private static final String SQL_MONTHS_ON_THE_FLY = "SELECT strftime('%Y-%m', "
+            + WeatherEntry.COLUMN_DATE + " / 1000, 'unixepoch', 'localtime') AS month, "
+            + "COUNT(*), MIN(" + WeatherEntry.COLUMN_MIN_TEMP + "), MAX("
+            + WeatherEntry.COLUMN_MAX_TEMP + ") FROM " + WeatherEntry.TABLE_NAME + " WHERE "
+            + WeatherEntry.COLUMN_LOC_KEY + " = ? GROUP BY month ORDER BY month";
+
+    private static final String SQL_MONTHS_FROM_ROLLUPS = "SELECT "
+            + RollupEntry.COLUMN_START_DATE + ", " + RollupEntry.COLUMN_DAYS + ", "
+            + RollupEntry.COLUMN_MIN_TEMP + ", " + RollupEntry.COLUMN_MAX_TEMP + " FROM "
+            + RollupEntry.TABLE_NAME + " WHERE " + RollupEntry.COLUMN_LOC_KEY + " = ? AND "
+            + RollupEntry.COLUMN_PERIOD + " = '" + RollupEntry.PERIOD_MONTH + "' ORDER BY "
+            + RollupEntry.COLUMN_START_DATE;
+
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        mLocationId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private static long day(int day) {
+        return WeatherContract.normalizeDate(TestUtilities.TEST_DATE
+                + day * DateUtils.DAY_IN_MILLIS);
+    }
+
+    /**
+     * @return the days from firstDay on, with temperatures and conditions that vary by day
+     */
+    private ContentValues[] createDays(int firstDay, int days, long seed) {
+        Random random = new Random(seed);
+        ContentValues[] values = new ContentValues[days];
+        for (int i = 0; i < days; i++) {
+            values[i] = TestUtilities.createWeatherValues(mLocationId);
+            values[i].put(WeatherEntry.COLUMN_DATE, day(firstDay + i));
+            double min = random.nextInt(400) / 10.0 - 20;
+            values[i].put(WeatherEntry.COLUMN_MIN_TEMP, min);
+            values[i].put(WeatherEntry.COLUMN_MAX_TEMP, min + random.nextInt(150) / 10.0);
+            // Clear (800) or clouds (80x) most days, rain (5xx) or snow (6xx) on the rest
+            values[i].put(WeatherEntry.COLUMN_WEATHER_ID, random.nextInt(3) == 0
+                    ? 500 + random.nextInt(200) : 800 + random.nextInt(5));
+        }
+        return values;
+    }
+
+    /**
+     * One week's or month's rollup.
+     */
+    private static class Bucket {
+        long id;
+        long endDate;
+        int days;
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        double sumMin;
+        double sumMax;
+        int wetDays;
+
+        void add(double dayMin, double dayMax, int weatherId) {
+            days++;
+            min = Math.min(min, dayMin);
+            max = Math.max(max, dayMax);
+            sumMin += dayMin;
+            sumMax += dayMax;
+            if (weatherId >= WeatherRollups.FIRST_WET_WEATHER_ID
+                    && weatherId <= WeatherRollups.LAST_WET_WEATHER_ID) {
+                wetDays++;
+            }
+        }
+    }
+
+    private static Bucket getBucket(Map<String, Bucket> buckets, String period, long startDate,
+                                    long endDate) {
+        String key = period + "/" + startDate;
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new Bucket();
+            bucket.endDate = endDate;
+            buckets.put(key, bucket);
+        }
+        return bucket;
+    }
+
+    /**
+     * @return the location's weeks and months, worked out from its stored days, by period and
+     * start date
+     */
+    private Map<String, Bucket> expectedRollups() {
+        DayMath dayMath = DayMath.getDefault();
+        Map<String, Bucket> buckets = new HashMap<String, Bucket>();
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                WEATHER_PROJECTION, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                int julianDay = dayMath.getJulianDay(cursor.getLong(0));
+                int week = DayMath.getFirstDayOfWeek(julianDay);
+                int month = DayMath.getFirstDayOfMonth(julianDay);
+                int nextMonth = DayMath.getFirstDayOfNextMonth(julianDay);
+                getBucket(buckets, RollupEntry.PERIOD_WEEK, dayMath.getStartOfDay(week),
+                        dayMath.getStartOfDay(week + 6))
+                        .add(cursor.getDouble(1), cursor.getDouble(2), cursor.getInt(3));
+                getBucket(buckets, RollupEntry.PERIOD_MONTH, dayMath.getStartOfDay(month),
+                        dayMath.getStartOfDay(nextMonth - 1))
+                        .add(cursor.getDouble(1), cursor.getDouble(2), cursor.getInt(3));
+            }
+        } finally {
+            cursor.close();
+        }
+        return buckets;
+    }
+
+    /**
+     * @return the location's stored weeks and months, by period and start date
+     */
+    private Map<String, Bucket> storedRollups() {
+        Map<String, Bucket> buckets = new HashMap<String, Bucket>();
+        Cursor cursor = mContext.getContentResolver().query(
+                RollupEntry.buildRollupLocation(TestUtilities.TEST_LOCATION),
+                ROLLUP_PROJECTION, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                Bucket bucket = new Bucket();
+                bucket.id = cursor.getLong(0);
+                bucket.endDate = cursor.getLong(3);
+                bucket.days = cursor.getInt(4);
+                bucket.min = cursor.getDouble(5);
+                bucket.max = cursor.getDouble(6);
+                bucket.sumMin = cursor.getDouble(7) * bucket.days;
+                bucket.sumMax = cursor.getDouble(8) * bucket.days;
+                bucket.wetDays = cursor.getInt(9);
+                assertNull("Error: a week or month is stored twice",
+                        buckets.put(cursor.getString(1) + "/" + cursor.getLong(2), bucket));
+            }
+        } finally {
+            cursor.close();
+        }
+        return buckets;
+    }
+
+    private Map<String, Bucket> assertRollupsMatchWeather() {
+        Map<String, Bucket> expected = expectedRollups();
+        Map<String, Bucket> stored = storedRollups();
+        assertEquals("Error: wrong weeks and months stored", expected.keySet(), stored.keySet());
+        for (Map.Entry<String, Bucket> entry : expected.entrySet()) {
+            String key = entry.getKey();
+            Bucket want = entry.getValue();
+            Bucket got = stored.get(key);
+            assertEquals(key, want.endDate, got.endDate);
+            assertEquals(key, want.days, got.days);
+            assertEquals(key, want.min, got.min, 1e-9);
+            assertEquals(key, want.max, got.max, 1e-9);
+            assertEquals(key, want.sumMin, got.sumMin, 1e-6);
+            assertEquals(key, want.sumMax, got.sumMax, 1e-6);
+            assertEquals(key, want.wetDays, got.wetDays);
+        }
+        return stored;
+    }
+
+    public void testRollupsFollowWrites() {
+        assertEquals(DAYS, mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createDays(0, DAYS, 1)));
+        assertRollupsMatchWeather();
+
+        // An upsert of a month of days that are partly new
+        mContext.getContentResolver().bulkInsert(WeatherEntry.buildWeatherUpsertUri(),
+                createDays(DAYS - 10, 30, 2));
+        assertRollupsMatchWeather();
+
+        // A single insert, well after the rest, in a week and month of its own
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI,
+                createDays(DAYS + 100, 1, 3)[0]);
+        assertRollupsMatchWeather();
+
+        ContentValues colder = new ContentValues();
+        colder.put(WeatherEntry.COLUMN_MIN_TEMP, -40);
+        colder.put(WeatherEntry.COLUMN_WEATHER_ID, 600);
+        assertEquals(7, mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, colder,
+                WeatherEntry.COLUMN_DATE + " >= ? AND " + WeatherEntry.COLUMN_DATE + " <= ?",
+                new String[]{Long.toString(day(50)), Long.toString(day(56))}));
+        assertRollupsMatchWeather();
+
+        // Deleting days from the middle of weeks and months, and all of a month
+        assertEquals(45, mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_DATE + " >= ? AND " + WeatherEntry.COLUMN_DATE + " < ?",
+                new String[]{Long.toString(day(200)), Long.toString(day(245))}));
+        assertRollupsMatchWeather();
+
+        mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_APPLY_RETENTION, Long.toString(day(100)), null);
+        Map<String, Bucket> stored = assertRollupsMatchWeather();
+        for (Bucket bucket : stored.values()) {
+            assertTrue("Error: retention left a week or month with no days",
+                    bucket.endDate > day(100));
+        }
+
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        assertTrue("Error: deleting all the weather should delete its rollups",
+                storedRollups().isEmpty());
+    }
+
+    public void testTimeZoneChangeRebuildsRollups() {
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createDays(0, DAYS, 1));
+        assertRollupsMatchWeather();
+
+        TimeZone original = TimeZone.getDefault();
+        // Half a day or more away, so most days' midnights move to the day before or after
+        TimeZone moved = TimeZone.getTimeZone(original.getRawOffset() > 0
+                ? "Pacific/Pago_Pago" : "Pacific/Kiritimati");
+        try {
+            TimeZone.setDefault(moved);
+            DayMath.resetDefault();
+            assertRollupsMatchWeather();
+        } finally {
+            TimeZone.setDefault(original);
+            DayMath.resetDefault();
+        }
+        assertRollupsMatchWeather();
+    }
+
+    public void testWriteReplacesOnlyItsOwnWeekAndMonth() {
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createDays(0, DAYS, 1));
+        Map<String, Bucket> before = storedRollups();
+
+        ContentValues[] changed = createDays(DAYS / 2, 1, 4);
+        changed[0].put(WeatherEntry.COLUMN_MAX_TEMP, 45);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.buildWeatherUpsertUri(), changed);
+        Map<String, Bucket> after = assertRollupsMatchWeather();
+
+        assertEquals(before.keySet(), after.keySet());
+        int replaced = 0;
+        for (Map.Entry<String, Bucket> entry : before.entrySet()) {
+            if (entry.getValue().id != after.get(entry.getKey()).id) {
+                replaced++;
+            }
+        }
+        assertEquals("Error: only the changed day's week and month should be worked out again",
+                2, replaced);
+    }
+
+    public void testQueries() {
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createDays(0, DAYS, 1));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                RollupEntry.buildRollupLocationWithPeriod(TestUtilities.TEST_LOCATION,
+                        RollupEntry.PERIOD_MONTH), ROLLUP_PROJECTION, null, null, null);
+        try {
+            // December 20, 2014 to January 23, 2016
+            assertEquals(14, cursor.getCount());
+            long lastStartDate = 0;
+            int days = 0;
+            while (cursor.moveToNext()) {
+                assertEquals(RollupEntry.PERIOD_MONTH, cursor.getString(1));
+                assertTrue("Error: months should be in date order",
+                        cursor.getLong(2) > lastStartDate);
+                lastStartDate = cursor.getLong(2);
+                days += cursor.getInt(4);
+            }
+            assertEquals(DAYS, days);
+        } finally {
+            cursor.close();
+        }
+
+        // The weeks overlapping a range, including the ones only partly inside it
+        cursor = mContext.getContentResolver().query(
+                RollupEntry.buildRollupLocationWithDateRange(TestUtilities.TEST_LOCATION,
+                        RollupEntry.PERIOD_WEEK, day(100), day(120)),
+                ROLLUP_PROJECTION, null, null, null);
+        try {
+            assertTrue(cursor.getCount() >= 3 && cursor.getCount() <= 4);
+            assertTrue(cursor.moveToFirst());
+            assertTrue(cursor.getLong(2) <= day(100) && cursor.getLong(3) >= day(100));
+            assertTrue(cursor.moveToLast());
+            assertTrue(cursor.getLong(2) <= day(120) && cursor.getLong(3) >= day(120));
+        } finally {
+            cursor.close();
+        }
+
+        try {
+            mContext.getContentResolver().query(RollupEntry.buildRollupLocationWithPeriod(
+                    TestUtilities.TEST_LOCATION, "fortnight"), null, null, null, null);
+            fail("Error: an unknown period should be refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testWritesNotifyRollups() {
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createDays(0, 10, 1));
+        Cursor cursor = mContext.getContentResolver().query(
+                RollupEntry.buildRollupLocationWithPeriod(TestUtilities.TEST_LOCATION,
+                        RollupEntry.PERIOD_WEEK), null, null, null, null);
+        TestUtilities.TestContentObserver tco = TestUtilities.getTestContentObserver();
+        cursor.registerContentObserver(tco);
+
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createDays(10, 1, 2));
+
+        tco.waitForNotificationOrFail();
+        cursor.unregisterContentObserver(tco);
+        cursor.close();
+    }
+
+    public void testBenchmark() {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        String[] args = {Long.toString(mLocationId)};
+        try {
+            int storedDays = 0;
+            for (int years : BENCHMARK_YEARS) {
+                int days = years * 365;
+                mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                        createDays(storedDays, days - storedDays, years));
+                storedDays = days;
+
+                // Warm up both, and check they found the same months.
+                Cursor fromRollups = db.rawQuery(SQL_MONTHS_FROM_ROLLUPS, args);
+                Cursor onTheFly = db.rawQuery(SQL_MONTHS_ON_THE_FLY, args);
+                try {
+                    assertEquals(onTheFly.getCount(), fromRollups.getCount());
+                    int rollupDays = 0;
+                    int weatherDays = 0;
+                    double rollupMin = Double.MAX_VALUE;
+                    double weatherMin = Double.MAX_VALUE;
+                    while (fromRollups.moveToNext() && onTheFly.moveToNext()) {
+                        rollupDays += fromRollups.getInt(1);
+                        weatherDays += onTheFly.getInt(1);
+                        rollupMin = Math.min(rollupMin, fromRollups.getDouble(2));
+                        weatherMin = Math.min(weatherMin, onTheFly.getDouble(2));
+                    }
+                    assertEquals(days, rollupDays);
+                    assertEquals(days, weatherDays);
+                    assertEquals(weatherMin, rollupMin, 1e-9);
+                } finally {
+                    fromRollups.close();
+                    onTheFly.close();
+                }
+
+                long onTheFlyNanos = timeQuery(db, SQL_MONTHS_ON_THE_FLY, args);
+                long rollupNanos = timeQuery(db, SQL_MONTHS_FROM_ROLLUPS, args);
+                Log.d(LOG_TAG, years + " years of days, " + BENCHMARK_QUERIES
+                        + " reads of every month: grouped on the fly "
+                        + onTheFlyNanos / 1000 / BENCHMARK_QUERIES + "us each; from rollups "
+                        + rollupNanos / 1000 / BENCHMARK_QUERIES + "us each");
+                if (years == BENCHMARK_YEARS[BENCHMARK_YEARS.length - 1]) {
+                    assertTrue("Error: reading the rollups should be faster than grouping "
+                            + years + " years of days", rollupNanos < onTheFlyNanos);
+                }
+            }
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    /**
+     * @return how long running the query BENCHMARK_QUERIES times and reading every row took
+     */
+    private static long timeQuery(SQLiteDatabase db, String sql, String[] args) {
+        long start = System.nanoTime();
+        for (int q = 0; q < BENCHMARK_QUERIES; q++) {
+            Cursor cursor = db.rawQuery(sql, args);
+            try {
+                while (cursor.moveToNext()) {
+                    cursor.getDouble(2);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+}
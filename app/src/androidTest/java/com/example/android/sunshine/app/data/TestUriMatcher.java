@@ -34,8 +34,25 @@ public class TestUriMatcher extends AndroidTestCase {
     private static final Uri TEST_WEATHER_DIR = WeatherContract.WeatherEntry.CONTENT_URI;
     private static final Uri TEST_WEATHER_WITH_LOCATION_DIR = WeatherContract.WeatherEntry.buildWeatherLocation(LOCATION_QUERY);
     private static final Uri TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(LOCATION_QUERY, TEST_DATE);
+    private static final Uri TEST_WEATHER_WITH_LOCATION_AND_DATE_RANGE_DIR =
+            WeatherContract.WeatherEntry.buildWeatherLocationWithDateRange(LOCATION_QUERY,
+                    TEST_DATE, TEST_DATE + 7 * 24 * 60 * 60 * 1000L, 3);
     // content://com.example.android.sunshine.app/location"
     private static final Uri TEST_LOCATION_DIR = WeatherContract.LocationEntry.CONTENT_URI;
+    // content://com.example.android.sunshine.app/sync_runs"
+    private static final Uri TEST_SYNC_RUNS_DIR = WeatherContract.SyncRunEntry.CONTENT_URI;
+    private static final Uri TEST_SYNC_RUNS_SUMMARY_DIR = WeatherContract.SyncRunEntry.SUMMARY_URI;
+    // content://com.example.android.sunshine.app/rollup"
+    private static final Uri TEST_ROLLUP_DIR = WeatherContract.RollupEntry.CONTENT_URI;
+    private static final Uri TEST_ROLLUP_WITH_LOCATION_DIR =
+            WeatherContract.RollupEntry.buildRollupLocation(LOCATION_QUERY);
+    private static final Uri TEST_ROLLUP_WITH_LOCATION_AND_PERIOD_DIR =
+            WeatherContract.RollupEntry.buildRollupLocationWithPeriod(LOCATION_QUERY,
+                    WeatherContract.RollupEntry.PERIOD_MONTH);
+    private static final Uri TEST_ROLLUP_WITH_LOCATION_AND_DATE_RANGE_DIR =
+            WeatherContract.RollupEntry.buildRollupLocationWithDateRange(LOCATION_QUERY,
+                    WeatherContract.RollupEntry.PERIOD_WEEK, TEST_DATE,
+                    TEST_DATE + 28 * 24 * 60 * 60 * 1000L);
 
     /*
         Students: This function tests that your UriMatcher returns the correct integer value
@@ -51,7 +68,25 @@ public class TestUriMatcher extends AndroidTestCase {
                 testMatcher.match(TEST_WEATHER_WITH_LOCATION_DIR), WeatherProvider.WEATHER_WITH_LOCATION);
         assertEquals("Error: The WEATHER WITH LOCATION AND DATE URI was matched incorrectly.",
                 testMatcher.match(TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR), WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE);
+        assertEquals("Error: The WEATHER WITH LOCATION AND DATE RANGE URI was matched incorrectly.",
+                testMatcher.match(TEST_WEATHER_WITH_LOCATION_AND_DATE_RANGE_DIR),
+                WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE_RANGE);
         assertEquals("Error: The LOCATION URI was matched incorrectly.",
                 testMatcher.match(TEST_LOCATION_DIR), WeatherProvider.LOCATION);
+        assertEquals("Error: The SYNC RUNS URI was matched incorrectly.",
+                testMatcher.match(TEST_SYNC_RUNS_DIR), WeatherProvider.SYNC_RUNS);
+        assertEquals("Error: The SYNC RUNS SUMMARY URI was matched incorrectly.",
+                testMatcher.match(TEST_SYNC_RUNS_SUMMARY_DIR), WeatherProvider.SYNC_RUNS_SUMMARY);
+        assertEquals("Error: The ROLLUP URI was matched incorrectly.",
+                testMatcher.match(TEST_ROLLUP_DIR), WeatherProvider.ROLLUP);
+        assertEquals("Error: The ROLLUP WITH LOCATION URI was matched incorrectly.",
+                testMatcher.match(TEST_ROLLUP_WITH_LOCATION_DIR),
+                WeatherProvider.ROLLUP_WITH_LOCATION);
+        assertEquals("Error: The ROLLUP WITH LOCATION AND PERIOD URI was matched incorrectly.",
+                testMatcher.match(TEST_ROLLUP_WITH_LOCATION_AND_PERIOD_DIR),
+                WeatherProvider.ROLLUP_WITH_LOCATION_AND_PERIOD);
+        assertEquals("Error: The ROLLUP WITH LOCATION AND DATE RANGE URI was matched incorrectly.",
+                testMatcher.match(TEST_ROLLUP_WITH_LOCATION_AND_DATE_RANGE_DIR),
+                WeatherProvider.ROLLUP_WITH_LOCATION_AND_DATE_RANGE);
     }
 }
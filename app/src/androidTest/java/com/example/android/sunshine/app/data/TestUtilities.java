@@ -8,12 +8,14 @@ import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.test.AndroidTestCase;
 
 import com.example.android.sunshine.app.utils.PollingCheck;
 
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /*
     Students: These are functions and some test data to make it easier to test your database and
@@ -107,6 +109,7 @@ public class TestUtilities extends AndroidTestCase {
     static class TestContentObserver extends ContentObserver {
         final HandlerThread mHT;
         boolean mContentChanged;
+        final AtomicInteger mChangeCount = new AtomicInteger();
 
         static TestContentObserver getTestContentObserver() {
             HandlerThread ht = new HandlerThread("ContentObserverThread");
@@ -128,6 +131,7 @@ public class TestUtilities extends AndroidTestCase {
         @Override
         public void onChange(boolean selfChange, Uri uri) {
             mContentChanged = true;
+            mChangeCount.incrementAndGet();
         }
 
         public void waitForNotificationOrFail() {
@@ -143,6 +147,23 @@ public class TestUtilities extends AndroidTestCase {
             }.run();
             mHT.quit();
         }
+
+        /*
+            Wait for the observer to have been told about this many changes, then give any extra
+            ones a moment to show up, since those should fail the test too.
+         */
+        public void waitForChangeCountOrFail(final int expected) {
+            new PollingCheck(5000) {
+                @Override
+                protected boolean check() {
+                    return mChangeCount.get() >= expected;
+                }
+            }.run();
+            SystemClock.sleep(500);
+            assertEquals("Error: unexpected number of change notifications",
+                    expected, mChangeCount.get());
+            mHT.quit();
+        }
     }
 
     static TestContentObserver getTestContentObserver() {
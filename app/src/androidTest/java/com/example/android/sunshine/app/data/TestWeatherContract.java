@@ -42,4 +42,23 @@ public class TestWeatherContract extends AndroidTestCase {
                 locationUri.toString(),
                 "content://com.example.android.sunshine.app/weather/%2FNorth%20Pole");
     }
+
+    public void testBuildWeatherLocationWithDateRange() {
+        long endDate = TEST_WEATHER_DATE + 6 * 24 * 60 * 60 * 1000L;
+        Uri rangeUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDateRange(
+                TEST_WEATHER_LOCATION, TEST_WEATHER_DATE, endDate, 3);
+        assertEquals(TEST_WEATHER_LOCATION,
+                WeatherContract.WeatherEntry.getLocationSettingFromUri(rangeUri));
+        assertEquals("Error: the start date should be normalized",
+                WeatherContract.normalizeDate(TEST_WEATHER_DATE),
+                WeatherContract.WeatherEntry.getDateFromUri(rangeUri));
+        assertEquals("Error: the end date should be normalized",
+                WeatherContract.normalizeDate(endDate),
+                WeatherContract.WeatherEntry.getEndDateFromUri(rangeUri));
+        assertEquals(3, WeatherContract.WeatherEntry.getLimitFromUri(rangeUri));
+
+        Uri unlimited = WeatherContract.WeatherEntry.buildWeatherLocationWithDateRange(
+                TEST_WEATHER_LOCATION, TEST_WEATHER_DATE, endDate);
+        assertEquals(0, WeatherContract.WeatherEntry.getLimitFromUri(unlimited));
+    }
 }
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks that the provider answers repeated forecast list and detail queries from its cache,
+    that a write drops only the results it changed, and that the cache stays within its size.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+public class TestWeatherQueryCache extends AndroidTestCase {
+
+    private static final String OTHER_LOCATION = "94043";
+
+    private long mLocationId;
+    private long mOtherLocationId;
+    private long mFirstDay;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        mLocationId = insertLocation(TestUtilities.TEST_LOCATION);
+        mOtherLocationId = insertLocation(OTHER_LOCATION);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                TestProvider.createBulkInsertWeatherValues(mLocationId));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                TestProvider.createBulkInsertWeatherValues(mOtherLocationId));
+        mFirstDay = WeatherContract.normalizeDate(TestUtilities.TEST_DATE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private long insertLocation(String locationSetting) {
+        ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+        locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        return ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, locationValues));
+    }
+
+    private Bundle stats() {
+        return mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_QUERY_CACHE_STATS, null, null);
+    }
+
+    /**
+     * @return the max temperature of the first row the uri returns
+     */
+    private double queryMaxTemp(Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri,
+                new String[]{WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP},
+                null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        try {
+            assertTrue("Error: no rows for " + uri, cursor.moveToFirst());
+            return cursor.getDouble(1);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Query the uri and check whether the cache answered it.
+     */
+    private double assertQuery(String error, Uri uri, boolean hit) {
+        Bundle before = stats();
+        double maxTemp = queryMaxTemp(uri);
+        Bundle after = stats();
+        assertEquals(error, hit ? 1 : 0, after.getInt(WeatherContract.KEY_HITS)
+                - before.getInt(WeatherContract.KEY_HITS));
+        assertEquals(error, hit ? 0 : 1, after.getInt(WeatherContract.KEY_MISSES)
+                - before.getInt(WeatherContract.KEY_MISSES));
+        return maxTemp;
+    }
+
+    private void updateMaxTemp(long locationId, long date, double maxTemp) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, maxTemp);
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, values,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(locationId), Long.toString(date)});
+    }
+
+    public void testRepeatedQueriesHit() {
+        if (!WeatherQueryCache.isSupported()) {
+            return;
+        }
+        Uri list = WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, mFirstDay);
+        Uri detail = WeatherEntry.buildWeatherLocationWithDate(
+                TestUtilities.TEST_LOCATION, mFirstDay);
+
+        double listTemp = assertQuery("list, first query", list, false);
+        assertEquals(listTemp, assertQuery("list, again", list, true));
+        double detailTemp = assertQuery("detail, first query", detail, false);
+        assertEquals(detailTemp, assertQuery("detail, again", detail, true));
+
+        // A different projection is a different result.
+        Bundle before = stats();
+        mContext.getContentResolver().query(list, null, null, null, null).close();
+        assertEquals(before.getInt(WeatherContract.KEY_MISSES) + 1,
+                stats().getInt(WeatherContract.KEY_MISSES));
+    }
+
+    public void testWritesInvalidateOnlyWhatTheyChange() {
+        if (!WeatherQueryCache.isSupported()) {
+            return;
+        }
+        long secondDay = WeatherContract.normalizeDate(
+                TestUtilities.TEST_DATE + 24 * 60 * 60 * 1000);
+        Uri list = WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, mFirstDay);
+        Uri laterList = WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, secondDay + 24 * 60 * 60 * 1000);
+        Uri firstDetail = WeatherEntry.buildWeatherLocationWithDate(
+                TestUtilities.TEST_LOCATION, mFirstDay);
+        Uri secondDetail = WeatherEntry.buildWeatherLocationWithDate(
+                TestUtilities.TEST_LOCATION, secondDay);
+        Uri otherList = WeatherEntry.buildWeatherLocationWithStartDate(OTHER_LOCATION, mFirstDay);
+        Uri[] uris = {list, laterList, firstDetail, secondDetail, otherList};
+        for (Uri uri : uris) {
+            queryMaxTemp(uri);
+        }
+
+        // The second day changes: its detail and the list from the first day are reloaded, the
+        // first day's detail, the list that starts later and the other location aren't.
+        int invalidations = stats().getInt(WeatherContract.KEY_INVALIDATIONS);
+        updateMaxTemp(mLocationId, secondDay, 99);
+        assertEquals(invalidations + 2, stats().getInt(WeatherContract.KEY_INVALIDATIONS));
+        assertEquals(99.0, assertQuery("second day's detail", secondDetail, false));
+        assertQuery("list", list, false);
+        assertQuery("first day's detail", firstDetail, true);
+        assertQuery("list starting later", laterList, true);
+        assertQuery("other location", otherList, true);
+
+        // A change to the locations can show up in any result.
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(LocationEntry.COLUMN_CITY_NAME, "Santa's Workshop");
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, locationValues,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(mOtherLocationId)});
+        for (Uri uri : uris) {
+            assertQuery("after a location update, " + uri, uri, false);
+        }
+
+        // Deleting everything empties the cache.
+        deleteAll();
+        Cursor cursor = mContext.getContentResolver().query(list, null, null, null, null);
+        try {
+            assertEquals(0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testSizeIsBounded() {
+        if (!WeatherQueryCache.isSupported()) {
+            return;
+        }
+        // Each result is one row of a number and a 100 character string, a little over 200 bytes.
+        WeatherQueryCache cache = new WeatherQueryCache(4096);
+        char[] chars = new char[100];
+        String description = new String(chars);
+        int results = 100;
+        for (int i = 0; i < results; i++) {
+            MatrixCursor cursor = new MatrixCursor(new String[]{"date", "description"});
+            cursor.addRow(new Object[]{i, description});
+            WeatherQueryCache.Key key = new WeatherQueryCache.Key("weather/" + i, null, null,
+                    Integer.toString(i), 0, Long.MAX_VALUE);
+            Cursor copy = cache.put(key, cursor, cache.getGeneration());
+            assertTrue(cursor.isClosed());
+            assertTrue(copy.moveToFirst());
+            assertEquals(i, copy.getInt(0));
+            assertEquals(description, copy.getString(1));
+            copy.close();
+        }
+        assertTrue("Error: cache grew past its bound: " + cache.getSize(),
+                cache.getSize() <= 4096);
+        assertTrue(cache.getEvictionCount() > 0);
+
+        // The most recent result is still there, the first was evicted.
+        assertNotNull(cache.get(new WeatherQueryCache.Key("weather/" + (results - 1), null, null,
+                Integer.toString(results - 1), 0, Long.MAX_VALUE)));
+        assertNull(cache.get(new WeatherQueryCache.Key("weather/0", null, null, "0",
+                0, Long.MAX_VALUE)));
+    }
+
+    public void testStaleResultIsNotStored() {
+        if (!WeatherQueryCache.isSupported()) {
+            return;
+        }
+        WeatherQueryCache cache = new WeatherQueryCache(WeatherQueryCache.DEFAULT_MAX_BYTES);
+        WeatherQueryCache.Key key = new WeatherQueryCache.Key("weather/" + OTHER_LOCATION, null,
+                null, OTHER_LOCATION, 0, Long.MAX_VALUE);
+        long generation = cache.getGeneration();
+        // A write lands while the query is running.
+        cache.invalidateLocation(OTHER_LOCATION);
+        MatrixCursor cursor = new MatrixCursor(new String[]{"date"});
+        cursor.addRow(new Object[]{mFirstDay});
+        cache.put(key, cursor, generation).close();
+        assertNull(cache.get(key));
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.SyncResult;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import com.example.android.sunshine.app.utils.MockWeatherServer;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/*
+    Runs ForecastFetcher against a local stand-in for OpenWeatherMap to check that requests
+    are made conditional once we have validators, and that 304s and unchanged payloads are
+    reported as such.
+ */
+public class TestForecastFetcher extends AndroidTestCase {
+
+    private static final String TEST_LOCATION = "94043";
+    private static final long TEST_SALT = 2457012L;
+    private static final String ETAG = "\"forecast-v1\"";
+    private static final String LAST_MODIFIED = "Sat, 20 Dec 2014 00:00:00 GMT";
+
+    private MockWeatherServer mServer;
+    private SyncValidatorStore mValidatorStore;
+    private ForecastFetcher mFetcher;
+    private URL mUrl;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new MockWeatherServer();
+        mServer.start();
+        mUrl = mServer.getUrl("/data/2.5/forecast/daily?q=" + TEST_LOCATION);
+
+        mValidatorStore = new SyncValidatorStore(mContext);
+        mValidatorStore.remove(TEST_LOCATION);
+        mFetcher = new ForecastFetcher(mValidatorStore, new HttpWeatherTransport());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        mValidatorStore.remove(TEST_LOCATION);
+        super.tearDown();
+    }
+
+    private ForecastFetcher.Result fetch(TestForecastJsonParser.CollectingCallback callback)
+            throws Exception {
+        ForecastFetcher.Result result = mFetcher.fetch(mUrl, TEST_LOCATION, TEST_SALT, true, callback, null,
+                null);
+        if (result.status != ForecastFetcher.FETCH_NOT_MODIFIED) {
+            // This is what the sync adapter does once it has stored the forecast.
+            mValidatorStore.put(TEST_LOCATION, result.validators);
+        }
+        return result;
+    }
+
+    public void testNotModified() throws Exception {
+        String json = TestForecastJsonParser.createForecastJson("Mountain View", 14, true);
+        mServer.enqueue(new MockWeatherServer.MockResponse()
+                .addHeader("ETag", ETAG)
+                .addHeader("Last-Modified", LAST_MODIFIED)
+                .setBody(json));
+        mServer.enqueue(new MockWeatherServer.MockResponse()
+                .setResponseCode(HttpURLConnection.HTTP_NOT_MODIFIED, "Not Modified"));
+
+        TestForecastJsonParser.CollectingCallback callback =
+                new TestForecastJsonParser.CollectingCallback();
+        ForecastFetcher.Result result = fetch(callback);
+        assertEquals(ForecastFetcher.FETCH_UPDATED, result.status);
+        assertEquals(14, callback.days.size());
+
+        MockWeatherServer.RecordedRequest first = mServer.takeRequest();
+        assertNull("Error: the first request should not be conditional",
+                first.getHeader("If-None-Match"));
+
+        callback = new TestForecastJsonParser.CollectingCallback();
+        result = fetch(callback);
+        assertEquals(ForecastFetcher.FETCH_NOT_MODIFIED, result.status);
+        assertEquals("Error: nothing should be parsed on a 304", 0, callback.days.size());
+
+        MockWeatherServer.RecordedRequest second = mServer.takeRequest();
+        assertEquals(ETAG, second.getHeader("If-None-Match"));
+        assertEquals(LAST_MODIFIED, second.getHeader("If-Modified-Since"));
+    }
+
+    public void testUnchangedContentWithoutValidators() throws Exception {
+        // The same forecast, but with a different server timing in "message", and no
+        // validators at all.
+        String json = TestForecastJsonParser.createForecastJson("Mountain View", 14, true);
+        mServer.enqueue(new MockWeatherServer.MockResponse().setBody(json));
+        mServer.enqueue(new MockWeatherServer.MockResponse()
+                .setBody(json.replace("\"message\":0.0042", "\"message\":0.0131")));
+
+        assertEquals(ForecastFetcher.FETCH_UPDATED,
+                fetch(new TestForecastJsonParser.CollectingCallback()).status);
+        assertEquals(ForecastFetcher.FETCH_UNCHANGED,
+                fetch(new TestForecastJsonParser.CollectingCallback()).status);
+    }
+
+    public void testChangedContent() throws Exception {
+        mServer.enqueue(new MockWeatherServer.MockResponse().addHeader("ETag", ETAG)
+                .setBody(TestForecastJsonParser.createForecastJson("Mountain View", 14, true)));
+        mServer.enqueue(new MockWeatherServer.MockResponse().addHeader("ETag", "\"forecast-v2\"")
+                .setBody(TestForecastJsonParser.createForecastJson("Mountain View", 16, true)));
+
+        assertEquals(ForecastFetcher.FETCH_UPDATED,
+                fetch(new TestForecastJsonParser.CollectingCallback()).status);
+        ForecastFetcher.Result result = fetch(new TestForecastJsonParser.CollectingCallback());
+        assertEquals(ForecastFetcher.FETCH_UPDATED, result.status);
+        assertEquals("\"forecast-v2\"", result.validators.etag);
+    }
+
+    public void testSaltChangesHash() throws Exception {
+        // The same payload on a different day maps to different dates, so it must be stored.
+        String json = TestForecastJsonParser.createForecastJson("Mountain View", 14, true);
+        mServer.enqueue(new MockWeatherServer.MockResponse().setBody(json));
+        mServer.enqueue(new MockWeatherServer.MockResponse().setBody(json));
+
+        assertEquals(ForecastFetcher.FETCH_UPDATED,
+                fetch(new TestForecastJsonParser.CollectingCallback()).status);
+        ForecastFetcher.Result result = mFetcher.fetch(mUrl, TEST_LOCATION, TEST_SALT + 1, true,
+                new TestForecastJsonParser.CollectingCallback(), null, null);
+        assertEquals(ForecastFetcher.FETCH_UPDATED, result.status);
+    }
+
+    public void testRevalidateDisabled() throws Exception {
+        mValidatorStore.put(TEST_LOCATION, new SyncValidatorStore.Validators(ETAG, null, null));
+        mServer.enqueue(new MockWeatherServer.MockResponse()
+                .setBody(TestForecastJsonParser.createForecastJson("Mountain View", 14, true)));
+
+        ForecastFetcher.Result result = mFetcher.fetch(mUrl, TEST_LOCATION, TEST_SALT, false,
+                new TestForecastJsonParser.CollectingCallback(), null, null);
+        assertEquals(ForecastFetcher.FETCH_UPDATED, result.status);
+        assertNull(mServer.takeRequest().getHeader("If-None-Match"));
+    }
+
+    public void testTraceRecordsPhases() throws Exception {
+        mServer.enqueue(new MockWeatherServer.MockResponse()
+                .setBody(TestForecastJsonParser.createForecastJson("Mountain View", 14, true)));
+
+        SyncTrace trace = new SyncTrace();
+        mFetcher.fetch(mUrl, TEST_LOCATION, TEST_SALT, false,
+                new TestForecastJsonParser.CollectingCallback(), null, trace);
+        ContentValues values = trace.toContentValues(new SyncResult());
+
+        assertEquals(1, (long) values.getAsLong(WeatherContract.SyncRunEntry.COLUMN_REQUESTS));
+        assertTrue(values.getAsLong(WeatherContract.SyncRunEntry.COLUMN_DOWNLOAD_BYTES) > 0);
+        assertTrue(values.getAsLong(WeatherContract.SyncRunEntry.COLUMN_FIRST_BYTE_TIME) > 0);
+        assertTrue(values.getAsLong(WeatherContract.SyncRunEntry.COLUMN_PARSE_TIME) > 0);
+        assertEquals(WeatherContract.SyncRunEntry.STATUS_COMPLETE,
+                (int) values.getAsInteger(WeatherContract.SyncRunEntry.COLUMN_STATUS));
+    }
+}
@@ -0,0 +1,309 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+
+/*
+    Checks that the streaming forecast parser reads the same values as the old
+    JSONObject-based code, and compares the two on realistically sized payloads.
+ */
+public class TestForecastJsonParser extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastJsonParser.class.getSimpleName();
+
+    private static final int BENCHMARK_ITERATIONS = 50;
+    private static final int MULTI_CITY_COUNT = 20;
+
+    /*
+        Builds a response shaped like the forecast/daily endpoint's, with a few of the fields
+        we don't use thrown in so the parser has something to skip.
+     */
+    static String createForecastJson(String cityName, int days, boolean cityFirst) {
+        return createForecastJson(5375480L, cityName, days, cityFirst);
+    }
+
+    static String createForecastJson(long cityId, String cityName, int days, boolean cityFirst) {
+        StringBuilder list = new StringBuilder("\"list\":[");
+        for (int i = 0; i < days; i++) {
+            if (i > 0) list.append(',');
+            list.append("{\"dt\":").append(1419033600L + i * 86400L)
+                    .append(",\"temp\":{\"day\":").append(20.5 + i)
+                    .append(",\"min\":").append(10.25 + i)
+                    .append(",\"max\":").append(25.75 + i)
+                    .append(",\"night\":12.3,\"eve\":18.1,\"morn\":11.0}")
+                    .append(",\"pressure\":").append(1012.5 - i)
+                    .append(",\"humidity\":").append(60 + i)
+                    .append(",\"weather\":[{\"id\":").append(800 + (i % 4))
+                    .append(",\"main\":\"Clouds\",\"description\":\"few \\\"clouds\\\"\",\"icon\":\"02d\"}]")
+                    .append(",\"speed\":").append(3.5 + i)
+                    .append(",\"deg\":").append(i * 20)
+                    .append(",\"clouds\":20}");
+        }
+        list.append(']');
+
+        String city = "\"city\":{\"id\":" + cityId + ",\"name\":\"" + cityName + "\"," +
+                "\"coord\":{\"lon\":-122.0838,\"lat\":37.3861},\"country\":\"US\",\"population\":0}";
+
+        if (cityFirst) {
+            return "{" + city + ",\"cod\":\"200\",\"message\":0.0042,\"cnt\":" + days + "," + list + "}";
+        } else {
+            return "{\"cod\":\"200\",\"message\":0.0042,\"cnt\":" + days + "," + list + "," + city + "}";
+        }
+    }
+
+    /*
+        Builds a response shaped like the group endpoint's, with today's weather for each city.
+        Every third city has a calm wind, which OWM reports without a direction.
+     */
+    static String createGroupJson(long[] cityIds) {
+        StringBuilder json = new StringBuilder("{\"cnt\":").append(cityIds.length)
+                .append(",\"list\":[");
+        for (int i = 0; i < cityIds.length; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"coord\":{\"lon\":-122.08,\"lat\":37.39},\"sys\":{\"country\":\"US\"}")
+                    .append(",\"weather\":[{\"id\":").append(800 + (i % 4))
+                    .append(",\"main\":\"Clear\",\"description\":\"clear sky\",\"icon\":\"01d\"}]")
+                    .append(",\"main\":{\"temp\":").append(15.5 + i)
+                    .append(",\"pressure\":").append(1013 - i)
+                    .append(",\"humidity\":").append(40 + i)
+                    .append(",\"temp_min\":").append(10.25 + i)
+                    .append(",\"temp_max\":").append(20.75 + i).append('}')
+                    .append(",\"wind\":{\"speed\":").append(i % 3 == 0 ? 0 : 2.5 + i);
+            if (i % 3 != 0) {
+                json.append(",\"deg\":").append(i * 10);
+            }
+            json.append("},\"clouds\":{\"all\":0},\"dt\":1419033600")
+                    .append(",\"id\":").append(cityIds[i])
+                    .append(",\"name\":\"City ").append(i).append("\"}");
+        }
+        return json.append("]}").toString();
+    }
+
+    static class CollectingCallback implements ForecastJsonParser.Callback {
+        long cityId;
+        String cityName;
+        double lat;
+        double lon;
+        final ArrayList<double[]> days = new ArrayList<double[]>();
+        final ArrayList<String> descriptions = new ArrayList<String>();
+
+        @Override
+        public void onCity(long cityId, String cityName, double lat, double lon) {
+            this.cityId = cityId;
+            this.cityName = cityName;
+            this.lat = lat;
+            this.lon = lon;
+        }
+
+        @Override
+        public void onDay(int index, ForecastJsonParser.ForecastDay day) {
+            assertEquals("Error: days were not delivered in order", days.size(), index);
+            days.add(new double[] { day.pressure, day.humidity, day.windSpeed,
+                    day.windDirection, day.high, day.low, day.weatherId });
+            descriptions.add(day.description);
+        }
+    }
+
+    public void testParseMatchesJsonObject() throws Exception {
+        for (boolean cityFirst : new boolean[] { true, false }) {
+            String json = createForecastJson("Mountain View", 14, cityFirst);
+
+            CollectingCallback callback = new CollectingCallback();
+            int days = new ForecastJsonParser(new StringReader(json)).parse(callback);
+            assertEquals(14, days);
+
+            JSONObject forecastJson = new JSONObject(json);
+            JSONObject cityJson = forecastJson.getJSONObject("city");
+            assertEquals(cityJson.getLong("id"), callback.cityId);
+            assertEquals(cityJson.getString("name"), callback.cityName);
+            assertEquals(cityJson.getJSONObject("coord").getDouble("lat"), callback.lat);
+            assertEquals(cityJson.getJSONObject("coord").getDouble("lon"), callback.lon);
+
+            JSONArray weatherArray = forecastJson.getJSONArray("list");
+            assertEquals(weatherArray.length(), callback.days.size());
+            for (int i = 0; i < weatherArray.length(); i++) {
+                JSONObject dayForecast = weatherArray.getJSONObject(i);
+                JSONObject weatherObject = dayForecast.getJSONArray("weather").getJSONObject(0);
+                JSONObject temperatureObject = dayForecast.getJSONObject("temp");
+                double[] parsed = callback.days.get(i);
+
+                assertEquals(dayForecast.getDouble("pressure"), parsed[0]);
+                assertEquals((double) dayForecast.getInt("humidity"), parsed[1]);
+                assertEquals(dayForecast.getDouble("speed"), parsed[2]);
+                assertEquals(dayForecast.getDouble("deg"), parsed[3]);
+                assertEquals(temperatureObject.getDouble("max"), parsed[4]);
+                assertEquals(temperatureObject.getDouble("min"), parsed[5]);
+                assertEquals((double) weatherObject.getInt("id"), parsed[6]);
+                assertEquals(weatherObject.getString("main"), callback.descriptions.get(i));
+            }
+        }
+    }
+
+    public void testParseGroupMatchesJsonObject() throws Exception {
+        long[] cityIds = { 5375480L, 2643743L, 2988507L, 5128581L };
+        String json = createGroupJson(cityIds);
+
+        final ArrayList<Long> ids = new ArrayList<Long>();
+        final ArrayList<double[]> cities = new ArrayList<double[]>();
+        int count = new ForecastJsonParser(new StringReader(json)).parseGroup(
+                new ForecastJsonParser.GroupCallback() {
+                    @Override
+                    public void onCityWeather(long cityId, ForecastJsonParser.ForecastDay day) {
+                        ids.add(cityId);
+                        cities.add(new double[] { day.pressure, day.humidity, day.windSpeed,
+                                day.windDirection, day.high, day.low, day.weatherId });
+                    }
+                });
+        assertEquals(cityIds.length, count);
+
+        JSONArray list = new JSONObject(json).getJSONArray("list");
+        for (int i = 0; i < list.length(); i++) {
+            JSONObject cityJson = list.getJSONObject(i);
+            JSONObject mainJson = cityJson.getJSONObject("main");
+            JSONObject windJson = cityJson.getJSONObject("wind");
+            double[] parsed = cities.get(i);
+
+            assertEquals(cityJson.getLong("id"), (long) ids.get(i));
+            assertEquals(mainJson.getDouble("pressure"), parsed[0]);
+            assertEquals((double) mainJson.getInt("humidity"), parsed[1]);
+            assertEquals(windJson.getDouble("speed"), parsed[2]);
+            assertEquals("Error: a missing wind direction should read as NaN",
+                    windJson.optDouble("deg", Double.NaN), parsed[3]);
+            assertTrue("Error: the current temperatures aren't the day's high and low",
+                    Double.isNaN(parsed[4]) && Double.isNaN(parsed[5]));
+            assertEquals((double) cityJson.getJSONArray("weather").getJSONObject(0).getInt("id"),
+                    parsed[6]);
+        }
+
+        try {
+            new ForecastJsonParser(new StringReader("{\"cod\":\"401\",\"message\":\"Invalid API key\"}"))
+                    .parseGroup(new ForecastJsonParser.GroupCallback() {
+                        @Override
+                        public void onCityWeather(long cityId, ForecastJsonParser.ForecastDay day) {
+                        }
+                    });
+            fail("Error: an error response should not parse as a group");
+        } catch (JSONException expected) {
+            assertTrue(expected.getMessage().contains("401"));
+        }
+    }
+
+    public void testErrorResponse() throws Exception {
+        try {
+            new ForecastJsonParser(new StringReader("{\"cod\":\"404\",\"message\":\"city not found\"}"))
+                    .parse(new CollectingCallback());
+            fail("Error: an OWM error response should not parse as a forecast");
+        } catch (JSONException expected) {
+        }
+
+        try {
+            new ForecastJsonParser(new StringReader("{\"city\":{\"name\":\"x\",\"coord\":{\"lat\":1,\"lon\":2}},"
+                    + "\"list\":[{\"temp\":{\"min\":1,\"max\":2}}]}"))
+                    .parse(new CollectingCallback());
+            fail("Error: a day without pressure should not parse");
+        } catch (JSONException expected) {
+        }
+    }
+
+    /*
+        Not a pass/fail test: logs time and bytes allocated per response for the old path
+        (read into a StringBuffer, build the JSONObject tree) and the streaming parser.
+     */
+    public void testBenchmarkAgainstJsonObject() throws Exception {
+        benchmark("14 days", new String[] { createForecastJson("Mountain View", 14, true) });
+        benchmark("16 days", new String[] { createForecastJson("Mountain View", 16, true) });
+
+        String[] cities = new String[MULTI_CITY_COUNT];
+        for (int i = 0; i < cities.length; i++) {
+            cities[i] = createForecastJson("City " + i, 16, (i & 1) == 0);
+        }
+        benchmark(MULTI_CITY_COUNT + " cities x 16 days", cities);
+    }
+
+    private void benchmark(String label, String[] payloads) throws Exception {
+        byte[][] bytes = new byte[payloads.length][];
+        for (int i = 0; i < payloads.length; i++) {
+            bytes[i] = payloads[i].getBytes("UTF-8");
+        }
+
+        // Warm up both paths so we're not measuring class loading.
+        for (byte[] payload : bytes) {
+            parseWithJsonObject(new ByteArrayInputStream(payload));
+            parseStreaming(new ByteArrayInputStream(payload));
+        }
+
+        long[] tree = measure(bytes, false);
+        long[] streaming = measure(bytes, true);
+
+        Log.d(LOG_TAG, label + ": JSONObject " + tree[0] / 1000 + "us/" + tree[1] + "B, streaming "
+                + streaming[0] / 1000 + "us/" + streaming[1] + "B per iteration");
+    }
+
+    @SuppressWarnings("deprecation")
+    private long[] measure(byte[][] payloads, boolean streaming) throws Exception {
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            for (byte[] payload : payloads) {
+                InputStream in = new ByteArrayInputStream(payload);
+                int days = streaming ? parseStreaming(in) : parseWithJsonObject(in);
+                assertTrue(days > 0);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        return new long[] {
+                elapsed / BENCHMARK_ITERATIONS, Debug.getThreadAllocSize() / BENCHMARK_ITERATIONS };
+    }
+
+    private static int parseStreaming(InputStream in) throws IOException, JSONException {
+        return new ForecastJsonParser(new InputStreamReader(in, "UTF-8"))
+                .parse(new ForecastJsonParser.Callback() {
+                    @Override
+                    public void onCity(long cityId, String cityName, double lat, double lon) {
+                    }
+
+                    @Override
+                    public void onDay(int index, ForecastJsonParser.ForecastDay day) {
+                    }
+                });
+    }
+
+    // This is the path SunshineSyncAdapter used before the streaming parser.
+    private static int parseWithJsonObject(InputStream in) throws IOException, JSONException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        StringBuffer buffer = new StringBuffer();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line + "\n");
+        }
+
+        JSONObject forecastJson = new JSONObject(buffer.toString());
+        JSONArray weatherArray = forecastJson.getJSONArray("list");
+        JSONObject cityJson = forecastJson.getJSONObject("city");
+        cityJson.getString("name");
+        cityJson.getJSONObject("coord").getDouble("lat");
+        for (int i = 0; i < weatherArray.length(); i++) {
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+            dayForecast.getDouble("pressure");
+            dayForecast.getJSONArray("weather").getJSONObject(0).getString("main");
+            dayForecast.getJSONObject("temp").getDouble("max");
+        }
+        return weatherArray.length();
+    }
+}
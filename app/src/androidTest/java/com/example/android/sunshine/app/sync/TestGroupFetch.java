@@ -0,0 +1,211 @@
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.utils.MockWeatherServer;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+    Compares refreshing many locations one forecast request at a time with batching them into
+    OWM group requests, against a local stand-in for the API, and checks how the sync adapter
+    splits locations between the two.
+ */
+public class TestGroupFetch extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestGroupFetch.class.getSimpleName();
+
+    private static final long FIRST_CITY_ID = 5375480L;
+
+    private MockWeatherServer mServer;
+    private SyncValidatorStore mValidatorStore;
+    private ForecastFetcher mFetcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new MockWeatherServer();
+        mServer.setDispatcher(new MockWeatherServer.Dispatcher() {
+            @Override
+            public MockWeatherServer.MockResponse dispatch(MockWeatherServer.RecordedRequest request) {
+                if (request.path.startsWith("/group")) {
+                    return new MockWeatherServer.MockResponse().setBody(
+                            TestForecastJsonParser.createGroupJson(parseIds(request.path)));
+                }
+                return new MockWeatherServer.MockResponse().setBody(
+                        TestForecastJsonParser.createForecastJson("City", 14, true));
+            }
+        });
+        mServer.start();
+
+        mValidatorStore = new SyncValidatorStore(mContext);
+        mFetcher = new ForecastFetcher(mValidatorStore, new HttpWeatherTransport());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    private static long[] parseIds(String path) {
+        try {
+            String query = path.substring(path.indexOf("id=") + 3);
+            if (query.indexOf('&') != -1) {
+                query = query.substring(0, query.indexOf('&'));
+            }
+            String[] ids = URLDecoder.decode(query, "UTF-8").split(",");
+            long[] cityIds = new long[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                cityIds[i] = Long.parseLong(ids[i]);
+            }
+            return cityIds;
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static List<SunshineSyncAdapter.StoredLocation> locations(int count) {
+        List<SunshineSyncAdapter.StoredLocation> locations =
+                new ArrayList<SunshineSyncAdapter.StoredLocation>(count);
+        for (int i = 0; i < count; i++) {
+            locations.add(new SunshineSyncAdapter.StoredLocation("loc" + i, i + 1, FIRST_CITY_ID + i));
+        }
+        return locations;
+    }
+
+    // One forecast request per location, the way every location used to be refreshed.
+    private void fetchOneByOne(List<SunshineSyncAdapter.StoredLocation> locations) throws Exception {
+        for (SunshineSyncAdapter.StoredLocation location : locations) {
+            URL url = mServer.getUrl("/data/2.5/forecast/daily?q=" + location.locationSetting);
+            ForecastFetcher.Result result = mFetcher.fetch(url, location.locationSetting, 0, false,
+                    new TestForecastJsonParser.CollectingCallback(), null, null);
+            assertEquals(ForecastFetcher.FETCH_UPDATED, result.status);
+        }
+    }
+
+    private void fetchGrouped(List<SunshineSyncAdapter.StoredLocation> locations) throws Exception {
+        final Set<Long> seen = new HashSet<Long>();
+        for (int start = 0; start < locations.size(); start += SunshineSyncAdapter.MAX_GROUP_SIZE) {
+            List<SunshineSyncAdapter.StoredLocation> batch = locations.subList(start,
+                    Math.min(locations.size(), start + SunshineSyncAdapter.MAX_GROUP_SIZE));
+            URL owmUrl = SunshineSyncAdapter.buildGroupUrl(batch);
+            URL url = mServer.getUrl(owmUrl.getPath().substring("/data/2.5".length())
+                    + "?" + owmUrl.getQuery());
+            int cities = mFetcher.fetchGroup(url, new ForecastJsonParser.GroupCallback() {
+                @Override
+                public void onCityWeather(long cityId, ForecastJsonParser.ForecastDay day) {
+                    seen.add(cityId);
+                }
+            }, null, null);
+            assertEquals(batch.size(), cities);
+        }
+        assertEquals("Error: every city should be in one of the group responses",
+                locations.size(), seen.size());
+    }
+
+    public void testGroupBenchmark() throws Exception {
+        for (int count : new int[] { 1, 20, 200 }) {
+            List<SunshineSyncAdapter.StoredLocation> locations = locations(count);
+
+            int requestsBefore = mServer.getRequestCount();
+            long bytesBefore = mServer.getBytesSent();
+            long start = System.nanoTime();
+            fetchOneByOne(locations);
+            long singleNanos = System.nanoTime() - start;
+            int singleRequests = mServer.getRequestCount() - requestsBefore;
+            long singleBytes = mServer.getBytesSent() - bytesBefore;
+
+            requestsBefore = mServer.getRequestCount();
+            bytesBefore = mServer.getBytesSent();
+            start = System.nanoTime();
+            fetchGrouped(locations);
+            long groupNanos = System.nanoTime() - start;
+            int groupRequests = mServer.getRequestCount() - requestsBefore;
+            long groupBytes = mServer.getBytesSent() - bytesBefore;
+
+            Log.d(LOG_TAG, count + " locations: one by one " + singleRequests + " requests, "
+                    + singleBytes + " bytes, " + locationsPerSecond(count, singleNanos)
+                    + " locations/s; grouped " + groupRequests + " requests, " + groupBytes
+                    + " bytes, " + locationsPerSecond(count, groupNanos) + " locations/s");
+
+            assertEquals(count, singleRequests);
+            assertEquals((count + SunshineSyncAdapter.MAX_GROUP_SIZE - 1)
+                    / SunshineSyncAdapter.MAX_GROUP_SIZE, groupRequests);
+            assertTrue("Error: group requests should transfer less than full forecasts",
+                    groupBytes < singleBytes);
+        }
+    }
+
+    private static long locationsPerSecond(int count, long nanos) {
+        return nanos > 0 ? count * 1000000000L / nanos : 0;
+    }
+
+    public void testGroupUrlSkipsDuplicateCities() throws Exception {
+        List<SunshineSyncAdapter.StoredLocation> locations = locations(2);
+        // A zip code and a city name that both resolve to Mountain View.
+        locations.add(new SunshineSyncAdapter.StoredLocation("Mountain View", 3, FIRST_CITY_ID));
+
+        String ids = parseIdsQuery(SunshineSyncAdapter.buildGroupUrl(locations));
+        assertEquals(FIRST_CITY_ID + "," + (FIRST_CITY_ID + 1), ids);
+    }
+
+    private static String parseIdsQuery(URL url) throws Exception {
+        for (String param : url.getQuery().split("&")) {
+            if (param.startsWith("id=")) {
+                return URLDecoder.decode(param.substring(3), "UTF-8");
+            }
+        }
+        return null;
+    }
+
+    public void testPlanSync() {
+        final int julianDay = 2457012;
+        // 45 locations with a full forecast from today, one that was last checked yesterday,
+        // and one we don't have a city id for yet.
+        List<SunshineSyncAdapter.StoredLocation> locations = locations(45);
+        for (SunshineSyncAdapter.StoredLocation location : locations) {
+            mValidatorStore.putForecastDay(location.locationSetting, julianDay);
+        }
+        locations.add(new SunshineSyncAdapter.StoredLocation("yesterday", 46, FIRST_CITY_ID + 45));
+        mValidatorStore.putForecastDay("yesterday", julianDay - 1);
+        locations.add(new SunshineSyncAdapter.StoredLocation("new", 47, 0));
+        mValidatorStore.putForecastDay("new", julianDay);
+
+        try {
+            List<SunshineSyncAdapter.SyncTarget> targets =
+                    SunshineSyncAdapter.planSync("loc0", locations, julianDay, mValidatorStore);
+
+            List<String> forecasts = new ArrayList<String>();
+            List<Integer> groupSizes = new ArrayList<Integer>();
+            for (SunshineSyncAdapter.SyncTarget target : targets) {
+                if (target.isGroup()) {
+                    groupSizes.add(target.group.size());
+                    for (SunshineSyncAdapter.StoredLocation location : target.group) {
+                        assertFalse("Error: the preferred location should get its full forecast",
+                                "loc0".equals(location.locationSetting));
+                    }
+                } else {
+                    forecasts.add(target.locationSetting);
+                }
+            }
+
+            assertEquals("loc0", forecasts.get(0));
+            assertTrue(forecasts.contains("yesterday"));
+            assertTrue(forecasts.contains("new"));
+            assertEquals(3, forecasts.size());
+            assertEquals("[20, 20, 4]", groupSizes.toString());
+        } finally {
+            for (SunshineSyncAdapter.StoredLocation location : locations) {
+                mValidatorStore.remove(location.locationSetting);
+            }
+        }
+    }
+}
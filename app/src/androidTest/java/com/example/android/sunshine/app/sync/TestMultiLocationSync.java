@@ -0,0 +1,176 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.SyncResult;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.utils.MockWeatherServer;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Drives MultiLocationSync against a slow local server to check the concurrency limits,
+    the deadline, and that stores overlap with downloads that are still running.
+ */
+public class TestMultiLocationSync extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestMultiLocationSync.class.getSimpleName();
+
+    private static final long SERVER_DELAY_MILLIS = 150;
+    private static final long STORE_DELAY_MILLIS = 50;
+
+    private MockWeatherServer mServer;
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicInteger mMaxInFlight = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new MockWeatherServer();
+        mServer.setDispatcher(new MockWeatherServer.Dispatcher() {
+            @Override
+            public MockWeatherServer.MockResponse dispatch(MockWeatherServer.RecordedRequest request)
+                    throws InterruptedException {
+                int inFlight = mInFlight.incrementAndGet();
+                synchronized (mMaxInFlight) {
+                    if (inFlight > mMaxInFlight.get()) mMaxInFlight.set(inFlight);
+                }
+                try {
+                    Thread.sleep(request.path.contains("slow") ? 10 * 1000 : SERVER_DELAY_MILLIS);
+                } finally {
+                    mInFlight.decrementAndGet();
+                }
+                return new MockWeatherServer.MockResponse().setBody(
+                        TestForecastJsonParser.createForecastJson("City", 14, true));
+            }
+        });
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    /*
+        Downloads and parses from the mock server, and pretends to write to the database.
+     */
+    private class TestHandler implements MultiLocationSync.Handler<String, Integer> {
+        final List<String> stored = Collections.synchronizedList(new ArrayList<String>());
+        volatile boolean storeOverlappedFetch;
+
+        @Override
+        public URL getUrl(String locationSetting) throws IOException {
+            return mServer.getUrl("/forecast?q=" + locationSetting);
+        }
+
+        @Override
+        public Integer fetch(String locationSetting, URL url) throws IOException, JSONException {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            try {
+                InputStream in = connection.getInputStream();
+                TestForecastJsonParser.CollectingCallback callback =
+                        new TestForecastJsonParser.CollectingCallback();
+                new ForecastJsonParser(new java.io.InputStreamReader(in, "UTF-8")).parse(callback);
+                in.close();
+                return callback.days.size();
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        @Override
+        public int store(String locationSetting, Integer days) {
+            if (mInFlight.get() > 0) {
+                storeOverlappedFetch = true;
+            }
+            try {
+                Thread.sleep(STORE_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            stored.add(locationSetting);
+            return days;
+        }
+    }
+
+    private static List<String> locations(int count, String prefix) {
+        List<String> locations = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            locations.add(prefix + i);
+        }
+        return locations;
+    }
+
+    public void testConcurrencyLimits() {
+        final int locationCount = 8;
+        MultiLocationSync sync = new MultiLocationSync(4, 2, 30 * 1000);
+        TestHandler handler = new TestHandler();
+        SyncResult syncResult = new SyncResult();
+
+        long start = System.nanoTime();
+        List<String> synced = sync.run(locations(locationCount, "loc"), handler, syncResult,
+                new SyncCancellation());
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(locationCount, synced.size());
+        assertEquals(locationCount * 14, syncResult.stats.numInserts);
+        assertEquals(0, syncResult.stats.numIoExceptions);
+        assertTrue("Error: more than 2 requests to one host were in flight: " + mMaxInFlight.get(),
+                mMaxInFlight.get() <= 2);
+        assertTrue("Error: stores should run while other locations are still downloading",
+                handler.storeOverlappedFetch);
+
+        long serialMillis = locationCount * (SERVER_DELAY_MILLIS + STORE_DELAY_MILLIS);
+        Log.d(LOG_TAG, locationCount + " locations in " + elapsedMillis + "ms, serial would be "
+                + serialMillis + "ms");
+        assertTrue("Error: concurrent sync took " + elapsedMillis + "ms",
+                elapsedMillis < serialMillis);
+    }
+
+    public void testScaling() {
+        // Wall time should grow much more slowly than the number of locations.
+        MultiLocationSync sync = new MultiLocationSync(4, 4, 30 * 1000);
+        long[] elapsed = new long[2];
+        int[] counts = { 4, 16 };
+        for (int i = 0; i < counts.length; i++) {
+            long start = System.nanoTime();
+            sync.run(locations(counts[i], "loc"), new TestHandler(), new SyncResult(),
+                    new SyncCancellation());
+            elapsed[i] = (System.nanoTime() - start) / 1000000;
+            Log.d(LOG_TAG, counts[i] + " locations in " + elapsed[i] + "ms");
+        }
+        assertTrue("Error: 4x the locations took " + elapsed[1] + "ms vs " + elapsed[0] + "ms",
+                elapsed[1] < elapsed[0] * 4);
+    }
+
+    public void testDeadline() {
+        MultiLocationSync sync = new MultiLocationSync(4, 4, 1000);
+        TestHandler handler = new TestHandler();
+        SyncResult syncResult = new SyncResult();
+
+        List<String> locations = locations(2, "loc");
+        locations.addAll(locations(2, "slow"));
+
+        long start = System.nanoTime();
+        List<String> synced = sync.run(locations, handler, syncResult,
+                new SyncCancellation());
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(2, synced.size());
+        assertEquals("Error: locations past the deadline should be counted as failures",
+                2, syncResult.stats.numIoExceptions);
+        assertTrue("Error: the run should stop at the deadline, took " + elapsedMillis + "ms",
+                elapsedMillis < 5000);
+    }
+}
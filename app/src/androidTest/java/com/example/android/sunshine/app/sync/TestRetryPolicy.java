@@ -0,0 +1,265 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SyncResult;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.utils.MockWeatherServer;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/*
+    Fault injection against the mock server: retries, Retry-After, and the circuit breaker
+    keeping the request rate down while OWM is failing.
+ */
+public class TestRetryPolicy extends AndroidTestCase {
+    public static final String LOG_TAG = TestRetryPolicy.class.getSimpleName();
+
+    private MockWeatherServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        clearBreaker();
+        mServer = new MockWeatherServer();
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        clearBreaker();
+        super.tearDown();
+    }
+
+    private void clearBreaker() {
+        mContext.getSharedPreferences("sync_circuit", Context.MODE_PRIVATE)
+                .edit().clear().commit();
+    }
+
+    // Short delays so the tests don't take long, but the same shape as the defaults.
+    private static RetryPolicy fastPolicy() {
+        return new RetryPolicy(3, 10, 50, 2000, new Random(42));
+    }
+
+    private WeatherTransport.Response get(WeatherTransport transport) throws IOException {
+        return transport.get(mServer.getUrl("/forecast?q=94043"),
+                Collections.<String, String>emptyMap(), new SyncCancellation());
+    }
+
+    private static MockWeatherServer.MockResponse serverError() {
+        return new MockWeatherServer.MockResponse()
+                .setResponseCode(HttpURLConnection.HTTP_INTERNAL_ERROR, "Internal Server Error")
+                .setBody("{}");
+    }
+
+    private static MockWeatherServer.MockResponse ok() {
+        return new MockWeatherServer.MockResponse()
+                .setBody(TestForecastJsonParser.createForecastJson("City", 14, true));
+    }
+
+    public void testBackoffIsBoundedWithFullJitter() {
+        RetryPolicy policy = new RetryPolicy(10, 100, 1000, 0, new Random(1));
+        for (int retry = 0; retry < 40; retry++) {
+            long ceiling = Math.min(1000, retry < 30 ? 100L << retry : 1000);
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            for (int i = 0; i < 200; i++) {
+                long delay = policy.backoffMillis(retry);
+                assertTrue("Error: delay " + delay + " out of range for retry " + retry,
+                        delay >= 0 && delay <= ceiling);
+                min = Math.min(min, delay);
+                max = Math.max(max, delay);
+            }
+            // Full jitter spreads the delays over the whole range.
+            assertTrue("Error: delays for retry " + retry + " aren't spread out",
+                    min < ceiling / 4 && max > ceiling * 3 / 4);
+        }
+    }
+
+    public void testParseRetryAfter() {
+        long now = 1400000000000L;
+        assertEquals(-1, RetryPolicy.parseRetryAfter(null, now));
+        assertEquals(-1, RetryPolicy.parseRetryAfter("soon", now));
+        assertEquals(120 * 1000, RetryPolicy.parseRetryAfter(" 120 ", now));
+
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        assertEquals(90 * 1000, RetryPolicy.parseRetryAfter(format.format(new Date(now + 90 * 1000)), now));
+        assertEquals("Error: a date in the past means retry now",
+                0, RetryPolicy.parseRetryAfter(format.format(new Date(now - 1000)), now));
+    }
+
+    public void testRetriesAfterServerError() throws Exception {
+        mServer.enqueue(serverError());
+        mServer.enqueue(new MockWeatherServer.MockResponse()
+                .setResponseCode(HttpURLConnection.HTTP_UNAVAILABLE, "Service Unavailable")
+                .addHeader("Retry-After", "1")
+                .setBody("{}"));
+        mServer.enqueue(ok());
+
+        RetryingWeatherTransport transport = new RetryingWeatherTransport(
+                new HttpWeatherTransport(), fastPolicy(), new CircuitBreaker(mContext));
+        long start = System.nanoTime();
+        WeatherTransport.Response response = get(transport);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        response.release();
+
+        assertEquals(HttpURLConnection.HTTP_OK, response.code);
+        assertEquals(3, mServer.getRequestCount());
+        assertTrue("Error: Retry-After wasn't honored, took " + elapsedMillis + "ms",
+                elapsedMillis >= 1000);
+    }
+
+    public void testLongRetryAfterEndsRequest() throws Exception {
+        mServer.enqueue(new MockWeatherServer.MockResponse()
+                .setResponseCode(429, "Too Many Requests")
+                .addHeader("Retry-After", "600")
+                .setBody("{}"));
+
+        RetryingWeatherTransport transport = new RetryingWeatherTransport(
+                new HttpWeatherTransport(), fastPolicy(), new CircuitBreaker(mContext));
+        long before = System.currentTimeMillis();
+        try {
+            get(transport).release();
+            fail("Error: a Retry-After longer than the policy allows should end the request");
+        } catch (SyncBackoffException e) {
+            assertTrue(e.retryAtMillis >= before + 600 * 1000);
+        }
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    public void testClientErrorIsNotRetried() throws Exception {
+        mServer.enqueue(new MockWeatherServer.MockResponse()
+                .setResponseCode(HttpURLConnection.HTTP_NOT_FOUND, "Not Found")
+                .setBody("{}"));
+
+        RetryingWeatherTransport transport = new RetryingWeatherTransport(
+                new HttpWeatherTransport(), fastPolicy(), new CircuitBreaker(mContext));
+        WeatherTransport.Response response = get(transport);
+        response.release();
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, response.code);
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    public void testOutageRequestRateIsBounded() throws Exception {
+        mServer.setDispatcher(new MockWeatherServer.Dispatcher() {
+            @Override
+            public MockWeatherServer.MockResponse dispatch(MockWeatherServer.RecordedRequest request) {
+                return serverError();
+            }
+        });
+
+        CircuitBreaker breaker = new CircuitBreaker(mContext, 5, 500, 2000);
+        RetryingWeatherTransport transport = new RetryingWeatherTransport(
+                new HttpWeatherTransport(), fastPolicy(), breaker);
+
+        // Syncs keep coming as fast as they can for the length of the outage.
+        long outageMillis = 3000;
+        long start = System.nanoTime();
+        int attempts = 0;
+        int refused = 0;
+        while ((System.nanoTime() - start) / 1000000 < outageMillis) {
+            attempts++;
+            try {
+                get(transport).release();
+            } catch (SyncBackoffException e) {
+                refused++;
+                Thread.sleep(5);
+            }
+        }
+        int requests = mServer.getRequestCount();
+        Log.d(LOG_TAG, attempts + " syncs over a " + outageMillis + "ms outage made " + requests
+                + " requests (" + refused + " refused by the breaker)");
+
+        // 5 failures to open the breaker, then one trial per cooldown (500ms, 1s, 2s).
+        assertTrue("Error: " + requests + " requests during the outage", requests <= 10);
+        assertTrue(refused > 0);
+        assertTrue(breaker.isOpen());
+
+        // The breaker's state survives to the next sync.
+        CircuitBreaker next = new CircuitBreaker(mContext, 5, 500, 2000);
+        assertTrue(next.isOpen());
+        assertEquals(breaker.getOpenUntil(), next.getOpenUntil());
+    }
+
+    public void testBreakerClosesAfterSuccessfulTrial() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            mServer.enqueue(serverError());
+        }
+        mServer.enqueue(ok());
+        mServer.enqueue(ok());
+
+        CircuitBreaker breaker = new CircuitBreaker(mContext, 2, 200, 1000);
+        RetryingWeatherTransport transport = new RetryingWeatherTransport(
+                new HttpWeatherTransport(), new RetryPolicy(1, 10, 10, 0, new Random()), breaker);
+
+        get(transport).release();
+        get(transport).release();
+        assertTrue(breaker.isOpen());
+        try {
+            get(transport).release();
+            fail("Error: an open breaker should refuse requests");
+        } catch (SyncBackoffException expected) {
+        }
+        assertEquals(2, mServer.getRequestCount());
+
+        Thread.sleep(250);
+        WeatherTransport.Response response = get(transport);
+        response.release();
+        assertEquals(HttpURLConnection.HTTP_OK, response.code);
+        assertFalse(breaker.isOpen());
+        assertEquals(0, breaker.getOpenUntil());
+
+        get(transport).release();
+        assertEquals(4, mServer.getRequestCount());
+    }
+
+    public void testBackoffSetsDelayUntil() throws Exception {
+        final long retryAt = System.currentTimeMillis() + 10 * 60 * 1000;
+        MultiLocationSync.Handler<String, Integer> handler =
+                new MultiLocationSync.Handler<String, Integer>() {
+                    @Override
+                    public URL getUrl(String locationSetting) throws IOException {
+                        return mServer.getUrl("/forecast?q=" + locationSetting);
+                    }
+
+                    @Override
+                    public Integer fetch(String locationSetting, URL url) throws IOException {
+                        if (locationSetting.equals("94043")) {
+                            return 14;
+                        }
+                        throw new SyncBackoffException("Circuit open", retryAt);
+                    }
+
+                    @Override
+                    public int store(String locationSetting, Integer days) {
+                        return days;
+                    }
+                };
+
+        List<String> locations = new ArrayList<String>();
+        locations.add("94043");
+        locations.add("10001");
+        locations.add("90210");
+
+        SyncResult syncResult = new SyncResult();
+        List<String> synced = new MultiLocationSync(2, 2, 60 * 1000)
+                .run(locations, handler, syncResult, new SyncCancellation());
+
+        assertEquals(Collections.singletonList("94043"), synced);
+        assertEquals(2, syncResult.stats.numIoExceptions);
+        assertEquals(retryAt / 1000, syncResult.delayUntil);
+    }
+}
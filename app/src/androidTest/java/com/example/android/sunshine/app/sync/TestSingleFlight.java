@@ -0,0 +1,290 @@
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Checks that concurrent and back-to-back fetches for one location share a single download.
+ */
+public class TestSingleFlight extends AndroidTestCase {
+
+    private static final int CALLERS = 8;
+
+    /**
+     * Start several callers for the key at once and collect what each one got.
+     */
+    private static List<Object> runConcurrently(final SingleFlight<String, String> flights,
+                                                final String key,
+                                                final SingleFlight.Call<String> call)
+            throws InterruptedException {
+        final List<Object> outcomes = new ArrayList<Object>();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < CALLERS; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    Object outcome;
+                    try {
+                        start.await();
+                        outcome = flights.execute(key, new SyncCancellation(), call).value;
+                    } catch (Exception e) {
+                        outcome = e;
+                    }
+                    synchronized (outcomes) {
+                        outcomes.add(outcome);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return outcomes;
+    }
+
+    private static SingleFlight.Call<String> slowCall(final AtomicInteger calls,
+                                                      final String value) {
+        return new SingleFlight.Call<String>() {
+            @Override
+            public String call() throws IOException {
+                calls.incrementAndGet();
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                return value;
+            }
+        };
+    }
+
+    public void testConcurrentCallersShareOneFetch() throws Exception {
+        SingleFlight<String, String> flights = new SingleFlight<String, String>(0);
+        AtomicInteger calls = new AtomicInteger();
+
+        List<Object> outcomes = runConcurrently(flights, "94043", slowCall(calls, "forecast"));
+
+        assertEquals(1, calls.get());
+        assertEquals(CALLERS, outcomes.size());
+        for (Object outcome : outcomes) {
+            assertEquals("forecast", outcome);
+        }
+        assertEquals(1, flights.getExecutedCount());
+        assertEquals(CALLERS - 1, flights.getCollapsedCount());
+
+        // With no share window the next caller fetches again.
+        runConcurrently(flights, "94043", slowCall(calls, "forecast"));
+        assertEquals(2, calls.get());
+    }
+
+    public void testDifferentKeysDontWait() throws Exception {
+        final SingleFlight<String, String> flights = new SingleFlight<String, String>(0);
+        final CountDownLatch bothRunning = new CountDownLatch(2);
+        final List<String> values = new ArrayList<String>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final String key : new String[] {"94043", "10001"}) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        String value = flights.execute(key, null, new SingleFlight.Call<String>() {
+                            @Override
+                            public String call() throws IOException {
+                                bothRunning.countDown();
+                                try {
+                                    // Only returns if the other key's fetch ran alongside.
+                                    if (!bothRunning.await(2, TimeUnit.SECONDS)) {
+                                        throw new IOException("Not concurrent");
+                                    }
+                                } catch (InterruptedException e) {
+                                    throw new InterruptedIOException();
+                                }
+                                return key;
+                            }
+                        }).value;
+                        synchronized (values) {
+                            values.add(value);
+                        }
+                    } catch (Exception e) {
+                        // Leave the value out.
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(2, values.size());
+        assertEquals(0, flights.getCollapsedCount());
+    }
+
+    public void testErrorIsSharedButNotKept() throws Exception {
+        SingleFlight<String, String> flights = new SingleFlight<String, String>(60 * 1000);
+        final AtomicInteger calls = new AtomicInteger();
+
+        List<Object> outcomes = runConcurrently(flights, "94043", new SingleFlight.Call<String>() {
+            @Override
+            public String call() throws JSONException {
+                calls.incrementAndGet();
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    // Fail anyway.
+                }
+                throw new JSONException("Bad forecast");
+            }
+        });
+        assertEquals(1, calls.get());
+        for (Object outcome : outcomes) {
+            assertTrue(outcome instanceof JSONException);
+        }
+
+        // A failure isn't handed out to later callers, even inside the share window.
+        SingleFlight.Result<String> result =
+                flights.execute("94043", null, slowCall(calls, "forecast"));
+        assertEquals("forecast", result.value);
+        assertFalse(result.shared);
+        assertEquals(2, calls.get());
+    }
+
+    public void testRecentResultIsShared() throws Exception {
+        SingleFlight<String, String> flights = new SingleFlight<String, String>(300);
+        AtomicInteger calls = new AtomicInteger();
+
+        assertFalse(flights.execute("94043", null, slowCall(calls, "first")).shared);
+        SingleFlight.Result<String> again = flights.execute("94043", null, slowCall(calls, "second"));
+        assertTrue(again.shared);
+        assertEquals("first", again.value);
+        assertEquals(1, calls.get());
+
+        Thread.sleep(350);
+        flights.trim();
+        SingleFlight.Result<String> later = flights.execute("94043", null, slowCall(calls, "third"));
+        assertFalse(later.shared);
+        assertEquals("third", later.value);
+        assertEquals(2, calls.get());
+    }
+
+    public void testCanceledLeaderDoesntFailFollower() throws Exception {
+        final SingleFlight<String, String> flights = new SingleFlight<String, String>(0);
+        final SyncCancellation leaderCancellation = new SyncCancellation();
+        final CountDownLatch leaderStarted = new CountDownLatch(1);
+
+        Thread leader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    flights.execute("94043", leaderCancellation, new SingleFlight.Call<String>() {
+                        @Override
+                        public String call() throws IOException {
+                            leaderStarted.countDown();
+                            leaderCancellation.sleep(5000);
+                            return "leader";
+                        }
+                    });
+                } catch (Exception expected) {
+                }
+            }
+        };
+        leader.start();
+        leaderStarted.await();
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                leaderCancellation.cancel();
+            }
+        }.start();
+
+        SingleFlight.Result<String> result = flights.execute("94043", new SyncCancellation(),
+                new SingleFlight.Call<String>() {
+                    @Override
+                    public String call() {
+                        return "follower";
+                    }
+                });
+        leader.join();
+        assertEquals("follower", result.value);
+        assertFalse(result.shared);
+    }
+
+    public void testCanceledFollowerStopsWaiting() throws Exception {
+        final SingleFlight<String, String> flights = new SingleFlight<String, String>(0);
+        final CountDownLatch leaderStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        Thread leader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    flights.execute("94043", null, new SingleFlight.Call<String>() {
+                        @Override
+                        public String call() throws IOException {
+                            leaderStarted.countDown();
+                            try {
+                                release.await();
+                            } catch (InterruptedException e) {
+                                throw new InterruptedIOException();
+                            }
+                            return "leader";
+                        }
+                    });
+                } catch (Exception e) {
+                    // Not what's being tested.
+                }
+            }
+        };
+        leader.start();
+        leaderStarted.await();
+
+        SyncCancellation cancellation = new SyncCancellation();
+        cancellation.cancel();
+        try {
+            flights.execute("94043", cancellation, slowCall(new AtomicInteger(), "follower"));
+            fail("Error: a canceled caller should stop waiting");
+        } catch (InterruptedIOException expected) {
+        }
+        release.countDown();
+        leader.join();
+    }
+
+    public void testCanonicalLocation() {
+        assertEquals(SunshineSyncAdapter.canonicalLocation("London,UK"),
+                SunshineSyncAdapter.canonicalLocation(" london,uk "));
+        assertFalse(SunshineSyncAdapter.canonicalLocation("94043").equals(
+                SunshineSyncAdapter.canonicalLocation("10001")));
+    }
+
+    public void testImmediateSyncsAreCoalesced() {
+        int collapsed = SunshineSyncAdapter.getCollapsedSyncRequestCount();
+        long now = 1000000;
+
+        assertTrue(SunshineSyncAdapter.shouldRequestSync("test-coalesce-a", now));
+        assertFalse(SunshineSyncAdapter.shouldRequestSync("test-coalesce-a", now + 500));
+        // A different location isn't held back.
+        assertTrue(SunshineSyncAdapter.shouldRequestSync("test-coalesce-b", now + 600));
+        assertTrue(SunshineSyncAdapter.shouldRequestSync("test-coalesce-a", now + 60 * 1000));
+
+        assertEquals(collapsed + 1, SunshineSyncAdapter.getCollapsedSyncRequestCount());
+    }
+}
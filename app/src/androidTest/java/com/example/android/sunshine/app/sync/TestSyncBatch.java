@@ -0,0 +1,226 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+/*
+    Checks that a sync's batch stores its locations and forecasts together, with the weather
+    rows pointing at the right location whether or not it was already stored, and that a group
+    response's current weather is merged into today's row without touching its low and high.
+ */
+public class TestSyncBatch extends AndroidTestCase {
+
+    private static final String TEST_LOCATION = "99705";
+    private static final long TEST_CITY_ID = 5859699;
+    private static final int DAYS = 3;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private static SunshineSyncAdapter.ForecastCollector createForecast(int julianStartDay,
+                                                                        double high) {
+        SunshineSyncAdapter.ForecastCollector forecast =
+                new SunshineSyncAdapter.ForecastCollector(julianStartDay);
+        forecast.onCity(TEST_CITY_ID, "North Pole", 64.7488, -147.353);
+        for (int i = 0; i < DAYS; i++) {
+            ForecastJsonParser.ForecastDay day = new ForecastJsonParser.ForecastDay();
+            day.pressure = 1.3;
+            day.humidity = 12;
+            day.windSpeed = 5.5;
+            day.windDirection = 1.1;
+            day.high = high + i;
+            day.low = 65;
+            day.description = "Asteroids";
+            day.weatherId = 321;
+            forecast.onDay(i, day);
+        }
+        return forecast;
+    }
+
+    private static int today() {
+        Time time = new Time();
+        time.setToNow();
+        return Time.getJulianDay(System.currentTimeMillis(), time.gmtoff);
+    }
+
+    private ContentProviderResult[] apply(SyncBatch batch) throws Exception {
+        return mContext.getContentResolver().applyBatch(
+                WeatherContract.CONTENT_AUTHORITY, batch.getOperations());
+    }
+
+    private long[] queryLocation() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID,
+                        WeatherContract.LocationEntry.COLUMN_CITY_ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{TEST_LOCATION}, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            return new long[]{cursor.getLong(0), cursor.getLong(1)};
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int countWeather(long locationId) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI, null,
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(locationId)}, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testForecastForNewLocation() throws Exception {
+        int julianDay = today();
+        SyncBatch batch = new SyncBatch();
+        SyncBatch.Range range = SunshineSyncAdapter.stageWeatherData(
+                batch, createForecast(julianDay, 75), TEST_LOCATION);
+        batch.addRetention(new Time().setJulianDay(julianDay - 1));
+        assertEquals(DAYS, range.end - range.start);
+
+        ContentProviderResult[] results = apply(batch);
+        assertEquals(DAYS, range.countWritten(results));
+
+        long[] location = queryLocation();
+        assertEquals(TEST_CITY_ID, location[1]);
+        assertEquals(DAYS, countWeather(location[0]));
+
+        // A changed forecast only rewrites the days that changed, for the same location.
+        batch = new SyncBatch();
+        SunshineSyncAdapter.ForecastCollector changed = createForecast(julianDay, 75);
+        changed.cVVector.get(DAYS - 1).put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 99);
+        range = SunshineSyncAdapter.stageWeatherData(batch, changed, TEST_LOCATION);
+        results = apply(batch);
+        assertEquals(1, range.countWritten(results));
+        assertEquals(location[0], ContentUris.parseId(results[0].uri));
+        assertEquals(DAYS, countWeather(location[0]));
+    }
+
+    public void testStoredLocationGetsCityId() throws Exception {
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, TEST_LOCATION);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, "North Pole");
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, -147.353);
+        long locationId = ContentUris.parseId(mContext.getContentResolver().insert(
+                WeatherContract.LocationEntry.CONTENT_URI, locationValues));
+
+        SyncBatch batch = new SyncBatch();
+        SunshineSyncAdapter.stageWeatherData(batch, createForecast(today(), 75), TEST_LOCATION);
+        apply(batch);
+
+        long[] location = queryLocation();
+        assertEquals(locationId, location[0]);
+        assertEquals(TEST_CITY_ID, location[1]);
+        assertEquals(DAYS, countWeather(locationId));
+    }
+
+    public void testRenumberedCityGetsNewId() throws Exception {
+        SyncBatch batch = new SyncBatch();
+        SunshineSyncAdapter.stageWeatherData(batch, createForecast(today(), 75), TEST_LOCATION);
+        apply(batch);
+        long locationId = queryLocation()[0];
+
+        // OWM now knows the same place by another id.
+        SunshineSyncAdapter.ForecastCollector renumbered = createForecast(today(), 75);
+        renumbered.onCity(TEST_CITY_ID + 1, "North Pole", 64.7488, -147.353);
+        batch = new SyncBatch();
+        SunshineSyncAdapter.stageWeatherData(batch, renumbered, TEST_LOCATION);
+        apply(batch);
+
+        long[] location = queryLocation();
+        assertEquals(locationId, location[0]);
+        assertEquals("Error: the location should have the city's new id",
+                TEST_CITY_ID + 1, location[1]);
+    }
+
+    public void testLocationIsStagedOnce() {
+        SyncBatch batch = new SyncBatch();
+        SyncBatch.Range first = SunshineSyncAdapter.stageWeatherData(
+                batch, createForecast(today(), 75), TEST_LOCATION);
+        SyncBatch.Range second = SunshineSyncAdapter.stageWeatherData(
+                batch, createForecast(today(), 80), TEST_LOCATION);
+        assertEquals(1 + 2 * DAYS, batch.getOperations().size());
+        assertEquals(first.end, second.start);
+    }
+
+    public void testGroupWeatherKeepsTheDaysLowAndHigh() throws Exception {
+        int julianDay = today();
+        SyncBatch batch = new SyncBatch();
+        SunshineSyncAdapter.stageWeatherData(batch, createForecast(julianDay, 75), TEST_LOCATION);
+        apply(batch);
+        long locationId = queryLocation()[0];
+
+        // Calm and clear right now, so OWM sends no wind direction.
+        ForecastJsonParser.ForecastDay now = new ForecastJsonParser.ForecastDay();
+        now.pressure = 1020;
+        now.humidity = 50;
+        now.windSpeed = 0;
+        now.windDirection = Double.NaN;
+        now.high = Double.NaN;
+        now.low = Double.NaN;
+        now.description = "Clear";
+        now.weatherId = 800;
+        SunshineSyncAdapter.GroupCollector group =
+                new SunshineSyncAdapter.GroupCollector(julianDay);
+        group.onCityWeather(TEST_CITY_ID, now);
+        ContentValues row = new ContentValues(group.rowsByCityId.get(TEST_CITY_ID));
+        assertFalse(row.containsKey(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP));
+        assertFalse(row.containsKey(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP));
+        assertFalse(row.containsKey(WeatherContract.WeatherEntry.COLUMN_DEGREES));
+        row.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
+
+        batch = new SyncBatch();
+        SyncBatch.Range range = batch.addWeather(new ContentValues[]{row});
+        assertEquals(1, range.countWritten(apply(batch)));
+        assertEquals(DAYS, countWeather(locationId));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                new String[]{WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                        WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+                        WeatherContract.WeatherEntry.COLUMN_DEGREES,
+                        WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+                        WeatherContract.WeatherEntry.COLUMN_WEATHER_ID},
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND "
+                        + WeatherContract.WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(locationId),
+                        row.getAsString(WeatherContract.WeatherEntry.COLUMN_DATE)}, null);
+        try {
+            assertTrue("Error: today's row is gone", cursor.moveToFirst());
+            assertEquals("Error: the day's high was overwritten", 75.0, cursor.getDouble(0));
+            assertEquals("Error: the day's low was overwritten", 65.0, cursor.getDouble(1));
+            assertEquals("Error: the wind direction was overwritten", 1.1, cursor.getDouble(2));
+            assertEquals(50, cursor.getInt(3));
+            assertEquals(800, cursor.getInt(4));
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.SyncResult;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.utils.MockWeatherServer;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    Checks that a server that stops answering is bounded by the transport's timeouts, and that
+    canceling a sync aborts requests in flight and stops parsing part way.
+ */
+public class TestSyncCancellation extends AndroidTestCase {
+
+    private static final long HUNG_SERVER_MILLIS = 10 * 1000;
+
+    private MockWeatherServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new MockWeatherServer();
+        mServer.setDispatcher(new MockWeatherServer.Dispatcher() {
+            @Override
+            public MockWeatherServer.MockResponse dispatch(MockWeatherServer.RecordedRequest request) {
+                MockWeatherServer.MockResponse response = new MockWeatherServer.MockResponse()
+                        .setBody(TestForecastJsonParser.createForecastJson("City", 14, true));
+                if (request.path.contains("hung")) {
+                    response.setDelay(HUNG_SERVER_MILLIS);
+                }
+                return response;
+            }
+        });
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    public void testReadTimeout() throws Exception {
+        HttpWeatherTransport transport = new HttpWeatherTransport(1000, 300);
+        long start = System.nanoTime();
+        try {
+            transport.get(mServer.getUrl("/forecast?q=hung"),
+                    Collections.<String, String>emptyMap(), null).release();
+            fail("Error: a hung server should time out");
+        } catch (SocketTimeoutException expected) {
+        }
+        assertTrue("Error: the read timeout took " + elapsedMillis(start) + "ms",
+                elapsedMillis(start) < 2000);
+    }
+
+    public void testCancelAbortsRequest() throws Exception {
+        HttpWeatherTransport transport = new HttpWeatherTransport();
+        final SyncCancellation cancellation = new SyncCancellation();
+        cancelLater(cancellation, 200);
+
+        long start = System.nanoTime();
+        try {
+            transport.get(mServer.getUrl("/forecast?q=hung"),
+                    Collections.<String, String>emptyMap(), cancellation).release();
+            fail("Error: the request should have been aborted");
+        } catch (InterruptedIOException expected) {
+        }
+        assertTrue("Error: canceling took " + elapsedMillis(start) + "ms",
+                elapsedMillis(start) < 2000);
+
+        // Nothing new starts once the sync is canceled.
+        try {
+            transport.get(mServer.getUrl("/forecast?q=94043"),
+                    Collections.<String, String>emptyMap(), cancellation).release();
+            fail("Error: a canceled sync should not make new requests");
+        } catch (InterruptedIOException expected) {
+        }
+    }
+
+    public void testCancelStopsParsing() throws Exception {
+        final SyncCancellation cancellation = new SyncCancellation();
+        final List<Integer> parsedDays = new ArrayList<Integer>();
+        String json = TestForecastJsonParser.createForecastJson("City", 14, true);
+        try {
+            new ForecastJsonParser(new StringReader(json), cancellation).parse(
+                    new TestForecastJsonParser.CollectingCallback() {
+                        @Override
+                        public void onDay(int index, ForecastJsonParser.ForecastDay day) {
+                            parsedDays.add(index);
+                            if (index == 2) {
+                                cancellation.cancel();
+                            }
+                        }
+                    });
+            fail("Error: parsing should stop once the sync is canceled");
+        } catch (InterruptedIOException expected) {
+        }
+        assertEquals(3, parsedDays.size());
+    }
+
+    public void testCancelStopsMultiLocationSync() throws Exception {
+        final HttpWeatherTransport transport = new HttpWeatherTransport();
+        final SyncCancellation cancellation = new SyncCancellation();
+        final List<String> stored = new ArrayList<String>();
+
+        MultiLocationSync.Handler<String, Integer> handler =
+                new MultiLocationSync.Handler<String, Integer>() {
+                    @Override
+                    public URL getUrl(String locationSetting) throws IOException {
+                        return mServer.getUrl("/forecast?q=" + locationSetting);
+                    }
+
+                    @Override
+                    public Integer fetch(String locationSetting, URL url)
+                            throws IOException, JSONException {
+                        WeatherTransport.Response response = transport.get(url,
+                                Collections.<String, String>emptyMap(), cancellation);
+                        try {
+                            return new ForecastJsonParser(response.openReader(), cancellation)
+                                    .parse(new TestForecastJsonParser.CollectingCallback());
+                        } finally {
+                            response.release();
+                        }
+                    }
+
+                    @Override
+                    public int store(String locationSetting, Integer days) {
+                        stored.add(locationSetting);
+                        return days;
+                    }
+                };
+
+        List<String> locations = new ArrayList<String>();
+        locations.add("94043");
+        for (int i = 0; i < 4; i++) {
+            locations.add("hung" + i);
+        }
+
+        cancelLater(cancellation, 500);
+        SyncResult syncResult = new SyncResult();
+        long start = System.nanoTime();
+        List<String> synced = new MultiLocationSync(4, 4, 60 * 1000)
+                .run(locations, handler, syncResult, cancellation);
+
+        assertTrue("Error: canceling the run took " + elapsedMillis(start) + "ms",
+                elapsedMillis(start) < 3000);
+        assertEquals(Collections.singletonList("94043"), synced);
+        assertEquals(synced, stored);
+        assertEquals("Error: canceled locations should not be counted as failures",
+                0, syncResult.stats.numIoExceptions);
+    }
+
+    private static void cancelLater(final SyncCancellation cancellation, final long delayMillis) {
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                cancellation.cancel();
+            }
+        }.start();
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+/*
+    Checks the notification art cache, and benchmarks the notification stage's data and icon
+    work the old way (query today's row, decode the full-size art) against the new one (use
+    the parsed row, take the icon from the cache).
+ */
+public class TestWeatherArtCache extends AndroidTestCase {
+    public static final String LOG_TAG = TestWeatherArtCache.class.getSimpleName();
+
+    private static final String TEST_LOCATION = "99705";
+    private static final int BENCHMARK_ITERATIONS = 20;
+
+    // One id per piece of art
+    private static final int[] WEATHER_IDS = {200, 300, 500, 511, 520, 600, 701, 761, 781, 800,
+            801, 802};
+
+    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
+    };
+
+    public void testInSampleSize() {
+        assertEquals(1, WeatherArtCache.calculateInSampleSize(64, 64, 64, 64));
+        assertEquals(1, WeatherArtCache.calculateInSampleSize(127, 127, 64, 64));
+        assertEquals(2, WeatherArtCache.calculateInSampleSize(128, 128, 64, 64));
+        assertEquals(4, WeatherArtCache.calculateInSampleSize(512, 300, 64, 64));
+        // Never below the requested size in either dimension.
+        assertEquals(1, WeatherArtCache.calculateInSampleSize(1000, 100, 64, 64));
+    }
+
+    public void testCacheIsBoundedAndScaled() {
+        int size = 96;
+        int iconBytes = size * size * 4;
+        WeatherArtCache cache = new WeatherArtCache(mContext.getResources(), size, size,
+                3 * iconBytes);
+
+        for (int weatherId : WEATHER_IDS) {
+            Bitmap icon = cache.get(Utility.getArtResourceForWeatherCondition(weatherId));
+            assertEquals(size, icon.getWidth());
+            assertEquals(size, icon.getHeight());
+            assertTrue("Error: the cache grew past its bound",
+                    cache.getSizeBytes() <= cache.getMaxSizeBytes());
+        }
+
+        // The most recent icon is still cached.
+        int decodes = cache.getDecodeCount();
+        cache.get(Utility.getArtResourceForWeatherCondition(WEATHER_IDS[WEATHER_IDS.length - 1]));
+        assertEquals(decodes, cache.getDecodeCount());
+    }
+
+    public void testNotifyStageBenchmark() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+
+        ContentValues location = new ContentValues();
+        location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, TEST_LOCATION);
+        location.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, "North Pole");
+        location.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        location.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, -147.353);
+        long locationId = ContentUris.parseId(mContext.getContentResolver().insert(
+                WeatherContract.LocationEntry.CONTENT_URI, location));
+
+        long now = System.currentTimeMillis();
+        ContentValues today = new ContentValues();
+        today.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
+        today.put(WeatherContract.WeatherEntry.COLUMN_DATE, now);
+        today.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, 1.1);
+        today.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, 1.2);
+        today.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, 1.3);
+        today.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 75);
+        today.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, 65);
+        today.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, "Asteroids");
+        today.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, 5.5);
+        today.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, 321);
+        mContext.getContentResolver().insert(WeatherContract.WeatherEntry.CONTENT_URI,
+                new ContentValues(today));
+
+        WeatherArtCache cache = WeatherArtCache.forNotifications(mContext);
+        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(TEST_LOCATION, now);
+
+        // Warm up both paths.
+        notifyTheOldWay(weatherUri);
+        notifyTheNewWay(today, cache);
+
+        long[] before = measure(weatherUri, today, cache, false);
+        long[] after = measure(weatherUri, today, cache, true);
+        Log.d(LOG_TAG, "Notify stage: query + full decode " + before[0] / 1000 + "us/" + before[1]
+                + "B, parsed row + cached icon " + after[0] / 1000 + "us/" + after[1]
+                + "B per notification");
+
+        assertTrue("Error: the cached path should allocate less", after[1] < before[1]);
+        assertEquals(1, cache.getDecodeCount());
+
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
+    @SuppressWarnings("deprecation")
+    private long[] measure(Uri weatherUri, ContentValues today, WeatherArtCache cache,
+                           boolean cached) {
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            Bitmap icon = cached ? notifyTheNewWay(today, cache) : notifyTheOldWay(weatherUri);
+            assertNotNull(icon);
+        }
+        long elapsed = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        return new long[] {
+                elapsed / BENCHMARK_ITERATIONS, Debug.getThreadAllocSize() / BENCHMARK_ITERATIONS };
+    }
+
+    // What notifyWeather used to do for its data and icon.
+    private Bitmap notifyTheOldWay(Uri weatherUri) {
+        Cursor cursor = mContext.getContentResolver().query(
+                weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            int weatherId = cursor.getInt(0);
+            Utility.formatTemperature(mContext, cursor.getDouble(1));
+            Utility.formatTemperature(mContext, cursor.getDouble(2));
+            return BitmapFactory.decodeResource(mContext.getResources(),
+                    Utility.getArtResourceForWeatherCondition(weatherId));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Bitmap notifyTheNewWay(ContentValues today, WeatherArtCache cache) {
+        SunshineSyncAdapter.NotificationSettings settings =
+                SunshineSyncAdapter.NotificationSettings.read(mContext);
+        int weatherId = today.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+        Utility.formatTemperature(mContext,
+                today.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP), settings.metric);
+        Utility.formatTemperature(mContext,
+                today.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP), settings.metric);
+        return cache.get(Utility.getArtResourceForWeatherCondition(weatherId));
+    }
+}
@@ -0,0 +1,241 @@
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.utils.MockWeatherServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/*
+    Checks that HttpWeatherTransport keeps connections alive, decodes gzip as the body is read,
+    holds only a pooled chunk of a long body and drops the connection of one released part way,
+    and compares the time spent setting up requests with the time spent reading them,
+    over the mock server and in-process.
+ */
+public class TestWeatherTransport extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestWeatherTransport.class.getSimpleName();
+
+    private static final int REQUESTS = 20;
+    // Longer than a released response reads out to save its connection.
+    private static final int LONG_BODY_LENGTH = 256 * 1024;
+
+    private MockWeatherServer mServer;
+    private byte[] mForecast;
+    private byte[] mGzippedForecast;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mForecast = TestForecastJsonParser.createForecastJson("Mountain View", 14, true)
+                .getBytes("UTF-8");
+        mGzippedForecast = gzip(mForecast);
+
+        mServer = new MockWeatherServer();
+        mServer.setDispatcher(new MockWeatherServer.Dispatcher() {
+            @Override
+            public MockWeatherServer.MockResponse dispatch(MockWeatherServer.RecordedRequest request) {
+                if (request.path.contains("long")) {
+                    return new MockWeatherServer.MockResponse()
+                            .setBody(new byte[LONG_BODY_LENGTH]);
+                }
+                if (request.path.contains("missing")) {
+                    return new MockWeatherServer.MockResponse()
+                            .setResponseCode(404, "Not Found")
+                            .setBody("{\"cod\":\"404\",\"message\":\"city not found\"}");
+                }
+                String acceptEncoding = request.getHeader("Accept-Encoding");
+                if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                    return new MockWeatherServer.MockResponse()
+                            .addHeader("Content-Encoding", "gzip")
+                            .setBody(mGzippedForecast);
+                }
+                return new MockWeatherServer.MockResponse().setBody(mForecast);
+            }
+        });
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Map<String, String> noHeaders() {
+        return Collections.emptyMap();
+    }
+
+    public void testConnectionReuse() throws Exception {
+        HttpWeatherTransport transport = new HttpWeatherTransport();
+        for (int i = 0; i < REQUESTS; i++) {
+            WeatherTransport.Response response =
+                    transport.get(mServer.getUrl("/forecast?q=" + i), noHeaders(), null);
+            assertEquals(HttpURLConnection.HTTP_OK, response.code);
+            response.release();
+        }
+        assertEquals("Error: every request should have gone over the same connection",
+                1, mServer.getConnectionCount());
+
+        // This is what the sync adapter used to do, for comparison.
+        int connectionsBefore = mServer.getConnectionCount();
+        for (int i = 0; i < REQUESTS; i++) {
+            HttpURLConnection urlConnection =
+                    (HttpURLConnection) mServer.getUrl("/forecast?q=" + i).openConnection();
+            InputStream in = urlConnection.getInputStream();
+            while (in.read() != -1) {
+                // drain
+            }
+            urlConnection.disconnect();
+        }
+        Log.d(LOG_TAG, REQUESTS + " requests with disconnect() used "
+                + (mServer.getConnectionCount() - connectionsBefore) + " connections");
+    }
+
+    public void testErrorResponseKeepsConnection() throws Exception {
+        HttpWeatherTransport transport = new HttpWeatherTransport();
+        WeatherTransport.Response response =
+                transport.get(mServer.getUrl("/forecast?q=missing"), noHeaders(), null);
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, response.code);
+        // Releasing reads out the unread body, so the connection can be used again.
+        response.release();
+        assertTrue(response.getContentLength() > 0);
+
+        response = transport.get(mServer.getUrl("/forecast?q=94043"), noHeaders(), null);
+        assertEquals(HttpURLConnection.HTTP_OK, response.code);
+        response.release();
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    public void testGzip() throws Exception {
+        HttpWeatherTransport transport = new HttpWeatherTransport();
+        WeatherTransport.Response response =
+                transport.get(mServer.getUrl("/forecast?q=94043"), noHeaders(), null);
+        try {
+            assertEquals("gzip", mServer.takeRequest().getHeader("Accept-Encoding"));
+            assertEquals("Error: the body should be read as it's parsed, not up front",
+                    0, response.getContentLength());
+
+            TestForecastJsonParser.CollectingCallback callback =
+                    new TestForecastJsonParser.CollectingCallback();
+            new ForecastJsonParser(response.openReader()).parse(callback);
+            assertEquals("Mountain View", callback.cityName);
+            assertEquals(14, callback.days.size());
+        } finally {
+            response.release();
+        }
+        assertEquals(mForecast.length, response.getContentLength());
+        assertEquals(mGzippedForecast.length, response.wireBytes);
+        Log.d(LOG_TAG, "Forecast is " + mForecast.length + " bytes, " + mGzippedForecast.length
+                + " gzipped");
+    }
+
+    public void testBufferReuse() throws Exception {
+        BufferPool pool = new BufferPool(2, 256 * 1024);
+        HttpWeatherTransport transport = new HttpWeatherTransport(pool,
+                HttpWeatherTransport.DEFAULT_CONNECT_TIMEOUT_MILLIS,
+                HttpWeatherTransport.DEFAULT_READ_TIMEOUT_MILLIS);
+        for (int i = 0; i < REQUESTS; i++) {
+            transport.get(mServer.getUrl("/forecast?q=" + i), noHeaders(), null).release();
+        }
+        assertEquals("Error: sequential requests should share one buffer",
+                1, pool.getAllocationCount());
+
+        // A long body goes through the same chunk rather than a buffer its size.
+        WeatherTransport.Response response =
+                transport.get(mServer.getUrl("/forecast?q=long"), noHeaders(), null);
+        Reader body = response.openReader();
+        char[] chars = new char[1024];
+        long read = 0;
+        int count;
+        while ((count = body.read(chars)) != -1) {
+            read += count;
+        }
+        response.release();
+        assertEquals(LONG_BODY_LENGTH, read);
+        assertEquals(1, pool.getAllocationCount());
+        assertTrue("Error: the pooled buffer grew to hold the body",
+                pool.acquire(0).length < LONG_BODY_LENGTH);
+    }
+
+    public void testReleaseBeforeTheEnd() throws Exception {
+        HttpWeatherTransport transport = new HttpWeatherTransport();
+        transport.get(mServer.getUrl("/forecast?q=94043"), noHeaders(), null).release();
+
+        // Reading out a long body isn't worth it, so its connection is dropped instead.
+        WeatherTransport.Response response =
+                transport.get(mServer.getUrl("/forecast?q=long"), noHeaders(), null);
+        assertEquals('\0', response.openReader().read());
+        response.release();
+        assertTrue(response.getContentLength() < LONG_BODY_LENGTH);
+
+        transport.get(mServer.getUrl("/forecast?q=94043"), noHeaders(), null).release();
+        assertEquals(2, mServer.getConnectionCount());
+    }
+
+    public void testConnectVersusTransfer() throws Exception {
+        HttpWeatherTransport http = new HttpWeatherTransport();
+        long[] httpTimes = timeRequests(http, mServer.getUrl("/forecast?q=94043"));
+
+        LocalWeatherTransport local = new LocalWeatherTransport(
+                new LocalWeatherTransport.Responder() {
+                    @Override
+                    public WeatherTransport.Response respond(URL url, Map<String, String> headers) {
+                        return new WeatherTransport.Response(HttpURLConnection.HTTP_OK, "OK",
+                                new HashMap<String, String>(), mForecast);
+                    }
+                });
+        long[] localTimes = timeRequests(local, new URL("http://localhost/forecast?q=94043"));
+        assertEquals(REQUESTS, local.getRequestCount());
+
+        Log.d(LOG_TAG, "HTTP: first request connect " + httpTimes[0] / 1000 + "us, after that "
+                + httpTimes[1] / 1000 + "us connect and " + httpTimes[2] / 1000
+                + "us transfer on average");
+        Log.d(LOG_TAG, "Local: " + localTimes[2] / 1000 + "us per request");
+        assertEquals(0, localTimes[1]);
+    }
+
+    /*
+        Returns the first request's connect time, then the average connect and transfer times
+        of the rest.
+     */
+    private static long[] timeRequests(WeatherTransport transport, URL url) throws Exception {
+        long first = 0;
+        long connect = 0;
+        long transfer = 0;
+        for (int i = 0; i < REQUESTS; i++) {
+            WeatherTransport.Response response = transport.get(url, noHeaders(), null);
+            try {
+                new ForecastJsonParser(response.openReader())
+                        .parse(new TestForecastJsonParser.CollectingCallback());
+            } finally {
+                response.release();
+            }
+            if (i == 0) {
+                first = response.connectNanos;
+            } else {
+                connect += response.connectNanos;
+                transfer += response.transferNanos;
+            }
+        }
+        return new long[] { first, connect / (REQUESTS - 1), transfer / (REQUESTS - 1) };
+    }
+}
@@ -0,0 +1,283 @@
+package com.example.android.sunshine.app.utils;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    A small HTTP/1.1 server on localhost that stands in for OpenWeatherMap in the sync tests.
+    Responses are either queued up front with enqueue(), or produced by a Dispatcher for tests
+    that need to answer based on the request.  Connections are kept alive between requests
+    unless a response asks for them to be closed.
+ */
+public class MockWeatherServer {
+
+    public static final String LOG_TAG = MockWeatherServer.class.getSimpleName();
+
+    public interface Dispatcher {
+        MockResponse dispatch(RecordedRequest request) throws InterruptedException;
+    }
+
+    public static class MockResponse {
+        int code = 200;
+        String reason = "OK";
+        final Map<String, String> headers = new HashMap<String, String>();
+        byte[] body = new byte[0];
+        boolean closeConnection;
+        long delayMillis;
+
+        public MockResponse setResponseCode(int code, String reason) {
+            this.code = code;
+            this.reason = reason;
+            return this;
+        }
+
+        public MockResponse addHeader(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        public MockResponse setBody(String body) {
+            try {
+                return setBody(body.getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        public MockResponse setBody(byte[] body) {
+            this.body = body;
+            return this;
+        }
+
+        public MockResponse setCloseConnection(boolean close) {
+            this.closeConnection = close;
+            return this;
+        }
+
+        // Wait this long before sending anything, to simulate a slow server.
+        public MockResponse setDelay(long millis) {
+            this.delayMillis = millis;
+            return this;
+        }
+    }
+
+    public static class RecordedRequest {
+        public final String method;
+        public final String path;
+        // Header names are stored lower case.
+        final Map<String, String> headers;
+        public final int connectionSequence;
+
+        RecordedRequest(String method, String path, Map<String, String> headers,
+                        int connectionSequence) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.connectionSequence = connectionSequence;
+        }
+
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase());
+        }
+    }
+
+    private final BlockingQueue<MockResponse> mResponses = new LinkedBlockingQueue<MockResponse>();
+    private final BlockingQueue<RecordedRequest> mRequests = new LinkedBlockingQueue<RecordedRequest>();
+    private final List<Socket> mOpenSockets = new ArrayList<Socket>();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private final AtomicLong mBytesSent = new AtomicLong();
+
+    private volatile Dispatcher mDispatcher;
+    private ServerSocket mServerSocket;
+    private Thread mAcceptThread;
+
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mAcceptThread = new Thread("MockWeatherServer") {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        };
+        mAcceptThread.start();
+    }
+
+    public void shutdown() throws IOException {
+        mServerSocket.close();
+        synchronized (mOpenSockets) {
+            for (Socket socket : mOpenSockets) {
+                socket.close();
+            }
+        }
+        try {
+            mAcceptThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public URL getUrl(String path) throws IOException {
+        return new URL("http", "127.0.0.1", mServerSocket.getLocalPort(), path);
+    }
+
+    public void enqueue(MockResponse response) {
+        mResponses.add(response);
+    }
+
+    public void setDispatcher(Dispatcher dispatcher) {
+        mDispatcher = dispatcher;
+    }
+
+    public RecordedRequest takeRequest() throws InterruptedException {
+        return mRequests.poll(5, TimeUnit.SECONDS);
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    private void acceptConnections() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                // The server socket was closed.
+                return;
+            }
+            synchronized (mOpenSockets) {
+                mOpenSockets.add(socket);
+            }
+            final int sequence = mConnectionCount.incrementAndGet();
+            new Thread("MockWeatherServer connection " + sequence) {
+                @Override
+                public void run() {
+                    try {
+                        serveConnection(socket, sequence);
+                    } catch (SocketException e) {
+                        // The client or the test went away.
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "Error serving connection " + sequence, e);
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException ignored) {
+                        }
+                        synchronized (mOpenSockets) {
+                            mOpenSockets.remove(socket);
+                        }
+                    }
+                }
+            }.start();
+        }
+    }
+
+    private void serveConnection(Socket socket, int sequence) throws Exception {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        while (true) {
+            String requestLine = readLine(in);
+            if (requestLine == null || requestLine.length() == 0) {
+                return;
+            }
+            Map<String, String> headers = new HashMap<String, String>();
+            String line;
+            while ((line = readLine(in)) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(),
+                            line.substring(colon + 1).trim());
+                }
+            }
+            String[] parts = requestLine.split(" ");
+            RecordedRequest request = new RecordedRequest(parts[0], parts[1], headers, sequence);
+            mRequestCount.incrementAndGet();
+            mRequests.add(request);
+
+            MockResponse response;
+            Dispatcher dispatcher = mDispatcher;
+            if (dispatcher != null) {
+                response = dispatcher.dispatch(request);
+            } else {
+                response = mResponses.poll(5, TimeUnit.SECONDS);
+            }
+            if (response == null) {
+                response = new MockResponse().setResponseCode(404, "Not Found");
+            }
+            if (response.delayMillis > 0) {
+                Thread.sleep(response.delayMillis);
+            }
+            writeResponse(out, response);
+            if (response.closeConnection || "close".equalsIgnoreCase(headers.get("connection"))) {
+                return;
+            }
+        }
+    }
+
+    private void writeResponse(OutputStream out, MockResponse response) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.code).append(' ').append(response.reason).append("\r\n");
+        for (Map.Entry<String, String> header : response.headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("Content-Length: ").append(response.body.length).append("\r\n");
+        if (response.closeConnection) {
+            head.append("Connection: close\r\n");
+        }
+        head.append("\r\n");
+        byte[] headBytes = head.toString().getBytes("UTF-8");
+        // One write, so Nagle's algorithm doesn't hold the body back waiting on an ACK.
+        byte[] message = new byte[headBytes.length + response.body.length];
+        System.arraycopy(headBytes, 0, message, 0, headBytes.length);
+        System.arraycopy(response.body, 0, message, headBytes.length, response.body.length);
+        out.write(message);
+        out.flush();
+        mBytesSent.addAndGet(headBytes.length + response.body.length);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        if (c == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("UTF-8");
+    }
+}
@@ -2,7 +2,6 @@ package com.example.android.sunshine.app;
 
 import android.content.Context;
 import android.database.Cursor;
-import android.support.v4.widget.CursorAdapter;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -11,9 +10,9 @@ import android.widget.TextView;
 
 /**
  * {@link ForecastAdapter} exposes a list of weather forecasts
- * from a {@link Cursor} to a {@link android.widget.ListView}.
+ * from pages of {@link Cursor}s to a {@link android.widget.ListView}.
  */
-public class ForecastAdapter extends CursorAdapter {
+public class ForecastAdapter extends PagedCursorAdapter {
 
     private static final int VIEW_TYPE_COUNT = 2;
     private static final int VIEW_TYPE_TODAY = 0;
@@ -41,14 +40,14 @@ public class ForecastAdapter extends CursorAdapter {
         }
     }
 
-    public ForecastAdapter(Context context, Cursor c, int flags) {
-        super(context, c, flags);
+    public ForecastAdapter(Context context, int pageSize, int maxOpenPages) {
+        super(context, pageSize, ForecastFragment.COL_WEATHER_DATE, maxOpenPages);
     }
 
     @Override
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
+    public View newView(Context context, int position, ViewGroup parent) {
         // Choose the layout type
-        int viewType = getItemViewType(cursor.getPosition());
+        int viewType = getItemViewType(position);
         int layoutId = -1;
         switch (viewType) {
             case VIEW_TYPE_TODAY: {
@@ -70,11 +69,11 @@ public class ForecastAdapter extends CursorAdapter {
     }
 
     @Override
-    public void bindView(View view, Context context, Cursor cursor) {
+    public void bindView(View view, Context context, Cursor cursor, int position) {
 
         ViewHolder viewHolder = (ViewHolder) view.getTag();
 
-        int viewType = getItemViewType(cursor.getPosition());
+        int viewType = getItemViewType(position);
         switch (viewType) {
             case VIEW_TYPE_TODAY: {
                 // Get weather icon
@@ -115,6 +114,18 @@ public class ForecastAdapter extends CursorAdapter {
         viewHolder.lowTempView.setText(Utility.formatTemperature(context, low));
     }
 
+    @Override
+    public void bindPlaceholder(View view, Context context, int position) {
+        // The day's page is still being read: show an empty row until it is.
+        ViewHolder viewHolder = (ViewHolder) view.getTag();
+        viewHolder.iconView.setImageDrawable(null);
+        viewHolder.iconView.setContentDescription(null);
+        viewHolder.dateView.setText(null);
+        viewHolder.descriptionView.setText(null);
+        viewHolder.highTempView.setText(null);
+        viewHolder.lowTempView.setText(null);
+    }
+
     public void setUseTodayLayout(boolean useTodayLayout) {
         mUseTodayLayout = useTodayLayout;
     }
@@ -15,6 +15,7 @@
  */
 package com.example.android.sunshine.app;
 
+import android.content.ContentResolver;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
@@ -49,10 +50,17 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
 
     private static final String SELECTED_KEY = "selected_position";
 
+    // The list reads the forecast this many days at a time, and keeps at most MAX_OPEN_PAGES
+    // pages open besides the first.  Retention keeps only the days from yesterday on, so today
+    // a forecast fits in the first page; the pages after it are for a longer forecast or for
+    // keeping more days.
+    static final int PAGE_SIZE = 50;
+    private static final int MAX_OPEN_PAGES = 3;
+
     private static final int FORECAST_LOADER = 0;
     // For the forecast view we're showing only a small subset of the stored data.
     // Specify the columns we need.
-    private static final String[] FORECAST_COLUMNS = {
+    static final String[] FORECAST_COLUMNS = {
             // In this case the id needs to be fully qualified with a table name, since
             // the content provider joins the location & weather tables in the background
             // (both have an _id column)
@@ -133,7 +141,7 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
 
         // The ForecastAdapter will take data from a source and
         // use it to populate the ListView it's attached to.
-        mForecastAdapter = new ForecastAdapter(getActivity(), null, 0);
+        mForecastAdapter = new ForecastAdapter(getActivity(), PAGE_SIZE, MAX_OPEN_PAGES);
 
         View rootView = inflater.inflate(R.layout.fragment_main, container, false);
 
@@ -145,8 +153,8 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
 
             @Override
             public void onItemClick(AdapterView<?> adapterView, View view, int position, long l) {
-                // CursorAdapter returns a cursor at the correct position for getItem(), or null
-                // if it cannot seek to that position.
+                // ForecastAdapter returns a cursor at the correct position for getItem(), or null
+                // if that position's page isn't loaded.
                 Cursor cursor = (Cursor) adapterView.getItemAtPosition(position);
                 if (cursor != null) {
                     String locationSetting = Utility.getPreferredLocation(getActivity());
@@ -171,10 +179,38 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         }
 
         mForecastAdapter.setUseTodayLayout(mUseTodayLayout);
+        // A retained loader won't call onCreateLoader again for this adapter.
+        setPageLoader(Utility.getPreferredLocation(getActivity()));
 
         return rootView;
     }
 
+    private void setPageLoader(String locationSetting) {
+        mForecastAdapter.setPageLoader(newPageLoader(
+                getActivity().getApplicationContext().getContentResolver(), locationSetting));
+    }
+
+    /**
+     * @return a loader for the pages of the location's forecast after the first
+     */
+    static PagedCursorAdapter.PageLoader newPageLoader(final ContentResolver resolver,
+                                                       final String locationSetting) {
+        return new PagedCursorAdapter.PageLoader() {
+            @Override
+            public Cursor loadPageAfter(long lastDate, int pageSize) {
+                return resolver.query(WeatherContract.WeatherEntry.buildWeatherLocationPageAfter(
+                        locationSetting, lastDate, pageSize), FORECAST_COLUMNS, null, null, null);
+            }
+        };
+    }
+
+    @Override
+    public void onDestroyView() {
+        // Close the pages the adapter read itself; the loader keeps the first.
+        mForecastAdapter.swapCursor(null);
+        super.onDestroyView();
+    }
+
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         getLoaderManager().initLoader(FORECAST_LOADER, null, this);
@@ -183,6 +219,8 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
 
     // since we read the location when we create the loader, all we need to do is restart things
     void onLocationChanged( ) {
+        // A sync still running for the old location would only hold up the new one.
+        SunshineSyncAdapter.cancelSync(getActivity());
         updateWeather();
         getLoaderManager().restartLoader(FORECAST_LOADER, null, this);
     }
@@ -238,9 +276,12 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         // Sort order:  Ascending, by date.
         String sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
 
+        // The loader reads and watches the first page; the adapter reads the pages after it
+        // as the list scrolls down to them.
         String locationSetting = Utility.getPreferredLocation(getActivity());
-        Uri weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
-                locationSetting, System.currentTimeMillis());
+        Uri weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationFirstPage(
+                locationSetting, System.currentTimeMillis(), PAGE_SIZE);
+        setPageLoader(locationSetting);
 
         return new CursorLoader(getActivity(),
                 weatherForLocationUri,
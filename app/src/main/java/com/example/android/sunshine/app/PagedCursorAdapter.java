@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.provider.BaseColumns;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+
+/**
+ * {@link PagedCursorAdapter} shows a list that is read a page of rows at a time, so however long
+ * the list is, only a few pages of it are held in memory.
+ *
+ * Rows are in order of a long key column, such as the date.  The first page comes from a
+ * loader, through {@link #swapCursor(Cursor)}; each page after it is read in the background,
+ * by the {@link PageLoader}, as the rows after the last key of the page before.  Pages are
+ * loaded as the list gets near their rows, and all but the first page and the
+ * maxOpenPages pages most recently loaded are closed again.  A row whose page is closed, or
+ * not loaded yet, is bound as a placeholder until its page comes back.
+ *
+ * All the methods must be called on the main thread.
+ */
+public abstract class PagedCursorAdapter extends BaseAdapter {
+
+    /**
+     * Reads a page of rows, in key order.  Called on a background thread.
+     */
+    public interface PageLoader {
+        /**
+         * @return up to pageSize rows whose keys come after lastKey
+         */
+        Cursor loadPageAfter(long lastKey, int pageSize);
+    }
+
+    private final Context mContext;
+    private final int mPageSize;
+    private final int mKeyColumn;
+    private final int mMaxOpenPages;
+    private PageLoader mPageLoader;
+
+    // The open pages, null where a page is closed; mPages[0] belongs to the loader.
+    private Cursor[] mPages = new Cursor[4];
+    // The key each page's rows come after: the last key of the page before it.
+    private long[] mAfterKeys = new long[4];
+    // The generation each open page was read in.  Pages from an older one are still shown,
+    // but read again when they are next shown.
+    private int[] mPageGenerations = new int[4];
+    private int mGeneration;
+    private int mPageCount;
+    private int mLastPageRows;
+    private boolean mEndReached = true;
+
+    private int mLoadingPage = -1;
+    private int mWantedPage = -1;
+
+    public PagedCursorAdapter(Context context, int pageSize, int keyColumn, int maxOpenPages) {
+        if (pageSize <= 0 || maxOpenPages <= 0) {
+            throw new IllegalArgumentException("Bad page size or number of open pages");
+        }
+        mContext = context;
+        mPageSize = pageSize;
+        mKeyColumn = keyColumn;
+        mMaxOpenPages = maxOpenPages;
+    }
+
+    /**
+     * Set where the pages after the first come from.  Any page being read is dropped, and the
+     * open pages are read again from the new loader when they are next shown.
+     */
+    public void setPageLoader(PageLoader pageLoader) {
+        mPageLoader = pageLoader;
+        mGeneration++;
+    }
+
+    public int getPageSize() {
+        return mPageSize;
+    }
+
+    /**
+     * @return the first page, as the loader gave it
+     */
+    public Cursor getCursor() {
+        return mPageCount > 0 ? mPages[0] : null;
+    }
+
+    /**
+     * Show a new first page.  Unlike {@link android.support.v4.widget.CursorAdapter}, the old
+     * one isn't returned or closed: it belongs to the loader.  If the new page ends where the
+     * old one did, the list keeps the pages after it, and they are read again as they are
+     * shown; otherwise the list is cut back to the new first page.
+     */
+    public void swapCursor(Cursor firstPage) {
+        mGeneration++;
+        if (firstPage == null) {
+            closePagesFrom(1);
+            mPageCount = 0;
+            mLastPageRows = 0;
+            mEndReached = true;
+            notifyDataSetInvalidated();
+            return;
+        }
+
+        int rows = firstPage.getCount();
+        long lastKey = rows > 0 && firstPage.moveToPosition(rows - 1)
+                ? firstPage.getLong(mKeyColumn) : 0;
+        boolean sameStart = mPageCount > 1 && rows == mPageSize && lastKey == mAfterKeys[1];
+        mPages[0] = firstPage;
+        mPageGenerations[0] = mGeneration;
+        if (!sameStart) {
+            closePagesFrom(1);
+            mPageCount = 1;
+            mLastPageRows = rows;
+            mEndReached = rows < mPageSize;
+            ensureCapacity(2);
+            mAfterKeys[1] = lastKey;
+        }
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return mPageCount == 0 ? 0 : (mPageCount - 1) * mPageSize + mLastPageRows;
+    }
+
+    /**
+     * @return the cursor, moved to the position's row, or null if its page isn't open
+     */
+    @Override
+    public Object getItem(int position) {
+        return moveToRow(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        Cursor cursor = moveToRow(position);
+        if (cursor == null) {
+            return position;
+        }
+        int idColumn = cursor.getColumnIndex(BaseColumns._ID);
+        return idColumn == -1 ? position : cursor.getLong(idColumn);
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        View view = convertView != null ? convertView : newView(mContext, position, parent);
+        Cursor cursor = moveToRow(position);
+        if (cursor != null) {
+            bindView(view, mContext, cursor, position);
+        } else {
+            bindPlaceholder(view, mContext, position);
+        }
+
+        int page = position / mPageSize;
+        if (page > 0 && (cursor == null || mPageGenerations[page] != mGeneration)) {
+            requestPage(page);
+        } else if (!mEndReached && position >= getCount() - mPageSize / 2) {
+            // Near the end of what's loaded: read on before the list gets there.
+            requestPage(mPageCount);
+        }
+        return view;
+    }
+
+    /**
+     * Make a view for the row at the position.  It is bound before it's shown.
+     */
+    public abstract View newView(Context context, int position, ViewGroup parent);
+
+    /**
+     * Show the cursor's row, which is the one at the position.
+     */
+    public abstract void bindView(View view, Context context, Cursor cursor, int position);
+
+    /**
+     * Show that the row at the position is still being read.
+     */
+    public abstract void bindPlaceholder(View view, Context context, int position);
+
+    /**
+     * @return how many pages after the first are open
+     */
+    int getOpenPageCount() {
+        int open = 0;
+        for (int page = 1; page < mPageCount; page++) {
+            if (mPages[page] != null) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    private Cursor moveToRow(int position) {
+        if (position < 0 || position >= getCount()) {
+            return null;
+        }
+        Cursor cursor = mPages[position / mPageSize];
+        if (cursor == null || !cursor.moveToPosition(position % mPageSize)) {
+            return null;
+        }
+        return cursor;
+    }
+
+    /**
+     * Read the page, or the next page after the end, once the page being read now is back.
+     */
+    private void requestPage(int page) {
+        if (mPageLoader == null) {
+            return;
+        }
+        if (mLoadingPage != -1) {
+            mWantedPage = page;
+            return;
+        }
+        mLoadingPage = page;
+        mWantedPage = -1;
+        new PageTask(mPageLoader, page, mAfterKeys[page], mGeneration).execute();
+    }
+
+    private void onPageLoaded(int page, int generation, Cursor cursor) {
+        mLoadingPage = -1;
+        if (generation != mGeneration || page > mPageCount) {
+            // The list changed while it was being read.
+            if (cursor != null) {
+                cursor.close();
+            }
+            page = -1;
+        } else if (cursor != null) {
+            installPage(page, cursor);
+        }
+
+        int wanted = mWantedPage;
+        mWantedPage = -1;
+        if (wanted != -1 && wanted != page && wanted <= mPageCount) {
+            requestPage(wanted);
+        }
+    }
+
+    private void installPage(int page, Cursor cursor) {
+        int rows = cursor.getCount();
+        if (page == mPageCount) {
+            // The page after the end.
+            if (rows == 0) {
+                cursor.close();
+                mEndReached = true;
+                return;
+            }
+            mPageCount++;
+        } else {
+            Cursor old = mPages[page];
+            if (old != null) {
+                old.close();
+            }
+        }
+        ensureCapacity(page + 2);
+        mPages[page] = cursor;
+        mPageGenerations[page] = mGeneration;
+
+        long lastKey = rows > 0 && cursor.moveToPosition(rows - 1)
+                ? cursor.getLong(mKeyColumn) : 0;
+        boolean last = page == mPageCount - 1;
+        if (last) {
+            mLastPageRows = rows;
+            mEndReached = rows < mPageSize;
+            mAfterKeys[page + 1] = lastKey;
+        } else if (rows != mPageSize || lastKey != mAfterKeys[page + 1]) {
+            // Rows came or went inside this page since the pages after it were read, so those
+            // no longer follow on from it.
+            closePagesFrom(page + 1);
+            mPageCount = page + 1;
+            mLastPageRows = rows;
+            mEndReached = rows < mPageSize;
+            mAfterKeys[page + 1] = lastKey;
+        }
+        closeFarthestPages(page);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Keep at most mMaxOpenPages pages open after the first, closing those farthest from the
+     * one just read.
+     */
+    private void closeFarthestPages(int page) {
+        int open = getOpenPageCount();
+        while (open > mMaxOpenPages) {
+            int farthest = -1;
+            for (int other = 1; other < mPageCount; other++) {
+                if (mPages[other] != null && other != page && (farthest == -1
+                        || Math.abs(other - page) > Math.abs(farthest - page))) {
+                    farthest = other;
+                }
+            }
+            mPages[farthest].close();
+            mPages[farthest] = null;
+            open--;
+        }
+    }
+
+    private void closePagesFrom(int firstPage) {
+        for (int page = firstPage; page < mPages.length; page++) {
+            if (mPages[page] != null) {
+                mPages[page].close();
+                mPages[page] = null;
+            }
+        }
+    }
+
+    private void ensureCapacity(int pages) {
+        if (pages > mPages.length) {
+            int length = Math.max(pages, mPages.length * 2);
+            Cursor[] newPages = new Cursor[length];
+            System.arraycopy(mPages, 0, newPages, 0, mPages.length);
+            mPages = newPages;
+            long[] newAfterKeys = new long[length];
+            System.arraycopy(mAfterKeys, 0, newAfterKeys, 0, mAfterKeys.length);
+            mAfterKeys = newAfterKeys;
+            int[] newGenerations = new int[length];
+            System.arraycopy(mPageGenerations, 0, newGenerations, 0, mPageGenerations.length);
+            mPageGenerations = newGenerations;
+        }
+    }
+
+    private class PageTask extends AsyncTask<Void, Void, Cursor> {
+        private final PageLoader mLoader;
+        private final int mPage;
+        private final long mAfterKey;
+        private final int mTaskGeneration;
+
+        PageTask(PageLoader loader, int page, long afterKey, int generation) {
+            mLoader = loader;
+            mPage = page;
+            mAfterKey = afterKey;
+            mTaskGeneration = generation;
+        }
+
+        @Override
+        protected Cursor doInBackground(Void... params) {
+            Cursor cursor = mLoader.loadPageAfter(mAfterKey, mPageSize);
+            if (cursor != null) {
+                // Fill the cursor's window here rather than on the main thread.
+                cursor.getCount();
+            }
+            return cursor;
+        }
+
+        @Override
+        protected void onPostExecute(Cursor cursor) {
+            onPageLoaded(mPage, mTaskGeneration, cursor);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.text.format.DateUtils;
+
+import java.util.TimeZone;
+
+/**
+ * Julian day arithmetic in one time zone, giving the same answers as the
+ * android.text.format.Time calls it replaces without allocating a Time for every date.
+ *
+ * A Julian day here is the day number Time.getJulianDay returns: the local calendar day,
+ * counted from noon UTC on November 24, 4714 BC.  Day starts are local midnight, as
+ * Time.setJulianDay gives them, or the first moment of the day where midnight was skipped by
+ * a daylight saving change.
+ *
+ * Instances are immutable and safe to share between threads.
+ */
+public final class DayMath {
+
+    // Time.EPOCH_JULIAN_DAY, the Julian day of January 1, 1970
+    public static final int EPOCH_JULIAN_DAY = 2440588;
+
+    // January 1, 1970 was a Thursday.
+    private static final int EPOCH_DAY_OF_WEEK = 4;
+
+    private static volatile DayMath sDefault;
+
+    private final TimeZone mTimeZone;
+
+    private DayMath(TimeZone timeZone) {
+        // Our own copy, since a TimeZone can be changed through its setters.
+        mTimeZone = (TimeZone) timeZone.clone();
+    }
+
+    public static DayMath forTimeZone(TimeZone timeZone) {
+        return new DayMath(timeZone);
+    }
+
+    /**
+     * @return the instance for the device's time zone, kept until {@link #resetDefault()}
+     */
+    public static DayMath getDefault() {
+        DayMath dayMath = sDefault;
+        if (dayMath == null) {
+            dayMath = new DayMath(TimeZone.getDefault());
+            sDefault = dayMath;
+        }
+        return dayMath;
+    }
+
+    /**
+     * Forget the device's time zone, so the next {@link #getDefault()} reads it again.  Call
+     * when the user changes it.
+     */
+    public static void resetDefault() {
+        sDefault = null;
+    }
+
+    public TimeZone getTimeZone() {
+        return (TimeZone) mTimeZone.clone();
+    }
+
+    /**
+     * @return the Julian day the instant falls on in this time zone
+     */
+    public int getJulianDay(long millis) {
+        long localMillis = millis + mTimeZone.getOffset(millis);
+        return (int) floorDiv(localMillis, DateUtils.DAY_IN_MILLIS) + EPOCH_JULIAN_DAY;
+    }
+
+    /**
+     * @return the first instant of the Julian day in this time zone
+     */
+    public long getStartOfDay(int julianDay) {
+        // Midnight as a wall clock reads it, then moved by the offset in force at that moment.
+        long localMidnight = (julianDay - EPOCH_JULIAN_DAY) * DateUtils.DAY_IN_MILLIS;
+        int offset = mTimeZone.getOffset(localMidnight - mTimeZone.getOffset(localMidnight));
+        long start = localMidnight - offset;
+        int offsetAtStart = mTimeZone.getOffset(start);
+        if (offsetAtStart != offset) {
+            // Midnight was skipped: the clock went from the end of the day before straight to
+            // later in this one.  That happened at midnight by the earlier, smaller offset.
+            return localMidnight - Math.min(offset, offsetAtStart);
+        }
+        // If the clock was turned back over midnight, it read midnight twice, and the day
+        // started the first time, by the offset before the change.
+        int offsetBefore = mTimeZone.getOffset(start - DateUtils.DAY_IN_MILLIS);
+        if (offsetBefore > offset
+                && mTimeZone.getOffset(localMidnight - offsetBefore) == offsetBefore) {
+            return localMidnight - offsetBefore;
+        }
+        return start;
+    }
+
+    /**
+     * @return the first instant of the day the given instant falls on
+     */
+    public long normalize(long millis) {
+        return getStartOfDay(getJulianDay(millis));
+    }
+
+    /**
+     * @return the day of the week, Time.SUNDAY (0) to Time.SATURDAY (6)
+     */
+    public static int getDayOfWeek(int julianDay) {
+        return (int) floorMod(julianDay - EPOCH_JULIAN_DAY + EPOCH_DAY_OF_WEEK, 7);
+    }
+
+    public int getDayOfWeek(long millis) {
+        return getDayOfWeek(getJulianDay(millis));
+    }
+
+    /**
+     * @return the Julian day of the Sunday that starts the day's week
+     */
+    public static int getFirstDayOfWeek(int julianDay) {
+        return julianDay - getDayOfWeek(julianDay);
+    }
+
+    /**
+     * @return the Julian day of the first of the day's month, in the Gregorian calendar
+     */
+    public static int getFirstDayOfMonth(int julianDay) {
+        // Howard Hinnant's civil_from_days, counting years from March so February's length
+        // only matters at the end of one: days since March 1, 0000, split into 400 year eras,
+        // then the year of the era and the day of that year.
+        long days = julianDay - EPOCH_JULIAN_DAY + 719468L;
+        long era = floorDiv(days, 146097);
+        long dayOfEra = days - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthFromMarch = (5 * dayOfYear + 2) / 153;
+        long dayOfMonth = dayOfYear - (153 * monthFromMarch + 2) / 5;
+        return (int) (julianDay - dayOfMonth);
+    }
+
+    /**
+     * @return the Julian day of the first of the month after the day's
+     */
+    public static int getFirstDayOfNextMonth(int julianDay) {
+        // No month is longer than 31 days, or shorter than 28, so this lands early in the next.
+        return getFirstDayOfMonth(getFirstDayOfMonth(julianDay) + 31);
+    }
+
+    /**
+     * @return how many calendar days the date is after today: 0 for today, 1 for tomorrow and
+     * -1 for yesterday
+     */
+    public int getDaysFromToday(long dateInMillis, long nowMillis) {
+        return getJulianDay(dateInMillis) - getJulianDay(nowMillis);
+    }
+
+    public int getDaysFromToday(long dateInMillis) {
+        return getDaysFromToday(dateInMillis, System.currentTimeMillis());
+    }
+
+    // Time.getJulianDay truncates, which is the same for every instant after 1970.
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+    }
+
+    private static long floorMod(long x, long y) {
+        return x - floorDiv(x, y) * y;
+    }
+}
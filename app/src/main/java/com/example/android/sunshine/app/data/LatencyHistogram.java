@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how long calls took, in buckets that are exact up to 16ns and then split each power
+ * of two into eight, so every bucket's values are within 12.5% of each other, the way
+ * HdrHistogram does with fewer buckets.  Also adds up the rows the calls returned or changed.
+ *
+ * Recording takes no lock: a few atomic adds, and a compare-and-set when a call is the
+ * slowest yet.  The totals read while calls are being recorded are each exact, but may not
+ * all include the same calls.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Up to 2^40ns, about 18 minutes.  Anything slower goes in the last bucket.
+    private static final int MAX_MAGNITUDE = 40;
+    private static final long MAX_NANOS = (1L << MAX_MAGNITUDE) - 1;
+    static final int BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+    private final AtomicLong mRows = new AtomicLong();
+
+    void record(long nanos, long rows) {
+        if (nanos < 0) {
+            // nanoTime only goes backwards across a reboot, so this never came from one call.
+            nanos = 0;
+        }
+        mCounts.incrementAndGet(getBucket(nanos));
+        mTotalNanos.addAndGet(nanos);
+        mRows.addAndGet(rows);
+        long max = mMaxNanos.get();
+        while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+            max = mMaxNanos.get();
+        }
+    }
+
+    /**
+     * @return the bucket a call taking this many nanoseconds is counted in
+     */
+    static int getBucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        if (nanos > MAX_NANOS) {
+            nanos = MAX_NANOS;
+        }
+        // The power of two the value is in picks the group of buckets, and the bits just
+        // below its highest pick one of them.
+        int magnitude = 63 - Long.numberOfLeadingZeros(nanos);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return the most nanoseconds a call counted in the bucket could have taken
+     */
+    static long getBucketMaxNanos(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    long getCount(int bucket) {
+        return mCounts.get(bucket);
+    }
+
+    long getTotalNanos() {
+        return mTotalNanos.get();
+    }
+
+    long getMaxNanos() {
+        return mMaxNanos.get();
+    }
+
+    long getRows() {
+        return mRows.get();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The stored locations' ids by location setting, and back, kept in memory so weather queries
+ * can filter on weather.location_id instead of looking the setting up in the location table.
+ *
+ * There are only ever a handful of locations, so the whole table is read the first time it's
+ * needed.  WeatherProvider adds the locations it inserts once they're written, and drops
+ * everything, to be read again, when locations are updated or deleted or a transaction that
+ * added one is rolled back.
+ */
+class LocationIndex {
+
+    static final long NOT_FOUND = -1;
+
+    // Both null until read
+    private Map<String, Long> mIds;
+    private Map<Long, String> mLocationSettings;
+
+    /**
+     * @return the location's id, or NOT_FOUND if it isn't stored
+     */
+    synchronized long getId(SQLiteDatabase db, String locationSetting) {
+        load(db);
+        Long _id = mIds.get(locationSetting);
+        return _id == null ? NOT_FOUND : _id;
+    }
+
+    /**
+     * @return the location setting of the id, or null if it isn't stored
+     */
+    synchronized String getLocationSetting(SQLiteDatabase db, long _id) {
+        load(db);
+        return mLocationSettings.get(_id);
+    }
+
+    private void load(SQLiteDatabase db) {
+        if (mIds != null) {
+            return;
+        }
+        Map<String, Long> ids = new HashMap<String, Long>();
+        Map<Long, String> locationSettings = new HashMap<Long, String>();
+        Cursor cursor = db.query(LocationEntry.TABLE_NAME,
+                new String[]{LocationEntry._ID, LocationEntry.COLUMN_LOCATION_SETTING},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                ids.put(cursor.getString(1), cursor.getLong(0));
+                locationSettings.put(cursor.getLong(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        mIds = ids;
+        mLocationSettings = locationSettings;
+    }
+
+    /**
+     * Add a location that was just inserted.
+     */
+    synchronized void put(String locationSetting, long _id) {
+        // If it hasn't been read yet, reading it will find the location.
+        if (mIds != null) {
+            mIds.put(locationSetting, _id);
+            mLocationSettings.put(_id, locationSetting);
+        }
+    }
+
+    /**
+     * Forget everything, for locations that were changed in ways that can't be followed.
+     */
+    synchronized void clear() {
+        mIds = null;
+        mLocationSettings = null;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.AbstractWindowedCursor;
+import android.database.CrossProcessCursor;
+import android.database.CursorWindow;
+import android.database.CursorWrapper;
+
+/**
+ * Records a database query in {@link ProviderMetrics} once it has actually run.
+ *
+ * SQLiteCursor only runs its query when it's first counted or moved, which the caller does
+ * after query() has returned.  This records the time from the start of the call to the end of
+ * that first fill, and the rows the query returned, so the metrics cover the query and not
+ * just preparing it.  A cursor closed before it was read is recorded with no rows.
+ *
+ * Like the cursor it wraps, not thread safe.
+ */
+final class MeasuredCursor extends CursorWrapper implements CrossProcessCursor {
+
+    private final AbstractWindowedCursor mCursor;
+    private final ProviderMetrics mMetrics;
+    private final int mMatch;
+    private final long mStartNanos;
+    // Up to query() returning, for a cursor that's closed without being read
+    private final long mPrepareNanos;
+    private boolean mRecorded;
+
+    MeasuredCursor(AbstractWindowedCursor cursor, ProviderMetrics metrics, int match,
+                   long startNanos) {
+        super(cursor);
+        mCursor = cursor;
+        mMetrics = metrics;
+        mMatch = match;
+        mStartNanos = startNanos;
+        mPrepareNanos = System.nanoTime() - startNanos;
+    }
+
+    private void record() {
+        if (!mRecorded) {
+            mRecorded = true;
+            // The first count runs the query and fills the first window.
+            int rows = mCursor.getCount();
+            mMetrics.record(ProviderMetrics.QUERY, mMatch, System.nanoTime() - mStartNanos,
+                    rows);
+        }
+    }
+
+    @Override
+    public int getCount() {
+        record();
+        return super.getCount();
+    }
+
+    @Override
+    public boolean move(int offset) {
+        record();
+        return super.move(offset);
+    }
+
+    @Override
+    public boolean moveToPosition(int position) {
+        record();
+        return super.moveToPosition(position);
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        record();
+        return super.moveToFirst();
+    }
+
+    @Override
+    public boolean moveToLast() {
+        record();
+        return super.moveToLast();
+    }
+
+    @Override
+    public boolean moveToNext() {
+        record();
+        return super.moveToNext();
+    }
+
+    @Override
+    public boolean moveToPrevious() {
+        record();
+        return super.moveToPrevious();
+    }
+
+    @Override
+    public CursorWindow getWindow() {
+        return mCursor.getWindow();
+    }
+
+    @Override
+    public void fillWindow(int position, CursorWindow window) {
+        record();
+        mCursor.fillWindow(position, window);
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        record();
+        return mCursor.onMove(oldPosition, newPosition);
+    }
+
+    @Override
+    public void close() {
+        if (!mRecorded) {
+            mRecorded = true;
+            mMetrics.record(ProviderMetrics.QUERY, mMatch, mPrepareNanos, 0);
+        }
+        super.close();
+    }
+}
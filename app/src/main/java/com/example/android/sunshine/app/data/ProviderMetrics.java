@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.os.Bundle;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A {@link LatencyHistogram} for each of WeatherProvider's operations on each of its uri
+ * patterns, made the first time the operation is used on the pattern.
+ *
+ * Safe to use from any thread without locking.  A reset drops the histograms, so calls
+ * finishing while it runs may be counted in the old ones and lost.
+ */
+final class ProviderMetrics {
+
+    static final int QUERY = 0;
+    static final int INSERT = 1;
+    static final int BULK_INSERT = 2;
+    static final int UPDATE = 3;
+    static final int DELETE = 4;
+
+    private static final String[] OPERATION_NAMES = {
+            "query", "insert", "bulkInsert", "update", "delete"};
+
+    private static final double[] PERCENTILES = {0.50, 0.90, 0.99};
+    private static final String[] PERCENTILE_KEYS = {
+            WeatherContract.KEY_P50_NANOS,
+            WeatherContract.KEY_P90_NANOS,
+            WeatherContract.KEY_P99_NANOS};
+
+    // The match codes, in order, and the uri pattern each is reported under
+    private final int[] mMatchCodes;
+    private final String[] mPatterns;
+    // By operation, then match code
+    private final AtomicReferenceArray<LatencyHistogram> mHistograms;
+
+    /**
+     * @param matchCodes the UriMatcher codes, in increasing order
+     * @param patterns   the uri pattern for each code
+     */
+    ProviderMetrics(int[] matchCodes, String[] patterns) {
+        if (matchCodes.length != patterns.length) {
+            throw new IllegalArgumentException("A pattern is needed for every match code");
+        }
+        mMatchCodes = matchCodes.clone();
+        mPatterns = patterns.clone();
+        mHistograms = new AtomicReferenceArray<LatencyHistogram>(
+                OPERATION_NAMES.length * matchCodes.length);
+    }
+
+    /**
+     * Count a call that finished.  Codes with no pattern are ignored.
+     */
+    void record(int operation, int matchCode, long nanos, long rows) {
+        int code = Arrays.binarySearch(mMatchCodes, matchCode);
+        if (code < 0) {
+            return;
+        }
+        int index = operation * mMatchCodes.length + code;
+        LatencyHistogram histogram = mHistograms.get(index);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            if (!mHistograms.compareAndSet(index, null, histogram)) {
+                // Another thread made it first.
+                histogram = mHistograms.get(index);
+            }
+        }
+        histogram.record(nanos, rows);
+    }
+
+    void reset() {
+        for (int i = 0; i < mHistograms.length(); i++) {
+            mHistograms.set(i, null);
+        }
+    }
+
+    /**
+     * @return a Bundle for each operation and pattern used, laid out as
+     * WeatherContract.METHOD_PROVIDER_METRICS describes
+     */
+    Bundle getSnapshot() {
+        Bundle snapshot = new Bundle();
+        for (int i = 0; i < mHistograms.length(); i++) {
+            LatencyHistogram histogram = mHistograms.get(i);
+            if (histogram != null) {
+                snapshot.putBundle(OPERATION_NAMES[i / mMatchCodes.length] + " "
+                        + mPatterns[i % mMatchCodes.length], getSnapshot(histogram));
+            }
+        }
+        return snapshot;
+    }
+
+    private static Bundle getSnapshot(LatencyHistogram histogram) {
+        // Copy the counts first, so the calls and percentiles come from the same ones.
+        long[] counts = new long[LatencyHistogram.BUCKETS];
+        long calls = 0;
+        int usedBuckets = 0;
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            counts[bucket] = histogram.getCount(bucket);
+            calls += counts[bucket];
+            if (counts[bucket] > 0) {
+                usedBuckets++;
+            }
+        }
+        long maxNanos = histogram.getMaxNanos();
+
+        long[] bucketMaxNanos = new long[usedBuckets];
+        long[] bucketCalls = new long[usedBuckets];
+        long[] percentileNanos = new long[PERCENTILES.length];
+        int used = 0;
+        int percentile = 0;
+        long callsSoFar = 0;
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            if (counts[bucket] == 0) {
+                continue;
+            }
+            bucketMaxNanos[used] = LatencyHistogram.getBucketMaxNanos(bucket);
+            bucketCalls[used] = counts[bucket];
+            used++;
+            callsSoFar += counts[bucket];
+            while (percentile < PERCENTILES.length
+                    && callsSoFar >= Math.ceil(PERCENTILES[percentile] * calls)) {
+                // A bucket's top can be past the slowest call actually seen.
+                percentileNanos[percentile++] = Math.min(
+                        LatencyHistogram.getBucketMaxNanos(bucket), maxNanos);
+            }
+        }
+
+        Bundle result = new Bundle();
+        result.putLong(WeatherContract.KEY_CALLS, calls);
+        result.putLong(WeatherContract.KEY_ROWS, histogram.getRows());
+        result.putLong(WeatherContract.KEY_TOTAL_NANOS, histogram.getTotalNanos());
+        result.putLong(WeatherContract.KEY_MAX_NANOS, maxNanos);
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            result.putLong(PERCENTILE_KEYS[i], percentileNanos[i]);
+        }
+        result.putLongArray(WeatherContract.KEY_BUCKET_MAX_NANOS, bucketMaxNanos);
+        result.putLongArray(WeatherContract.KEY_BUCKET_CALLS, bucketCalls);
+        return result;
+    }
+}
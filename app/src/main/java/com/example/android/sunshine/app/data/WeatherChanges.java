@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.example.android.sunshine.app.data.WeatherContract.RollupEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The weather rows a write touched, by location and date, turned into the URIs to notify.
+ *
+ * A location with a single changed day gets weather/{location}/{date}, which wakes that day's
+ * detail screen and the location's forecast list.  A location with several changed days gets
+ * weather/{location}.  Observers of other locations aren't told.  Each changed location's
+ * rollups, rollup/{location}, are notified too.
+ *
+ * The changed days are also passed on to {@link WeatherRollups}, for the write to bring the
+ * rollups up to date with {@link #updateRollups(SQLiteDatabase)} before it commits.
+ */
+class WeatherChanges {
+
+    // In place of a date, for a location where more than one day changed
+    private static final long SEVERAL_DATES = Long.MIN_VALUE;
+
+    // location id -> the one date that changed for it, or SEVERAL_DATES
+    private final Map<Long, Long> mDates = new HashMap<Long, Long>();
+    private boolean mEverything;
+    private final WeatherRollups mRollups = new WeatherRollups();
+
+    void add(long locationId, long date) {
+        mRollups.addDay(locationId, date);
+        Long dates = mDates.get(locationId);
+        if (dates == null) {
+            mDates.put(locationId, date);
+        } else if (dates != date) {
+            mDates.put(locationId, SEVERAL_DATES);
+        }
+    }
+
+    /**
+     * The location changed in ways the caller keeps its rollups up to date for itself.
+     */
+    void addLocation(long locationId) {
+        mDates.put(locationId, SEVERAL_DATES);
+    }
+
+    /**
+     * Something changed that can't be pinned to locations, so every observer is told.
+     */
+    void addEverything() {
+        mEverything = true;
+        mRollups.addEverything();
+    }
+
+    boolean isEmpty() {
+        return !mEverything && mDates.isEmpty();
+    }
+
+    static final String[] MATCHING_PROJECTION = {
+            WeatherEntry.COLUMN_LOC_KEY,
+            "MIN(" + WeatherEntry.COLUMN_DATE + ")",
+            "MAX(" + WeatherEntry.COLUMN_DATE + ")"
+    };
+
+    // The + keeps SQLite from reading the whole (location_id, date) index in location order
+    // to save sorting the groups, when the selection is a date range such as the retention
+    // delete's and the (date, location_id) index finds just those rows.
+    static final String MATCHING_GROUP_BY = "+" + WeatherEntry.COLUMN_LOC_KEY;
+
+    /**
+     * Add the locations and dates of the rows the selection matches.  Run it before deleting
+     * or updating those rows.
+     */
+    void addMatching(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        Cursor cursor = db.query(WeatherEntry.TABLE_NAME, MATCHING_PROJECTION,
+                selection, selectionArgs, MATCHING_GROUP_BY, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                long locationId = cursor.getLong(0);
+                add(locationId, cursor.getLong(1));
+                add(locationId, cursor.getLong(2));
+                // Any day between them may be among the rows too.
+                mRollups.addDays(locationId, cursor.getLong(1), cursor.getLong(2));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Work out the rollups of the changed days again.  Call inside the write's transaction.
+     */
+    void updateRollups(SQLiteDatabase db) {
+        mRollups.update(db);
+    }
+
+    /**
+     * @return the URIs to notify, each location once
+     */
+    List<Uri> getUris(SQLiteDatabase db, LocationIndex locationIndex) {
+        List<Uri> uris = new ArrayList<Uri>();
+        if (mEverything) {
+            uris.add(WeatherEntry.CONTENT_URI);
+            uris.add(RollupEntry.CONTENT_URI);
+            return uris;
+        }
+
+        for (Map.Entry<Long, Long> entry : mDates.entrySet()) {
+            String locationSetting = locationIndex.getLocationSetting(db, entry.getKey());
+            if (locationSetting == null) {
+                // Rows for a location that isn't stored can only be seen through the whole
+                // table, so tell its observers.
+                uris.clear();
+                uris.add(WeatherEntry.CONTENT_URI);
+                uris.add(RollupEntry.CONTENT_URI);
+                break;
+            }
+            long date = entry.getValue();
+            uris.add(date == SEVERAL_DATES
+                    ? WeatherEntry.buildWeatherLocation(locationSetting)
+                    : buildWeatherLocationAndDate(locationSetting, date));
+            uris.add(RollupEntry.buildRollupLocation(locationSetting));
+        }
+        return uris;
+    }
+
+    // The dates are already normalized, unlike what buildWeatherLocationWithDate expects.
+    private static Uri buildWeatherLocationAndDate(String locationSetting, long date) {
+        return WeatherEntry.CONTENT_URI.buildUpon().appendPath(locationSetting)
+                .appendPath(Long.toString(date)).build();
+    }
+}
@@ -19,7 +19,6 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
-import android.text.format.Time;
 
 /**
  * Defines table and column names for the weather database.
@@ -43,15 +42,215 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_SYNC_RUNS = "sync_runs";
+    public static final String PATH_ROLLUP = "rollup";
+
+    // ContentProvider.call() method that stores weather rows like an upsert bulkInsert (see
+    // WeatherEntry.buildWeatherUpsertUri), taking them as a ContentValues array in
+    // KEY_VALUES and returning how many rows were inserted, updated and left unchanged.
+    public static final String METHOD_UPSERT_WEATHER = "upsert_weather";
+    public static final String KEY_VALUES = "values";
+    public static final String KEY_INSERTED = "inserted";
+    public static final String KEY_UPDATED = "updated";
+    public static final String KEY_UNCHANGED = "unchanged";
+
+    // ContentProvider.call() method returning the counters of the provider's cache of
+    // weather-with-location query results: lookups it answered (KEY_HITS) and didn't
+    // (KEY_MISSES), and results it dropped to stay within its size (KEY_EVICTIONS) or because
+    // a write changed them (KEY_INVALIDATIONS).  Empty on devices without the cache.
+    public static final String METHOD_QUERY_CACHE_STATS = "query_cache_stats";
+    public static final String KEY_HITS = "hits";
+    public static final String KEY_MISSES = "misses";
+    public static final String KEY_EVICTIONS = "evictions";
+    public static final String KEY_INVALIDATIONS = "invalidations";
+
+    // ContentProvider.call() method that deletes the weather for every day up to and including
+    // the date in arg, in small batches, and reclaims some of the space.  Returns how many rows
+    // went (KEY_DELETED), the database file's size (KEY_DATABASE_BYTES) and how much of it is
+    // still free pages (KEY_FREE_BYTES).
+    public static final String METHOD_APPLY_RETENTION = "apply_retention";
+    public static final String KEY_DELETED = "deleted";
+    public static final String KEY_DATABASE_BYTES = "database_bytes";
+    public static final String KEY_FREE_BYTES = "free_bytes";
+
+    // ContentProvider.call() method returning how long the provider's query, insert,
+    // bulkInsert, update and delete calls have taken since it started or was reset.  There is
+    // a Bundle for each operation and uri pattern used, keyed like "query weather/*/#", with
+    // the calls (KEY_CALLS), rows changed or returned (KEY_ROWS), total and slowest time
+    // (KEY_TOTAL_NANOS, KEY_MAX_NANOS) and percentiles (KEY_P50_NANOS and on).  A query
+    // answered from the database is recorded when the caller first reads its cursor, which is
+    // when it runs, and one closed unread as no rows.  The latency histogram is
+    // KEY_BUCKET_CALLS calls in each bucket, taking at most KEY_BUCKET_MAX_NANOS; empty buckets
+    // are left out.  METHOD_RESET_PROVIDER_METRICS starts them all again.
+    public static final String METHOD_PROVIDER_METRICS = "metrics";
+    public static final String METHOD_RESET_PROVIDER_METRICS = "reset_metrics";
+    public static final String KEY_CALLS = "calls";
+    public static final String KEY_ROWS = "rows";
+    public static final String KEY_TOTAL_NANOS = "total_nanos";
+    public static final String KEY_MAX_NANOS = "max_nanos";
+    public static final String KEY_P50_NANOS = "p50_nanos";
+    public static final String KEY_P90_NANOS = "p90_nanos";
+    public static final String KEY_P99_NANOS = "p99_nanos";
+    public static final String KEY_BUCKET_MAX_NANOS = "bucket_max_nanos";
+    public static final String KEY_BUCKET_CALLS = "bucket_calls";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
-    // the database to the start of the the Julian day at UTC.
+    // the database to the start of the the Julian day.
     public static long normalizeDate(long startDate) {
-        // normalize the start date to the beginning of the (UTC) day
-        Time time = new Time();
-        time.set(startDate);
-        int julianDay = Time.getJulianDay(startDate, time.gmtoff);
-        return time.setJulianDay(julianDay);
+        return DayMath.getDefault().normalize(startDate);
+    }
+
+    /*
+        Inner class that defines the table contents of the sync_runs table, which keeps timings
+        for the most recent syncs.  Phase times are in microseconds, summed over every request
+        in the run; requests run in parallel, so the phases can add up to more than the total.
+     */
+    public static final class SyncRunEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_RUNS).build();
+
+        // Percentiles for each phase over the stored runs.  One row per phase, with
+        // COLUMN_PHASE naming the sync_runs column it summarizes.
+        public static final Uri SUMMARY_URI =
+                CONTENT_URI.buildUpon().appendPath("summary").build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_RUNS;
+
+        public static final String TABLE_NAME = "sync_runs";
+
+        // When the run started, in milliseconds since the epoch
+        public static final String COLUMN_START_TIME = "start_time";
+        // One of the STATUS_ values
+        public static final String COLUMN_STATUS = "status";
+        public static final String COLUMN_REQUESTS = "requests";
+        public static final String COLUMN_ERRORS = "errors";
+        public static final String COLUMN_ROWS_WRITTEN = "rows_written";
+
+        // Wall time for the whole run
+        public static final String COLUMN_TOTAL_TIME = "total_us";
+        // DNS lookup and connecting; close to zero when a kept-alive connection is reused
+        public static final String COLUMN_CONNECT_TIME = "connect_us";
+        // From sending the request to the response headers arriving
+        public static final String COLUMN_FIRST_BYTE_TIME = "first_byte_us";
+        // Reading the response body, and how many bytes came over the wire
+        public static final String COLUMN_DOWNLOAD_TIME = "download_us";
+        public static final String COLUMN_DOWNLOAD_BYTES = "download_bytes";
+        public static final String COLUMN_PARSE_TIME = "parse_us";
+        // Committing the sync's writes.  Before Honeycomb the retention delete is committed
+        // along with the forecasts, so its time is counted here and retention_us stays 0.
+        public static final String COLUMN_INSERT_TIME = "insert_us";
+        public static final String COLUMN_RETENTION_TIME = "retention_us";
+        public static final String COLUMN_NOTIFY_TIME = "notify_us";
+        // The database file's size after the run's retention, and how much of it is free
+        // pages waiting to be reclaimed.  0 where retention didn't run.
+        public static final String COLUMN_DATABASE_BYTES = "database_bytes";
+        public static final String COLUMN_FREE_BYTES = "free_bytes";
+
+        public static final int STATUS_COMPLETE = 0;
+        public static final int STATUS_CANCELED = 1;
+        // The sync didn't run, e.g. because the circuit breaker was open
+        public static final int STATUS_SKIPPED = 2;
+
+        // The columns SUMMARY_URI returns
+        public static final String COLUMN_PHASE = "phase";
+        public static final String COLUMN_COUNT = "count";
+        public static final String COLUMN_P50 = "p50";
+        public static final String COLUMN_P95 = "p95";
+        public static final String COLUMN_P99 = "p99";
+
+        // The columns SUMMARY_URI has a row for
+        public static final String[] PHASE_COLUMNS = {
+                COLUMN_TOTAL_TIME,
+                COLUMN_CONNECT_TIME,
+                COLUMN_FIRST_BYTE_TIME,
+                COLUMN_DOWNLOAD_TIME,
+                COLUMN_DOWNLOAD_BYTES,
+                COLUMN_PARSE_TIME,
+                COLUMN_INSERT_TIME,
+                COLUMN_RETENTION_TIME,
+                COLUMN_NOTIFY_TIME
+        };
+    }
+
+    /*
+        Inner class that defines the table contents of the weather_rollup table: each
+        location's weather summed up by week (Sunday to Saturday) and by calendar month, in the
+        device's time zone.  The provider keeps it up to date as it writes weather, so a trend
+        view reads a row per week or month instead of every day in them.
+     */
+    public static final class RollupEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_ROLLUP).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_ROLLUP;
+
+        public static final String TABLE_NAME = "weather_rollup";
+
+        // The values of COLUMN_PERIOD, and the uri path segments that pick them
+        public static final String PERIOD_WEEK = "week";
+        public static final String PERIOD_MONTH = "month";
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        public static final String COLUMN_PERIOD = "period";
+        // The first and last days of the week or month, as normalized dates
+        public static final String COLUMN_START_DATE = "start_date";
+        public static final String COLUMN_END_DATE = "end_date";
+        // How many of its days have weather stored; the rest are left out of the others
+        public static final String COLUMN_DAYS = "days";
+        // The lowest low and highest high
+        public static final String COLUMN_MIN_TEMP = "min";
+        public static final String COLUMN_MAX_TEMP = "max";
+        // The mean of the days' lows, and of their highs
+        public static final String COLUMN_MEAN_MIN_TEMP = "mean_min";
+        public static final String COLUMN_MEAN_MAX_TEMP = "mean_max";
+        // Days with rain, drizzle, snow or a thunderstorm.  The weather table has no amounts.
+        public static final String COLUMN_WET_DAYS = "wet_days";
+
+        /**
+         * @return the uri of every week and month of the location
+         */
+        public static Uri buildRollupLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        /**
+         * @param period PERIOD_WEEK or PERIOD_MONTH
+         */
+        public static Uri buildRollupLocationWithPeriod(String locationSetting, String period) {
+            return buildRollupLocation(locationSetting).buildUpon().appendPath(period).build();
+        }
+
+        /**
+         * @return the uri of the location's weeks or months that have any days from startDate
+         * to endDate, inclusive
+         */
+        public static Uri buildRollupLocationWithDateRange(
+                String locationSetting, String period, long startDate, long endDate) {
+            return buildRollupLocationWithPeriod(locationSetting, period).buildUpon()
+                    .appendPath(Long.toString(normalizeDate(startDate)))
+                    .appendPath(Long.toString(normalizeDate(endDate))).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static String getPeriodFromUri(Uri uri) {
+            return uri.getPathSegments().get(2);
+        }
+
+        public static long getStartDateFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(3));
+        }
+
+        public static long getEndDateFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(4));
+        }
     }
 
     /* Inner class that defines the table contents of the location table */
@@ -81,9 +280,24 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // OpenWeatherMap's own id for the city, so several locations can be refreshed with a
+        // single group request.  Null until we've had a forecast back for the location.
+        public static final String COLUMN_CITY_ID = "city_id";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
+
+        /*
+            insert on this uri returns the location already stored for the location setting,
+            if there is one, instead of failing on the UNIQUE constraint.  A city id in the
+            values fills in a stored location that doesn't have one yet; nothing else about the
+            stored location is changed.
+         */
+        public static Uri buildLocationUpsertUri() {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(WeatherEntry.PARAM_UPSERT, "true").build();
+        }
     }
 
     /* Inner class that defines the table contents of the weather table */
@@ -126,6 +340,14 @@ public class WeatherContract {
         // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
         public static final String COLUMN_DEGREES = "degrees";
 
+        // Query parameter asking bulkInsert to only write rows that differ from the stored ones
+        public static final String PARAM_UPSERT = "upsert";
+        // Query parameter capping how many days a date range query, or a page, returns
+        public static final String PARAM_LIMIT = "limit";
+        // Query parameter for the next page of a location's weather: the last date of the
+        // page before
+        public static final String PARAM_AFTER = "after";
+
         public static Uri buildWeatherUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -149,6 +371,62 @@ public class WeatherContract {
                     .appendPath(Long.toString(normalizeDate(date))).build();
         }
 
+        /*
+            The location's weather from startDate to endDate, both included, in date order
+            unless the query gives another.
+         */
+        public static Uri buildWeatherLocationWithDateRange(
+                String locationSetting, long startDate, long endDate) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendPath(Long.toString(normalizeDate(startDate)))
+                    .appendPath(Long.toString(normalizeDate(endDate))).build();
+        }
+
+        /*
+            As above, but only the first limit days of the range, or the last limit days if the
+            query sorts by date descending.
+         */
+        public static Uri buildWeatherLocationWithDateRange(
+                String locationSetting, long startDate, long endDate, int limit) {
+            return buildWeatherLocationWithDateRange(locationSetting, startDate, endDate)
+                    .buildUpon().appendQueryParameter(PARAM_LIMIT, Integer.toString(limit))
+                    .build();
+        }
+
+        /*
+            Pages of a location's weather, pageSize days each, in date order.  The first page
+            starts at startDate; each page after it starts after the last date of the one
+            before, so a page is found through the (location_id, date) index however far into
+            the history it is, and days written or deleted elsewhere don't shift it.
+         */
+        public static Uri buildWeatherLocationFirstPage(
+                String locationSetting, long startDate, int pageSize) {
+            return buildWeatherLocationWithStartDate(locationSetting, startDate).buildUpon()
+                    .appendQueryParameter(PARAM_LIMIT, Integer.toString(pageSize)).build();
+        }
+
+        public static Uri buildWeatherLocationPageAfter(
+                String locationSetting, long lastDate, int pageSize) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendQueryParameter(PARAM_AFTER, Long.toString(lastDate))
+                    .appendQueryParameter(PARAM_LIMIT, Integer.toString(pageSize)).build();
+        }
+
+        /*
+            bulkInsert on this uri compares each row to the one stored for the same location
+            and date: unchanged rows are skipped, changed ones updated in place, and new ones
+            inserted.  It returns the number of rows written, and only notifies observers if
+            that's more than zero.  update on it, with no selection, does the same for a single
+            row, which is how a ContentProviderOperation batch upserts.
+         */
+        public static Uri buildWeatherUpsertUri() {
+            return CONTENT_URI.buildUpon().appendQueryParameter(PARAM_UPSERT, "true").build();
+        }
+
+        public static boolean isUpsertUri(Uri uri) {
+            return "true".equals(uri.getQueryParameter(PARAM_UPSERT));
+        }
+
         public static String getLocationSettingFromUri(Uri uri) {
             return uri.getPathSegments().get(1);
         }
@@ -157,6 +435,32 @@ public class WeatherContract {
             return Long.parseLong(uri.getPathSegments().get(2));
         }
 
+        public static long getEndDateFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(3));
+        }
+
+        /**
+         * @return the uri's limit, or 0 if it has none
+         */
+        public static int getLimitFromUri(Uri uri) {
+            String limitString = uri.getQueryParameter(PARAM_LIMIT);
+            if (null != limitString && limitString.length() > 0)
+                return Integer.parseInt(limitString);
+            else
+                return 0;
+        }
+
+        /**
+         * @return the date the uri's page comes after, or 0 if it isn't a later page
+         */
+        public static long getAfterDateFromUri(Uri uri) {
+            String dateString = uri.getQueryParameter(PARAM_AFTER);
+            if (null != dateString && dateString.length() > 0)
+                return Long.parseLong(dateString);
+            else
+                return 0;
+        }
+
         public static long getStartDateFromUri(Uri uri) {
             String dateString = uri.getQueryParameter(COLUMN_DATE);
             if (null != dateString && dateString.length() > 0)
@@ -15,11 +15,17 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.RollupEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncRunEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
 /**
@@ -28,71 +34,303 @@ import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 8;
 
     static final String DATABASE_NAME = "weather.db";
 
+    // A sync writes a few dozen pages at most, so checkpoint after roughly one sync's worth
+    // rather than SQLite's default of 1000 pages.  Readers have less log to look through, and
+    // the checkpoint itself stays short.
+    static final int WAL_AUTOCHECKPOINT_PAGES = 100;
+
+    // Truncate the log back to this after a checkpoint, so one large write doesn't leave a
+    // big file behind for good.
+    static final int WAL_SIZE_LIMIT_BYTES = 256 * 1024;
+
+    // PRAGMA auto_vacuum's value for INCREMENTAL, which lets WeatherRetention give freed pages
+    // back a few at a time
+    static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    // The provider finds weather rows by location and then by date.  The UNIQUE (date,
+    // location_id) constraint's index leads with the date, which suits the retention delete
+    // but not those, so they get their own.
+    static final String INDEX_WEATHER_LOCATION_DATE = "weather_location_date";
+
+    private static final String SQL_CREATE_WEATHER_LOCATION_DATE_INDEX =
+            "CREATE INDEX " + INDEX_WEATHER_LOCATION_DATE + " ON " + WeatherEntry.TABLE_NAME +
+                    " (" + WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE + ");";
+
     public WeatherDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // With write-ahead logging the forecast and detail loaders keep reading while a sync
+        // is in the middle of a write transaction, instead of waiting for it to commit.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
     }
 
     @Override
-    public void onCreate(SQLiteDatabase sqLiteDatabase) {
-        // Create a table to hold locations.  A location consists of the string supplied in the
-        // location setting, the city name, and the latitude and longitude
-        final String SQL_CREATE_LOCATION_TABLE = "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
-                LocationEntry._ID + " INTEGER PRIMARY KEY," +
-                LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
-                LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
-                " );";
-
-        final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
-                // Why AutoIncrement here, and not above?
-                // Unique keys will be auto-generated in either case.  But for weather
-                // forecasting, it's reasonable to assume the user will want information
-                // for a certain date and all dates *following*, so the forecast data
-                // should be sorted accordingly.
-                WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
-
-                // the ID of the location entry associated with this weather data
-                WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
-                WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
-                WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
-                WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
-
-                WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
-
-                WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
-
-                // Set up the location column as a foreign key to location table.
-                " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
-                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
-
-                // To assure the application have just one weather entry per day
-                // per location, it's created a UNIQUE constraint with REPLACE strategy
-                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
-                WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (db.isReadOnly()) {
+            return;
+        }
+        if (mVacuumPending) {
+            // Once, after onCreate or onUpgrade: auto_vacuum only changes when the file is
+            // rebuilt, and a VACUUM can't run inside the transaction they were called in.
+            mVacuumPending = false;
+            db.execSQL("PRAGMA auto_vacuum=" + AUTO_VACUUM_INCREMENTAL);
+            db.execSQL("VACUUM");
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            // Before Jelly Bean the helper can't be asked for it up front.
+            db.enableWriteAheadLogging();
+        }
+        // These all apply to the connection that writes.  The data is a cache of what the
+        // server has, so a commit doesn't need to survive a power cut: NORMAL skips the sync
+        // on every commit and only syncs at checkpoints.
+        pragma(db, "PRAGMA wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES);
+        pragma(db, "PRAGMA journal_size_limit=" + WAL_SIZE_LIMIT_BYTES);
+        pragma(db, "PRAGMA synchronous=NORMAL");
+    }
+
+    // Some pragmas return rows, which execSQL refuses to run.  Moving to the first row reads
+    // them all into the cursor's window, so a pragma that works a row at a time finishes.
+    static void pragma(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Create a table to hold locations.  A location consists of the string supplied in the
+    // location setting, the city name, the latitude and longitude, and OWM's city id
+    private static final String SQL_CREATE_LOCATION_TABLE =
+            "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
+            LocationEntry._ID + " INTEGER PRIMARY KEY," +
+            LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
+            LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
+            LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
+            LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+            LocationEntry.COLUMN_CITY_ID + " INTEGER " +
+            " );";
+
+    private static final String SQL_CREATE_WEATHER_TABLE =
+            "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
+            // Why AutoIncrement here, and not above?
+            // Unique keys will be auto-generated in either case.  But for weather
+            // forecasting, it's reasonable to assume the user will want information
+            // for a certain date and all dates *following*, so the forecast data
+            // should be sorted accordingly.
+            WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+
+            // the ID of the location entry associated with this weather data
+            WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+            WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+
+            WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+
+            WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+
+            // Set up the location column as a foreign key to location table.
+            " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+            LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+
+            // To assure the application have just one weather entry per day
+            // per location, it's created a UNIQUE constraint with REPLACE strategy
+            " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
+            WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
+
+    // Timings for recent syncs.  WeatherProvider keeps only the newest rows.  The columns
+    // sync_runs was created with in version 4, which that migration step still creates.
+    private static final String SYNC_RUNS_V4_COLUMNS =
+            SyncRunEntry._ID + " INTEGER PRIMARY KEY," +
+            SyncRunEntry.COLUMN_START_TIME + " INTEGER NOT NULL, " +
+            SyncRunEntry.COLUMN_STATUS + " INTEGER NOT NULL, " +
+            SyncRunEntry.COLUMN_REQUESTS + " INTEGER NOT NULL DEFAULT 0, " +
+            SyncRunEntry.COLUMN_ERRORS + " INTEGER NOT NULL DEFAULT 0, " +
+            SyncRunEntry.COLUMN_ROWS_WRITTEN + " INTEGER NOT NULL DEFAULT 0, " +
+            SyncRunEntry.COLUMN_TOTAL_TIME + " INTEGER NOT NULL DEFAULT 0, " +
+            SyncRunEntry.COLUMN_CONNECT_TIME + " INTEGER NOT NULL DEFAULT 0, " +
+            SyncRunEntry.COLUMN_FIRST_BYTE_TIME + " INTEGER NOT NULL DEFAULT 0, " +
+            SyncRunEntry.COLUMN_DOWNLOAD_TIME + " INTEGER NOT NULL DEFAULT 0, " +
+            SyncRunEntry.COLUMN_DOWNLOAD_BYTES + " INTEGER NOT NULL DEFAULT 0, " +
+            SyncRunEntry.COLUMN_PARSE_TIME + " INTEGER NOT NULL DEFAULT 0, " +
+            SyncRunEntry.COLUMN_INSERT_TIME + " INTEGER NOT NULL DEFAULT 0, " +
+            SyncRunEntry.COLUMN_RETENTION_TIME + " INTEGER NOT NULL DEFAULT 0, " +
+            SyncRunEntry.COLUMN_NOTIFY_TIME + " INTEGER NOT NULL DEFAULT 0";
+
+    private static final String SQL_CREATE_SYNC_RUNS_TABLE_V4 =
+            "CREATE TABLE " + SyncRunEntry.TABLE_NAME + " (" + SYNC_RUNS_V4_COLUMNS + " );";
 
+    private static final String SQL_CREATE_SYNC_RUNS_TABLE =
+            "CREATE TABLE " + SyncRunEntry.TABLE_NAME + " (" + SYNC_RUNS_V4_COLUMNS + ", " +
+            SyncRunEntry.COLUMN_DATABASE_BYTES + " INTEGER NOT NULL DEFAULT 0, " +
+            SyncRunEntry.COLUMN_FREE_BYTES + " INTEGER NOT NULL DEFAULT 0" +
+            " );";
+
+    // Weekly and monthly weather, kept up to date by WeatherRollups.  The unique constraint's
+    // index finds a location's weeks or months in date order.
+    private static final String SQL_CREATE_ROLLUP_TABLE =
+            "CREATE TABLE " + RollupEntry.TABLE_NAME + " (" +
+            RollupEntry._ID + " INTEGER PRIMARY KEY," +
+            RollupEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+            RollupEntry.COLUMN_PERIOD + " TEXT NOT NULL, " +
+            RollupEntry.COLUMN_START_DATE + " INTEGER NOT NULL, " +
+            RollupEntry.COLUMN_END_DATE + " INTEGER NOT NULL, " +
+            RollupEntry.COLUMN_DAYS + " INTEGER NOT NULL, " +
+            RollupEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+            RollupEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+            RollupEntry.COLUMN_MEAN_MIN_TEMP + " REAL NOT NULL, " +
+            RollupEntry.COLUMN_MEAN_MAX_TEMP + " REAL NOT NULL, " +
+            RollupEntry.COLUMN_WET_DAYS + " INTEGER NOT NULL, " +
+            " FOREIGN KEY (" + RollupEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+            LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+            " UNIQUE (" + RollupEntry.COLUMN_LOC_KEY + ", " + RollupEntry.COLUMN_PERIOD + ", " +
+            RollupEntry.COLUMN_START_DATE + ") ON CONFLICT REPLACE);";
+
+    /**
+     * One step of an upgrade, from the version before to {@link #version}.
+     */
+    private abstract static class Migration {
+        final int version;
+
+        Migration(int version) {
+            this.version = version;
+        }
+
+        abstract void migrate(SQLiteDatabase db);
+    }
+
+    // Versions older than this were before the steps below and are rebuilt from scratch.
+    static final int OLDEST_MIGRATED_VERSION = 2;
+
+    // In order, one per version after OLDEST_MIGRATED_VERSION.  A step may only rely on the
+    // schema as the steps before it left it, so once released it is never changed; a later
+    // change to a table is a new step.
+    private static final Migration[] MIGRATIONS = {
+            // Version 3: OWM's city id, for group requests
+            new Migration(3) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME + " ADD COLUMN " +
+                            LocationEntry.COLUMN_CITY_ID + " INTEGER");
+                }
+            },
+            // Version 4: sync timings
+            new Migration(4) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL(SQL_CREATE_SYNC_RUNS_TABLE_V4);
+                }
+            },
+            // Version 5: weather by location, then date
+            new Migration(5) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+                }
+            },
+            // Version 6: database size in sync runs
+            new Migration(6) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + SyncRunEntry.TABLE_NAME + " ADD COLUMN " +
+                            SyncRunEntry.COLUMN_DATABASE_BYTES + " INTEGER NOT NULL DEFAULT 0");
+                    db.execSQL("ALTER TABLE " + SyncRunEntry.TABLE_NAME + " ADD COLUMN " +
+                            SyncRunEntry.COLUMN_FREE_BYTES + " INTEGER NOT NULL DEFAULT 0");
+                }
+            },
+            // Version 7: weekly and monthly rollups, worked out from the stored weather
+            new Migration(7) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL(SQL_CREATE_ROLLUP_TABLE);
+                    WeatherRollups rollups = new WeatherRollups();
+                    rollups.addEverything();
+                    rollups.update(db);
+                }
+            },
+            // Version 8: incremental vacuum, so retention never rewrites the whole file.  It
+            // takes effect at the VACUUM onOpen runs once the upgrade has committed.
+            new Migration(8) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("PRAGMA auto_vacuum=" + AUTO_VACUUM_INCREMENTAL);
+                }
+            }
+    };
+
+    // Set by onCreate and onUpgrade when the file still has to be rebuilt for auto_vacuum.
+    private boolean mVacuumPending;
+
+    // The schema as it is now.  MIGRATIONS brings older databases to the same place.
+    @Override
+    public void onCreate(SQLiteDatabase sqLiteDatabase) {
+        // Before any table, though android_metadata is already there, so it still needs the
+        // VACUUM in onOpen.  That's quick while the file is empty.
+        sqLiteDatabase.execSQL("PRAGMA auto_vacuum=" + AUTO_VACUUM_INCREMENTAL);
+        checkVacuumPending(sqLiteDatabase);
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_RUNS_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_ROLLUP_TABLE);
     }
 
+    /**
+     * Bring the schema up to date one version at a time, keeping the locations and weather, so
+     * the forecast is there on the first launch after an app update instead of after a sync.
+     *
+     * SQLiteOpenHelper calls this inside a transaction and only moves the version on when it
+     * returns, so if a step fails none of them are kept and the upgrade runs again next time
+     * the database is opened.
+     */
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
-        // Note that this only fires if you change the version number for your database.
-        // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
+        if (oldVersion < OLDEST_MIGRATED_VERSION) {
+            recreate(sqLiteDatabase);
+            return;
+        }
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version > oldVersion && migration.version <= newVersion) {
+                migration.migrate(sqLiteDatabase);
+            }
+        }
+        checkVacuumPending(sqLiteDatabase);
+    }
+
+    private void checkVacuumPending(SQLiteDatabase db) {
+        mVacuumPending = DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                != AUTO_VACUUM_INCREMENTAL;
+    }
+
+    /**
+     * An older app can't know what a newer one changed.  The data is only a cache of what
+     * the server has, so start over.
+     */
+    @Override
+    public void onDowngrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        recreate(sqLiteDatabase);
+    }
+
+    private void recreate(SQLiteDatabase sqLiteDatabase) {
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + SyncRunEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + RollupEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
     }
 }
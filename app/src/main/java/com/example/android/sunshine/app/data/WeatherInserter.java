@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * Inserts weather rows through one compiled INSERT, for writing many rows in a transaction.
+ *
+ * SQLiteDatabase.insert builds the INSERT's SQL and a bind array for every row it's given.
+ * Here the statement is compiled once and each row's values are bound to it by position, and
+ * dates are normalized with one DayMath.  Rows that don't have exactly the weather table's
+ * columns go through SQLiteDatabase.insert, as before.
+ *
+ * Not thread safe; use one per transaction and close it before the transaction ends.
+ */
+class WeatherInserter {
+
+    private static final String LOG_TAG = WeatherInserter.class.getSimpleName();
+
+    // Bound in this order.
+    static final String[] COLUMNS = {
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    private static final int DATE_INDEX = 1;
+
+    private static final String SQL_INSERT;
+
+    static {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(WeatherEntry.TABLE_NAME)
+                .append(" (");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(COLUMNS[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        SQL_INSERT = sql.append(")").toString();
+    }
+
+    private final SQLiteDatabase mDb;
+    // SQLite keeps its prepared statements per connection, so compiling this again for the next
+    // transaction finds the one prepared last time.
+    private final SQLiteStatement mStatement;
+    private final DayMath mDayMath = DayMath.getDefault();
+
+    WeatherInserter(SQLiteDatabase db) {
+        mDb = db;
+        mStatement = db.compileStatement(SQL_INSERT);
+    }
+
+    /**
+     * Insert one row, normalizing its date in place.
+     *
+     * @return the new row's id, or -1 if it couldn't be inserted
+     */
+    long insert(ContentValues values) {
+        Object date = values.get(WeatherEntry.COLUMN_DATE);
+        if (!hasColumns(values) || !(date instanceof Number)) {
+            Long dateValue = values.getAsLong(WeatherEntry.COLUMN_DATE);
+            if (dateValue != null) {
+                values.put(WeatherEntry.COLUMN_DATE, mDayMath.normalize(dateValue));
+            }
+            return mDb.insert(WeatherEntry.TABLE_NAME, null, values);
+        }
+
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i == DATE_INDEX) {
+                long normalized = mDayMath.normalize(((Number) date).longValue());
+                mStatement.bindLong(i + 1, normalized);
+                // Callers have always been able to read the stored date back from the values.
+                values.put(WeatherEntry.COLUMN_DATE, normalized);
+            } else {
+                DatabaseUtils.bindObjectToProgram(mStatement, i + 1, values.get(COLUMNS[i]));
+            }
+        }
+        try {
+            return mStatement.executeInsert();
+        } catch (SQLException e) {
+            // Same as SQLiteDatabase.insert: report the row as not inserted and carry on.
+            Log.e(LOG_TAG, "Error inserting " + values, e);
+            return -1;
+        }
+    }
+
+    private static boolean hasColumns(ContentValues values) {
+        if (values.size() != COLUMNS.length) {
+            return false;
+        }
+        for (String column : COLUMNS) {
+            if (!values.containsKey(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void close() {
+        mStatement.close();
+    }
+}
@@ -16,13 +16,36 @@
 package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
 import android.content.UriMatcher;
+import android.database.AbstractWindowedCursor;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
 
 public class WeatherProvider extends ContentProvider {
 
@@ -30,12 +53,51 @@ public class WeatherProvider extends ContentProvider {
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
 
+    // Change notifications held back while applyBatch runs on this thread
+    private final ThreadLocal<Set<Uri>> mPendingNotifications = new ThreadLocal<Set<Uri>>();
+    // Results of the weather-with-location queries, or null where they can't be copied
+    private WeatherQueryCache mQueryCache;
+    private final LocationIndex mLocationIndex = new LocationIndex();
+
+    // Rollup weeks and months start at midnight in the time zone they were worked out in,
+    // which is kept here so they're worked out again after a change of zone, even one made
+    // while the app wasn't running.
+    private static final String PREFS_NAME = "weather_provider";
+    private static final String PREF_ROLLUP_TIME_ZONE = "rollup_time_zone";
+    // The DayMath the rollups are known to match, so once checked the check is a comparison.
+    private volatile DayMath mRollupDayMath;
+    private final Object mRollupTimeZoneLock = new Object();
+    // How long each operation has taken on each uri pattern, for METHOD_PROVIDER_METRICS
+    private final ProviderMetrics mMetrics = new ProviderMetrics(METRICS_MATCH_CODES,
+            METRICS_PATTERNS);
+
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
+    static final int WEATHER_WITH_LOCATION_AND_DATE_RANGE = 103;
     static final int LOCATION = 300;
+    static final int SYNC_RUNS = 400;
+    static final int SYNC_RUNS_SUMMARY = 401;
+    static final int ROLLUP = 500;
+    static final int ROLLUP_WITH_LOCATION = 501;
+    static final int ROLLUP_WITH_LOCATION_AND_PERIOD = 502;
+    static final int ROLLUP_WITH_LOCATION_AND_DATE_RANGE = 503;
+
+    // sync_runs is a ring buffer: inserting a run drops whatever is older than this many runs.
+    static final int MAX_SYNC_RUNS = 200;
+
+    // The match codes in increasing order, and the uri patterns their metrics are reported under
+    private static final int[] METRICS_MATCH_CODES = {
+            WEATHER, WEATHER_WITH_LOCATION, WEATHER_WITH_LOCATION_AND_DATE,
+            WEATHER_WITH_LOCATION_AND_DATE_RANGE, LOCATION, SYNC_RUNS, SYNC_RUNS_SUMMARY,
+            ROLLUP, ROLLUP_WITH_LOCATION, ROLLUP_WITH_LOCATION_AND_PERIOD,
+            ROLLUP_WITH_LOCATION_AND_DATE_RANGE};
+    private static final String[] METRICS_PATTERNS = {
+            "weather", "weather/*", "weather/*/#", "weather/*/#/#", "location", "sync_runs",
+            "sync_runs/summary", "rollup", "rollup/*", "rollup/*/*", "rollup/*/*/#/#"};
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    // The query builder and selections are package-private for TestQueryPlans.
+    static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
 
     static{
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
@@ -51,37 +113,94 @@ public class WeatherProvider extends ContentProvider {
                         "." + WeatherContract.LocationEntry._ID);
     }
 
-    //location.location_setting = ?
-    private static final String sLocationSettingSelection =
-            WeatherContract.LocationEntry.TABLE_NAME+
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
+    // The location setting is looked up in mLocationIndex, so the weather rows are found by
+    // their location id rather than through the location table.
 
-    //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
-            WeatherContract.LocationEntry.TABLE_NAME+
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+    //weather.location_id = ?
+    static final String sLocationSettingSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    //weather.location_id = ? AND date >= ?
+    static final String sLocationSettingWithStartDateSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
-    //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
-            WeatherContract.LocationEntry.TABLE_NAME +
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+    //weather.location_id = ? AND date > ?
+    static final String sLocationSettingAfterDateSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " > ? ";
+
+    //weather.location_id = ? AND date = ?
+    static final String sLocationSettingAndDaySelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    //weather.location_id = ? AND date BETWEEN ? AND ?
+    static final String sLocationSettingAndDateRangeSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " BETWEEN ? AND ? ";
+
+    //location_id = ? AND date BETWEEN ? AND ?, an upsert's stored rows for a location
+    static final String sLocationAndDateRangeSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " BETWEEN ? AND ?";
+
+    //weather_rollup.location_id = ?
+    static final String sRollupLocationSelection =
+            WeatherContract.RollupEntry.COLUMN_LOC_KEY + " = ? ";
+
+    //weather_rollup.location_id = ? AND period = ?
+    static final String sRollupLocationAndPeriodSelection =
+            WeatherContract.RollupEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.RollupEntry.COLUMN_PERIOD + " = ? ";
+
+    //weather_rollup.location_id = ? AND period = ? AND start_date <= ? AND end_date >= ?
+    static final String sRollupLocationAndDateRangeSelection =
+            sRollupLocationAndPeriodSelection + "AND " +
+                    WeatherContract.RollupEntry.COLUMN_START_DATE + " <= ? AND " +
+                    WeatherContract.RollupEntry.COLUMN_END_DATE + " >= ? ";
+
+    /**
+     * @return the id of the uri's location setting, as a selection argument; an unknown
+     * location gets an id no weather row has
+     */
+    private String getLocationIdArg(Uri uri) {
+        return Long.toString(mLocationIndex.getId(mOpenHelper.getReadableDatabase(),
+                WeatherContract.WeatherEntry.getLocationSettingFromUri(uri)));
+    }
+
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
-        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+        String locationId = getLocationIdArg(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+        long afterDate = WeatherContract.WeatherEntry.getAfterDateFromUri(uri);
+        int limit = WeatherContract.WeatherEntry.getLimitFromUri(uri);
+        if (limit < 0) {
+            throw new IllegalArgumentException("Bad limit in uri: " + uri);
+        }
 
         String[] selectionArgs;
         String selection;
 
-        if (startDate == 0) {
+        if (afterDate != 0) {
+            // A later page: it only follows on from the page before in date order.
+            selectionArgs = new String[]{locationId, Long.toString(afterDate)};
+            selection = sLocationSettingAfterDateSelection;
+            sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+        } else if (startDate == 0) {
             selection = sLocationSettingSelection;
-            selectionArgs = new String[]{locationSetting};
+            selectionArgs = new String[]{locationId};
         } else {
-            selectionArgs = new String[]{locationSetting, Long.toString(startDate)};
+            selectionArgs = new String[]{locationId, Long.toString(startDate)};
             selection = sLocationSettingWithStartDateSelection;
         }
+        if (limit > 0 && sortOrder == null) {
+            sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+        }
 
         return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
                 projection,
@@ -89,25 +208,124 @@ public class WeatherProvider extends ContentProvider {
                 selectionArgs,
                 null,
                 null,
-                sortOrder
+                sortOrder,
+                limit > 0 ? Integer.toString(limit) : null
         );
     }
 
     private Cursor getWeatherByLocationSettingAndDate(
             Uri uri, String[] projection, String sortOrder) {
-        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+        String locationId = getLocationIdArg(uri);
         long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
 
         return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
                 projection,
                 sLocationSettingAndDaySelection,
-                new String[]{locationSetting, Long.toString(date)},
+                new String[]{locationId, Long.toString(date)},
                 null,
                 null,
                 sortOrder
         );
     }
 
+    private Cursor getWeatherByLocationSettingAndDateRange(
+            Uri uri, String[] projection, String sortOrder) {
+        String locationId = getLocationIdArg(uri);
+        long startDate = WeatherContract.WeatherEntry.getDateFromUri(uri);
+        long endDate = WeatherContract.WeatherEntry.getEndDateFromUri(uri);
+        int limit = WeatherContract.WeatherEntry.getLimitFromUri(uri);
+        if (limit < 0) {
+            throw new IllegalArgumentException("Bad limit in uri: " + uri);
+        }
+        if (sortOrder == null) {
+            // A limit keeps the first days.  Walking the (location_id, date) index gives them
+            // in this order without a sort.
+            sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+        }
+
+        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+                projection,
+                sLocationSettingAndDateRangeSelection,
+                new String[]{locationId, Long.toString(startDate), Long.toString(endDate)},
+                null,
+                null,
+                sortOrder,
+                limit > 0 ? Integer.toString(limit) : null
+        );
+    }
+
+    /**
+     * Work out every week and month again if the device's time zone isn't the one they were
+     * worked out in.  Writes in between only redo the weeks and months they touch, so this
+     * runs before the rollups are read.
+     */
+    private void checkRollupTimeZone() {
+        DayMath dayMath = DayMath.getDefault();
+        if (dayMath == mRollupDayMath) {
+            return;
+        }
+        synchronized (mRollupTimeZoneLock) {
+            if (dayMath == mRollupDayMath) {
+                return;
+            }
+            String timeZone = dayMath.getTimeZone().getID();
+            SharedPreferences prefs = getContext().getSharedPreferences(PREFS_NAME,
+                    Context.MODE_PRIVATE);
+            if (!timeZone.equals(prefs.getString(PREF_ROLLUP_TIME_ZONE, null))) {
+                SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    WeatherRollups rollups = new WeatherRollups(dayMath);
+                    rollups.addEverything();
+                    rollups.update(db);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                prefs.edit().putString(PREF_ROLLUP_TIME_ZONE, timeZone).commit();
+                notifyChange(WeatherContract.RollupEntry.CONTENT_URI);
+            }
+            mRollupDayMath = dayMath;
+        }
+    }
+
+    /**
+     * A location's weeks or months, all of them or those overlapping a date range, in date
+     * order unless asked otherwise.
+     */
+    private Cursor getRollups(Uri uri, String[] projection, String sortOrder) {
+        int match = sUriMatcher.match(uri);
+        String locationId = Long.toString(mLocationIndex.getId(mOpenHelper.getReadableDatabase(),
+                WeatherContract.RollupEntry.getLocationSettingFromUri(uri)));
+        String selection;
+        String[] selectionArgs;
+        if (match == ROLLUP_WITH_LOCATION) {
+            selection = sRollupLocationSelection;
+            selectionArgs = new String[]{locationId};
+        } else {
+            String period = WeatherContract.RollupEntry.getPeriodFromUri(uri);
+            if (!WeatherContract.RollupEntry.PERIOD_WEEK.equals(period)
+                    && !WeatherContract.RollupEntry.PERIOD_MONTH.equals(period)) {
+                throw new IllegalArgumentException("Bad period in uri: " + uri);
+            }
+            if (match == ROLLUP_WITH_LOCATION_AND_PERIOD) {
+                selection = sRollupLocationAndPeriodSelection;
+                selectionArgs = new String[]{locationId, period};
+            } else {
+                selection = sRollupLocationAndDateRangeSelection;
+                selectionArgs = new String[]{locationId, period,
+                        Long.toString(WeatherContract.RollupEntry.getEndDateFromUri(uri)),
+                        Long.toString(WeatherContract.RollupEntry.getStartDateFromUri(uri))};
+            }
+        }
+        if (sortOrder == null) {
+            sortOrder = WeatherContract.RollupEntry.COLUMN_PERIOD + " ASC, "
+                    + WeatherContract.RollupEntry.COLUMN_START_DATE + " ASC";
+        }
+        return mOpenHelper.getReadableDatabase().query(WeatherContract.RollupEntry.TABLE_NAME,
+                projection, selection, selectionArgs, null, null, sortOrder);
+    }
+
     /*
         Students: Here is where you need to create the UriMatcher. This UriMatcher will
         match each URI to the WEATHER, WEATHER_WITH_LOCATION, WEATHER_WITH_LOCATION_AND_DATE,
@@ -128,8 +346,20 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER, WEATHER);
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*", WEATHER_WITH_LOCATION);
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#/#",
+                WEATHER_WITH_LOCATION_AND_DATE_RANGE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_RUNS, SYNC_RUNS);
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_RUNS + "/summary", SYNC_RUNS_SUMMARY);
+
+        matcher.addURI(authority, WeatherContract.PATH_ROLLUP, ROLLUP);
+        matcher.addURI(authority, WeatherContract.PATH_ROLLUP + "/*", ROLLUP_WITH_LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_ROLLUP + "/*/*",
+                ROLLUP_WITH_LOCATION_AND_PERIOD);
+        matcher.addURI(authority, WeatherContract.PATH_ROLLUP + "/*/*/#/#",
+                ROLLUP_WITH_LOCATION_AND_DATE_RANGE);
         return matcher;
     }
 
@@ -140,6 +370,20 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         mOpenHelper = new WeatherDbHelper(getContext());
+        if (WeatherQueryCache.isSupported()) {
+            mQueryCache = new WeatherQueryCache(WeatherQueryCache.DEFAULT_MAX_BYTES);
+        }
+        // Days are worked out in the device's time zone, which the user can change.  The
+        // provider lives as long as the process, so listen for as long as it runs; a process
+        // started later reads the zone afresh, so there's no need to be woken for it.
+        getContext().registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                DayMath.resetDefault();
+                // The rollups are worked out again in the new zone the next time they're read.
+                sendNotification(WeatherContract.RollupEntry.CONTENT_URI);
+            }
+        }, new IntentFilter(Intent.ACTION_TIMEZONE_CHANGED));
         return true;
     }
 
@@ -159,32 +403,110 @@ public class WeatherProvider extends ContentProvider {
             case WEATHER_WITH_LOCATION_AND_DATE:
                 return WeatherContract.WeatherEntry.CONTENT_ITEM_TYPE;
             case WEATHER_WITH_LOCATION:
+            case WEATHER_WITH_LOCATION_AND_DATE_RANGE:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case WEATHER:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case SYNC_RUNS:
+            case SYNC_RUNS_SUMMARY:
+                return WeatherContract.SyncRunEntry.CONTENT_TYPE;
+            case ROLLUP:
+            case ROLLUP_WITH_LOCATION:
+            case ROLLUP_WITH_LOCATION_AND_PERIOD:
+            case ROLLUP_WITH_LOCATION_AND_DATE_RANGE:
+                return WeatherContract.RollupEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
     }
 
+    /**
+     * Answer a query for a location's weather, one day of it or a range of days, from the
+     * cache if it can, and otherwise keep what the database returns.
+     */
+    private Cursor queryWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
+        int match = sUriMatcher.match(uri);
+        WeatherQueryCache.Key key = null;
+        long generation = 0;
+        if (mQueryCache != null) {
+            long firstDate;
+            long lastDate;
+            if (match == WEATHER_WITH_LOCATION_AND_DATE) {
+                firstDate = WeatherContract.WeatherEntry.getDateFromUri(uri);
+                lastDate = firstDate;
+            } else if (match == WEATHER_WITH_LOCATION_AND_DATE_RANGE) {
+                firstDate = WeatherContract.WeatherEntry.getDateFromUri(uri);
+                lastDate = WeatherContract.WeatherEntry.getEndDateFromUri(uri);
+            } else {
+                firstDate = Math.max(WeatherContract.WeatherEntry.getStartDateFromUri(uri),
+                        WeatherContract.WeatherEntry.getAfterDateFromUri(uri) + 1);
+                lastDate = Long.MAX_VALUE;
+            }
+            key = new WeatherQueryCache.Key(uri.toString(), projection, sortOrder,
+                    WeatherContract.WeatherEntry.getLocationSettingFromUri(uri),
+                    firstDate, lastDate);
+            Cursor cached = mQueryCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            generation = mQueryCache.getGeneration();
+        }
+
+        Cursor cursor;
+        if (match == WEATHER_WITH_LOCATION_AND_DATE) {
+            cursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
+        } else if (match == WEATHER_WITH_LOCATION_AND_DATE_RANGE) {
+            cursor = getWeatherByLocationSettingAndDateRange(uri, projection, sortOrder);
+        } else {
+            cursor = getWeatherByLocationSetting(uri, projection, sortOrder);
+        }
+        // Inside a transaction, e.g. an applyBatch, this thread can read rows that may yet be
+        // rolled back.
+        if (mQueryCache != null && !mOpenHelper.getReadableDatabase().inTransaction()) {
+            cursor = mQueryCache.put(key, cursor, generation);
+        }
+        return cursor;
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        long start = System.nanoTime();
+        int match = sUriMatcher.match(uri);
+        Cursor cursor = query(match, uri, projection, selection, selectionArgs, sortOrder);
+        if (cursor instanceof AbstractWindowedCursor) {
+            // A database cursor doesn't run its query until the caller first reads it, so it's
+            // recorded then, rather than filled here just to count it.
+            return new MeasuredCursor((AbstractWindowedCursor) cursor, mMetrics, match, start);
+        }
+        // Already in memory, e.g. answered from or just copied into the cache.
+        mMetrics.record(ProviderMetrics.QUERY, match, System.nanoTime() - start,
+                cursor.getCount());
+        return cursor;
+    }
+
+    private Cursor query(int match, Uri uri, String[] projection, String selection,
+                         String[] selectionArgs, String sortOrder) {
         // Here's the switch statement that, given a URI, will determine what kind of request it is,
         // and query the database accordingly.
         Cursor retCursor;
-        switch (sUriMatcher.match(uri)) {
-            // "weather/*/*"
-            case WEATHER_WITH_LOCATION_AND_DATE:
-            {
-                retCursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
+        switch (match) {
+            // "weather/*/#/#"
+            case WEATHER_WITH_LOCATION_AND_DATE_RANGE: {
+                retCursor = queryWeatherByLocationSetting(uri, projection, sortOrder);
+                // Writes notify a day's uri or the location's.  Neither reaches an observer of
+                // the range's own uri, but both reach one of the location's.
+                uri = WeatherContract.WeatherEntry.buildWeatherLocation(
+                        WeatherContract.WeatherEntry.getLocationSettingFromUri(uri));
                 break;
             }
+            // "weather/*/*"
+            case WEATHER_WITH_LOCATION_AND_DATE:
             // "weather/*"
             case WEATHER_WITH_LOCATION: {
-                retCursor = getWeatherByLocationSetting(uri, projection, sortOrder);
+                retCursor = queryWeatherByLocationSetting(uri, projection, sortOrder);
                 break;
             }
             // "weather"
@@ -213,6 +535,51 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "sync_runs"
+            case SYNC_RUNS: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.SyncRunEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "sync_runs/summary"
+            case SYNC_RUNS_SUMMARY: {
+                retCursor = getSyncRunSummary(selection, selectionArgs);
+                // Refresh when a run is added, which is notified on the table's uri.
+                uri = WeatherContract.SyncRunEntry.CONTENT_URI;
+                break;
+            }
+            // "rollup"
+            case ROLLUP: {
+                checkRollupTimeZone();
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.RollupEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "rollup/*", "rollup/*/*" and "rollup/*/*/#/#"
+            case ROLLUP_WITH_LOCATION:
+            case ROLLUP_WITH_LOCATION_AND_PERIOD:
+            case ROLLUP_WITH_LOCATION_AND_DATE_RANGE: {
+                checkRollupTimeZone();
+                retCursor = getRollups(uri, projection, sortOrder);
+                // Writes notify the location's rollups as a whole.
+                uri = WeatherContract.RollupEntry.buildRollupLocation(
+                        WeatherContract.RollupEntry.getLocationSettingFromUri(uri));
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -226,62 +593,178 @@ public class WeatherProvider extends ContentProvider {
      */
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        long start = System.nanoTime();
+        int match = sUriMatcher.match(uri);
+        Uri inserted = insert(match, uri, values);
+        mMetrics.record(ProviderMetrics.INSERT, match, System.nanoTime() - start, 1);
+        return inserted;
+    }
+
+    private Uri insert(int match, Uri uri, ContentValues values) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        final int match = sUriMatcher.match(uri);
         Uri returnUri;
 
         switch (match) {
             case WEATHER: {
                 normalizeDate(values);
-                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                WeatherChanges changes = new WeatherChanges();
+                long _id;
+                db.beginTransaction();
+                try {
+                    _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                    if ( _id <= 0 )
+                        throw new android.database.SQLException("Failed to insert row into " + uri);
+                    addRow(changes, values);
+                    changes.updateRollups(db);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                notifyWeatherChanges(db, changes);
+                return WeatherContract.WeatherEntry.buildWeatherUri(_id);
+            }
+            case LOCATION: {
+                if (WeatherContract.WeatherEntry.isUpsertUri(uri)) {
+                    return WeatherContract.LocationEntry.buildLocationUri(
+                            insertOrGetLocation(db, values));
+                }
+                long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
                 if ( _id > 0 )
-                    returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
+                    returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                mLocationIndex.put(values.getAsString(
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING), _id);
                 break;
             }
-            case LOCATION: {
-                long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+            case SYNC_RUNS: {
+                long _id = db.insert(WeatherContract.SyncRunEntry.TABLE_NAME, null, values);
                 if ( _id > 0 )
-                    returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
+                    returnUri = ContentUris.withAppendedId(uri, _id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                // Ids only grow, so everything this far behind the new one is out of the buffer.
+                db.delete(WeatherContract.SyncRunEntry.TABLE_NAME,
+                        WeatherContract.SyncRunEntry._ID + " <= ?",
+                        new String[]{Long.toString(_id - MAX_SYNC_RUNS)});
                 break;
             }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return returnUri;
     }
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        long start = System.nanoTime();
+        int match = sUriMatcher.match(uri);
+        int rowsDeleted = delete(match, uri, selection, selectionArgs);
+        mMetrics.record(ProviderMetrics.DELETE, match, System.nanoTime() - start, rowsDeleted);
+        return rowsDeleted;
+    }
+
+    private int delete(int match, Uri uri, String selection, String[] selectionArgs) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        final int match = sUriMatcher.match(uri);
         int rowsDeleted;
+        WeatherChanges changes = null;
         // this makes delete all rows return the number of rows deleted
-        if ( null == selection ) selection = "1";
+        if ( null == selection ) {
+            selection = "1";
+            if (match == WEATHER) {
+                changes = new WeatherChanges();
+                changes.addEverything();
+            }
+        }
         switch (match) {
             case WEATHER:
-                rowsDeleted = db.delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                db.beginTransaction();
+                try {
+                    if (changes == null) {
+                        // Find out which locations lose rows before they're gone.
+                        changes = new WeatherChanges();
+                        changes.addMatching(db, selection, selectionArgs);
+                    }
+                    rowsDeleted = db.delete(
+                            WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                    changes.updateRollups(db);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                mLocationIndex.clear();
+                break;
+            case SYNC_RUNS:
+                rowsDeleted = db.delete(
+                        WeatherContract.SyncRunEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            if (changes != null) {
+                notifyWeatherChanges(db, changes);
+            } else {
+                notifyChange(uri);
+            }
         }
         return rowsDeleted;
     }
 
-    private void normalizeDate(ContentValues values) {
+    /**
+     * Build the SUMMARY_URI cursor: the 50th, 95th and 99th percentile of each phase over the
+     * stored runs (optionally filtered, e.g. to completed ones).
+     */
+    private Cursor getSyncRunSummary(String selection, String[] selectionArgs) {
+        String[] phases = WeatherContract.SyncRunEntry.PHASE_COLUMNS;
+        Cursor runs = mOpenHelper.getReadableDatabase().query(
+                WeatherContract.SyncRunEntry.TABLE_NAME, phases, selection, selectionArgs,
+                null, null, null);
+        long[][] values = new long[phases.length][runs.getCount()];
+        try {
+            for (int row = 0; runs.moveToNext(); row++) {
+                for (int phase = 0; phase < phases.length; phase++) {
+                    values[phase][row] = runs.getLong(phase);
+                }
+            }
+        } finally {
+            runs.close();
+        }
+
+        MatrixCursor summary = new MatrixCursor(new String[]{
+                WeatherContract.SyncRunEntry.COLUMN_PHASE,
+                WeatherContract.SyncRunEntry.COLUMN_COUNT,
+                WeatherContract.SyncRunEntry.COLUMN_P50,
+                WeatherContract.SyncRunEntry.COLUMN_P95,
+                WeatherContract.SyncRunEntry.COLUMN_P99});
+        for (int phase = 0; phase < phases.length; phase++) {
+            long[] sorted = values[phase];
+            Arrays.sort(sorted);
+            summary.addRow(new Object[]{phases[phase], sorted.length,
+                    percentile(sorted, 0.50), percentile(sorted, 0.95), percentile(sorted, 0.99)});
+        }
+        return summary;
+    }
+
+    /**
+     * Nearest-rank percentile: the smallest value at least the given fraction of the values
+     * are less than or equal to.
+     */
+    static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+
+    private static void normalizeDate(ContentValues values) {
         // normalize the date value
         if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
             long dateValue = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
@@ -289,59 +772,532 @@ public class WeatherProvider extends ContentProvider {
         }
     }
 
+    /**
+     * The location's id, inserting it if it isn't stored yet.
+     */
+    private long insertOrGetLocation(SQLiteDatabase db, ContentValues values) {
+        String locationSetting =
+                values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        Long cityId = values.getAsLong(WeatherContract.LocationEntry.COLUMN_CITY_ID);
+        long _id = mLocationIndex.getId(db, locationSetting);
+        boolean inserted = false;
+        if (_id == LocationIndex.NOT_FOUND) {
+            // Not stored when the index was read.  Look again and insert in one transaction,
+            // so two callers can't both decide to insert.
+            db.beginTransaction();
+            try {
+                Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                        new String[]{WeatherContract.LocationEntry._ID},
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                        new String[]{locationSetting}, null, null, null);
+                try {
+                    if (cursor.moveToFirst()) {
+                        _id = cursor.getLong(0);
+                    } else {
+                        _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+                        if (_id <= 0) {
+                            throw new android.database.SQLException(
+                                    "Failed to insert location " + locationSetting);
+                        }
+                        inserted = true;
+                    }
+                } finally {
+                    cursor.close();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            mLocationIndex.put(locationSetting, _id);
+        }
+
+        boolean changed = inserted;
+        // Group requests go by city id, so keep it up to date: locations added before we knew
+        // it need it, and OWM sometimes renumbers a city.
+        if (!inserted && cityId != null) {
+            ContentValues cityIdValues = new ContentValues();
+            cityIdValues.put(WeatherContract.LocationEntry.COLUMN_CITY_ID, cityId);
+            changed = db.update(WeatherContract.LocationEntry.TABLE_NAME, cityIdValues,
+                    WeatherContract.LocationEntry._ID + " = ? AND ("
+                            + WeatherContract.LocationEntry.COLUMN_CITY_ID + " IS NULL OR "
+                            + WeatherContract.LocationEntry.COLUMN_CITY_ID + " != ?)",
+                    new String[]{Long.toString(_id), Long.toString(cityId)}) > 0;
+        }
+        // Once committed, so the query cache can't be refilled with what was there before.
+        if (changed) {
+            notifyChange(WeatherContract.LocationEntry.CONTENT_URI);
+        }
+        return _id;
+    }
+
+    /**
+     * The platform cancels a sync by interrupting its thread.  A weather write that sees that
+     * throws, so the caller can tell a canceled write from one that had nothing to write.
+     * android.os.OperationCanceledException needs API 16, hence CancellationException.
+     *
+     * @throws CancellationException if the calling thread has been interrupted
+     */
+    private static void throwIfCanceled(String operation) {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException(operation + " canceled");
+        }
+    }
+
+    /**
+     * Apply the operations in a single transaction, so either all of them are kept or none
+     * are, and readers never see some without the rest.  Change notifications are held until
+     * the transaction commits and then sent once per URI, so a batch that inserts, updates and
+     * deletes weather reloads each loader once rather than once per operation.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Set<Uri> notifications = new LinkedHashSet<Uri>();
+        ContentProviderResult[] results;
+        boolean committed = false;
+        mPendingNotifications.set(notifications);
+        db.beginTransaction();
+        try {
+            // A weather write that sees the sync was canceled throws, which rolls back the
+            // whole batch.  Don't commit one canceled after its last write either.
+            results = super.applyBatch(operations);
+            throwIfCanceled("Batch");
+            db.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            db.endTransaction();
+            mPendingNotifications.remove();
+            if (!committed) {
+                // Locations the batch inserted are gone again.
+                mLocationIndex.clear();
+            }
+        }
+        for (Uri uri : collapseNotifications(notifications)) {
+            sendNotification(uri);
+        }
+        return results;
+    }
+
+    private void notifyWeatherChanges(SQLiteDatabase db, WeatherChanges changes) {
+        for (Uri uri : changes.getUris(db, mLocationIndex)) {
+            notifyChange(uri);
+        }
+    }
+
+    private static void addRow(WeatherChanges changes, ContentValues values) {
+        Long locationId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        Long date = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        if (locationId != null && date != null) {
+            changes.add(locationId, date);
+        } else {
+            changes.addEverything();
+        }
+    }
+
+    private void notifyChange(Uri uri) {
+        Set<Uri> pending = mPendingNotifications.get();
+        if (pending != null) {
+            // Observers are matched on the path, so the query doesn't make it a different URI.
+            pending.add(uri.buildUpon().clearQuery().build());
+        } else {
+            sendNotification(uri);
+        }
+    }
+
+    /**
+     * Tell the observers of a committed change, after dropping the cached results it makes
+     * stale.
+     */
+    private void sendNotification(Uri uri) {
+        if (mQueryCache != null) {
+            switch (sUriMatcher.match(uri)) {
+                case WEATHER_WITH_LOCATION_AND_DATE:
+                    mQueryCache.invalidateDay(
+                            WeatherContract.WeatherEntry.getLocationSettingFromUri(uri),
+                            WeatherContract.WeatherEntry.getDateFromUri(uri));
+                    break;
+                case WEATHER_WITH_LOCATION:
+                    mQueryCache.invalidateLocation(
+                            WeatherContract.WeatherEntry.getLocationSettingFromUri(uri));
+                    break;
+                case SYNC_RUNS:
+                case SYNC_RUNS_SUMMARY:
+                case ROLLUP:
+                case ROLLUP_WITH_LOCATION:
+                    break;
+                default:
+                    // The whole weather table, or locations, whose names and coordinates are
+                    // in every result.
+                    mQueryCache.invalidateAll();
+                    break;
+            }
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+    /**
+     * Drop the URIs another one in the set already covers.  Notifying a URI also notifies the
+     * observers of every URI under it, e.g. weather covers weather/94043.  Several days of one
+     * location, which a batch writes one operation at a time, become that location's URI.
+     */
+    static List<Uri> collapseNotifications(Set<Uri> notified) {
+        Set<Uri> uris = new LinkedHashSet<Uri>();
+        Map<String, Uri> dayByLocation = new HashMap<String, Uri>();
+        for (Uri uri : notified) {
+            if (sUriMatcher.match(uri) != WEATHER_WITH_LOCATION_AND_DATE) {
+                uris.add(uri);
+                continue;
+            }
+            String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+            Uri day = dayByLocation.get(locationSetting);
+            if (day == null) {
+                dayByLocation.put(locationSetting, uri);
+                uris.add(uri);
+            } else if (!day.equals(uri)) {
+                uris.remove(day);
+                uris.add(WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting));
+            }
+        }
+
+        List<Uri> collapsed = new ArrayList<Uri>();
+        for (Uri uri : uris) {
+            boolean covered = false;
+            for (Uri other : uris) {
+                if (other != uri && isAncestor(other, uri)) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                collapsed.add(uri);
+            }
+        }
+        return collapsed;
+    }
+
+    private static boolean isAncestor(Uri ancestor, Uri uri) {
+        List<String> ancestorPath = ancestor.getPathSegments();
+        List<String> path = uri.getPathSegments();
+        return ancestorPath.size() < path.size()
+                && equal(ancestor.getAuthority(), uri.getAuthority())
+                && ancestorPath.equals(path.subList(0, ancestorPath.size()));
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
     @Override
     public int update(
             Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        long start = System.nanoTime();
+        int match = sUriMatcher.match(uri);
+        int rowsUpdated = update(match, uri, values, selection, selectionArgs);
+        mMetrics.record(ProviderMetrics.UPDATE, match, System.nanoTime() - start, rowsUpdated);
+        return rowsUpdated;
+    }
+
+    private int update(
+            int match, Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        final int match = sUriMatcher.match(uri);
         int rowsUpdated;
 
         switch (match) {
-            case WEATHER:
+            case WEATHER: {
+                if (WeatherContract.WeatherEntry.isUpsertUri(uri)) {
+                    if (selection != null) {
+                        throw new UnsupportedOperationException(
+                                "Upsert takes no selection: " + uri);
+                    }
+                    UpsertSummary summary = upsertWeather(db, new ContentValues[]{values});
+                    if (summary.getWrittenCount() > 0) {
+                        notifyWeatherChanges(db, summary.changes);
+                    }
+                    return summary.getWrittenCount();
+                }
                 normalizeDate(values);
-                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
-                break;
+                WeatherChanges changes = new WeatherChanges();
+                db.beginTransaction();
+                try {
+                    if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_LOC_KEY)
+                            || values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
+                        // Rows moving to another location or day; too much to follow.
+                        changes.addEverything();
+                    } else {
+                        changes.addMatching(db, selection, selectionArgs);
+                    }
+                    rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values,
+                            selection, selectionArgs);
+                    changes.updateRollups(db);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (rowsUpdated != 0) {
+                    notifyWeatherChanges(db, changes);
+                }
+                return rowsUpdated;
+            }
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                if (values.containsKey(WeatherContract.LocationEntry._ID)
+                        || values.containsKey(
+                                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)) {
+                    mLocationIndex.clear();
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsUpdated;
     }
 
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
+        long start = System.nanoTime();
+        int match = sUriMatcher.match(uri);
+        int rowsInserted = bulkInsert(match, uri, values);
+        mMetrics.record(ProviderMetrics.BULK_INSERT, match, System.nanoTime() - start,
+                rowsInserted);
+        return rowsInserted;
+    }
+
+    private int bulkInsert(int match, Uri uri, ContentValues[] values) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
+                if (WeatherContract.WeatherEntry.isUpsertUri(uri)) {
+                    return upsertWeather(values).getWrittenCount();
+                }
                 db.beginTransaction();
                 int returnCount = 0;
+                WeatherInserter inserter = new WeatherInserter(db);
+                WeatherChanges changes = new WeatherChanges();
                 try {
                     for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                        // Leaves the transaction unsuccessful, so none of the rows are kept.
+                        throwIfCanceled("Bulk insert");
+                        long _id = inserter.insert(value);
                         if (_id != -1) {
                             returnCount++;
+                            addRow(changes, value);
                         }
                     }
+                    changes.updateRollups(db);
                     db.setTransactionSuccessful();
                 } finally {
+                    inserter.close();
                     db.endTransaction();
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
+                notifyWeatherChanges(db, changes);
                 return returnCount;
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    @Override
+    @TargetApi(11)
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.METHOD_UPSERT_WEATHER.equals(method)) {
+            Parcelable[] parcelables = extras.getParcelableArray(WeatherContract.KEY_VALUES);
+            ContentValues[] values = new ContentValues[parcelables.length];
+            for (int i = 0; i < parcelables.length; i++) {
+                values[i] = (ContentValues) parcelables[i];
+            }
+            UpsertSummary summary = upsertWeather(values);
+            Bundle result = new Bundle();
+            result.putInt(WeatherContract.KEY_INSERTED, summary.inserted);
+            result.putInt(WeatherContract.KEY_UPDATED, summary.updated);
+            result.putInt(WeatherContract.KEY_UNCHANGED, summary.unchanged);
+            return result;
+        }
+        if (WeatherContract.METHOD_APPLY_RETENTION.equals(method)) {
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            WeatherRetention.Result retention = new WeatherRetention.Result();
+            try {
+                new WeatherRetention(db, WeatherRetention.DEFAULT_BATCH_ROWS,
+                        WeatherRetention.DEFAULT_VACUUM_PAGES).run(Long.parseLong(arg), retention);
+            } finally {
+                // Each batch commits on its own, so what went is gone even if a later one threw.
+                notifyWeatherChanges(db, retention.changes);
+            }
+            Bundle result = new Bundle();
+            result.putInt(WeatherContract.KEY_DELETED, retention.deletedRows);
+            result.putLong(WeatherContract.KEY_DATABASE_BYTES, retention.databaseBytes);
+            result.putLong(WeatherContract.KEY_FREE_BYTES, retention.freeBytes);
+            return result;
+        }
+        if (WeatherContract.METHOD_PROVIDER_METRICS.equals(method)) {
+            return mMetrics.getSnapshot();
+        }
+        if (WeatherContract.METHOD_RESET_PROVIDER_METRICS.equals(method)) {
+            mMetrics.reset();
+            return new Bundle();
+        }
+        if (WeatherContract.METHOD_QUERY_CACHE_STATS.equals(method)) {
+            Bundle result = new Bundle();
+            if (mQueryCache != null) {
+                result.putInt(WeatherContract.KEY_HITS, mQueryCache.getHitCount());
+                result.putInt(WeatherContract.KEY_MISSES, mQueryCache.getMissCount());
+                result.putInt(WeatherContract.KEY_EVICTIONS, mQueryCache.getEvictionCount());
+                result.putInt(WeatherContract.KEY_INVALIDATIONS,
+                        mQueryCache.getInvalidationCount());
+            }
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * How many rows an upsert inserted, updated and left alone.
+     */
+    static final class UpsertSummary {
+        int inserted;
+        int updated;
+        int unchanged;
+        // Where the inserted and updated rows are
+        final WeatherChanges changes = new WeatherChanges();
+
+        int getWrittenCount() {
+            return inserted + updated;
+        }
+    }
+
+    private UpsertSummary upsertWeather(ContentValues[] values) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        UpsertSummary summary = upsertWeather(db, values);
+        if (summary.getWrittenCount() > 0) {
+            notifyWeatherChanges(db, summary.changes);
+        }
+        return summary;
+    }
+
+    /**
+     * Store weather rows, writing only the ones that differ from what's already stored for
+     * their location and date.  A plain insert would hit the UNIQUE(date, location_id)
+     * constraint and REPLACE every row, which deletes and re-inserts it under a new _id even
+     * when nothing changed.
+     *
+     * @throws CancellationException if the thread is interrupted; nothing is kept
+     */
+    static UpsertSummary upsertWeather(SQLiteDatabase db, ContentValues[] values) {
+        UpsertSummary summary = new UpsertSummary();
+
+        // Incoming rows by location, then by date.  A later row for the same day wins, as it
+        // would with REPLACE.
+        Map<Long, TreeMap<Long, ContentValues>> rowsByLocation =
+                new HashMap<Long, TreeMap<Long, ContentValues>>();
+        // Rows without a location or date can't match anything; let the insert reject them.
+        List<ContentValues> unkeyed = new ArrayList<ContentValues>();
+        for (ContentValues value : values) {
+            normalizeDate(value);
+            Long locationId = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+            Long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+            if (locationId == null || date == null) {
+                unkeyed.add(value);
+                continue;
+            }
+            TreeMap<Long, ContentValues> rows = rowsByLocation.get(locationId);
+            if (rows == null) {
+                rows = new TreeMap<Long, ContentValues>();
+                rowsByLocation.put(locationId, rows);
+            }
+            rows.put(date, value);
+        }
+
+        db.beginTransaction();
+        WeatherInserter inserter = new WeatherInserter(db);
+        try {
+            for (Map.Entry<Long, TreeMap<Long, ContentValues>> entry : rowsByLocation.entrySet()) {
+                // Leaves the transaction unsuccessful, so none of the rows are kept.
+                throwIfCanceled("Upsert");
+                TreeMap<Long, ContentValues> rows = entry.getValue();
+                Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                        sLocationAndDateRangeSelection,
+                        new String[]{String.valueOf(entry.getKey()),
+                                String.valueOf(rows.firstKey()), String.valueOf(rows.lastKey())},
+                        null, null, null);
+                try {
+                    int idIndex = cursor.getColumnIndex(WeatherContract.WeatherEntry._ID);
+                    int dateIndex = cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_DATE);
+                    while (cursor.moveToNext()) {
+                        ContentValues value = rows.remove(cursor.getLong(dateIndex));
+                        if (value == null) {
+                            continue;
+                        }
+                        if (matchesRow(cursor, value)) {
+                            summary.unchanged++;
+                        } else {
+                            db.update(WeatherContract.WeatherEntry.TABLE_NAME, value,
+                                    WeatherContract.WeatherEntry._ID + " = ?",
+                                    new String[]{Long.toString(cursor.getLong(idIndex))});
+                            summary.updated++;
+                            summary.changes.add(entry.getKey(), cursor.getLong(dateIndex));
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+                // Whatever is left is a day we didn't have.
+                for (Map.Entry<Long, ContentValues> row : rows.entrySet()) {
+                    if (inserter.insert(row.getValue()) != -1) {
+                        summary.inserted++;
+                        summary.changes.add(entry.getKey(), row.getKey());
+                    }
+                }
+            }
+            for (ContentValues value : unkeyed) {
+                if (inserter.insert(value) != -1) {
+                    summary.inserted++;
+                    summary.changes.addEverything();
+                }
+            }
+            summary.changes.updateRollups(db);
+            db.setTransactionSuccessful();
+        } finally {
+            inserter.close();
+            db.endTransaction();
+        }
+        return summary;
+    }
+
+    /**
+     * @return true if every column in the values holds the same value in the cursor's row
+     */
+    private static boolean matchesRow(Cursor cursor, ContentValues values) {
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            int index = cursor.getColumnIndex(entry.getKey());
+            if (index == -1) {
+                return false;
+            }
+            Object value = entry.getValue();
+            if (value == null) {
+                if (!cursor.isNull(index)) {
+                    return false;
+                }
+            } else if (cursor.isNull(index)) {
+                return false;
+            } else if (value instanceof Number) {
+                if (cursor.getDouble(index) != ((Number) value).doubleValue()) {
+                    return false;
+                }
+            } else if (value instanceof String) {
+                if (!value.equals(cursor.getString(index))) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
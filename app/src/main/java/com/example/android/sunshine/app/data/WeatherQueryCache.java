@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Results of the weather-with-location queries, kept so the forecast list, the detail screen
+ * and the notification asking for the same rows again don't repeat the join.
+ *
+ * Each result is copied out of its SQLite cursor and every hit gets a fresh MatrixCursor over
+ * the copy.  The cache is bounded by the estimated size of the copies.  WeatherProvider tells
+ * it which location, and which day of it, each write changed, and only the results that could
+ * include those rows are dropped.
+ */
+class WeatherQueryCache {
+
+    // A location's forecast list is 14 rows, its detail screen one.  Much bigger results are
+    // one-off queries and aren't worth the copy.
+    static final int MAX_ROWS = 256;
+    static final int DEFAULT_MAX_BYTES = 256 * 1024;
+
+    // Rough costs of a copied row and of each of its values
+    private static final int ROW_OVERHEAD_BYTES = 32;
+    private static final int VALUE_OVERHEAD_BYTES = 16;
+
+    /**
+     * A query, and what part of the weather table it reads.
+     */
+    static final class Key {
+        private final String mUri;
+        private final String[] mProjection;
+        private final String mSortOrder;
+
+        final String locationSetting;
+        // The dates of the rows it can read, both included
+        final long firstDate;
+        final long lastDate;
+
+        Key(String uri, String[] projection, String sortOrder, String locationSetting,
+            long firstDate, long lastDate) {
+            mUri = uri;
+            mProjection = projection;
+            mSortOrder = sortOrder;
+            this.locationSetting = locationSetting;
+            this.firstDate = firstDate;
+            this.lastDate = lastDate;
+        }
+
+        boolean includes(long changedDate) {
+            return changedDate >= firstDate && changedDate <= lastDate;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mUri.equals(other.mUri)
+                    && Arrays.equals(mProjection, other.mProjection)
+                    && (mSortOrder == null
+                            ? other.mSortOrder == null : mSortOrder.equals(other.mSortOrder));
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = mUri.hashCode();
+            hash = 31 * hash + Arrays.hashCode(mProjection);
+            return 31 * hash + (mSortOrder == null ? 0 : mSortOrder.hashCode());
+        }
+    }
+
+    /**
+     * The rows of one result, never changed once made.
+     */
+    private static final class Result {
+        final String[] columns;
+        final Object[][] rows;
+        final int bytes;
+
+        Result(String[] columns, Object[][] rows, int bytes) {
+            this.columns = columns;
+            this.rows = rows;
+            this.bytes = bytes;
+        }
+
+        Cursor newCursor() {
+            MatrixCursor cursor = new MatrixCursor(columns, rows.length);
+            for (Object[] row : rows) {
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+    }
+
+    private final LruCache<Key, Result> mCache;
+    private final int mMaxBytes;
+    // Moved on by every invalidation, so a query that started before a write can't store what
+    // it read once the write has dropped the older results.
+    private long mGeneration;
+    private int mInvalidationCount;
+
+    WeatherQueryCache(int maxBytes) {
+        mMaxBytes = maxBytes;
+        mCache = new LruCache<Key, Result>(maxBytes) {
+            @Override
+            protected int sizeOf(Key key, Result result) {
+                return result.bytes;
+            }
+        };
+    }
+
+    /**
+     * Copying a result needs Cursor.getType.
+     */
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * @return a cursor over the cached result, or null if there isn't one
+     */
+    Cursor get(Key key) {
+        Result result = mCache.get(key);
+        return result == null ? null : result.newCursor();
+    }
+
+    /**
+     * Read before running a query, and hand to {@link #put}.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Keep the result of a query that missed, unless the weather changed since it started.
+     *
+     * @return a cursor to return in place of the one given, which may have been closed
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    Cursor put(Key key, Cursor cursor, long generation) {
+        if (cursor.getCount() > MAX_ROWS) {
+            return cursor;
+        }
+        Result result;
+        try {
+            result = copy(cursor);
+        } finally {
+            cursor.close();
+        }
+        synchronized (this) {
+            if (generation == mGeneration && result.bytes <= mMaxBytes / 4) {
+                mCache.put(key, result);
+            }
+        }
+        return result.newCursor();
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static Result copy(Cursor cursor) {
+        String[] columns = cursor.getColumnNames();
+        Object[][] rows = new Object[cursor.getCount()][];
+        int bytes = 0;
+        cursor.moveToPosition(-1);
+        for (int i = 0; cursor.moveToNext(); i++) {
+            Object[] row = new Object[columns.length];
+            bytes += ROW_OVERHEAD_BYTES;
+            for (int column = 0; column < columns.length; column++) {
+                switch (cursor.getType(column)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[column] = cursor.getLong(column);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[column] = cursor.getDouble(column);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        String string = cursor.getString(column);
+                        row[column] = string;
+                        bytes += 2 * string.length();
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        byte[] blob = cursor.getBlob(column);
+                        row[column] = blob;
+                        bytes += blob.length;
+                        break;
+                    default:
+                        break;
+                }
+                bytes += VALUE_OVERHEAD_BYTES;
+            }
+            rows[i] = row;
+        }
+        return new Result(columns, rows, bytes);
+    }
+
+    /**
+     * Drop the results that could include the location's rows for the date.
+     */
+    synchronized void invalidateDay(String locationSetting, long date) {
+        mGeneration++;
+        for (Key key : mCache.snapshot().keySet()) {
+            if (key.locationSetting.equals(locationSetting) && key.includes(date)) {
+                remove(key);
+            }
+        }
+    }
+
+    /**
+     * Drop every result of the location.
+     */
+    synchronized void invalidateLocation(String locationSetting) {
+        mGeneration++;
+        for (Key key : mCache.snapshot().keySet()) {
+            if (key.locationSetting.equals(locationSetting)) {
+                remove(key);
+            }
+        }
+    }
+
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mInvalidationCount += mCache.snapshot().size();
+        mCache.evictAll();
+    }
+
+    private void remove(Key key) {
+        if (mCache.remove(key) != null) {
+            mInvalidationCount++;
+        }
+    }
+
+    int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    int getMissCount() {
+        return mCache.missCount();
+    }
+
+    /**
+     * @return how many results were dropped to stay within the size bound
+     */
+    int getEvictionCount() {
+        return mCache.evictionCount();
+    }
+
+    /**
+     * @return how many results were dropped because a write changed them
+     */
+    synchronized int getInvalidationCount() {
+        return mInvalidationCount;
+    }
+
+    int getSize() {
+        return mCache.size();
+    }
+}
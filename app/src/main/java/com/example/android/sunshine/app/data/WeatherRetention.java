@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Process;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Deletes expired weather and gives the space back, a little at a time.
+ *
+ * The rows are deleted location by location, a bounded number per statement, each its own
+ * short transaction, so a sync or a loader never waits long for the write lock however much
+ * history has built up.  Freed pages are returned to the file system a few per run, with
+ * the auto_vacuum=INCREMENTAL WeatherDbHelper sets up, instead of a VACUUM that rewrites the
+ * whole file.
+ *
+ * After a location's batches, its weeks and months that have no days left are dropped, and
+ * the one still partly kept is worked out again, in one more short transaction.
+ */
+class WeatherRetention {
+
+    // About as many rows as a page of deletes touches in the indexes, so each statement is
+    // over in a few milliseconds.
+    static final int DEFAULT_BATCH_ROWS = 500;
+    // A sync's worth of pages, so the file shrinks over a few runs after a large delete
+    // rather than in one long stall.
+    static final int DEFAULT_VACUUM_PAGES = 64;
+
+    static final String SQL_EXPIRED_LOCATIONS = "SELECT " + WeatherEntry.COLUMN_LOC_KEY
+            + " FROM " + WeatherEntry.TABLE_NAME + " WHERE " + WeatherEntry.COLUMN_DATE + " <= ?"
+            // As in WeatherChanges, the + keeps SQLite on the date range.
+            + " GROUP BY +" + WeatherEntry.COLUMN_LOC_KEY;
+
+    static final String BATCH_SELECTION = WeatherEntry._ID + " IN (SELECT " + WeatherEntry._ID
+            + " FROM " + WeatherEntry.TABLE_NAME + " WHERE " + WeatherEntry.COLUMN_LOC_KEY
+            + " = ? AND " + WeatherEntry.COLUMN_DATE + " <= ? LIMIT ?)";
+
+    /**
+     * What a run did, and the state of the file after it.
+     */
+    static final class Result {
+        int deletedRows;
+        int batches;
+        // The longest any one delete held the write lock
+        long maxBatchNanos;
+        long reclaimedPages;
+        long databaseBytes;
+        long freeBytes;
+        // The locations that lost rows
+        final WeatherChanges changes = new WeatherChanges();
+    }
+
+    private final SQLiteDatabase mDb;
+    private final int mBatchRows;
+    private final int mVacuumPages;
+
+    WeatherRetention(SQLiteDatabase db, int batchRows, int vacuumPages) {
+        mDb = db;
+        mBatchRows = batchRows;
+        mVacuumPages = vacuumPages;
+    }
+
+    /**
+     * Delete every day up to and including the given date, then reclaim some free pages.
+     * Stops between batches if the thread is interrupted; what was deleted stays deleted.
+     * Must not be called inside a transaction.
+     */
+    Result run(long lastDateToDelete) {
+        Result result = new Result();
+        run(lastDateToDelete, result);
+        return result;
+    }
+
+    /**
+     * Like {@link #run(long)}, filling in the caller's result as it goes, so the locations
+     * already deleted from are known even if a later step throws.
+     */
+    void run(long lastDateToDelete, Result result) {
+        int tid = Process.myTid();
+        int priority = Process.getThreadPriority(tid);
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        try {
+            String date = Long.toString(lastDateToDelete);
+            for (long locationId : getExpiredLocations(date)) {
+                deleteLocation(locationId, lastDateToDelete, result);
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+            }
+            reclaim(result);
+        } finally {
+            Process.setThreadPriority(tid, priority);
+        }
+    }
+
+    private List<Long> getExpiredLocations(String date) {
+        List<Long> locationIds = new ArrayList<Long>();
+        Cursor cursor = mDb.rawQuery(SQL_EXPIRED_LOCATIONS, new String[]{date});
+        try {
+            while (cursor.moveToNext()) {
+                locationIds.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return locationIds;
+    }
+
+    private void deleteLocation(long locationId, long lastDateToDelete, Result result) {
+        String[] args = {Long.toString(locationId), Long.toString(lastDateToDelete),
+                Integer.toString(mBatchRows)};
+        int deleted;
+        do {
+            long start = System.nanoTime();
+            deleted = mDb.delete(WeatherEntry.TABLE_NAME, BATCH_SELECTION, args);
+            result.maxBatchNanos = Math.max(result.maxBatchNanos, System.nanoTime() - start);
+            result.deletedRows += deleted;
+            result.batches++;
+            if (deleted > 0) {
+                result.changes.addLocation(locationId);
+            }
+        } while (deleted == mBatchRows && !Thread.currentThread().isInterrupted());
+
+        mDb.beginTransaction();
+        try {
+            new WeatherRollups().expire(mDb, locationId, lastDateToDelete);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private void reclaim(Result result) {
+        long freeBefore = longForPragma("freelist_count");
+        if (freeBefore > 0) {
+            // A page is given back for each row the pragma returns.
+            WeatherDbHelper.pragma(mDb, "PRAGMA incremental_vacuum(" + mVacuumPages + ")");
+        }
+        long freePages = longForPragma("freelist_count");
+        long pageSize = longForPragma("page_size");
+        result.reclaimedPages = Math.max(0, freeBefore - freePages);
+        result.databaseBytes = longForPragma("page_count") * pageSize;
+        result.freeBytes = freePages * pageSize;
+    }
+
+    private long longForPragma(String name) {
+        return DatabaseUtils.longForQuery(mDb, "PRAGMA " + name, null);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.sunshine.app.data.WeatherContract.RollupEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps weather_rollup in step with the weather table.
+ *
+ * A write records the days it changed, then calls {@link #update(SQLiteDatabase)} in its own
+ * transaction before committing, so readers never see the weather without its rollups.  Only
+ * the weeks and months with a changed day are worked out again, each from just its own days,
+ * which the (location_id, date) index finds without reading the rest of the history.
+ *
+ * Not thread safe; use one per write.
+ */
+class WeatherRollups {
+
+    // OWM's condition codes for thunderstorms (2xx), drizzle (3xx), rain (5xx) and snow (6xx)
+    static final int FIRST_WET_WEATHER_ID = 200;
+    static final int LAST_WET_WEATHER_ID = 699;
+
+    // Every stored week or month overlapping [start_date, next start), so one worked out in
+    // another time zone doesn't stay behind next to its replacement.
+    static final String SQL_DELETE_BUCKET = "DELETE FROM " + RollupEntry.TABLE_NAME + " WHERE "
+            + RollupEntry.COLUMN_LOC_KEY + " = ? AND " + RollupEntry.COLUMN_PERIOD + " = ? AND "
+            + RollupEntry.COLUMN_START_DATE + " < ? AND " + RollupEntry.COLUMN_END_DATE + " >= ?";
+
+    // Nothing is inserted for a week or month with no days left: the GROUP BY has no group.
+    static final String SQL_INSERT_BUCKET = "INSERT INTO " + RollupEntry.TABLE_NAME + " ("
+            + RollupEntry.COLUMN_LOC_KEY + ", "
+            + RollupEntry.COLUMN_PERIOD + ", "
+            + RollupEntry.COLUMN_START_DATE + ", "
+            + RollupEntry.COLUMN_END_DATE + ", "
+            + RollupEntry.COLUMN_DAYS + ", "
+            + RollupEntry.COLUMN_MIN_TEMP + ", "
+            + RollupEntry.COLUMN_MAX_TEMP + ", "
+            + RollupEntry.COLUMN_MEAN_MIN_TEMP + ", "
+            + RollupEntry.COLUMN_MEAN_MAX_TEMP + ", "
+            + RollupEntry.COLUMN_WET_DAYS + ") SELECT "
+            + WeatherEntry.COLUMN_LOC_KEY + ", ?, ?, ?, COUNT(*), "
+            + "MIN(" + WeatherEntry.COLUMN_MIN_TEMP + "), "
+            + "MAX(" + WeatherEntry.COLUMN_MAX_TEMP + "), "
+            + "AVG(" + WeatherEntry.COLUMN_MIN_TEMP + "), "
+            + "AVG(" + WeatherEntry.COLUMN_MAX_TEMP + "), "
+            + "SUM(" + WeatherEntry.COLUMN_WEATHER_ID + " BETWEEN " + FIRST_WET_WEATHER_ID
+            + " AND " + LAST_WET_WEATHER_ID + ")"
+            + " FROM " + WeatherEntry.TABLE_NAME + " WHERE " + WeatherEntry.COLUMN_LOC_KEY
+            + " = ? AND " + WeatherEntry.COLUMN_DATE + " >= ? AND " + WeatherEntry.COLUMN_DATE
+            + " < ? GROUP BY " + WeatherEntry.COLUMN_LOC_KEY;
+
+    // Weeks and months whose last day is gone
+    static final String EXPIRED_SELECTION = RollupEntry.COLUMN_LOC_KEY + " = ? AND "
+            + RollupEntry.COLUMN_END_DATE + " <= ?";
+
+    // location id -> the Julian days that start its changed weeks, and its changed months
+    private final Map<Long, Set<Integer>> mWeeks = new HashMap<Long, Set<Integer>>();
+    private final Map<Long, Set<Integer>> mMonths = new HashMap<Long, Set<Integer>>();
+    private boolean mEverything;
+    private final DayMath mDayMath;
+
+    WeatherRollups() {
+        this(DayMath.getDefault());
+    }
+
+    WeatherRollups(DayMath dayMath) {
+        mDayMath = dayMath;
+    }
+
+    void addDay(long locationId, long date) {
+        int day = mDayMath.getJulianDay(date);
+        add(mWeeks, locationId, DayMath.getFirstDayOfWeek(day));
+        add(mMonths, locationId, DayMath.getFirstDayOfMonth(day));
+    }
+
+    /**
+     * Add every week and month with a day from firstDate to lastDate, inclusive.
+     */
+    void addDays(long locationId, long firstDate, long lastDate) {
+        int firstDay = mDayMath.getJulianDay(firstDate);
+        int lastDay = mDayMath.getJulianDay(lastDate);
+        for (int week = DayMath.getFirstDayOfWeek(firstDay); week <= lastDay; week += 7) {
+            add(mWeeks, locationId, week);
+        }
+        for (int month = DayMath.getFirstDayOfMonth(firstDay); month <= lastDay;
+             month = DayMath.getFirstDayOfNextMonth(month)) {
+            add(mMonths, locationId, month);
+        }
+    }
+
+    /**
+     * Something changed that can't be pinned to days, so every rollup is worked out again.
+     */
+    void addEverything() {
+        mEverything = true;
+    }
+
+    private static void add(Map<Long, Set<Integer>> buckets, long locationId, int firstDay) {
+        Set<Integer> firstDays = buckets.get(locationId);
+        if (firstDays == null) {
+            firstDays = new HashSet<Integer>();
+            buckets.put(locationId, firstDays);
+        }
+        firstDays.add(firstDay);
+    }
+
+    /**
+     * Work out the changed weeks and months again from the weather table, and forget them.
+     *
+     * @return how many weeks and months were worked out
+     */
+    int update(SQLiteDatabase db) {
+        if (mEverything) {
+            mEverything = false;
+            mWeeks.clear();
+            mMonths.clear();
+            db.delete(RollupEntry.TABLE_NAME, null, null);
+            addStoredDays(db);
+        }
+
+        int buckets = 0;
+        SQLiteStatement delete = db.compileStatement(SQL_DELETE_BUCKET);
+        SQLiteStatement insert = db.compileStatement(SQL_INSERT_BUCKET);
+        try {
+            for (Map.Entry<Long, Set<Integer>> entry : mWeeks.entrySet()) {
+                for (int week : entry.getValue()) {
+                    updateBucket(delete, insert, entry.getKey(), RollupEntry.PERIOD_WEEK,
+                            week, week + 7);
+                    buckets++;
+                }
+            }
+            for (Map.Entry<Long, Set<Integer>> entry : mMonths.entrySet()) {
+                for (int month : entry.getValue()) {
+                    updateBucket(delete, insert, entry.getKey(), RollupEntry.PERIOD_MONTH,
+                            month, DayMath.getFirstDayOfNextMonth(month));
+                    buckets++;
+                }
+            }
+        } finally {
+            delete.close();
+            insert.close();
+        }
+        mWeeks.clear();
+        mMonths.clear();
+        return buckets;
+    }
+
+    /**
+     * Drop the location's weeks and months that ended on or before the last deleted date,
+     * and work out again the ones that still have days after it.
+     */
+    void expire(SQLiteDatabase db, long locationId, long lastDeletedDate) {
+        db.delete(RollupEntry.TABLE_NAME, EXPIRED_SELECTION,
+                new String[]{Long.toString(locationId), Long.toString(lastDeletedDate)});
+        addDay(locationId, lastDeletedDate);
+        update(db);
+    }
+
+    private void addStoredDays(SQLiteDatabase db) {
+        Cursor cursor = db.query(WeatherEntry.TABLE_NAME, WeatherChanges.MATCHING_PROJECTION,
+                null, null, WeatherEntry.COLUMN_LOC_KEY, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                addDays(cursor.getLong(0), cursor.getLong(1), cursor.getLong(2));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void updateBucket(SQLiteStatement delete, SQLiteStatement insert, long locationId,
+                              String period, int firstDay, int nextFirstDay) {
+        long startDate = mDayMath.getStartOfDay(firstDay);
+        long nextStartDate = mDayMath.getStartOfDay(nextFirstDay);
+        long endDate = mDayMath.getStartOfDay(nextFirstDay - 1);
+
+        delete.bindLong(1, locationId);
+        delete.bindString(2, period);
+        delete.bindLong(3, nextStartDate);
+        delete.bindLong(4, startDate);
+        delete.execute();
+
+        insert.bindString(1, period);
+        insert.bindLong(2, startDate);
+        insert.bindLong(3, endDate);
+        insert.bindLong(4, locationId);
+        insert.bindLong(5, startDate);
+        insert.bindLong(6, nextStartDate);
+        insert.execute();
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.android.sunshine.app.sync;
+
+import java.util.ArrayList;
+
+/**
+ * A small pool of byte arrays for reading response bodies through, so a sync of several
+ * locations doesn't allocate (and leave for the GC) a fresh buffer for every response.
+ *
+ * Buffers are handed out at least as big as asked for.  Only a few are kept, and very large
+ * ones are dropped on release rather than pinned in memory for the life of the process.
+ */
+class BufferPool {
+
+    private final int mMaxBuffers;
+    private final int mMaxPooledSize;
+    // Kept sorted by size, smallest first.
+    private final ArrayList<byte[]> mBuffers;
+
+    private int mAllocations;
+
+    BufferPool(int maxBuffers, int maxPooledSize) {
+        mMaxBuffers = maxBuffers;
+        mMaxPooledSize = maxPooledSize;
+        mBuffers = new ArrayList<byte[]>(maxBuffers);
+    }
+
+    /**
+     * @return a buffer of at least minSize bytes, from the pool if there's one big enough
+     */
+    synchronized byte[] acquire(int minSize) {
+        for (int i = 0; i < mBuffers.size(); i++) {
+            if (mBuffers.get(i).length >= minSize) {
+                return mBuffers.remove(i);
+            }
+        }
+        mAllocations++;
+        return new byte[minSize];
+    }
+
+    /**
+     * Return a buffer to the pool.  If the pool is full the smallest buffer is dropped.
+     */
+    synchronized void release(byte[] buffer) {
+        if (buffer == null || buffer.length > mMaxPooledSize) {
+            return;
+        }
+        int position = 0;
+        while (position < mBuffers.size() && mBuffers.get(position).length < buffer.length) {
+            position++;
+        }
+        mBuffers.add(position, buffer);
+        if (mBuffers.size() > mMaxBuffers) {
+            mBuffers.remove(0);
+        }
+    }
+
+    /**
+     * @return how many buffers the pool has had to allocate so far
+     */
+    synchronized int getAllocationCount() {
+        return mAllocations;
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Stops the sync from hammering OpenWeatherMap while it's down.
+ *
+ * After a run of consecutive failed requests the breaker opens, and requests fail straight
+ * away without touching the network until a cooldown has passed.  Then a single trial request
+ * is let through: if it works the breaker closes again, if not it reopens for twice as long,
+ * up to a limit.  The state is kept in SharedPreferences, so it holds across syncs and process
+ * restarts rather than every new sync starting the outage over.
+ */
+class CircuitBreaker {
+    private static final String LOG_TAG = CircuitBreaker.class.getSimpleName();
+
+    private static final String PREFS_NAME = "sync_circuit";
+    private static final String KEY_FAILURES = "consecutive_failures";
+    private static final String KEY_OPEN_UNTIL = "open_until";
+    private static final String KEY_COOLDOWN = "cooldown";
+
+    static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    static final long DEFAULT_COOLDOWN_MILLIS = 5 * 60 * 1000;
+    static final long DEFAULT_MAX_COOLDOWN_MILLIS = 60 * 60 * 1000;
+
+    private final SharedPreferences mPrefs;
+    private final int mFailureThreshold;
+    private final long mBaseCooldownMillis;
+    private final long mMaxCooldownMillis;
+
+    private int mFailures;
+    // 0 while the breaker is closed
+    private long mOpenUntil;
+    private long mCooldownMillis;
+    private boolean mTrialInFlight;
+
+    CircuitBreaker(Context context) {
+        this(context, DEFAULT_FAILURE_THRESHOLD, DEFAULT_COOLDOWN_MILLIS,
+                DEFAULT_MAX_COOLDOWN_MILLIS);
+    }
+
+    CircuitBreaker(Context context, int failureThreshold, long cooldownMillis,
+                   long maxCooldownMillis) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mFailureThreshold = failureThreshold;
+        mBaseCooldownMillis = cooldownMillis;
+        mMaxCooldownMillis = maxCooldownMillis;
+
+        mFailures = mPrefs.getInt(KEY_FAILURES, 0);
+        mOpenUntil = mPrefs.getLong(KEY_OPEN_UNTIL, 0);
+        // The cooldown only carries over while an outage is still going on.
+        mCooldownMillis = mOpenUntil == 0 ? cooldownMillis
+                : Math.min(maxCooldownMillis, mPrefs.getLong(KEY_COOLDOWN, cooldownMillis));
+    }
+
+    /**
+     * Call before making a request.
+     *
+     * @throws SyncBackoffException if the breaker is open and the request must not be made
+     */
+    synchronized void acquire() throws SyncBackoffException {
+        if (mOpenUntil == 0) {
+            return;
+        }
+        if (System.currentTimeMillis() < mOpenUntil) {
+            throw new SyncBackoffException("Circuit open", mOpenUntil);
+        }
+        if (mTrialInFlight) {
+            // Someone else is already finding out whether the server is back.
+            throw new SyncBackoffException("Circuit half open", 0);
+        }
+        mTrialInFlight = true;
+    }
+
+    /**
+     * The request got an answer from the server, even if it was an error about the request
+     * itself.
+     */
+    synchronized void recordSuccess() {
+        boolean changed = mFailures != 0 || mOpenUntil != 0;
+        if (mOpenUntil != 0) {
+            Log.d(LOG_TAG, "Circuit closed");
+        }
+        mFailures = 0;
+        mOpenUntil = 0;
+        mCooldownMillis = mBaseCooldownMillis;
+        mTrialInFlight = false;
+        if (changed) {
+            save();
+        }
+    }
+
+    /**
+     * The request failed in a way that suggests the server is in trouble.
+     */
+    synchronized void recordFailure() {
+        mFailures++;
+        if (mTrialInFlight) {
+            mTrialInFlight = false;
+            mCooldownMillis = Math.min(mMaxCooldownMillis, mCooldownMillis * 2);
+            open();
+        } else if (mOpenUntil == 0 && mFailures >= mFailureThreshold) {
+            open();
+        }
+        save();
+    }
+
+    /**
+     * The request was abandoned (e.g. the sync was canceled) without telling us anything
+     * about the server.
+     */
+    synchronized void recordAbandoned() {
+        mTrialInFlight = false;
+    }
+
+    synchronized boolean isOpen() {
+        return mOpenUntil != 0 && System.currentTimeMillis() < mOpenUntil;
+    }
+
+    /**
+     * @return when the breaker will let a trial request through, or 0 if it's closed
+     */
+    synchronized long getOpenUntil() {
+        return mOpenUntil;
+    }
+
+    private void open() {
+        mOpenUntil = System.currentTimeMillis() + mCooldownMillis;
+        Log.w(LOG_TAG, "Circuit open for " + mCooldownMillis + "ms after " + mFailures
+                + " consecutive failures");
+    }
+
+    private void save() {
+        mPrefs.edit()
+                .putInt(KEY_FAILURES, mFailures)
+                .putLong(KEY_OPEN_UNTIL, mOpenUntil)
+                .putLong(KEY_COOLDOWN, mCooldownMillis)
+                .apply();
+    }
+}
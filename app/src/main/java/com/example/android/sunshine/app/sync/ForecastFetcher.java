@@ -0,0 +1,224 @@
+package com.example.android.sunshine.app.sync;
+
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Downloads and parses one forecast, revalidating against what we stored last time.  Also
+ * downloads group requests, which carry today's weather for several cities at once.
+ *
+ * If we have validators for the location the request is made conditional
+ * (If-None-Match / If-Modified-Since), and a 304 comes back as {@link #FETCH_NOT_MODIFIED}
+ * without anything being read.  Servers don't always send validators, and OWM's body changes
+ * on every response (the "message" field is a server timing), so we also hash the parsed
+ * values and report {@link #FETCH_UNCHANGED} when they match the last stored forecast.
+ */
+class ForecastFetcher {
+    private static final String LOG_TAG = ForecastFetcher.class.getSimpleName();
+
+    // The forecast was downloaded and differs from what we stored last time.
+    static final int FETCH_UPDATED = 0;
+    // The server answered 304 Not Modified; the callback was never called.
+    static final int FETCH_NOT_MODIFIED = 1;
+    // The forecast was downloaded but its content matches what we stored last time.
+    static final int FETCH_UNCHANGED = 2;
+
+    static final class Result {
+        final int status;
+        // The validators to store once the forecast has been written.
+        final SyncValidatorStore.Validators validators;
+
+        Result(int status, SyncValidatorStore.Validators validators) {
+            this.status = status;
+            this.validators = validators;
+        }
+    }
+
+    private final SyncValidatorStore mValidatorStore;
+    private final WeatherTransport mTransport;
+
+    ForecastFetcher(SyncValidatorStore validatorStore, WeatherTransport transport) {
+        mValidatorStore = validatorStore;
+        mTransport = transport;
+    }
+
+    /**
+     * @param url the forecast query
+     * @param locationSetting the location the query is for, used to look up validators
+     * @param contentSalt mixed into the content hash, so the same payload counts as changed
+     *                    when it would be stored differently (e.g. the day rolled over)
+     * @param revalidate false to ignore stored validators and always download
+     * @param callback receives the parsed forecast, unless the server says it's not modified
+     * @param cancellation aborts the download and the parse if the sync is canceled
+     * @param trace receives the request's timings, or null
+     */
+    Result fetch(URL url, String locationSetting, long contentSalt, boolean revalidate,
+                 ForecastJsonParser.Callback callback, SyncCancellation cancellation,
+                 SyncTrace trace) throws IOException, JSONException {
+        SyncValidatorStore.Validators previous = revalidate
+                ? mValidatorStore.get(locationSetting) : SyncValidatorStore.Validators.NONE;
+
+        Map<String, String> requestHeaders = new HashMap<String, String>();
+        if (previous.etag != null) {
+            requestHeaders.put("If-None-Match", previous.etag);
+        }
+        if (previous.lastModified != null) {
+            requestHeaders.put("If-Modified-Since", previous.lastModified);
+        }
+
+        WeatherTransport.Response response = mTransport.get(url, requestHeaders, cancellation);
+        try {
+            if (response.code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Log.d(LOG_TAG, "Forecast for " + locationSetting + " not modified");
+                return new Result(FETCH_NOT_MODIFIED, previous);
+            } else if (response.code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected response " + response.code + " "
+                        + response.message);
+            }
+
+            HashingCallback hashingCallback = new HashingCallback(callback, contentSalt);
+            long parseStart = System.nanoTime();
+            long transferBefore = response.transferNanos;
+            new ForecastJsonParser(response.openReader(), cancellation).parse(hashingCallback);
+            if (trace != null) {
+                // The body downloads while it's parsed, so leave out the time spent waiting
+                // for it.
+                trace.addParse(System.nanoTime() - parseStart
+                        - (response.transferNanos - transferBefore));
+            }
+
+            SyncValidatorStore.Validators current = new SyncValidatorStore.Validators(
+                    response.getHeader("ETag"),
+                    response.getHeader("Last-Modified"),
+                    hashingCallback.getHash());
+
+            if (current.contentHash.equals(previous.contentHash)) {
+                Log.d(LOG_TAG, "Forecast for " + locationSetting + " unchanged");
+                return new Result(FETCH_UNCHANGED, current);
+            }
+            return new Result(FETCH_UPDATED, current);
+        } finally {
+            response.release();
+            // Only complete once the body has been read.
+            if (trace != null) {
+                trace.addResponse(response);
+            }
+        }
+    }
+
+    /**
+     * Download and parse a group request.  These are never made conditional: the current
+     * conditions they carry change every few minutes, so there's nothing to revalidate.
+     *
+     * @param trace receives the request's timings, or null
+     * @return the number of cities in the response
+     */
+    int fetchGroup(URL url, ForecastJsonParser.GroupCallback callback,
+                   SyncCancellation cancellation, SyncTrace trace)
+            throws IOException, JSONException {
+        WeatherTransport.Response response =
+                mTransport.get(url, Collections.<String, String>emptyMap(), cancellation);
+        try {
+            if (response.code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected response " + response.code + " "
+                        + response.message);
+            }
+            long parseStart = System.nanoTime();
+            long transferBefore = response.transferNanos;
+            int cities = new ForecastJsonParser(response.openReader(), cancellation)
+                    .parseGroup(callback);
+            if (trace != null) {
+                trace.addParse(System.nanoTime() - parseStart
+                        - (response.transferNanos - transferBefore));
+            }
+            return cities;
+        } finally {
+            response.release();
+            // Only complete once the body has been read.
+            if (trace != null) {
+                trace.addResponse(response);
+            }
+        }
+    }
+
+    /**
+     * Passes the forecast through to another callback while hashing the values we store,
+     * so two responses that only differ in fields we ignore hash the same.
+     */
+    static final class HashingCallback implements ForecastJsonParser.Callback {
+        private final ForecastJsonParser.Callback mCallback;
+        private final MessageDigest mDigest;
+        private final byte[] mScratch = new byte[8];
+
+        HashingCallback(ForecastJsonParser.Callback callback, long salt) {
+            mCallback = callback;
+            try {
+                mDigest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                // Every Android release ships SHA-1.
+                throw new IllegalStateException(e);
+            }
+            update(salt);
+        }
+
+        @Override
+        public void onCity(long cityId, String cityName, double lat, double lon)
+                throws JSONException {
+            update(cityId);
+            update(cityName);
+            update(Double.doubleToLongBits(lat));
+            update(Double.doubleToLongBits(lon));
+            mCallback.onCity(cityId, cityName, lat, lon);
+        }
+
+        @Override
+        public void onDay(int index, ForecastJsonParser.ForecastDay day) throws JSONException {
+            update(index);
+            update(Double.doubleToLongBits(day.pressure));
+            update(day.humidity);
+            update(Double.doubleToLongBits(day.windSpeed));
+            update(Double.doubleToLongBits(day.windDirection));
+            update(Double.doubleToLongBits(day.high));
+            update(Double.doubleToLongBits(day.low));
+            update(day.description);
+            update(day.weatherId);
+            mCallback.onDay(index, day);
+        }
+
+        String getHash() {
+            byte[] digest = mDigest.digest();
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        }
+
+        private void update(long value) {
+            for (int i = 0; i < 8; i++) {
+                mScratch[i] = (byte) (value >>> (i * 8));
+            }
+            mDigest.update(mScratch, 0, 8);
+        }
+
+        private void update(String value) {
+            update(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                mDigest.update((byte) (c >>> 8));
+                mDigest.update((byte) c);
+            }
+        }
+    }
+}
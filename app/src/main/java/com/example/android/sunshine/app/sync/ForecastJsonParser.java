@@ -0,0 +1,670 @@
+package com.example.android.sunshine.app.sync;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Pull parser for the OpenWeatherMap daily forecast and group (several cities' current
+ * weather) responses.
+ *
+ * Instead of reading the whole response into a String and building a JSONObject tree out of
+ * it, this walks the stream token by token and only keeps the handful of fields we store.
+ * Each day is handed to the {@link Callback} as soon as its object has been read, and the
+ * same {@link ForecastDay} holder is reused for every day, so memory use stays flat no matter
+ * how many days are requested.
+ *
+ * If given a {@link SyncCancellation}, parsing stops with an InterruptedIOException as soon as
+ * the sync is canceled, checked before each day (or city) and each refill of the buffer.
+ */
+class ForecastJsonParser {
+
+    // These are the names of the JSON objects that need to be extracted.
+
+    // Location information
+    private static final String OWM_CITY = "city";
+    private static final String OWM_CITY_ID = "id";
+    private static final String OWM_CITY_NAME = "name";
+    private static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    private static final String OWM_LATITUDE = "lat";
+    private static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    private static final String OWM_LIST = "list";
+
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_MAX = "max";
+    private static final String OWM_MIN = "min";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+
+    // In group responses the current conditions are split between "main" and "wind".  Its
+    // "temp_min" and "temp_max" are the range across the city right now, not the day's low and
+    // high, so they're not read.
+    private static final String OWM_GROUP_MAIN = "main";
+    private static final String OWM_GROUP_WIND = "wind";
+
+    // Error responses come back as {"cod":"404","message":"city not found"}
+    private static final String OWM_MESSAGE_CODE = "cod";
+    private static final String OWM_MESSAGE = "message";
+
+    // Bits used to make sure every field we need was present in a day's object.
+    private static final int FIELD_PRESSURE = 1;
+    private static final int FIELD_HUMIDITY = 1 << 1;
+    private static final int FIELD_WINDSPEED = 1 << 2;
+    private static final int FIELD_WIND_DIRECTION = 1 << 3;
+    private static final int FIELD_MAX = 1 << 4;
+    private static final int FIELD_MIN = 1 << 5;
+    private static final int FIELD_DESCRIPTION = 1 << 6;
+    private static final int FIELD_WEATHER_ID = 1 << 7;
+    private static final int FIELDS_DAY = (1 << 8) - 1;
+    // Group entries have no low or high, and OWM leaves out the wind direction when it's calm.
+    private static final int FIELDS_GROUP_DAY =
+            FIELDS_DAY & ~(FIELD_WIND_DIRECTION | FIELD_MAX | FIELD_MIN);
+
+    /**
+     * Receives the parsed forecast.  The city may arrive before or after the days, depending
+     * on the order the server wrote the keys in.
+     */
+    interface Callback {
+        void onCity(long cityId, String cityName, double lat, double lon) throws JSONException;
+
+        /**
+         * @param index position of the day in the "list" array, 0 being today
+         * @param day the parsed values.  The holder is reused for the next day, so copy
+         *            anything that needs to outlive this call.
+         */
+        void onDay(int index, ForecastDay day) throws JSONException;
+    }
+
+    /**
+     * Receives each city's current weather from a group response.
+     */
+    interface GroupCallback {
+        /**
+         * @param day the parsed values.  The holder is reused for the next city, so copy
+         *            anything that needs to outlive this call.
+         */
+        void onCityWeather(long cityId, ForecastDay day) throws JSONException;
+    }
+
+    /**
+     * The values we keep for one day of the forecast.  A group entry is the current weather,
+     * so its high and low are NaN, as is its wind direction when OWM left that out.
+     */
+    static final class ForecastDay {
+        double pressure;
+        int humidity;
+        double windSpeed;
+        double windDirection;
+
+        double high;
+        double low;
+
+        String description;
+        int weatherId;
+    }
+
+    private static final int BUFFER_SIZE = 2048;
+
+    private final Reader mReader;
+    private final SyncCancellation mCancellation;
+    private final char[] mBuffer = new char[BUFFER_SIZE];
+    private int mPos;
+    private int mLimit;
+
+    // Scratch space for strings and numbers, reused across tokens.
+    private final StringBuilder mScratch = new StringBuilder();
+    private final ForecastDay mDay = new ForecastDay();
+    private int mDayFields;
+
+    ForecastJsonParser(Reader reader) {
+        this(reader, null);
+    }
+
+    ForecastJsonParser(Reader reader, SyncCancellation cancellation) {
+        mReader = reader;
+        mCancellation = cancellation;
+    }
+
+    /**
+     * Parse a complete forecast response, calling back for the city and for every day.
+     *
+     * @return the number of days that were read
+     */
+    int parse(Callback callback) throws IOException, JSONException {
+        boolean sawCity = false;
+        boolean sawList = false;
+        int days = 0;
+        String messageCode = null;
+        String message = null;
+
+        expect('{');
+        boolean more = !consume('}');
+        while (more) {
+            String name = nextName();
+            if (OWM_CITY.equals(name)) {
+                readCity(callback);
+                sawCity = true;
+            } else if (OWM_LIST.equals(name)) {
+                days = readList(callback);
+                sawList = true;
+            } else if (OWM_MESSAGE_CODE.equals(name)) {
+                messageCode = nextScalar();
+            } else if (OWM_MESSAGE.equals(name)) {
+                message = nextScalar();
+            } else {
+                skipValue();
+            }
+            more = nextMember('}');
+        }
+
+        if (!sawList || !sawCity) {
+            if (messageCode != null && !"200".equals(messageCode)) {
+                throw new JSONException("Server returned " + messageCode + ": " + message);
+            }
+            throw new JSONException("No value for " + (sawList ? OWM_CITY : OWM_LIST));
+        }
+        return days;
+    }
+
+    /**
+     * Parse a group response, calling back with the weather for every city in it.
+     *
+     * @return the number of cities that were read
+     */
+    int parseGroup(GroupCallback callback) throws IOException, JSONException {
+        boolean sawList = false;
+        int cities = 0;
+        String messageCode = null;
+        String message = null;
+
+        expect('{');
+        boolean more = !consume('}');
+        while (more) {
+            String name = nextName();
+            if (OWM_LIST.equals(name)) {
+                expect('[');
+                boolean moreCities = !consume(']');
+                while (moreCities) {
+                    checkCanceled();
+                    long cityId = readGroupEntry();
+                    callback.onCityWeather(cityId, mDay);
+                    cities++;
+                    moreCities = nextMember(']');
+                }
+                sawList = true;
+            } else if (OWM_MESSAGE_CODE.equals(name)) {
+                messageCode = nextScalar();
+            } else if (OWM_MESSAGE.equals(name)) {
+                message = nextScalar();
+            } else {
+                skipValue();
+            }
+            more = nextMember('}');
+        }
+
+        if (!sawList) {
+            if (messageCode != null && !"200".equals(messageCode)) {
+                throw new JSONException("Server returned " + messageCode + ": " + message);
+            }
+            throw new JSONException("No value for " + OWM_LIST);
+        }
+        return cities;
+    }
+
+    private void readCity(Callback callback) throws IOException, JSONException {
+        long cityId = -1;
+        String cityName = null;
+        double lat = Double.NaN;
+        double lon = Double.NaN;
+
+        expect('{');
+        boolean more = !consume('}');
+        while (more) {
+            String name = nextName();
+            if (OWM_CITY_ID.equals(name)) {
+                cityId = (long) nextDouble();
+            } else if (OWM_CITY_NAME.equals(name)) {
+                cityName = nextString();
+            } else if (OWM_COORD.equals(name)) {
+                expect('{');
+                boolean moreCoord = !consume('}');
+                while (moreCoord) {
+                    String coordName = nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        lat = nextDouble();
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        lon = nextDouble();
+                    } else {
+                        skipValue();
+                    }
+                    moreCoord = nextMember('}');
+                }
+            } else {
+                skipValue();
+            }
+            more = nextMember('}');
+        }
+
+        if (cityName == null) {
+            throw new JSONException("No value for " + OWM_CITY_NAME);
+        }
+        if (Double.isNaN(lat) || Double.isNaN(lon)) {
+            throw new JSONException("No value for " + OWM_COORD);
+        }
+        callback.onCity(cityId, cityName, lat, lon);
+    }
+
+    private int readList(Callback callback) throws IOException, JSONException {
+        int index = 0;
+        expect('[');
+        boolean more = !consume(']');
+        while (more) {
+            checkCanceled();
+            readDay();
+            callback.onDay(index++, mDay);
+            more = nextMember(']');
+        }
+        return index;
+    }
+
+    private void readDay() throws IOException, JSONException {
+        final ForecastDay day = mDay;
+        day.description = null;
+        mDayFields = 0;
+
+        expect('{');
+        boolean more = !consume('}');
+        while (more) {
+            String name = nextName();
+            if (OWM_PRESSURE.equals(name)) {
+                day.pressure = nextDouble();
+                mDayFields |= FIELD_PRESSURE;
+            } else if (OWM_HUMIDITY.equals(name)) {
+                day.humidity = (int) nextDouble();
+                mDayFields |= FIELD_HUMIDITY;
+            } else if (OWM_WINDSPEED.equals(name)) {
+                day.windSpeed = nextDouble();
+                mDayFields |= FIELD_WINDSPEED;
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                day.windDirection = nextDouble();
+                mDayFields |= FIELD_WIND_DIRECTION;
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                readTemperature(day);
+            } else if (OWM_WEATHER.equals(name)) {
+                readWeather(day);
+            } else {
+                skipValue();
+            }
+            more = nextMember('}');
+        }
+
+        if (mDayFields != FIELDS_DAY) {
+            throw new JSONException("No value for " + missingDayField(mDayFields));
+        }
+    }
+
+    /**
+     * Reads one city's entry from a group response into the day holder.
+     *
+     * @return the city's OWM id
+     */
+    private long readGroupEntry() throws IOException, JSONException {
+        final ForecastDay day = mDay;
+        day.description = null;
+        day.windDirection = Double.NaN;
+        day.high = Double.NaN;
+        day.low = Double.NaN;
+        mDayFields = 0;
+        long cityId = -1;
+
+        expect('{');
+        boolean more = !consume('}');
+        while (more) {
+            String name = nextName();
+            if (OWM_CITY_ID.equals(name)) {
+                cityId = (long) nextDouble();
+            } else if (OWM_GROUP_MAIN.equals(name)) {
+                expect('{');
+                boolean moreMain = !consume('}');
+                while (moreMain) {
+                    String mainName = nextName();
+                    if (OWM_PRESSURE.equals(mainName)) {
+                        day.pressure = nextDouble();
+                        mDayFields |= FIELD_PRESSURE;
+                    } else if (OWM_HUMIDITY.equals(mainName)) {
+                        day.humidity = (int) nextDouble();
+                        mDayFields |= FIELD_HUMIDITY;
+                    } else {
+                        skipValue();
+                    }
+                    moreMain = nextMember('}');
+                }
+            } else if (OWM_GROUP_WIND.equals(name)) {
+                expect('{');
+                boolean moreWind = !consume('}');
+                while (moreWind) {
+                    String windName = nextName();
+                    if (OWM_WINDSPEED.equals(windName)) {
+                        day.windSpeed = nextDouble();
+                        mDayFields |= FIELD_WINDSPEED;
+                    } else if (OWM_WIND_DIRECTION.equals(windName)) {
+                        day.windDirection = nextDouble();
+                        mDayFields |= FIELD_WIND_DIRECTION;
+                    } else {
+                        skipValue();
+                    }
+                    moreWind = nextMember('}');
+                }
+            } else if (OWM_WEATHER.equals(name)) {
+                readWeather(day);
+            } else {
+                skipValue();
+            }
+            more = nextMember('}');
+        }
+
+        if (cityId == -1) {
+            throw new JSONException("No value for " + OWM_CITY_ID);
+        }
+        if ((mDayFields & FIELDS_GROUP_DAY) != FIELDS_GROUP_DAY) {
+            throw new JSONException("No value for "
+                    + missingDayField(mDayFields | ~FIELDS_GROUP_DAY));
+        }
+        return cityId;
+    }
+
+    private void readTemperature(ForecastDay day) throws IOException, JSONException {
+        // Temperatures are in a child object called "temp".  Try not to name variables
+        // "temp" when working with temperature.  It confuses everybody.
+        expect('{');
+        boolean more = !consume('}');
+        while (more) {
+            String name = nextName();
+            if (OWM_MAX.equals(name)) {
+                day.high = nextDouble();
+                mDayFields |= FIELD_MAX;
+            } else if (OWM_MIN.equals(name)) {
+                day.low = nextDouble();
+                mDayFields |= FIELD_MIN;
+            } else {
+                skipValue();
+            }
+            more = nextMember('}');
+        }
+    }
+
+    private void readWeather(ForecastDay day) throws IOException, JSONException {
+        // Description is in a child array called "weather", which is 1 element long.
+        // That element also contains a weather code.  Anything after the first element
+        // is skipped.
+        expect('[');
+        boolean more = !consume(']');
+        boolean first = true;
+        while (more) {
+            if (first) {
+                expect('{');
+                boolean moreWeather = !consume('}');
+                while (moreWeather) {
+                    String name = nextName();
+                    if (OWM_DESCRIPTION.equals(name)) {
+                        day.description = nextString();
+                        mDayFields |= FIELD_DESCRIPTION;
+                    } else if (OWM_WEATHER_ID.equals(name)) {
+                        day.weatherId = (int) nextDouble();
+                        mDayFields |= FIELD_WEATHER_ID;
+                    } else {
+                        skipValue();
+                    }
+                    moreWeather = nextMember('}');
+                }
+                first = false;
+            } else {
+                skipValue();
+            }
+            more = nextMember(']');
+        }
+    }
+
+    private static String missingDayField(int fields) {
+        if ((fields & FIELD_PRESSURE) == 0) return OWM_PRESSURE;
+        if ((fields & FIELD_HUMIDITY) == 0) return OWM_HUMIDITY;
+        if ((fields & FIELD_WINDSPEED) == 0) return OWM_WINDSPEED;
+        if ((fields & FIELD_WIND_DIRECTION) == 0) return OWM_WIND_DIRECTION;
+        if ((fields & (FIELD_MAX | FIELD_MIN)) == 0) return OWM_TEMPERATURE;
+        if ((fields & FIELD_MAX) == 0) return OWM_MAX;
+        if ((fields & FIELD_MIN) == 0) return OWM_MIN;
+        if ((fields & FIELD_DESCRIPTION) == 0) return OWM_DESCRIPTION;
+        return OWM_WEATHER_ID;
+    }
+
+    private void checkCanceled() throws IOException {
+        if (mCancellation != null) {
+            mCancellation.throwIfCanceled();
+        }
+    }
+
+    // ---- Tokenizer ----
+
+    private int read() throws IOException {
+        if (mPos == mLimit) {
+            checkCanceled();
+            mLimit = mReader.read(mBuffer, 0, BUFFER_SIZE);
+            mPos = 0;
+            if (mLimit <= 0) {
+                mLimit = 0;
+                return -1;
+            }
+        }
+        return mBuffer[mPos++];
+    }
+
+    /**
+     * Returns the next non-whitespace character without consuming it, or -1 at the end of
+     * the stream.
+     */
+    private int peek() throws IOException {
+        while (true) {
+            int c = read();
+            switch (c) {
+                case ' ':
+                case '\t':
+                case '\n':
+                case '\r':
+                    continue;
+                case -1:
+                    return -1;
+                default:
+                    mPos--;
+                    return c;
+            }
+        }
+    }
+
+    private void expect(char expected) throws IOException, JSONException {
+        int c = peek();
+        if (c != expected) {
+            throw syntaxError("Expected '" + expected + "'", c);
+        }
+        mPos++;
+    }
+
+    private boolean consume(char expected) throws IOException {
+        if (peek() == expected) {
+            mPos++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called after a member or element has been read.  Returns true if another one follows,
+     * false once the closing character has been consumed.
+     */
+    private boolean nextMember(char close) throws IOException, JSONException {
+        int c = peek();
+        if (c == ',') {
+            mPos++;
+            return true;
+        } else if (c == close) {
+            mPos++;
+            return false;
+        }
+        throw syntaxError("Expected ',' or '" + close + "'", c);
+    }
+
+    private String nextName() throws IOException, JSONException {
+        String name = nextString();
+        expect(':');
+        return name;
+    }
+
+    private String nextString() throws IOException, JSONException {
+        expect('"');
+        readStringBody(true);
+        return mScratch.toString();
+    }
+
+    /**
+     * Reads the rest of a string whose opening quote has been consumed, either into the
+     * scratch buffer or (when keep is false) discarding it.
+     */
+    private void readStringBody(boolean keep) throws IOException, JSONException {
+        final StringBuilder scratch = mScratch;
+        if (keep) scratch.setLength(0);
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                c = read();
+                switch (c) {
+                    case 'u':
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(read(), 16);
+                            if (digit < 0) {
+                                throw new JSONException("Invalid escape sequence");
+                            }
+                            code = (code << 4) | digit;
+                        }
+                        c = code;
+                        break;
+                    case 'b': c = '\b'; break;
+                    case 'f': c = '\f'; break;
+                    case 'n': c = '\n'; break;
+                    case 'r': c = '\r'; break;
+                    case 't': c = '\t'; break;
+                    case -1:
+                        throw new JSONException("Unterminated string");
+                    default:
+                        // '"', '\\' and '/' stand for themselves
+                        break;
+                }
+            } else if (c == -1) {
+                throw new JSONException("Unterminated string");
+            }
+            if (keep) scratch.append((char) c);
+        }
+    }
+
+    private double nextDouble() throws IOException, JSONException {
+        int c = peek();
+        if (c == '"') {
+            // Like JSONObject.getDouble, accept numbers that were sent as strings.
+            String value = nextString();
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                throw new JSONException("Expected a number but was \"" + value + "\"");
+            }
+        }
+        readLiteral();
+        try {
+            return Double.parseDouble(mScratch.toString());
+        } catch (NumberFormatException e) {
+            throw new JSONException("Expected a number but was " + mScratch);
+        }
+    }
+
+    /**
+     * Reads a string, number or literal and returns it as text.  Used for fields like "cod"
+     * which the server sends as either a string or a number.
+     */
+    private String nextScalar() throws IOException, JSONException {
+        if (peek() == '"') {
+            return nextString();
+        }
+        readLiteral();
+        return mScratch.toString();
+    }
+
+    /**
+     * Reads an unquoted token (number, true, false or null) into the scratch buffer.
+     */
+    private void readLiteral() throws IOException, JSONException {
+        final StringBuilder scratch = mScratch;
+        scratch.setLength(0);
+        while (true) {
+            int c = read();
+            if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'z')
+                    || c == '-' || c == '+' || c == '.' || c == 'E') {
+                scratch.append((char) c);
+            } else {
+                if (c != -1) mPos--;
+                break;
+            }
+        }
+        if (scratch.length() == 0) {
+            throw syntaxError("Expected a value", peek());
+        }
+    }
+
+    private void skipValue() throws IOException, JSONException {
+        int c = peek();
+        switch (c) {
+            case '{':
+            case '[': {
+                // Skip a whole nested structure without looking at its contents.
+                int depth = 0;
+                do {
+                    c = read();
+                    if (c == '{' || c == '[') {
+                        depth++;
+                    } else if (c == '}' || c == ']') {
+                        depth--;
+                    } else if (c == '"') {
+                        readStringBody(false);
+                    } else if (c == -1) {
+                        throw new JSONException("Unterminated structure");
+                    }
+                } while (depth > 0);
+                break;
+            }
+            case '"':
+                mPos++;
+                readStringBody(false);
+                break;
+            default:
+                readLiteral();
+                break;
+        }
+    }
+
+    private static JSONException syntaxError(String message, int found) {
+        return new JSONException(message + " but found "
+                + (found == -1 ? "end of input" : "'" + (char) found + "'"));
+    }
+}
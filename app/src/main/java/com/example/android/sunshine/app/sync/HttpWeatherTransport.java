@@ -0,0 +1,297 @@
+package com.example.android.sunshine.app.sync;
+
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * {@link WeatherTransport} over HttpURLConnection.
+ *
+ * The connection is never disconnect()ed after a successful request.  Instead the body is read
+ * to the end and the stream closed, which hands the socket back to HttpURLConnection's pool, so
+ * the next request to the same host skips the TCP (and any TLS) handshake.  Only a request that
+ * failed part way, and so may have left the socket in an unknown state, gets disconnected.
+ *
+ * Responses are requested gzipped, and the body is decoded as the caller reads it, so parsing
+ * runs while the download does and only one read chunk, from a {@link BufferPool}, is held
+ * per response however long the body is.  The connection stays open (and cancellable) until
+ * the response is released.
+ *
+ * Every request has connect and read timeouts, so a server that stops answering can't hold
+ * the sync thread for longer than that, and a {@link SyncCancellation} can abort it at once.
+ */
+class HttpWeatherTransport implements WeatherTransport {
+    private static final String LOG_TAG = HttpWeatherTransport.class.getSimpleName();
+
+    // How much of the body is read from the connection at a time.
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    // One chunk per sync worker thread, and don't hang on to anything unusually large.
+    private static final int POOLED_BUFFERS = 4;
+    private static final int MAX_POOLED_BUFFER_SIZE = 256 * 1024;
+
+    static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    static final int DEFAULT_READ_TIMEOUT_MILLIS = 20 * 1000;
+
+    private final BufferPool mPool;
+    private final int mConnectTimeoutMillis;
+    private final int mReadTimeoutMillis;
+
+    HttpWeatherTransport() {
+        this(DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    HttpWeatherTransport(int connectTimeoutMillis, int readTimeoutMillis) {
+        this(new BufferPool(POOLED_BUFFERS, MAX_POOLED_BUFFER_SIZE),
+                connectTimeoutMillis, readTimeoutMillis);
+    }
+
+    /**
+     * @param connectTimeoutMillis how long to wait for the connection to be set up
+     * @param readTimeoutMillis how long any one read may wait for data; this bounds the wait
+     *                          for the response headers as well as each read of the body
+     */
+    HttpWeatherTransport(BufferPool pool, int connectTimeoutMillis, int readTimeoutMillis) {
+        mPool = pool;
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+    }
+
+    @Override
+    public Response get(URL url, Map<String, String> requestHeaders,
+                        SyncCancellation cancellation) throws IOException {
+        long start = System.nanoTime();
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        boolean reusable = false;
+        // Once the body is handed out, closing it lets go of the connection.
+        boolean handedOut = false;
+
+        try {
+            if (cancellation != null) {
+                cancellation.register(urlConnection);
+            }
+            urlConnection.setConnectTimeout(mConnectTimeoutMillis);
+            urlConnection.setReadTimeout(mReadTimeoutMillis);
+            urlConnection.setRequestMethod("GET");
+            // Asking for gzip ourselves turns off HttpURLConnection's transparent
+            // decompression, so the body is decoded below.
+            urlConnection.setRequestProperty("Accept-Encoding", "gzip");
+            for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                urlConnection.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            // Connect separately so the connection setup can be told apart from the wait on
+            // the server.
+            urlConnection.connect();
+            long connected = System.nanoTime();
+            int responseCode = urlConnection.getResponseCode();
+            long headersArrived = System.nanoTime();
+
+            Map<String, String> headers = new HashMap<String, String>();
+            for (Map.Entry<String, List<String>> header
+                    : urlConnection.getHeaderFields().entrySet()) {
+                // The status line comes back under a null name.
+                if (header.getKey() != null && !header.getValue().isEmpty()) {
+                    headers.put(header.getKey(),
+                            header.getValue().get(header.getValue().size() - 1));
+                }
+            }
+
+            InputStream rawStream = responseCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                    ? urlConnection.getErrorStream() : urlConnection.getInputStream();
+            Response response;
+            if (rawStream == null) {
+                response = new Response(responseCode, urlConnection.getResponseMessage(),
+                        headers, new byte[0]);
+            } else {
+                boolean gzipped = "gzip".equalsIgnoreCase(urlConnection.getContentEncoding())
+                        && responseCode != HttpURLConnection.HTTP_NOT_MODIFIED;
+                Body body = new Body(urlConnection, rawStream, gzipped, cancellation, mPool);
+                response = new Response(responseCode, urlConnection.getResponseMessage(),
+                        headers, body);
+                body.mResponse = response;
+                response.transferNanos = body.mReadNanos;
+                handedOut = true;
+            }
+            reusable = true;
+            response.connectNanos = connected - start;
+            response.firstByteNanos = headersArrived - connected;
+
+            Log.d(LOG_TAG, url.getHost() + url.getPath() + " " + responseCode
+                    + ": connect " + TimeUnit.NANOSECONDS.toMillis(response.connectNanos)
+                    + "ms, first byte " + TimeUnit.NANOSECONDS.toMillis(response.firstByteNanos)
+                    + "ms");
+            return response;
+        } catch (IOException e) {
+            throw canceledOr(e, cancellation);
+        } finally {
+            if (!handedOut) {
+                if (cancellation != null) {
+                    cancellation.unregister(urlConnection);
+                }
+                if (!reusable) {
+                    urlConnection.disconnect();
+                }
+            }
+        }
+    }
+
+    // Aborting the connection shows up as whatever the blocked read happened to throw.
+    private static IOException canceledOr(IOException e, SyncCancellation cancellation) {
+        if (cancellation != null && cancellation.isCanceled()
+                && !(e instanceof InterruptedIOException)) {
+            InterruptedIOException canceled = new InterruptedIOException("Sync canceled");
+            canceled.initCause(e);
+            return canceled;
+        }
+        return e;
+    }
+
+    /**
+     * The body of a response, read from the connection a pooled chunk at a time.  Closing it
+     * hands the socket back to HttpURLConnection's pool if the body was read to the end, and
+     * disconnects it otherwise.
+     */
+    private static final class Body extends InputStream {
+        private final HttpURLConnection mConnection;
+        private final CountingInputStream mWireStream;
+        private final InputStream mStream;
+        private final SyncCancellation mCancellation;
+        private final BufferPool mPool;
+        private byte[] mChunk;
+        private int mPosition;
+        private int mLimit;
+        private boolean mFinished;
+        private boolean mClosed;
+        long mReadNanos;
+        Response mResponse;
+
+        Body(HttpURLConnection connection, InputStream rawStream, boolean gzipped,
+             SyncCancellation cancellation, BufferPool pool) throws IOException {
+            mConnection = connection;
+            mWireStream = new CountingInputStream(rawStream);
+            mCancellation = cancellation;
+            mPool = pool;
+            long start = System.nanoTime();
+            // Decoding starts by reading the gzip header.
+            mStream = gzipped ? new GZIPInputStream(mWireStream) : mWireStream;
+            mReadNanos = System.nanoTime() - start;
+            mChunk = pool.acquire(CHUNK_SIZE);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mPosition == mLimit && !fill()) {
+                return -1;
+            }
+            return mChunk[mPosition++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            if (mPosition == mLimit && !fill()) {
+                return -1;
+            }
+            int read = Math.min(count, mLimit - mPosition);
+            System.arraycopy(mChunk, mPosition, buffer, offset, read);
+            mPosition += read;
+            return read;
+        }
+
+        private boolean fill() throws IOException {
+            if (mClosed) {
+                throw new IOException("Response already released");
+            }
+            if (mFinished) {
+                return false;
+            }
+            if (mCancellation != null) {
+                mCancellation.throwIfCanceled();
+            }
+            long start = System.nanoTime();
+            int read;
+            try {
+                read = mStream.read(mChunk, 0, mChunk.length);
+            } catch (IOException e) {
+                throw canceledOr(e, mCancellation);
+            } finally {
+                mReadNanos += System.nanoTime() - start;
+                mResponse.transferNanos = mReadNanos;
+                mResponse.wireBytes = mWireStream.mCount;
+            }
+            if (read == -1) {
+                mFinished = true;
+                return false;
+            }
+            mPosition = 0;
+            mLimit = read;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mPool.release(mChunk);
+            mChunk = null;
+            mPosition = 0;
+            mLimit = 0;
+            if (mCancellation != null) {
+                mCancellation.unregister(mConnection);
+            }
+            URL url = mConnection.getURL();
+            Log.d(LOG_TAG, url.getHost() + url.getPath() + " body: transfer "
+                    + TimeUnit.NANOSECONDS.toMillis(mReadNanos) + "ms, " + mWireStream.mCount
+                    + " bytes (" + mResponse.getContentLength() + " decoded)"
+                    + (mFinished ? "" : ", not read to the end"));
+            if (mFinished) {
+                // Closing a fully read stream is what returns the connection to the pool.
+                mStream.close();
+            } else {
+                // The socket is part way through a response, so it can't be reused.
+                mConnection.disconnect();
+            }
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+    }
+}
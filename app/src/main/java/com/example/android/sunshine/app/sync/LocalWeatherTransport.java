@@ -0,0 +1,48 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link WeatherTransport} that answers in-process, without touching the network.  Useful for
+ * benchmarking the parse and store side of a sync on its own, and for running syncs where
+ * there's no server to talk to.
+ */
+class LocalWeatherTransport implements WeatherTransport {
+
+    /**
+     * Produces the response for a request.  Called on whichever thread made the request.
+     */
+    interface Responder {
+        Response respond(URL url, Map<String, String> requestHeaders) throws IOException;
+    }
+
+    private final Responder mResponder;
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+
+    LocalWeatherTransport(Responder responder) {
+        mResponder = responder;
+    }
+
+    @Override
+    public Response get(URL url, Map<String, String> requestHeaders,
+                        SyncCancellation cancellation) throws IOException {
+        if (cancellation != null) {
+            cancellation.throwIfCanceled();
+        }
+        mRequestCount.incrementAndGet();
+        long start = System.nanoTime();
+        Response response = mResponder.respond(url, requestHeaders);
+        // There's no connection to set up; everything counts as transfer.
+        response.connectNanos = 0;
+        response.firstByteNanos = 0;
+        response.transferNanos = System.nanoTime() - start;
+        return response;
+    }
+
+    int getRequestCount() {
+        return mRequestCount.get();
+    }
+}
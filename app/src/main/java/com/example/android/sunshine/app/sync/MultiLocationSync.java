@@ -0,0 +1,225 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.SyncResult;
+import android.database.SQLException;
+import android.os.Process;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Syncs a list of locations in one run.  Each unit of work is usually one location, but can be
+ * anything with a URL, such as a batch of locations fetched with a single request.
+ *
+ * Downloads and parsing happen on a small pool of worker threads, with at most a few requests
+ * to the same host in flight at once.  As each location finishes downloading, its forecast is
+ * stored from the calling thread, so the database writes for one location overlap with the
+ * downloads for the others, and writes never race each other.  The whole run shares a single
+ * deadline; locations that haven't finished by then are abandoned and counted as failed, and
+ * their requests aborted through the run's {@link SyncCancellation}.  Canceling that stops the
+ * run, and nothing more is stored.
+ */
+class MultiLocationSync {
+    private static final String LOG_TAG = MultiLocationSync.class.getSimpleName();
+
+    /**
+     * The per-location work.  {@link #fetch} is called on a worker thread and must not write
+     * to the database; {@link #store} is called on the thread that called {@link #run}, one
+     * location at a time.
+     *
+     * @param <K> the unit of work, e.g. a location setting
+     * @param <T> whatever fetch hands over to store
+     */
+    interface Handler<K, T> {
+        URL getUrl(K target) throws IOException;
+
+        T fetch(K target, URL url) throws IOException, JSONException;
+
+        /**
+         * @return the number of rows written or queued to be written, or 0 if the target was
+         *         unchanged and skipped
+         */
+        int store(K target, T fetched);
+    }
+
+    private final int mMaxThreads;
+    private final int mMaxRequestsPerHost;
+    private final long mDeadlineMillis;
+
+    MultiLocationSync(int maxThreads, int maxRequestsPerHost, long deadlineMillis) {
+        mMaxThreads = maxThreads;
+        mMaxRequestsPerHost = maxRequestsPerHost;
+        mDeadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Sync every target, recording each one's outcome in syncResult.
+     *
+     * @return the targets that were stored (changed or not), in the order they finished
+     */
+    <K, T> List<K> run(List<K> targets, final Handler<K, T> handler, SyncResult syncResult,
+                       SyncCancellation cancellation) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mDeadlineMillis);
+        final List<K> synced = new ArrayList<K>(targets.size());
+        if (targets.isEmpty()) {
+            return synced;
+        }
+
+        final ConcurrentHashMap<String, Semaphore> hostPermits =
+                new ConcurrentHashMap<String, Semaphore>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(mMaxThreads, targets.size()), sThreadFactory);
+        CompletionService<Fetched<K, T>> completionService =
+                new ExecutorCompletionService<Fetched<K, T>>(executor);
+        List<Future<Fetched<K, T>>> futures = new ArrayList<Future<Fetched<K, T>>>();
+
+        try {
+            for (final K target : targets) {
+                futures.add(completionService.submit(new Callable<Fetched<K, T>>() {
+                    @Override
+                    public Fetched<K, T> call() throws Exception {
+                        return new Fetched<K, T>(target,
+                                fetch(target, handler, hostPermits, deadline));
+                    }
+                }));
+            }
+
+            int pending = futures.size();
+            while (pending > 0 && !cancellation.isCanceled()) {
+                long remaining = deadline - System.nanoTime();
+                Future<Fetched<K, T>> future = remaining > 0
+                        ? completionService.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                if (future == null) {
+                    Log.w(LOG_TAG, pending + " target(s) didn't finish before the deadline");
+                    syncResult.stats.numIoExceptions += pending;
+                    break;
+                }
+                pending--;
+
+                Fetched<K, T> fetched;
+                try {
+                    fetched = future.get();
+                } catch (ExecutionException e) {
+                    if (!cancellation.isCanceled()) {
+                        recordFailure(e.getCause(), syncResult);
+                    }
+                    continue;
+                }
+                if (cancellation.isCanceled()) {
+                    break;
+                }
+
+                try {
+                    int rows = handler.store(fetched.target, fetched.value);
+                    if (rows > 0) {
+                        syncResult.stats.numInserts += rows;
+                        syncResult.stats.numEntries += rows;
+                    } else {
+                        syncResult.stats.numSkippedEntries++;
+                    }
+                    synced.add(fetched.target);
+                } catch (SQLException e) {
+                    Log.e(LOG_TAG, "Error storing " + fetched.target, e);
+                    syncResult.databaseError = true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(LOG_TAG, "Interrupted while syncing locations");
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Future<Fetched<K, T>> future : futures) {
+                future.cancel(true);
+            }
+            executor.shutdownNow();
+            // Interrupting the workers doesn't unblock a socket read.
+            cancellation.abortConnections();
+        }
+        if (cancellation.isCanceled()) {
+            Log.d(LOG_TAG, "Canceled after storing " + synced.size() + " of " + targets.size());
+        }
+        return synced;
+    }
+
+    private <K, T> T fetch(K target, Handler<K, T> handler,
+                           ConcurrentHashMap<String, Semaphore> hostPermits, long deadline)
+            throws IOException, JSONException, InterruptedException, TimeoutException {
+        URL url = handler.getUrl(target);
+
+        Semaphore permits = hostPermits.get(url.getHost());
+        if (permits == null) {
+            Semaphore newPermits = new Semaphore(mMaxRequestsPerHost);
+            permits = hostPermits.putIfAbsent(url.getHost(), newPermits);
+            if (permits == null) {
+                permits = newPermits;
+            }
+        }
+
+        if (!permits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+            throw new TimeoutException("Timed out waiting to connect to " + url.getHost());
+        }
+        try {
+            return handler.fetch(target, url);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private static void recordFailure(Throwable cause, SyncResult syncResult) {
+        if (cause instanceof JSONException) {
+            Log.e(LOG_TAG, cause.getMessage(), cause);
+            syncResult.stats.numParseExceptions++;
+        } else {
+            Log.e(LOG_TAG, "Error ", cause);
+            syncResult.stats.numIoExceptions++;
+            if (cause instanceof SyncBackoffException) {
+                // Tell the SyncManager not to retry before the server or the breaker allows.
+                long retryAt = ((SyncBackoffException) cause).retryAtMillis / 1000;
+                syncResult.delayUntil = Math.max(syncResult.delayUntil, retryAt);
+            }
+        }
+    }
+
+    private static final class Fetched<K, T> {
+        final K target;
+        final T value;
+
+        Fetched(K target, T value) {
+            this.target = target;
+            this.value = value;
+        }
+    }
+
+    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "LocationSync #" + mCount.getAndIncrement());
+        }
+    };
+}
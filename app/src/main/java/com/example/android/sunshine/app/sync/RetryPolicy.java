@@ -0,0 +1,103 @@
+package com.example.android.sunshine.app.sync;
+
+import java.net.HttpURLConnection;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * When and how long to wait before trying a failed request again.
+ *
+ * Delays grow exponentially from a base delay up to a cap, with "full jitter": the actual wait
+ * is picked uniformly between 0 and the exponential delay, so clients that failed together
+ * don't all come back together.  A Retry-After header from the server takes precedence.
+ */
+class RetryPolicy {
+
+    static final int DEFAULT_MAX_ATTEMPTS = 3;
+    static final long DEFAULT_BASE_DELAY_MILLIS = 1000;
+    static final long DEFAULT_MAX_DELAY_MILLIS = 10 * 1000;
+    // The longest Retry-After we'll wait out inside a sync.  Anything longer ends the request,
+    // and the sync tells the SyncManager to come back then instead.
+    static final long DEFAULT_MAX_RETRY_AFTER_MILLIS = 30 * 1000;
+
+    // Attempts per request, including the first
+    final int maxAttempts;
+    final long baseDelayMillis;
+    final long maxDelayMillis;
+    final long maxRetryAfterMillis;
+
+    private final Random mRandom;
+
+    RetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS,
+                DEFAULT_MAX_RETRY_AFTER_MILLIS, new Random());
+    }
+
+    RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis,
+                long maxRetryAfterMillis, Random random) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxRetryAfterMillis = maxRetryAfterMillis;
+        mRandom = random;
+    }
+
+    /**
+     * @param retry 0 for the first retry, 1 for the second and so on
+     * @return how long to wait before that retry, between 0 and the capped exponential delay
+     */
+    long backoffMillis(int retry) {
+        long ceiling = maxDelayMillis;
+        // Past 2^30 any sane base delay is over the cap anyway, and shifting further overflows.
+        if (retry < 30) {
+            ceiling = Math.min(maxDelayMillis, baseDelayMillis << retry);
+        }
+        return (long) (mRandom.nextDouble() * ceiling);
+    }
+
+    /**
+     * @return true for responses that mean the server is struggling rather than that the
+     *         request was wrong, so trying again later may work
+     */
+    static boolean isRetryable(int responseCode) {
+        switch (responseCode) {
+            case 429: // Too Many Requests
+            case HttpURLConnection.HTTP_INTERNAL_ERROR:
+            case HttpURLConnection.HTTP_BAD_GATEWAY:
+            case HttpURLConnection.HTTP_UNAVAILABLE:
+            case HttpURLConnection.HTTP_GATEWAY_TIMEOUT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Parse a Retry-After header, which is either a number of seconds or an HTTP date.
+     *
+     * @return how long from now the server wants us to wait, or -1 if the header is missing
+     *         or unreadable
+     */
+    static long parseRetryAfter(String value, long nowMillis) {
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+        try {
+            long seconds = Long.parseLong(value);
+            return seconds >= 0 ? seconds * 1000 : -1;
+        } catch (NumberFormatException e) {
+            // Not a number; try it as a date.
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return Math.max(0, format.parse(value).getTime() - nowMillis);
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+}
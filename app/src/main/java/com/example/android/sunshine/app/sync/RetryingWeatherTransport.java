@@ -0,0 +1,97 @@
+package com.example.android.sunshine.app.sync;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Wraps another {@link WeatherTransport} to retry requests that failed because of the network
+ * or the server, following a {@link RetryPolicy}, and to stop making them at all while a
+ * {@link CircuitBreaker} says the server is down.
+ *
+ * Requests the server turned away with a Retry-After we can't wait out, and requests the
+ * breaker refused, fail with a {@link SyncBackoffException} saying when to try again.  Other
+ * failures that are still failing once the attempts run out are passed on as they are: the
+ * last IOException, or the last error response.
+ */
+class RetryingWeatherTransport implements WeatherTransport {
+    private static final String LOG_TAG = RetryingWeatherTransport.class.getSimpleName();
+
+    private final WeatherTransport mTransport;
+    private final RetryPolicy mPolicy;
+    private final CircuitBreaker mCircuitBreaker;
+
+    RetryingWeatherTransport(WeatherTransport transport, RetryPolicy policy,
+                             CircuitBreaker circuitBreaker) {
+        mTransport = transport;
+        mPolicy = policy;
+        mCircuitBreaker = circuitBreaker;
+    }
+
+    @Override
+    public Response get(URL url, Map<String, String> requestHeaders,
+                        SyncCancellation cancellation) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            mCircuitBreaker.acquire();
+
+            Response response;
+            try {
+                response = mTransport.get(url, requestHeaders, cancellation);
+            } catch (IOException e) {
+                if (cancellation != null && cancellation.isCanceled()) {
+                    mCircuitBreaker.recordAbandoned();
+                    throw e;
+                }
+                mCircuitBreaker.recordFailure();
+                if (attempt >= mPolicy.maxAttempts) {
+                    throw e;
+                }
+                long delay = mPolicy.backoffMillis(attempt - 1);
+                Log.d(LOG_TAG, "Attempt " + attempt + " failed (" + e + "), retrying in "
+                        + delay + "ms");
+                sleep(delay, cancellation);
+                continue;
+            }
+
+            if (!RetryPolicy.isRetryable(response.code)) {
+                mCircuitBreaker.recordSuccess();
+                return response;
+            }
+            mCircuitBreaker.recordFailure();
+
+            long now = System.currentTimeMillis();
+            long retryAfter = RetryPolicy.parseRetryAfter(response.getHeader("Retry-After"), now);
+            if (retryAfter > mPolicy.maxRetryAfterMillis
+                    || (retryAfter >= 0 && attempt >= mPolicy.maxAttempts)) {
+                response.release();
+                throw new SyncBackoffException("Server returned " + response.code
+                        + ", retry after " + retryAfter / 1000 + "s", now + retryAfter);
+            }
+            if (attempt >= mPolicy.maxAttempts) {
+                return response;
+            }
+            response.release();
+
+            long delay = retryAfter >= 0 ? retryAfter : mPolicy.backoffMillis(attempt - 1);
+            Log.d(LOG_TAG, "Attempt " + attempt + " got " + response.code + ", retrying in "
+                    + delay + "ms");
+            sleep(delay, cancellation);
+        }
+    }
+
+    private static void sleep(long millis, SyncCancellation cancellation) throws IOException {
+        if (cancellation != null) {
+            cancellation.sleep(millis);
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted");
+        }
+    }
+}
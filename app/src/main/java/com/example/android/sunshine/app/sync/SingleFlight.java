@@ -0,0 +1,204 @@
+package com.example.android.sunshine.app.sync;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes sure only one fetch per key runs at a time.
+ *
+ * A caller that asks for a key while a fetch for it is already running waits for that fetch
+ * and gets its result (or its error) rather than starting another one.  A successful result
+ * is also handed to callers that come along shortly after it finished, since syncs triggered
+ * back to back (app start, a new account, the periodic sync) would otherwise download the same
+ * forecast twice in a row.
+ */
+class SingleFlight<K, V> {
+
+    interface Call<V> {
+        V call() throws IOException, JSONException;
+    }
+
+    /**
+     * What {@link #execute} returns: the value, and whether it came from someone else's fetch.
+     * Callers that got a shared value shouldn't store it again.
+     */
+    static final class Result<V> {
+        final V value;
+        final boolean shared;
+
+        Result(V value, boolean shared) {
+            this.value = value;
+            this.shared = shared;
+        }
+    }
+
+    // How often a waiting caller checks whether its own sync was canceled.
+    private static final long WAIT_POLL_MILLIS = 100;
+
+    private final long mShareWindowMillis;
+    private final Map<K, Flight<V>> mFlights = new HashMap<K, Flight<V>>();
+
+    private int mExecutedCount;
+    private int mCollapsedCount;
+
+    /**
+     * @param shareWindowMillis how long after a fetch finishes its result is still handed out,
+     *                          or 0 to only share fetches that are in flight
+     */
+    SingleFlight(long shareWindowMillis) {
+        mShareWindowMillis = shareWindowMillis;
+    }
+
+    /**
+     * Run the call for the key, or wait for the one already running.
+     *
+     * @throws InterruptedIOException if the caller's sync is canceled while it waits
+     */
+    Result<V> execute(K key, SyncCancellation cancellation, Call<V> call)
+            throws IOException, JSONException {
+        while (true) {
+            Flight<V> flight;
+            boolean leader = false;
+            synchronized (this) {
+                flight = mFlights.get(key);
+                if (flight != null && flight.isDone() && !flight.isFresh(mShareWindowMillis)) {
+                    mFlights.remove(key);
+                    flight = null;
+                }
+                if (flight == null) {
+                    flight = new Flight<V>();
+                    mFlights.put(key, flight);
+                    mExecutedCount++;
+                    leader = true;
+                } else {
+                    mCollapsedCount++;
+                }
+            }
+
+            if (leader) {
+                return new Result<V>(lead(key, flight, call), false);
+            }
+
+            flight.await(cancellation);
+            if (flight.mError == null) {
+                return new Result<V>(flight.mValue, true);
+            }
+            if (flight.mError instanceof InterruptedIOException) {
+                // The fetch we attached to was canceled along with its own sync, which says
+                // nothing about ours.  Try again, most likely as the leader this time.
+                continue;
+            }
+            throw rethrow(flight.mError);
+        }
+    }
+
+    private V lead(K key, Flight<V> flight, Call<V> call) throws IOException, JSONException {
+        try {
+            V value = call.call();
+            flight.finish(value, null);
+            return value;
+        } catch (IOException e) {
+            failed(key, flight, e);
+            throw e;
+        } catch (JSONException e) {
+            failed(key, flight, e);
+            throw e;
+        } catch (RuntimeException e) {
+            failed(key, flight, e);
+            throw e;
+        } catch (Error e) {
+            failed(key, flight, e);
+            throw e;
+        }
+    }
+
+    private synchronized void failed(K key, Flight<V> flight, Throwable error) {
+        // Callers already waiting share the error, but later ones should try for themselves.
+        if (mFlights.get(key) == flight) {
+            mFlights.remove(key);
+        }
+        flight.finish(null, error);
+    }
+
+    private static IOException rethrow(Throwable error) throws JSONException {
+        if (error instanceof IOException) {
+            return (IOException) error;
+        }
+        if (error instanceof JSONException) {
+            throw (JSONException) error;
+        }
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        throw (Error) error;
+    }
+
+    /**
+     * Forget finished fetches whose results are too old to share.
+     */
+    synchronized void trim() {
+        Iterator<Flight<V>> it = mFlights.values().iterator();
+        while (it.hasNext()) {
+            Flight<V> flight = it.next();
+            if (flight.isDone() && !flight.isFresh(mShareWindowMillis)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return how many fetches actually ran
+     */
+    synchronized int getExecutedCount() {
+        return mExecutedCount;
+    }
+
+    /**
+     * @return how many callers were handed another caller's fetch instead of running their own
+     */
+    synchronized int getCollapsedCount() {
+        return mCollapsedCount;
+    }
+
+    private static final class Flight<V> {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile V mValue;
+        private volatile Throwable mError;
+        private volatile long mFinishedAtNanos;
+
+        void finish(V value, Throwable error) {
+            mValue = value;
+            mError = error;
+            mFinishedAtNanos = System.nanoTime();
+            mDone.countDown();
+        }
+
+        boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        boolean isFresh(long windowMillis) {
+            return System.nanoTime() - mFinishedAtNanos < TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        }
+
+        void await(SyncCancellation cancellation) throws InterruptedIOException {
+            try {
+                while (!mDone.await(WAIT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (cancellation != null) {
+                        cancellation.throwIfCanceled();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted");
+            }
+        }
+    }
+}
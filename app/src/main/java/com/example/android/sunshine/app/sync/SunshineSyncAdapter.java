@@ -2,48 +2,57 @@ package com.example.android.sunshine.app.sync;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
+import android.annotation.TargetApi;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
 import android.content.SyncResult;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
-import android.text.format.Time;
 import android.util.Log;
 
 import com.example.android.sunshine.app.BuildConfig;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.DayMath;
 import com.example.android.sunshine.app.data.WeatherContract;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
@@ -55,6 +64,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     private static final int WEATHER_NOTIFICATION_ID = 3004;
 
 
+
     private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
             WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
             WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
@@ -68,382 +78,877 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     private static final int INDEX_MIN_TEMP = 2;
     private static final int INDEX_SHORT_DESC = 3;
 
+    // Sync extra asking for every location in the database to be refreshed, rather than
+    // just the preferred one.  Periodic syncs do this by default, manual ones don't.
+    public static final String SYNC_EXTRAS_ALL_LOCATIONS = "all_locations";
+
+    // Limits for refreshing several locations at once: worker threads, requests in flight
+    // to one host, and how long the whole run may take.
+    private static final int SYNC_MAX_THREADS = 4;
+    private static final int SYNC_MAX_REQUESTS_PER_HOST = 2;
+    private static final long SYNC_DEADLINE_MILLIS = 60 * 1000;
+
+    // OWM's group endpoint takes at most this many city ids per request.
+    static final int MAX_GROUP_SIZE = 20;
+
+    // A forecast fetched this recently is handed to a sync that asks for the same location
+    // instead of being downloaded again.
+    private static final long FETCH_SHARE_WINDOW_MILLIS = 30 * 1000;
+    // syncImmediately() calls for the same location this close together make one sync.
+    private static final long IMMEDIATE_SYNC_WINDOW_MILLIS = 10 * 1000;
+
+    // Shared by every sync in the process, keyed by canonicalLocation().
+    private static final SingleFlight<String, FetchedForecast> sForecastFlights =
+            new SingleFlight<String, FetchedForecast>(FETCH_SHARE_WINDOW_MILLIS);
+    private static final Map<String, Long> sImmediateSyncTimes = new HashMap<String, Long>();
+    private static int sCollapsedSyncRequests;
+
+    private final SyncValidatorStore mValidatorStore;
+    private final ForecastFetcher mForecastFetcher;
+    private final MultiLocationSync mMultiLocationSync;
+    private final CircuitBreaker mCircuitBreaker;
+    // Set while a sync is running, so onSyncCanceled can abort it.
+    private volatile SyncCancellation mCancellation;
+    // Created the first time a notification goes out
+    private WeatherArtCache mArtCache;
+
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
+        mValidatorStore = new SyncValidatorStore(context);
+        mCircuitBreaker = new CircuitBreaker(context);
+        mForecastFetcher = new ForecastFetcher(mValidatorStore, new RetryingWeatherTransport(
+                new HttpWeatherTransport(), new RetryPolicy(), mCircuitBreaker));
+        mMultiLocationSync = new MultiLocationSync(
+                SYNC_MAX_THREADS, SYNC_MAX_REQUESTS_PER_HOST, SYNC_DEADLINE_MILLIS);
     }
 
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
+        SyncCancellation cancellation = new SyncCancellation();
+        SyncTrace trace = new SyncTrace();
+        mCancellation = cancellation;
+        try {
+            performSync(extras, syncResult, cancellation, trace);
+        } finally {
+            mCancellation = null;
+            recordSyncRun(trace, syncResult);
+        }
+    }
+
+    /**
+     * Add the run's timings to the sync_runs table.
+     */
+    private void recordSyncRun(SyncTrace trace, SyncResult syncResult) {
+        try {
+            getContext().getContentResolver().insert(WeatherContract.SyncRunEntry.CONTENT_URI,
+                    trace.toContentValues(syncResult));
+        } catch (SQLException e) {
+            // Losing the timings is no reason to fail the sync.
+            Log.e(LOG_TAG, "Couldn't record sync run", e);
+        }
+    }
+
+    @Override
+    public void onSyncCanceled() {
+        // The default implementation interrupts the sync thread, which doesn't unblock a
+        // socket read, so abort the requests in flight as well.
+        SyncCancellation cancellation = mCancellation;
+        if (cancellation != null) {
+            cancellation.cancel();
+        }
+        super.onSyncCanceled();
+    }
+
+    private void performSync(Bundle extras, SyncResult syncResult, SyncCancellation cancellation,
+                             SyncTrace trace) {
         Log.d(LOG_TAG, "Starting sync");
+        if (mCircuitBreaker.isOpen()) {
+            // OWM has been failing; don't even try until the breaker lets a request through.
+            Log.d(LOG_TAG, "Circuit open, skipping sync");
+            trace.setStatus(WeatherContract.SyncRunEntry.STATUS_SKIPPED);
+            syncResult.stats.numIoExceptions++;
+            syncResult.delayUntil = mCircuitBreaker.getOpenUntil() / 1000;
+            return;
+        }
         String locationQuery = Utility.getPreferredLocation(getContext());
 
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
+        boolean allLocations = extras.getBoolean(SYNC_EXTRAS_ALL_LOCATIONS,
+                !extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false));
 
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
+        // OWM returns daily forecasts based upon the local time of the city that is being
+        // asked for, which means that we need to know the GMT offset to translate this data
+        // properly.
 
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
+        // Since this data is also sent in-order and the first day is always the
+        // current day, we're going to take advantage of that to get a nice
+        // normalized UTC date for all of our weather.
 
-        try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
-                    .appendQueryParameter(QUERY_PARAM, locationQuery)
-                    .appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-                    .build();
-
-            URL url = new URL(builtUri.toString());
-
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
+        DayMath dayMath = DayMath.getDefault();
+
+        // we start at the day returned by local time. Otherwise this is a mess.
+        int julianStartDay = dayMath.getJulianDay(System.currentTimeMillis());
+
+        List<SyncTarget> targets = allLocations
+                ? planSync(locationQuery, getStoredLocations(), julianStartDay, mValidatorStore)
+                : Collections.singletonList(SyncTarget.forecast(locationQuery));
+
+        ForecastSyncHandler handler = new ForecastSyncHandler(julianStartDay, cancellation, trace);
+        List<SyncTarget> synced = mMultiLocationSync.run(targets, handler, syncResult, cancellation);
+        if (cancellation.isCanceled()) {
+            // Nothing has been written yet, and none of it will be.
+            trace.setStatus(WeatherContract.SyncRunEntry.STATUS_CANCELED);
+            Log.d(LOG_TAG, "Sync canceled. " + synced.size() + " of " + targets.size()
+                    + " request(s) downloaded, nothing written");
+            return;
+        }
+
+        // delete old data so we don't build up an endless history
+        long lastDateToDelete = dayMath.getStartOfDay(julianStartDay - 1);
+        boolean retentionInBatch = Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB;
+        if (handler.mRowsStaged > 0) {
+            if (retentionInBatch) {
+                handler.mBatch.addRetention(lastDateToDelete);
+            }
+            if (!handler.commit(syncResult)) {
                 return;
             }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
+        }
+        NotificationSettings settings = NotificationSettings.read(getContext());
+        long now = System.currentTimeMillis();
+        if (settings.isDue(now)) {
+            long notifyStart = System.nanoTime();
+            ContentValues today = handler.mUpdatedToday.get(locationQuery);
+            if (today == null) {
+                // Nothing new was written for today (not modified, unchanged, or the same
+                // values), so notify from the row that's already stored.
+                today = queryDay(locationQuery, dayMath.getStartOfDay(julianStartDay));
             }
-
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                return;
+            if (today != null) {
+                notifyWeather(today, settings.metric, now);
             }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Error ", e);
-            // If the code didn't successfully get the weather data, there's no point in attempting
-            // to parse it.
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
+            trace.addNotify(System.nanoTime() - notifyStart);
+        }
+        if (!retentionInBatch && !cancellation.isCanceled()) {
+            applyRetention(lastDateToDelete, trace);
+        }
+
+        sForecastFlights.trim();
+        Log.d(LOG_TAG, "Sync Complete. " + synced.size() + " of " + targets.size()
+                + " request(s) synced, " + handler.mRowsStored + " rows written. Collapsed "
+                + getCollapsedFetchCount() + " fetch(es) and " + getCollapsedSyncRequestCount()
+                + " sync request(s) so far");
+    }
+
+    /**
+     * Delete expired weather in small batches after the sync's own writes are in and the user
+     * has been notified, and record how big the database is.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void applyRetention(long lastDateToDelete, SyncTrace trace) {
+        long retentionStart = System.nanoTime();
+        try {
+            Bundle result = getContext().getContentResolver().call(
+                    WeatherContract.WeatherEntry.CONTENT_URI,
+                    WeatherContract.METHOD_APPLY_RETENTION, Long.toString(lastDateToDelete), null);
+            trace.setDatabaseSize(result.getLong(WeatherContract.KEY_DATABASE_BYTES),
+                    result.getLong(WeatherContract.KEY_FREE_BYTES));
+            Log.d(LOG_TAG, "Retention deleted " + result.getInt(WeatherContract.KEY_DELETED)
+                    + " rows. Database " + result.getLong(WeatherContract.KEY_DATABASE_BYTES)
+                    + " bytes, " + result.getLong(WeatherContract.KEY_FREE_BYTES) + " free");
+        } catch (SQLException e) {
+            // The rows are deleted next time.
+            Log.e(LOG_TAG, "Error applying retention", e);
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+            trace.addRetention(System.nanoTime() - retentionStart);
+        }
+    }
+
+    /**
+     * The key two location settings share if they ask OWM for the same place.
+     */
+    static String canonicalLocation(String locationSetting) {
+        return locationSetting.trim().toLowerCase(Locale.US);
+    }
+
+    /**
+     * Work out the requests for an all-locations sync.  The preferred location always gets its
+     * full forecast.  Every other location gets its full forecast once a day; for the rest of
+     * the day's syncs only today's weather changes in any way that matters, and OWM's group
+     * endpoint returns that for up to {@link #MAX_GROUP_SIZE} cities in a single request.
+     */
+    static List<SyncTarget> planSync(String preferredLocation, List<StoredLocation> storedLocations,
+                                     int julianStartDay, SyncValidatorStore validatorStore) {
+        List<SyncTarget> targets = new ArrayList<SyncTarget>();
+        targets.add(SyncTarget.forecast(preferredLocation));
+
+        List<StoredLocation> batch = new ArrayList<StoredLocation>(MAX_GROUP_SIZE);
+        for (StoredLocation location : storedLocations) {
+            if (location.locationSetting.equals(preferredLocation)) {
+                continue;
             }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
-                }
+            if (location.cityId == 0
+                    || validatorStore.getForecastDay(location.locationSetting) != julianStartDay) {
+                targets.add(SyncTarget.forecast(location.locationSetting));
+                continue;
+            }
+            batch.add(location);
+            if (batch.size() == MAX_GROUP_SIZE) {
+                targets.add(SyncTarget.group(batch));
+                batch = new ArrayList<StoredLocation>(MAX_GROUP_SIZE);
             }
         }
-        return;
+        if (!batch.isEmpty()) {
+            targets.add(SyncTarget.group(batch));
+        }
+        return targets;
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
-     *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * Build the OpenWeatherMap forecast query for a location.
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
+    static URL buildForecastUrl(String locationQuery) throws MalformedURLException {
+        String format = "json";
+        String units = "metric";
+        int numDays = 14;
 
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
+        // Construct the URL for the OpenWeatherMap query
+        // Possible parameters are avaiable at OWM's forecast API page, at
+        // http://openweathermap.org/API#forecast
+        final String FORECAST_BASE_URL =
+                "http://api.openweathermap.org/data/2.5/forecast/daily?";
+        final String QUERY_PARAM = "q";
+        final String FORMAT_PARAM = "mode";
+        final String UNITS_PARAM = "units";
+        final String DAYS_PARAM = "cnt";
+        final String APPID_PARAM = "APPID";
+
+        Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
+                .appendQueryParameter(QUERY_PARAM, locationQuery)
+                .appendQueryParameter(FORMAT_PARAM, format)
+                .appendQueryParameter(UNITS_PARAM, units)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
+
+        return new URL(builtUri.toString());
+    }
 
-        // These are the names of the JSON objects that need to be extracted.
+    /**
+     * Build the OpenWeatherMap query for the current weather in a batch of locations.
+     */
+    static URL buildGroupUrl(List<StoredLocation> locations) throws MalformedURLException {
+        final String GROUP_BASE_URL = "http://api.openweathermap.org/data/2.5/group?";
+        final String ID_PARAM = "id";
+        final String UNITS_PARAM = "units";
+        final String APPID_PARAM = "APPID";
+
+        // Two location settings can resolve to the same city; only ask for it once.
+        Set<Long> cityIds = new LinkedHashSet<Long>();
+        for (StoredLocation location : locations) {
+            cityIds.add(location.cityId);
+        }
+        StringBuilder ids = new StringBuilder();
+        for (long cityId : cityIds) {
+            if (ids.length() > 0) ids.append(',');
+            ids.append(cityId);
+        }
 
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
+        Uri builtUri = Uri.parse(GROUP_BASE_URL).buildUpon()
+                .appendQueryParameter(ID_PARAM, ids.toString())
+                .appendQueryParameter(UNITS_PARAM, "metric")
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
+
+        return new URL(builtUri.toString());
+    }
+
+    /**
+     * A location row, with OWM's id for its city if we know it.
+     */
+    static final class StoredLocation {
+        final String locationSetting;
+        final long locationId;
+        // 0 if we haven't had a forecast back for the location yet
+        final long cityId;
+
+        StoredLocation(String locationSetting, long locationId, long cityId) {
+            this.locationSetting = locationSetting;
+            this.locationId = locationId;
+            this.cityId = cityId;
+        }
+    }
 
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
+    /**
+     * One request's worth of work for MultiLocationSync: either the full forecast for a
+     * location, or today's weather for a batch of locations.
+     */
+    static final class SyncTarget {
+        // Set for a full forecast
+        final String locationSetting;
+        // Set for a group request
+        final List<StoredLocation> group;
+
+        private SyncTarget(String locationSetting, List<StoredLocation> group) {
+            this.locationSetting = locationSetting;
+            this.group = group;
+        }
 
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
+        static SyncTarget forecast(String locationSetting) {
+            return new SyncTarget(locationSetting, null);
+        }
 
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
+        static SyncTarget group(List<StoredLocation> locations) {
+            return new SyncTarget(null, locations);
+        }
 
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
+        boolean isGroup() {
+            return group != null;
+        }
 
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
+        @Override
+        public String toString() {
+            return isGroup() ? "group of " + group.size() : locationSetting;
+        }
+    }
 
-        try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
-
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
-
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
-
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
-
-            Time dayTime = new Time();
-            dayTime.setToNow();
-
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
-
-            // now we work exclusively in UTC
-            dayTime = new Time();
-
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
-
-                double high;
-                double low;
-
-                String description;
-                int weatherId;
-
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
-
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
-
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
-
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
-
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
-
-                ContentValues weatherValues = new ContentValues();
-
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
-
-                cVVector.add(weatherValues);
+    /**
+     * A forecast or group response that has been downloaded but not stored yet.
+     */
+    static final class FetchedForecast {
+        // Set for a full forecast
+        final String locationSetting;
+        final ForecastFetcher.Result result;
+        final ForecastCollector collector;
+        // Set for a group request
+        final GroupCollector group;
+
+        // A forecast can be handed to several syncs by sForecastFlights, but only one of
+        // them should store it.
+        private final AtomicBoolean mStoreClaimed = new AtomicBoolean();
+
+        FetchedForecast(String locationSetting, ForecastFetcher.Result result,
+                        ForecastCollector collector) {
+            this.locationSetting = locationSetting;
+            this.result = result;
+            this.collector = collector;
+            this.group = null;
+        }
+
+        FetchedForecast(GroupCollector group) {
+            this.locationSetting = null;
+            this.result = null;
+            this.collector = null;
+            this.group = group;
+        }
+
+        /**
+         * @return true for the first caller only
+         */
+        boolean claimStore() {
+            return mStoreClaimed.compareAndSet(false, true);
+        }
+    }
+
+    /**
+     * Downloads forecasts on MultiLocationSync's worker threads and stores them on the sync
+     * thread.
+     */
+    private final class ForecastSyncHandler
+            implements MultiLocationSync.Handler<SyncTarget, FetchedForecast> {
+        private final int mJulianStartDay;
+        private final SyncCancellation mCancellation;
+        private final SyncTrace mTrace;
+
+        // Only touched from store() and commit(), which run on the sync thread.
+        final SyncBatch mBatch = new SyncBatch();
+        private final List<StagedForecast> mStagedForecasts = new ArrayList<StagedForecast>();
+        private final List<SyncBatch.Range> mStagedGroups = new ArrayList<SyncBatch.Range>();
+        int mRowsStaged;
+        int mRowsStored;
+        // Today's row for each location whose forecast changed, for the notification
+        final Map<String, ContentValues> mUpdatedToday = new HashMap<String, ContentValues>();
+
+        ForecastSyncHandler(int julianStartDay, SyncCancellation cancellation, SyncTrace trace) {
+            mJulianStartDay = julianStartDay;
+            mCancellation = cancellation;
+            mTrace = trace;
+        }
+
+        @Override
+        public URL getUrl(SyncTarget target) throws IOException {
+            return target.isGroup()
+                    ? buildGroupUrl(target.group) : buildForecastUrl(target.locationSetting);
+        }
+
+        @Override
+        public FetchedForecast fetch(SyncTarget target, URL url)
+                throws IOException, JSONException {
+            if (target.isGroup()) {
+                GroupCollector group = new GroupCollector(mJulianStartDay);
+                mForecastFetcher.fetchGroup(url, group, mCancellation, mTrace);
+                return new FetchedForecast(group);
             }
 
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
+            final String locationSetting = target.locationSetting;
+            final URL forecastUrl = url;
+            SingleFlight.Result<FetchedForecast> flight = sForecastFlights.execute(
+                    canonicalLocation(locationSetting), mCancellation,
+                    new SingleFlight.Call<FetchedForecast>() {
+                        @Override
+                        public FetchedForecast call() throws IOException, JSONException {
+                            return fetchForecast(forecastUrl, locationSetting);
+                        }
+                    });
+            if (flight.shared) {
+                Log.d(LOG_TAG, "Forecast for " + locationSetting + " shared with another sync");
+            }
+            return flight.value;
+        }
 
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
+        private FetchedForecast fetchForecast(URL url, String locationSetting)
+                throws IOException, JSONException {
+            // If the forecast was wiped locally (say by a database upgrade) the stored
+            // validators would keep telling us nothing changed, so only revalidate when
+            // there's something to keep.
+            boolean revalidate = hasForecast(locationSetting);
+
+            ForecastCollector collector = new ForecastCollector(mJulianStartDay);
+            ForecastFetcher.Result result = mForecastFetcher.fetch(
+                    url, locationSetting, mJulianStartDay, revalidate, collector, mCancellation,
+                    mTrace);
+            return new FetchedForecast(locationSetting, result, collector);
+        }
 
-                notifyWeather();
+        /**
+         * Add the target's rows to the batch.  They're written by {@link #commit}.
+         */
+        @Override
+        public int store(SyncTarget target, FetchedForecast fetched) {
+            if (target.isGroup()) {
+                SyncBatch.Range range = stageGroupWeather(mBatch, fetched.group, target.group);
+                mStagedGroups.add(range);
+                int rows = range.end - range.start;
+                mRowsStaged += rows;
+                return rows;
             }
 
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
+            String locationSetting = target.locationSetting;
+            if (locationSetting.equals(fetched.locationSetting) && !fetched.claimStore()) {
+                Log.d(LOG_TAG, "Forecast for " + locationSetting + " already stored");
+                return 0;
+            }
+            if (fetched.result.status != ForecastFetcher.FETCH_UPDATED) {
+                // Nothing new: skip the insert and the notifications.  Hold on to any new
+                // validators the server handed us, though.
+                if (fetched.result.status == ForecastFetcher.FETCH_UNCHANGED) {
+                    mValidatorStore.put(locationSetting, fetched.result.validators);
+                }
+                mValidatorStore.putForecastDay(locationSetting, mJulianStartDay);
+                Log.d(LOG_TAG, "Forecast for " + locationSetting + " unchanged");
+                return 0;
+            }
 
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
+            SyncBatch.Range range = stageWeatherData(mBatch, fetched.collector, locationSetting);
+            mStagedForecasts.add(new StagedForecast(locationSetting, fetched, range));
+            int rows = range.end - range.start;
+            mRowsStaged += rows;
+            return rows;
         }
-    }
 
-    private void notifyWeather() {
-        Context context = getContext();
-        //checking the last update and notify if it' the first of the day
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        String displayNotificationsKey = context.getString(R.string.pref_enable_notifications_key);
-        boolean displayNotifications = prefs.getBoolean(displayNotificationsKey,
-                Boolean.parseBoolean(context.getString(R.string.pref_enable_notifications_default)));
-
-        if ( displayNotifications ) {
-
-            String lastNotificationKey = context.getString(R.string.pref_last_notification);
-            long lastSync = prefs.getLong(lastNotificationKey, 0);
-
-            if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
-                // Last sync was more than 1 day ago, let's send a notification with the weather.
-                String locationQuery = Utility.getPreferredLocation(context);
-
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-
-                // we'll query our contentProvider, as always
-                Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
-
-                if (cursor.moveToFirst()) {
-                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-                    double high = cursor.getDouble(INDEX_MAX_TEMP);
-                    double low = cursor.getDouble(INDEX_MIN_TEMP);
-                    String desc = cursor.getString(INDEX_SHORT_DESC);
-
-                    int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
-                    Resources resources = context.getResources();
-                    Bitmap largeIcon = BitmapFactory.decodeResource(resources,
-                            Utility.getArtResourceForWeatherCondition(weatherId));
-                    String title = context.getString(R.string.app_name);
-
-                    // Define the text of the forecast.
-                    String contentText = String.format(context.getString(R.string.format_notification),
-                            desc,
-                            Utility.formatTemperature(context, high),
-                            Utility.formatTemperature(context, low));
-
-                    // NotificationCompatBuilder is a very convenient way to build backward-compatible
-                    // notifications.  Just throw in some data.
-                    NotificationCompat.Builder mBuilder =
-                            new NotificationCompat.Builder(getContext())
-                                    .setColor(resources.getColor(R.color.sunshine_light_blue))
-                                    .setSmallIcon(iconId)
-                                    .setLargeIcon(largeIcon)
-                                    .setContentTitle(title)
-                                    .setContentText(contentText);
-
-                    // Make something interesting happen when the user clicks on the notification.
-                    // In this case, opening the app is sufficient.
-                    Intent resultIntent = new Intent(context, MainActivity.class);
-
-                    // The stack builder object will contain an artificial back stack for the
-                    // started Activity.
-                    // This ensures that navigating backward from the Activity leads out of
-                    // your application to the Home screen.
-                    TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
-                    stackBuilder.addNextIntent(resultIntent);
-                    PendingIntent resultPendingIntent =
-                            stackBuilder.getPendingIntent(
-                                    0,
-                                    PendingIntent.FLAG_UPDATE_CURRENT
-                            );
-                    mBuilder.setContentIntent(resultPendingIntent);
-
-                    NotificationManager mNotificationManager =
-                            (NotificationManager) getContext().getSystemService(Context.NOTIFICATION_SERVICE);
-                    // WEATHER_NOTIFICATION_ID allows you to update the notification later on.
-                    mNotificationManager.notify(WEATHER_NOTIFICATION_ID, mBuilder.build());
-
-                    //refreshing last sync
-                    SharedPreferences.Editor editor = prefs.edit();
-                    editor.putLong(lastNotificationKey, System.currentTimeMillis());
-                    editor.commit();
+        /**
+         * Write the batch in one transaction.  The validators for each forecast are only kept
+         * once it's stored, so a failed commit is downloaded again next time.
+         *
+         * @return false if nothing could be written
+         */
+        boolean commit(SyncResult syncResult) {
+            long insertStart = System.nanoTime();
+            ContentProviderResult[] results;
+            try {
+                results = getContext().getContentResolver().applyBatch(
+                        WeatherContract.CONTENT_AUTHORITY, mBatch.getOperations());
+            } catch (RemoteException e) {
+                return commitFailed(syncResult, e);
+            } catch (OperationApplicationException e) {
+                return commitFailed(syncResult, e);
+            } catch (SQLException e) {
+                return commitFailed(syncResult, e);
+            } catch (CancellationException e) {
+                // The sync was canceled, so the provider rolled the batch back.
+                return commitFailed(syncResult, e);
+            } finally {
+                mTrace.addInsert(System.nanoTime() - insertStart);
+            }
+
+            for (StagedForecast staged : mStagedForecasts) {
+                int written = staged.range.countWritten(results);
+                Log.d(LOG_TAG, "Stored " + staged.locationSetting + ". " + written + " of "
+                        + (staged.range.end - staged.range.start) + " days changed");
+                mValidatorStore.put(staged.locationSetting, staged.fetched.result.validators);
+                mValidatorStore.putForecastDay(staged.locationSetting, mJulianStartDay);
+                Vector<ContentValues> days = staged.fetched.collector.cVVector;
+                if (written > 0 && !days.isEmpty()) {
+                    mUpdatedToday.put(staged.locationSetting, days.get(0));
                 }
-                cursor.close();
+                mRowsStored += written;
+            }
+            for (SyncBatch.Range range : mStagedGroups) {
+                int written = range.countWritten(results);
+                Log.d(LOG_TAG, "Stored group. " + written + " of " + (range.end - range.start)
+                        + " rows changed");
+                mRowsStored += written;
             }
+            mTrace.addRowsWritten(mRowsStored);
+            // store() counted the rows it queued; count the ones actually written instead.
+            syncResult.stats.numInserts += mRowsStored - mRowsStaged;
+            syncResult.stats.numEntries += mRowsStored - mRowsStaged;
+            return true;
+        }
+
+        private boolean commitFailed(SyncResult syncResult, Exception e) {
+            if (mCancellation.isCanceled() || e instanceof CancellationException) {
+                mTrace.setStatus(WeatherContract.SyncRunEntry.STATUS_CANCELED);
+                Log.d(LOG_TAG, "Sync canceled while storing, nothing written");
+            } else {
+                Log.e(LOG_TAG, "Error storing " + mRowsStaged + " rows", e);
+                syncResult.databaseError = true;
+            }
+            syncResult.stats.numInserts -= mRowsStaged;
+            syncResult.stats.numEntries -= mRowsStaged;
+            return false;
+        }
+    }
+
+    /**
+     * A forecast added to the batch, and where its rows are in it.
+     */
+    private static final class StagedForecast {
+        final String locationSetting;
+        final FetchedForecast fetched;
+        final SyncBatch.Range range;
+
+        StagedForecast(String locationSetting, FetchedForecast fetched, SyncBatch.Range range) {
+            this.locationSetting = locationSetting;
+            this.fetched = fetched;
+            this.range = range;
         }
     }
 
     /**
-     * Helper method to handle insertion of a new location in the weather database.
+     * The row we store for one day of weather.
+     */
+    static ContentValues createWeatherValues(long dateTime, ForecastJsonParser.ForecastDay day) {
+        ContentValues weatherValues = new ContentValues();
+
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, day.humidity);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, day.pressure);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, day.windSpeed);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, day.windDirection);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, day.high);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, day.low);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, day.description);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, day.weatherId);
+
+        return weatherValues;
+    }
+
+    static ContentValues createCurrentWeatherValues(long dateTime,
+                                                    ForecastJsonParser.ForecastDay day) {
+        ContentValues weatherValues = new ContentValues();
+
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, day.humidity);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, day.pressure);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, day.windSpeed);
+        if (!Double.isNaN(day.windDirection)) {
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, day.windDirection);
+        }
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, day.description);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, day.weatherId);
+
+        return weatherValues;
+    }
+
+    /**
+     * Collects the rows for a forecast as {@link ForecastJsonParser} reads them.  The city
+     * may come after the list, so the location key is filled in when the rows are stored.
+     */
+    static final class ForecastCollector implements ForecastJsonParser.Callback {
+        private final int mJulianStartDay;
+        private final DayMath mDayMath = DayMath.getDefault();
+
+        long cityId;
+        String cityName;
+        double cityLatitude;
+        double cityLongitude;
+        final Vector<ContentValues> cVVector = new Vector<ContentValues>();
+
+        ForecastCollector(int julianStartDay) {
+            mJulianStartDay = julianStartDay;
+        }
+
+        @Override
+        public void onCity(long cityId, String cityName, double lat, double lon) {
+            this.cityId = cityId;
+            this.cityName = cityName;
+            this.cityLatitude = lat;
+            this.cityLongitude = lon;
+        }
+
+        @Override
+        public void onDay(int index, ForecastJsonParser.ForecastDay day) {
+            // The first day of the forecast is today, local time.
+            long dateTime = mDayMath.getStartOfDay(mJulianStartDay + index);
+            cVVector.add(createWeatherValues(dateTime, day));
+        }
+    }
+
+    /**
+     * Collects today's current conditions for each city in a group response, keyed by OWM city
+     * id.  The rows only have the columns the response really gives, to be merged into the
+     * stored forecast for today: no low or high, and no wind direction when OWM left it out.
+     */
+    static final class GroupCollector implements ForecastJsonParser.GroupCallback {
+        private final long mToday;
+        final Map<Long, ContentValues> rowsByCityId = new HashMap<Long, ContentValues>();
+
+        GroupCollector(int julianStartDay) {
+            mToday = DayMath.getDefault().getStartOfDay(julianStartDay);
+        }
+
+        @Override
+        public void onCityWeather(long cityId, ForecastJsonParser.ForecastDay day) {
+            rowsByCityId.put(cityId, createCurrentWeatherValues(mToday, day));
+        }
+    }
+
+    /**
+     * Add a parsed forecast, and its location if that's new, to the batch.  Days that haven't
+     * changed since the last sync won't be rewritten.
      *
-     * @param locationSetting The location string used to request updates from the server.
-     * @param cityName A human-readable city name, e.g "Mountain View"
-     * @param lat the latitude of the city
-     * @param lon the longitude of the city
-     * @return the row ID of the added location.
+     * @return where the forecast's days are in the batch
+     */
+    static SyncBatch.Range stageWeatherData(SyncBatch batch, ForecastCollector forecast,
+                                            String locationSetting) {
+        Vector<ContentValues> cVVector = forecast.cVVector;
+        ContentValues[] cvArray = new ContentValues[cVVector.size()];
+        cVVector.toArray(cvArray);
+        // The location id is filled in from the location's operation when the batch is applied.
+        return batch.addForecast(locationSetting, forecast.cityId, forecast.cityName,
+                forecast.cityLatitude, forecast.cityLongitude, cvArray);
+    }
+
+    /**
+     * Add today's weather from a group response, for each location in the group, to the batch.
+     * The upsert only writes the columns each row has, so today's low and high from the full
+     * forecast are kept.  Locations are only grouped once today's forecast is stored, so
+     * there's always a row to merge into.
+     *
+     * @return where the rows are in the batch
+     */
+    private SyncBatch.Range stageGroupWeather(SyncBatch batch, GroupCollector group,
+                                              List<StoredLocation> locations) {
+        List<ContentValues> rows = new ArrayList<ContentValues>(locations.size());
+        for (StoredLocation location : locations) {
+            ContentValues weatherValues = group.rowsByCityId.get(location.cityId);
+            if (weatherValues == null) {
+                // OWM may have dropped or renumbered the city.  Go back to the full forecast
+                // next time, which stores the id it now has.
+                Log.w(LOG_TAG, "No weather for " + location.locationSetting + " in group response");
+                mValidatorStore.putForecastDay(location.locationSetting, 0);
+                continue;
+            }
+            // Several locations can share a city, so each gets its own copy of the row.
+            weatherValues = new ContentValues(weatherValues);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, location.locationId);
+            rows.add(weatherValues);
+        }
+
+        return batch.addWeather(rows.toArray(new ContentValues[rows.size()]));
+    }
+
+    /**
+     * @return every location in the database
      */
-    long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
+    private List<StoredLocation> getStoredLocations() {
+        List<StoredLocation> locations = new ArrayList<StoredLocation>();
 
-        // First, check if the location with this city name exists in the db
-        Cursor locationCursor = getContext().getContentResolver().query(
+        Cursor cursor = getContext().getContentResolver().query(
                 WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{WeatherContract.LocationEntry._ID},
-                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
-                new String[]{locationSetting},
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                        WeatherContract.LocationEntry._ID,
+                        WeatherContract.LocationEntry.COLUMN_CITY_ID},
+                null,
+                null,
                 null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                locations.add(new StoredLocation(cursor.getString(0), cursor.getLong(1),
+                        cursor.isNull(2) ? 0 : cursor.getLong(2)));
+            }
+            cursor.close();
+        }
+        return locations;
+    }
 
-        if (locationCursor.moveToFirst()) {
-            int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
-            locationId = locationCursor.getLong(locationIdIndex);
-        } else {
-            // Now that the content provider is set up, inserting rows of data is pretty simple.
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
+    /**
+     * @return the columns the notification shows from the location's stored row for the day,
+     *         or null if there isn't one
+     */
+    private ContentValues queryDay(String locationSetting, long date) {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationSetting, date),
+                NOTIFY_WEATHER_PROJECTION,
+                null,
+                null,
+                null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            ContentValues day = new ContentValues();
+            day.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                    cursor.getInt(INDEX_WEATHER_ID));
+            day.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, cursor.getDouble(INDEX_MAX_TEMP));
+            day.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, cursor.getDouble(INDEX_MIN_TEMP));
+            day.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+                    cursor.getString(INDEX_SHORT_DESC));
+            return day;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return true if we have today's forecast stored for the location
+     */
+    private boolean hasForecast(String locationSetting) {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                        locationSetting, System.currentTimeMillis()),
+                new String[]{WeatherContract.WeatherEntry.TABLE_NAME + "." +
+                        WeatherContract.WeatherEntry._ID},
+                null,
+                null,
+                null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
 
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+    /**
+     * The preferences the notification stage needs, read once per run.
+     */
+    static final class NotificationSettings {
+        final boolean enabled;
+        final long lastNotification;
+        final boolean metric;
+
+        NotificationSettings(boolean enabled, long lastNotification, boolean metric) {
+            this.enabled = enabled;
+            this.lastNotification = lastNotification;
+            this.metric = metric;
+        }
 
-            // Finally, insert location data into the database.
-            Uri insertedUri = getContext().getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
+        /**
+         * @return true if notifications are on and the last one was a day or more ago
+         */
+        boolean isDue(long now) {
+            return enabled && now - lastNotification >= DAY_IN_MILLIS;
+        }
 
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
+        static NotificationSettings read(Context context) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            boolean enabled = prefs.getBoolean(
+                    context.getString(R.string.pref_enable_notifications_key),
+                    Boolean.parseBoolean(context.getString(R.string.pref_enable_notifications_default)));
+            long lastNotification = prefs.getLong(
+                    context.getString(R.string.pref_last_notification), 0);
+            boolean metric = prefs.getString(context.getString(R.string.pref_units_key),
+                    context.getString(R.string.pref_units_metric))
+                    .equals(context.getString(R.string.pref_units_metric));
+            return new NotificationSettings(enabled, lastNotification, metric);
         }
+    }
+
+    /**
+     * Show today's weather for the preferred location.  The caller has already checked that
+     * notifications are on and the last one was a day or more ago.
+     *
+     * @param today the row the sync just stored for today, or the stored one if the sync
+     *              didn't change it
+     * @param now   the time the check was made, kept as the time of this notification
+     */
+    private void notifyWeather(ContentValues today, boolean metric, long now) {
+        Context context = getContext();
+
+        // Last notification was more than 1 day ago, let's send one with the weather.
+        int weatherId = today.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+        double high = today.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP);
+        double low = today.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP);
+        String desc = today.getAsString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC);
 
-        locationCursor.close();
-        // Wait, that worked?  Yes!
-        return locationId;
+        int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
+        Resources resources = context.getResources();
+        if (mArtCache == null) {
+            mArtCache = WeatherArtCache.forNotifications(context);
+        }
+        Bitmap largeIcon = mArtCache.get(
+                Utility.getArtResourceForWeatherCondition(weatherId));
+        String title = context.getString(R.string.app_name);
+
+        // Define the text of the forecast.
+        String contentText = String.format(context.getString(R.string.format_notification),
+                desc,
+                Utility.formatTemperature(context, high, metric),
+                Utility.formatTemperature(context, low, metric));
+
+        // NotificationCompatBuilder is a very convenient way to build backward-compatible
+        // notifications.  Just throw in some data.
+        NotificationCompat.Builder mBuilder =
+                new NotificationCompat.Builder(getContext())
+                        .setColor(resources.getColor(R.color.sunshine_light_blue))
+                        .setSmallIcon(iconId)
+                        .setLargeIcon(largeIcon)
+                        .setContentTitle(title)
+                        .setContentText(contentText);
+
+        // Make something interesting happen when the user clicks on the notification.
+        // In this case, opening the app is sufficient.
+        Intent resultIntent = new Intent(context, MainActivity.class);
+
+        // The stack builder object will contain an artificial back stack for the
+        // started Activity.
+        // This ensures that navigating backward from the Activity leads out of
+        // your application to the Home screen.
+        TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
+        stackBuilder.addNextIntent(resultIntent);
+        PendingIntent resultPendingIntent =
+                stackBuilder.getPendingIntent(
+                        0,
+                        PendingIntent.FLAG_UPDATE_CURRENT
+                );
+        mBuilder.setContentIntent(resultPendingIntent);
+
+        NotificationManager mNotificationManager =
+                (NotificationManager) getContext().getSystemService(Context.NOTIFICATION_SERVICE);
+        // WEATHER_NOTIFICATION_ID allows you to update the notification later on.
+        mNotificationManager.notify(WEATHER_NOTIFICATION_ID, mBuilder.build());
+
+        //refreshing last sync
+        SharedPreferences.Editor editor =
+                PreferenceManager.getDefaultSharedPreferences(context).edit();
+        editor.putLong(context.getString(R.string.pref_last_notification), now);
+        editor.commit();
     }
 
     /**
@@ -470,6 +975,12 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
      * @param context The context used to access the account service
      */
     public static void syncImmediately(Context context) {
+        String location = canonicalLocation(Utility.getPreferredLocation(context));
+        if (!shouldRequestSync(location, SystemClock.elapsedRealtime())) {
+            Log.d(SunshineSyncAdapter.class.getSimpleName(),
+                    "Sync for " + location + " already requested");
+            return;
+        }
         Bundle bundle = new Bundle();
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
@@ -477,6 +988,55 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                 context.getString(R.string.content_authority), bundle);
     }
 
+    /**
+     * Coalesce immediate syncs: app start, onboarding and a location change can all ask for one
+     * within moments of each other.  A request for a different location always goes through.
+     *
+     * @return false if a sync for the location was requested within the last
+     *         {@link #IMMEDIATE_SYNC_WINDOW_MILLIS}
+     */
+    static boolean shouldRequestSync(String canonicalLocation, long nowMillis) {
+        synchronized (sImmediateSyncTimes) {
+            Long last = sImmediateSyncTimes.get(canonicalLocation);
+            if (last != null && nowMillis - last < IMMEDIATE_SYNC_WINDOW_MILLIS) {
+                sCollapsedSyncRequests++;
+                return false;
+            }
+            sImmediateSyncTimes.put(canonicalLocation, nowMillis);
+            return true;
+        }
+    }
+
+    /**
+     * @return how many syncImmediately() calls were folded into an earlier one
+     */
+    public static int getCollapsedSyncRequestCount() {
+        synchronized (sImmediateSyncTimes) {
+            return sCollapsedSyncRequests;
+        }
+    }
+
+    /**
+     * @return how many forecast fetches were answered by another sync's download
+     */
+    public static int getCollapsedFetchCount() {
+        return sForecastFlights.getCollapsedCount();
+    }
+
+    /**
+     * Helper method to cancel a sync that's running or waiting to run, e.g. because it's for a
+     * location that's no longer wanted.
+     * @param context The context used to access the account service
+     */
+    public static void cancelSync(Context context) {
+        // Whatever was requested may never run now, so don't hold new requests back for it.
+        synchronized (sImmediateSyncTimes) {
+            sImmediateSyncTimes.clear();
+        }
+        ContentResolver.cancelSync(getSyncAccount(context),
+                context.getString(R.string.content_authority));
+    }
+
     /**
      * Helper method to get the fake account to be used with SyncAdapter, or make a new one
      * if the fake account doesn't exist yet.  If we make a new account, we call the
@@ -0,0 +1,19 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.IOException;
+
+/**
+ * A request that wasn't made, or was given up on, because the server asked us to back off or
+ * the circuit breaker is open.  Carries the time the sync should try again, which ends up in
+ * SyncResult.delayUntil.
+ */
+class SyncBackoffException extends IOException {
+
+    // In milliseconds since the epoch, or 0 if there's no particular time
+    final long retryAtMillis;
+
+    SyncBackoffException(String message, long retryAtMillis) {
+        super(message);
+        this.retryAtMillis = retryAtMillis;
+    }
+}
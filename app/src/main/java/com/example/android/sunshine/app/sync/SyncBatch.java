@@ -0,0 +1,131 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Everything one sync writes, collected as it's downloaded and committed with a single
+ * applyBatch at the end: the locations, the weather rows and the retention delete.
+ *
+ * WeatherProvider applies a batch in one transaction, so loaders reload once per sync and never
+ * see a location's forecast half stored.
+ */
+class SyncBatch {
+
+    /**
+     * Where a group of weather rows sits in the batch, to count what was written once it's
+     * applied.
+     */
+    static final class Range {
+        final int start;
+        final int end;
+
+        Range(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * @return how many of the range's rows were inserted or updated
+         */
+        int countWritten(ContentProviderResult[] results) {
+            int written = 0;
+            for (int i = start; i < end; i++) {
+                if (results[i].count != null) {
+                    written += results[i].count;
+                }
+            }
+            return written;
+        }
+    }
+
+    private final ArrayList<ContentProviderOperation> mOperations =
+            new ArrayList<ContentProviderOperation>();
+    // Index of the operation that stores each location, for the weather rows to refer back to
+    private final Map<String, Integer> mLocationOperations = new HashMap<String, Integer>();
+
+    /**
+     * Store the location if it's new, and fill in its city id if it didn't have one or OWM has
+     * renumbered it.
+     */
+    private int addLocation(String locationSetting, long cityId, String cityName,
+                            double lat, double lon) {
+        Integer index = mLocationOperations.get(locationSetting);
+        if (index != null) {
+            return index;
+        }
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+        if (cityId > 0) {
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_ID, cityId);
+        }
+        mOperations.add(ContentProviderOperation
+                .newInsert(WeatherContract.LocationEntry.buildLocationUpsertUri())
+                .withValues(locationValues)
+                .build());
+        index = mOperations.size() - 1;
+        mLocationOperations.put(locationSetting, index);
+        return index;
+    }
+
+    /**
+     * Upsert a forecast for a location that may not be stored yet.
+     */
+    Range addForecast(String locationSetting, long cityId, String cityName, double lat,
+                      double lon, ContentValues[] rows) {
+        int locationIndex = addLocation(locationSetting, cityId, cityName, lat, lon);
+        int start = mOperations.size();
+        for (ContentValues row : rows) {
+            mOperations.add(ContentProviderOperation
+                    .newUpdate(WeatherContract.WeatherEntry.buildWeatherUpsertUri())
+                    .withValues(row)
+                    .withValueBackReference(WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                            locationIndex)
+                    .build());
+        }
+        return new Range(start, mOperations.size());
+    }
+
+    /**
+     * Upsert rows whose location ids are already set.
+     */
+    Range addWeather(ContentValues[] rows) {
+        int start = mOperations.size();
+        for (ContentValues row : rows) {
+            mOperations.add(ContentProviderOperation
+                    .newUpdate(WeatherContract.WeatherEntry.buildWeatherUpsertUri())
+                    .withValues(row)
+                    .build());
+        }
+        return new Range(start, mOperations.size());
+    }
+
+    /**
+     * Delete every day up to and including the given date.
+     */
+    void addRetention(long lastDateToDelete) {
+        mOperations.add(ContentProviderOperation
+                .newDelete(WeatherContract.WeatherEntry.CONTENT_URI)
+                .withSelection(WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
+                        new String[]{Long.toString(lastDateToDelete)})
+                .build());
+    }
+
+    boolean isEmpty() {
+        return mOperations.isEmpty();
+    }
+
+    ArrayList<ContentProviderOperation> getOperations() {
+        return mOperations;
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets a sync be stopped from another thread.
+ *
+ * Interrupting a thread doesn't unblock it from a socket read, so requests register their
+ * connection while they're in flight and {@link #cancel()} disconnects them, which makes the
+ * blocked read fail straight away.  Long-running loops (parsing, storing) poll
+ * {@link #throwIfCanceled()} so they stop part way instead of finishing work nobody wants.
+ */
+class SyncCancellation {
+
+    private volatile boolean mCanceled;
+    private final Set<HttpURLConnection> mConnections = new HashSet<HttpURLConnection>();
+    private final Object mSleepLock = new Object();
+
+    boolean isCanceled() {
+        return mCanceled;
+    }
+
+    void throwIfCanceled() throws InterruptedIOException {
+        if (mCanceled) {
+            throw new InterruptedIOException("Sync canceled");
+        }
+    }
+
+    /**
+     * Cancel the sync, aborting any requests in flight.
+     */
+    void cancel() {
+        mCanceled = true;
+        synchronized (mSleepLock) {
+            mSleepLock.notifyAll();
+        }
+        abortConnections();
+    }
+
+    /**
+     * Wait, e.g. before retrying a request, but wake up as soon as the sync is canceled.
+     *
+     * @throws InterruptedIOException if the sync is canceled or the thread interrupted
+     */
+    void sleep(long millis) throws InterruptedIOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        synchronized (mSleepLock) {
+            while (!mCanceled) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return;
+                }
+                try {
+                    mSleepLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted");
+                }
+            }
+        }
+        throwIfCanceled();
+    }
+
+    /**
+     * Abort the requests in flight without canceling the sync, e.g. because the sync has
+     * given up waiting on them.
+     */
+    void abortConnections() {
+        List<HttpURLConnection> connections;
+        synchronized (mConnections) {
+            connections = new ArrayList<HttpURLConnection>(mConnections);
+            mConnections.clear();
+        }
+        for (HttpURLConnection connection : connections) {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Track a connection until {@link #unregister} so it can be aborted.  Throws straight away
+     * if the sync has already been canceled.
+     */
+    void register(HttpURLConnection connection) throws InterruptedIOException {
+        synchronized (mConnections) {
+            mConnections.add(connection);
+        }
+        if (mCanceled) {
+            abortConnections();
+            throwIfCanceled();
+        }
+    }
+
+    void unregister(HttpURLConnection connection) {
+        synchronized (mConnections) {
+            mConnections.remove(connection);
+        }
+    }
+}
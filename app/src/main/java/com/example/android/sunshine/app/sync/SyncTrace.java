@@ -0,0 +1,104 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.SyncResult;
+
+import com.example.android.sunshine.app.data.WeatherContract.SyncRunEntry;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adds up where one sync's time went, phase by phase, for the sync_runs table.
+ *
+ * Requests are made on MultiLocationSync's worker threads, so the totals are atomic.
+ */
+class SyncTrace {
+
+    private final long mStartMillis = System.currentTimeMillis();
+    private final long mStartNanos = System.nanoTime();
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mConnectNanos = new AtomicLong();
+    private final AtomicLong mFirstByteNanos = new AtomicLong();
+    private final AtomicLong mDownloadNanos = new AtomicLong();
+    private final AtomicLong mDownloadBytes = new AtomicLong();
+    private final AtomicLong mParseNanos = new AtomicLong();
+    private final AtomicLong mInsertNanos = new AtomicLong();
+    private final AtomicLong mRetentionNanos = new AtomicLong();
+    private final AtomicLong mNotifyNanos = new AtomicLong();
+    private final AtomicLong mRowsWritten = new AtomicLong();
+    private volatile long mDatabaseBytes;
+    private volatile long mFreeBytes;
+
+    private volatile int mStatus = SyncRunEntry.STATUS_COMPLETE;
+
+    void addResponse(WeatherTransport.Response response) {
+        mRequests.incrementAndGet();
+        mConnectNanos.addAndGet(response.connectNanos);
+        mFirstByteNanos.addAndGet(response.firstByteNanos);
+        mDownloadNanos.addAndGet(response.transferNanos);
+        mDownloadBytes.addAndGet(response.wireBytes);
+    }
+
+    void addParse(long nanos) {
+        mParseNanos.addAndGet(nanos);
+    }
+
+    void addInsert(long nanos) {
+        mInsertNanos.addAndGet(nanos);
+    }
+
+    void addRetention(long nanos) {
+        mRetentionNanos.addAndGet(nanos);
+    }
+
+    void addNotify(long nanos) {
+        mNotifyNanos.addAndGet(nanos);
+    }
+
+    void addRowsWritten(long rows) {
+        mRowsWritten.addAndGet(rows);
+    }
+
+    void setDatabaseSize(long databaseBytes, long freeBytes) {
+        mDatabaseBytes = databaseBytes;
+        mFreeBytes = freeBytes;
+    }
+
+    /**
+     * @param status one of the SyncRunEntry.STATUS_ values
+     */
+    void setStatus(int status) {
+        mStatus = status;
+    }
+
+    /**
+     * The sync_runs row for the run so far.
+     */
+    ContentValues toContentValues(SyncResult syncResult) {
+        ContentValues values = new ContentValues();
+        values.put(SyncRunEntry.COLUMN_START_TIME, mStartMillis);
+        values.put(SyncRunEntry.COLUMN_STATUS, mStatus);
+        values.put(SyncRunEntry.COLUMN_REQUESTS, mRequests.get());
+        values.put(SyncRunEntry.COLUMN_ERRORS,
+                syncResult.stats.numIoExceptions + syncResult.stats.numParseExceptions);
+        values.put(SyncRunEntry.COLUMN_ROWS_WRITTEN, mRowsWritten.get());
+        values.put(SyncRunEntry.COLUMN_TOTAL_TIME, micros(System.nanoTime() - mStartNanos));
+        values.put(SyncRunEntry.COLUMN_CONNECT_TIME, micros(mConnectNanos.get()));
+        values.put(SyncRunEntry.COLUMN_FIRST_BYTE_TIME, micros(mFirstByteNanos.get()));
+        values.put(SyncRunEntry.COLUMN_DOWNLOAD_TIME, micros(mDownloadNanos.get()));
+        values.put(SyncRunEntry.COLUMN_DOWNLOAD_BYTES, mDownloadBytes.get());
+        values.put(SyncRunEntry.COLUMN_PARSE_TIME, micros(mParseNanos.get()));
+        values.put(SyncRunEntry.COLUMN_INSERT_TIME, micros(mInsertNanos.get()));
+        values.put(SyncRunEntry.COLUMN_RETENTION_TIME, micros(mRetentionNanos.get()));
+        values.put(SyncRunEntry.COLUMN_NOTIFY_TIME, micros(mNotifyNanos.get()));
+        values.put(SyncRunEntry.COLUMN_DATABASE_BYTES, mDatabaseBytes);
+        values.put(SyncRunEntry.COLUMN_FREE_BYTES, mFreeBytes);
+        return values;
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
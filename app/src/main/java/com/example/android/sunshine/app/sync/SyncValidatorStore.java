@@ -0,0 +1,91 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers the HTTP validators (ETag and Last-Modified) and a hash of the parsed content of
+ * the last forecast we stored for each location setting, so the next sync can ask
+ * OpenWeatherMap whether anything changed instead of downloading and rewriting everything.
+ * Also remembers the day each location last had its full forecast checked, so the syncs in
+ * between can make do with the cheaper group requests.
+ */
+class SyncValidatorStore {
+
+    private static final String PREFS_NAME = "sync_validators";
+
+    private static final String KEY_ETAG = "etag:";
+    private static final String KEY_LAST_MODIFIED = "last_modified:";
+    private static final String KEY_CONTENT_HASH = "content_hash:";
+    private static final String KEY_FORECAST_DAY = "forecast_day:";
+
+    /**
+     * The validators for one location.  Any of the fields may be null if the server didn't
+     * send it, or if we've never stored a forecast for the location.
+     */
+    static final class Validators {
+        static final Validators NONE = new Validators(null, null, null);
+
+        final String etag;
+        final String lastModified;
+        final String contentHash;
+
+        Validators(String etag, String lastModified, String contentHash) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.contentHash = contentHash;
+        }
+    }
+
+    private final SharedPreferences mPrefs;
+
+    SyncValidatorStore(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    Validators get(String locationSetting) {
+        String etag = mPrefs.getString(KEY_ETAG + locationSetting, null);
+        String lastModified = mPrefs.getString(KEY_LAST_MODIFIED + locationSetting, null);
+        String contentHash = mPrefs.getString(KEY_CONTENT_HASH + locationSetting, null);
+        if (etag == null && lastModified == null && contentHash == null) {
+            return Validators.NONE;
+        }
+        return new Validators(etag, lastModified, contentHash);
+    }
+
+    void put(String locationSetting, Validators validators) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        putOrRemove(editor, KEY_ETAG + locationSetting, validators.etag);
+        putOrRemove(editor, KEY_LAST_MODIFIED + locationSetting, validators.lastModified);
+        putOrRemove(editor, KEY_CONTENT_HASH + locationSetting, validators.contentHash);
+        editor.commit();
+    }
+
+    /**
+     * @return the Julian day the location's full forecast was last checked, or 0 if never
+     */
+    int getForecastDay(String locationSetting) {
+        return mPrefs.getInt(KEY_FORECAST_DAY + locationSetting, 0);
+    }
+
+    void putForecastDay(String locationSetting, int julianDay) {
+        mPrefs.edit().putInt(KEY_FORECAST_DAY + locationSetting, julianDay).commit();
+    }
+
+    void remove(String locationSetting) {
+        mPrefs.edit()
+                .remove(KEY_ETAG + locationSetting)
+                .remove(KEY_LAST_MODIFIED + locationSetting)
+                .remove(KEY_CONTENT_HASH + locationSetting)
+                .remove(KEY_FORECAST_DAY + locationSetting)
+                .commit();
+    }
+
+    private static void putOrRemove(SharedPreferences.Editor editor, String key, String value) {
+        if (value != null) {
+            editor.putString(key, value);
+        } else {
+            editor.remove(key);
+        }
+    }
+}
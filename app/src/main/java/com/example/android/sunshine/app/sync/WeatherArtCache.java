@@ -0,0 +1,119 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+
+/**
+ * Weather art for notification large icons.
+ *
+ * The art_* drawables are sized for the detail screen, many times larger than a notification
+ * icon, and decoding one in full every time a notification goes out is wasted work.  Here each
+ * one is decoded once, downsampled to the icon size, and kept in a cache bounded by bytes.
+ */
+class WeatherArtCache {
+
+    // Room for the few conditions a notification cycles through, even at xxxhdpi sizes.
+    static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    // The platform's large icon size before it was made available as a resource
+    private static final int FALLBACK_ICON_SIZE_DP = 64;
+
+    private final Resources mResources;
+    private final int mWidth;
+    private final int mHeight;
+    private final LruCache<Integer, Bitmap> mCache;
+    private int mDecodeCount;
+
+    WeatherArtCache(Resources resources, int width, int height, int maxBytes) {
+        mResources = resources;
+        mWidth = width;
+        mHeight = height;
+        mCache = new LruCache<Integer, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Integer resId, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+    }
+
+    /**
+     * A cache sized for this device's notification large icons.
+     */
+    static WeatherArtCache forNotifications(Context context) {
+        Resources resources = context.getResources();
+        int width;
+        int height;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            width = resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+            height = resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
+        } else {
+            width = height = Math.round(
+                    FALLBACK_ICON_SIZE_DP * resources.getDisplayMetrics().density);
+        }
+        return new WeatherArtCache(resources, width, height, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @return the drawable, scaled to the icon size
+     */
+    synchronized Bitmap get(int resId) {
+        Bitmap bitmap = mCache.get(resId);
+        if (bitmap == null) {
+            bitmap = decode(resId);
+            if (bitmap != null) {
+                mCache.put(resId, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    private Bitmap decode(int resId) {
+        mDecodeCount++;
+
+        // Read the size first, so the decode itself can skip most of the pixels.
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(mResources, resId, options);
+
+        options.inSampleSize = calculateInSampleSize(
+                options.outWidth, options.outHeight, mWidth, mHeight);
+        options.inJustDecodeBounds = false;
+        Bitmap sampled = BitmapFactory.decodeResource(mResources, resId, options);
+        if (sampled == null || (sampled.getWidth() == mWidth && sampled.getHeight() == mHeight)) {
+            return sampled;
+        }
+        Bitmap scaled = Bitmap.createScaledBitmap(sampled, mWidth, mHeight, true);
+        if (scaled != sampled) {
+            sampled.recycle();
+        }
+        return scaled;
+    }
+
+    /**
+     * @return the largest power of two that can divide the image's size without making it
+     *         smaller than the requested size
+     */
+    static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+        while (width / (inSampleSize * 2) >= reqWidth && height / (inSampleSize * 2) >= reqHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    synchronized int getDecodeCount() {
+        return mDecodeCount;
+    }
+
+    synchronized int getSizeBytes() {
+        return mCache.size();
+    }
+
+    int getMaxSizeBytes() {
+        return mCache.maxSize();
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * How the sync adapter talks to the weather server.  {@link HttpWeatherTransport} is the real
+ * thing; {@link LocalWeatherTransport} answers in-process, so sync code can be exercised and
+ * benchmarked without a network.
+ */
+interface WeatherTransport {
+
+    /**
+     * Make a GET request and return once the response headers have arrived.
+     *
+     * @param requestHeaders extra headers to send, e.g. If-None-Match
+     * @param cancellation aborts the request if the sync is canceled; may be null
+     * @return the response, whose (decoded) body is read from the connection as it's used,
+     *         and which must be {@link Response#release() released} once read
+     * @throws java.io.InterruptedIOException if the sync was canceled, here or while the body
+     *         is read
+     */
+    Response get(URL url, Map<String, String> requestHeaders, SyncCancellation cancellation)
+            throws IOException;
+
+    /**
+     * A response whose body is read as it arrives, so a forecast can be parsed while it's
+     * still downloading and is never held in memory whole.  The body can be read once, and
+     * must not be read after {@link #release()}.
+     */
+    final class Response {
+        // Reading out the rest of a body this size or smaller on release lets the transport
+        // reuse the connection; anything longer isn't worth waiting for.
+        private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+        final int code;
+        final String message;
+        private final Map<String, String> mHeaders;
+
+        private final InputStream mBody;
+        private long mLength;
+        private boolean mReleased;
+
+        // Time spent connecting (DNS and TCP, nothing for a reused connection), from sending
+        // the request to the response headers arriving, and waiting for the body.  The body's
+        // time and bytes are only complete once it has been read or released.
+        long connectNanos;
+        long firstByteNanos;
+        long transferNanos;
+        // Bytes that came over the wire, before decompression.
+        long wireBytes;
+
+        Response(int code, String message, Map<String, String> headers, byte[] body) {
+            this(code, message, headers, new ByteArrayInputStream(body));
+            wireBytes = body.length;
+        }
+
+        /**
+         * @param body the decoded body, closed on release
+         */
+        Response(int code, String message, Map<String, String> headers, InputStream body) {
+            this.code = code;
+            this.message = message;
+            mHeaders = headers != null ? headers : Collections.<String, String>emptyMap();
+            mBody = new FilterInputStream(body) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        mLength++;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    int read = super.read(buffer, offset, count);
+                    if (read > 0) {
+                        mLength += read;
+                    }
+                    return read;
+                }
+            };
+        }
+
+        /**
+         * @return the header's value, or null if the server didn't send it.  Names are
+         *         matched ignoring case.
+         */
+        String getHeader(String name) {
+            for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+                if (name.equalsIgnoreCase(header.getKey())) {
+                    return header.getValue();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the decoded bytes of the body read so far, which is all of them once it has
+         *         been read to the end or released
+         */
+        long getContentLength() {
+            return mLength;
+        }
+
+        Reader openReader() throws IOException {
+            return new InputStreamReader(mBody, "UTF-8");
+        }
+
+        /**
+         * Finish with the body, reading out what's left of a short one, and close it.
+         */
+        void release() {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+            try {
+                byte[] skipped = new byte[1024];
+                long drained = 0;
+                int read;
+                while (drained <= MAX_DRAIN_BYTES
+                        && (read = mBody.read(skipped, 0, skipped.length)) != -1) {
+                    drained += read;
+                }
+            } catch (IOException e) {
+                // The body closes without being finished, so the connection isn't reused.
+            } finally {
+                try {
+                    mBody.close();
+                } catch (IOException e) {
+                    // Nothing more to read, so nothing lost.
+                }
+            }
+        }
+    }
+}